@@ -9,9 +9,14 @@ import java.util.List;
 import java.util.Properties;
 import java.util.logging.Level;
 
+import ictk.boardgame.AmbiguousMoveException;
+import ictk.boardgame.IllegalMoveException;
+import ictk.boardgame.chess.ChessGame;
 import ictk.boardgame.chess.ChessMove;
 import ictk.boardgame.chess.ChessPiece;
 import ictk.boardgame.chess.Square;
+import ictk.boardgame.chess.io.PGNReader;
+import ictk.boardgame.io.InvalidGameFormatException;
 
 public class GenericUtil {
 	private GenericUtil() {
@@ -158,6 +163,22 @@ public class GenericUtil {
 		}
 		return prop;
 	}
+	/**
+	 * The next correct game of the pgn, skipping the incorrect ones, or null at
+	 * its end.
+	 */
+	public static ChessGame readGame(PGNReader pgnReader) {
+		while (true) {
+			try {
+				return (ChessGame) pgnReader.readGame();
+			} catch (InvalidGameFormatException | IllegalMoveException | AmbiguousMoveException ex) {
+				chessLearnerLogger.info(ex.getMessage());
+			} catch (IOException ioEx) {
+				return null;
+			}
+		}
+	}
+
 	public static double clamp(double val, double min, double max) {
 	    return Math.max(min, Math.min(max, val));
 	}
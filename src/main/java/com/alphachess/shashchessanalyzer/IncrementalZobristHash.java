@@ -0,0 +1,166 @@
+package com.alphachess.shashchessanalyzer;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.move.Move;
+
+import ictk.boardgame.AmbiguousMoveException;
+import ictk.boardgame.History;
+import ictk.boardgame.IllegalMoveException;
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.ChessMove;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.PGNReader;
+import ictk.boardgame.chess.io.SAN;
+
+/**
+ * Polyglot key of a position kept up to date move by move: makeMove XORs the
+ * delta of the move, computed from the board before it is played, instead of
+ * hashing the 64 squares again, and unmakeMove restores the previous key from
+ * a stack, which also finds the repetitions.
+ *
+ * Usage: IncrementalZobristHash games.pgn, to compare the time per move of
+ * the incremental and full keys over the games
+ */
+public class IncrementalZobristHash {
+	// the first rounds of the benchmark only warm up the JIT
+	private static final int BENCHMARK_ROUNDS = 10;
+	private long[] keys = new long[256];
+	private int ply = 0;
+
+	private static final Logger logger = Logger.getLogger(IncrementalZobristHash.class.getName());
+
+	public IncrementalZobristHash(long key) {
+		keys[0] = key;
+	}
+
+	public IncrementalZobristHash(ChessBoard chessBoard) {
+		this(ZobristHash.getKey(chessBoard));
+	}
+
+	public IncrementalZobristHash(Board board) {
+		this(ZobristHash.getKey(board));
+	}
+
+	public long getKey() {
+		return keys[ply];
+	}
+
+	public int getPly() {
+		return ply;
+	}
+
+	/**
+	 * To be called before the move is played on the board.
+	 */
+	public long makeMove(ChessBoard chessBoard, ChessMove chessMove) {
+		return pushKey(keys[ply] ^ ZobristHash.getMoveDelta(chessBoard, chessMove));
+	}
+
+	/**
+	 * To be called before the move is done on the board.
+	 */
+	public long makeMove(Board board, Move move) {
+		return pushKey(keys[ply] ^ ZobristHash.getMoveDelta(board, move));
+	}
+
+	private long pushKey(long key) {
+		if (ply + 1 == keys.length) {
+			keys = Arrays.copyOf(keys, keys.length * 2);
+		}
+		keys[++ply] = key;
+		return key;
+	}
+
+	public long unmakeMove() {
+		if (ply == 0) {
+			throw new IllegalStateException("No move to take back");
+		}
+		return keys[--ply];
+	}
+
+	/**
+	 * Whether the position occurred before with the same side to move.
+	 */
+	public boolean isRepetition() {
+		for (int previousPly = ply - 2; previousPly >= 0; previousPly -= 2) {
+			if (keys[previousPly] == keys[ply]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static void main(String[] args) {
+		try (BufferedReader pgnBufferedReader = new BufferedReader(new FileReader(args[0]))) {
+			PGNReader pgnReader = new PGNReader(pgnBufferedReader);
+			FEN fen = new FEN();
+			List<String> startFens = new ArrayList<>();
+			SAN san = new SAN();
+			List<List<String>> gamesMoves = new ArrayList<>();
+			ChessGame chessGame = GenericUtil.readGame(pgnReader);
+			while (chessGame != null) {
+				History history = chessGame.getHistory();
+				history.rewind();
+				startFens.add(fen.boardToString(chessGame.getBoard()));
+				List<String> gameMoves = new ArrayList<>();
+				while (history.getNext() != null) {
+					gameMoves.add(san.moveToString(history.getNext()));
+					history.next();
+				}
+				gamesMoves.add(gameMoves);
+				chessGame = GenericUtil.readGame(pgnReader);
+			}
+			for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+				logMoveTimes(startFens, gamesMoves);
+			}
+		} catch (IOException | IllegalMoveException | AmbiguousMoveException e) {
+			logger.info(e.getMessage());
+		}
+	}
+
+	/**
+	 * Replays the games on new boards computing both keys, so that the board
+	 * updates are timed alike and only the hashing differs.
+	 */
+	private static void logMoveTimes(List<String> startFens, List<List<String>> gamesMoves)
+			throws IOException, IllegalMoveException, AmbiguousMoveException {
+		FEN fen = new FEN();
+		SAN san = new SAN();
+		long movesNumber = 0;
+		long incrementalNS = 0;
+		long fullNS = 0;
+		long mismatchesNumber = 0;
+		for (int game = 0; game < startFens.size(); game++) {
+			ChessBoard chessBoard = (ChessBoard) fen.stringToBoard(startFens.get(game));
+			IncrementalZobristHash incrementalZobristHash = new IncrementalZobristHash(chessBoard);
+			for (String sanMove : gamesMoves.get(game)) {
+				ChessMove chessMove = (ChessMove) san.stringToMove(chessBoard, sanMove);
+				long startNS = System.nanoTime();
+				long incrementalKey = incrementalZobristHash.makeMove(chessBoard, chessMove);
+				incrementalNS += System.nanoTime() - startNS;
+				chessBoard.playMove(chessMove);
+				startNS = System.nanoTime();
+				long fullKey = ZobristHash.getKey(chessBoard);
+				fullNS += System.nanoTime() - startNS;
+				if (incrementalKey != fullKey) {
+					mismatchesNumber++;
+				}
+				movesNumber++;
+			}
+		}
+		String movesMsg = String.join("", Long.toString(movesNumber), " moves: incremental key ",
+				Long.toString(incrementalNS / Math.max(1, movesNumber)), " ns per move, full key ",
+				Long.toString(fullNS / Math.max(1, movesNumber)), " ns per move, ", Long.toString(mismatchesNumber),
+				" mismatches");
+		logger.info(movesMsg);
+	}
+}
@@ -0,0 +1,89 @@
+package com.alphachess.shashchessanalyzer;
+
+import java.io.IOException;
+
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessPiece;
+import ictk.boardgame.chess.io.FEN;
+
+/**
+ * 64-bit position keys computed as Stockfish, and so ShashChess, computes
+ * them, so that positions can be looked up in the experience files written by
+ * its persisted learning. The random table is generated at startup with the
+ * Stockfish xorshift generator and seed, in the Stockfish order: pieces by
+ * square, en passant files, the 16 castling rights combinations, side to move.
+ */
+public class StockfishZobristHash {
+	private static final long SEED = 1070372;
+	private static final long[][] PIECE_SQUARE = new long[12][64];
+	private static final long[] EN_PASSANT = new long[8];
+	private static final long[] CASTLING = new long[16];
+	private static final long SIDE;
+	private static final int WHITE_OO = 1;
+	private static final int WHITE_OOO = 2;
+	private static final int BLACK_OO = 4;
+	private static final int BLACK_OOO = 8;
+
+	static {
+		long[] state = { SEED };
+		for (int piece = 0; piece < 12; piece++) {
+			for (int square = 0; square < 64; square++) {
+				PIECE_SQUARE[piece][square] = getRandom(state);
+			}
+		}
+		for (int file = 0; file < 8; file++) {
+			EN_PASSANT[file] = getRandom(state);
+		}
+		for (int castlingRights = 0; castlingRights < 16; castlingRights++) {
+			CASTLING[castlingRights] = getRandom(state);
+		}
+		SIDE = getRandom(state);
+	}
+
+	private StockfishZobristHash() {
+		throw new IllegalStateException("Utility class");
+	}
+
+	private static long getRandom(long[] state) {
+		state[0] ^= state[0] >>> 12;
+		state[0] ^= state[0] << 25;
+		state[0] ^= state[0] >>> 27;
+		return state[0] * 2685821657736338717L;
+	}
+
+	public static long getKey(ChessBoard chessBoard) {
+		long key = 0;
+		for (int file = 1; file <= 8; file++) {
+			for (int rank = 1; rank <= 8; rank++) {
+				ChessPiece chessPiece = chessBoard.getSquare(file, rank).getOccupant();
+				if (chessPiece != null) {
+					key ^= PIECE_SQUARE[getPieceIndex(chessPiece)][8 * (rank - 1) + (file - 1)];
+				}
+			}
+		}
+		int castlingRights = (chessBoard.isWhiteCastleableKingside() ? WHITE_OO : 0)
+				| (chessBoard.isWhiteCastleableQueenside() ? WHITE_OOO : 0)
+				| (chessBoard.isBlackCastleableKingside() ? BLACK_OO : 0)
+				| (chessBoard.isBlackCastleableQueenside() ? BLACK_OOO : 0);
+		key ^= CASTLING[castlingRights];
+		int enPassantFile = chessBoard.getEnPassantFile();
+		// as Polyglot, Stockfish only keeps an en passant square a pawn can capture on
+		if (ZobristHash.isEnPassantCapturable(chessBoard, enPassantFile)) {
+			key ^= EN_PASSANT[enPassantFile - 1];
+		}
+		if (chessBoard.isBlackMove()) {
+			key ^= SIDE;
+		}
+		return key;
+	}
+
+	public static long getKey(String fen) throws IOException {
+		return getKey((ChessBoard) new FEN().stringToBoard(fen));
+	}
+
+	// Stockfish pieces: white pawn 0, knight 1, bishop 2, rook 3, queen 4, king 5, then the black ones
+	static int getPieceIndex(ChessPiece chessPiece) {
+		int pieceIndex = chessPiece.getIndex() % ChessPiece.BLACK_OFFSET;
+		return (5 - pieceIndex) + (chessPiece.isBlack() ? 6 : 0);
+	}
+}
@@ -0,0 +1,468 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import net.andreinc.neatchess.client.model.Strength;
+
+/**
+ * Memoizing cache in front of the engine searches. The key is the position
+ * without the move counters, the searched moves and the engine options that
+ * change the analysis; the value is the best move, score, depth, pv and wdl
+ * of the search, with its limits. A cached result answers a search whose
+ * limits it equals or exceeds, in depth or in move time: the searches of the
+ * batch tools are limited by move time only, so they pass no depth.
+ *
+ * The most recently used results stay in memory; every result is also
+ * appended to a tab separated cache file, indexed by key hash, so that the
+ * results survive across runs and processes. The appends hold a lock on the
+ * file, and the lines appended by other processes are indexed before every
+ * append and every lookup missing the memory.
+ */
+public class AnalysisCache implements Closeable {
+	public static final int MATE_SCORE = 32000;
+	private static final int MAX_LINE_SIZE = 8192;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final String SEPARATOR = "\t";
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private final String engineOptions;
+	private final Map<String, AnalysisResult> memoryResults;
+	private final DiskIndex diskIndex = new DiskIndex();
+	private final RandomAccessFile cacheFile;
+	private long indexedLength = 0;
+	private long memoryHitsNumber;
+	private long diskHitsNumber;
+	private long missesNumber;
+
+	private static final Logger logger = Logger.getLogger(AnalysisCache.class.getName());
+
+	/**
+	 * Offsets of the results on disk by key hash, in an open addressing
+	 * table of primitive arrays doubled when three quarters full.
+	 */
+	private static class DiskIndex {
+		private long[] keyHashes = new long[1024];
+		// offset plus one, 0 for an empty slot
+		private long[] offsets = new long[1024];
+		private int size = 0;
+
+		void put(long keyHash, long offset) {
+			if (size >= keyHashes.length / 4 * 3) {
+				grow();
+			}
+			int slot = getSlot(keyHashes, offsets, keyHash);
+			if (offsets[slot] == 0) {
+				keyHashes[slot] = keyHash;
+				size++;
+			}
+			offsets[slot] = offset + 1;
+		}
+
+		/**
+		 * The offset of the last result of the key hash, or -1.
+		 */
+		long get(long keyHash) {
+			return offsets[getSlot(keyHashes, offsets, keyHash)] - 1;
+		}
+
+		int size() {
+			return size;
+		}
+
+		private void grow() {
+			long[] oldKeyHashes = keyHashes;
+			long[] oldOffsets = offsets;
+			keyHashes = new long[oldKeyHashes.length * 2];
+			offsets = new long[oldOffsets.length * 2];
+			for (int oldSlot = 0; oldSlot < oldKeyHashes.length; oldSlot++) {
+				if (oldOffsets[oldSlot] != 0) {
+					int slot = getSlot(keyHashes, offsets, oldKeyHashes[oldSlot]);
+					keyHashes[slot] = oldKeyHashes[oldSlot];
+					offsets[slot] = oldOffsets[oldSlot];
+				}
+			}
+		}
+
+		private static int getSlot(long[] keyHashes, long[] offsets, long keyHash) {
+			int mask = keyHashes.length - 1;
+			long hash = keyHash * 0x9e3779b97f4a7c15L;
+			int slot = (int) (hash ^ (hash >>> 32)) & mask;
+			while ((offsets[slot] != 0) && (keyHashes[slot] != keyHash)) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+	}
+
+	public static class AnalysisResult {
+		private final String bestMove;
+		private final int score;
+		private final int mateIn;
+		private final int depth;
+		private final String pv;
+		private final String wdl;
+		private final long moveTimeMS;
+
+		public AnalysisResult(String bestMove, int score, int mateIn, int depth, String pv, String wdl,
+				long moveTimeMS) {
+			this.bestMove = bestMove;
+			this.score = score;
+			this.mateIn = mateIn;
+			this.depth = depth;
+			this.pv = pv;
+			this.wdl = wdl;
+			this.moveTimeMS = moveTimeMS;
+		}
+
+		public String getBestMove() {
+			return bestMove;
+		}
+
+		/**
+		 * Centipawns from the side to move, MATE_SCORE less the moves to mate
+		 * for a mate score.
+		 */
+		public int getScore() {
+			return score;
+		}
+
+		/**
+		 * Moves to mate, negative when mated, 0 without a mate score.
+		 */
+		public int getMateIn() {
+			return mateIn;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public String getPv() {
+			return pv;
+		}
+
+		/**
+		 * "win draw loss" per mille, empty unless the engine shows it.
+		 */
+		public String getWdl() {
+			return wdl;
+		}
+
+		public long getMoveTimeMS() {
+			return moveTimeMS;
+		}
+
+		/**
+		 * False when the engine only returned a best move, for instance from a
+		 * book.
+		 */
+		public boolean isScored() {
+			return depth > 0;
+		}
+
+		private boolean isSatisfying(long requestedMoveTimeMS, int requestedDepth) {
+			return ((requestedDepth > 0) && (depth >= requestedDepth))
+					|| ((requestedMoveTimeMS > 0) && (moveTimeMS >= requestedMoveTimeMS));
+		}
+	}
+
+	/**
+	 * @param cacheFileName  tab separated file of the persistent results
+	 * @param maxEntries     results kept in memory
+	 * @param engineOptions  engine name and options that change the analysis
+	 */
+	public AnalysisCache(String cacheFileName, int maxEntries, String engineOptions) throws IOException {
+		this.engineOptions = engineOptions;
+		memoryResults = new LinkedHashMap<String, AnalysisResult>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, AnalysisResult> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		cacheFile = new RandomAccessFile(new File(cacheFileName), "rw");
+		indexAppendedResults();
+		String indexedMsg = String.join("", "Analysis cache: ", Integer.toString(diskIndex.size()),
+				" results on disk");
+		logger.info(indexedMsg);
+	}
+
+	/**
+	 * Indexes the complete lines appended since the last call, by this or
+	 * other processes. A line still without its end is left for the next call.
+	 */
+	private void indexAppendedResults() throws IOException {
+		long length = cacheFile.length();
+		if (length <= indexedLength) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+		long position = indexedLength;
+		long lineOffset = indexedLength;
+		while (position < length) {
+			buffer.clear();
+			buffer.limit((int) Math.min(BUFFER_SIZE, length - position));
+			int readBytes = cacheFile.getChannel().read(buffer, position);
+			if (readBytes <= 0) {
+				break;
+			}
+			for (int byteIndex = 0; byteIndex < readBytes; byteIndex++) {
+				byte lineByte = buffer.get(byteIndex);
+				if (lineByte != '\n') {
+					lineBytes.write(lineByte);
+					continue;
+				}
+				String line = new String(lineBytes.toByteArray(), StandardCharsets.ISO_8859_1);
+				int keyEnd = line.indexOf(SEPARATOR);
+				if ((keyEnd > 0) && (toResult(line) != null)) {
+					// later results of a key are deeper, so they replace the earlier ones
+					diskIndex.put(getKeyHash(line.substring(0, keyEnd)), lineOffset);
+				}
+				lineBytes.reset();
+				lineOffset = position + byteIndex + 1;
+			}
+			position += readBytes;
+		}
+		indexedLength = lineOffset;
+	}
+
+	/**
+	 * The cached result of a search of the position limited by moveTimeMS or
+	 * depth, 0 for no limit, or null if the engine must be called.
+	 */
+	public AnalysisResult get(String fen, String searchMoves, long moveTimeMS, int depth) throws IOException {
+		return get(fen, searchMoves, "", moveTimeMS, depth);
+	}
+
+	/**
+	 * As get, for a search with options changed from the ones of the cache,
+	 * such as the Shashin options set for the position type.
+	 */
+	public synchronized AnalysisResult get(String fen, String searchMoves, String currentOptions, long moveTimeMS,
+			int depth) throws IOException {
+		String key = getKey(fen, searchMoves, currentOptions);
+		AnalysisResult analysisResult = memoryResults.get(key);
+		if ((analysisResult != null) && analysisResult.isSatisfying(moveTimeMS, depth)) {
+			memoryHitsNumber++;
+			return analysisResult;
+		}
+		if (analysisResult == null) {
+			indexAppendedResults();
+			analysisResult = readResult(key);
+			if ((analysisResult != null) && analysisResult.isSatisfying(moveTimeMS, depth)) {
+				memoryResults.put(key, analysisResult);
+				diskHitsNumber++;
+				return analysisResult;
+			}
+		}
+		missesNumber++;
+		return null;
+	}
+
+	/**
+	 * Stores a scored result, unless a deeper one is already cached.
+	 */
+	public void put(String fen, String searchMoves, AnalysisResult analysisResult) throws IOException {
+		put(fen, searchMoves, "", analysisResult);
+	}
+
+	public synchronized void put(String fen, String searchMoves, String currentOptions,
+			AnalysisResult analysisResult) throws IOException {
+		if (!analysisResult.isScored()) {
+			return;
+		}
+		String key = getKey(fen, searchMoves, currentOptions);
+		AnalysisResult cachedResult = memoryResults.get(key);
+		if ((cachedResult != null) && (cachedResult.getDepth() > analysisResult.getDepth())) {
+			return;
+		}
+		FileLock cacheLock = cacheFile.getChannel().lock();
+		try {
+			indexAppendedResults();
+			cachedResult = readResult(key);
+			if ((cachedResult != null) && (cachedResult.getDepth() > analysisResult.getDepth())) {
+				memoryResults.put(key, cachedResult);
+				return;
+			}
+			memoryResults.put(key, analysisResult);
+			long offset = cacheFile.length();
+			if (offset > indexedLength) {
+				// the last line has been torn by a crash: the result starts on a new line
+				cacheFile.seek(offset++);
+				cacheFile.write('\n');
+			}
+			cacheFile.seek(offset);
+			cacheFile.write(String.join("", String.join(SEPARATOR, key, analysisResult.getBestMove(),
+					Integer.toString(analysisResult.getScore()), Integer.toString(analysisResult.getMateIn()),
+					Integer.toString(analysisResult.getDepth()), analysisResult.getPv(), analysisResult.getWdl(),
+					Long.toString(analysisResult.getMoveTimeMS())), "\n").getBytes(StandardCharsets.ISO_8859_1));
+			diskIndex.put(getKeyHash(key), offset);
+			indexedLength = cacheFile.length();
+		} finally {
+			cacheLock.release();
+		}
+	}
+
+	private AnalysisResult readResult(String key) throws IOException {
+		long offset = diskIndex.get(getKeyHash(key));
+		if (offset < 0) {
+			return null;
+		}
+		cacheFile.seek(offset);
+		byte[] lineBytes = new byte[(int) Math.min(MAX_LINE_SIZE, cacheFile.length() - offset)];
+		cacheFile.readFully(lineBytes);
+		String line = new String(lineBytes, StandardCharsets.ISO_8859_1);
+		int lineEnd = line.indexOf('\n');
+		if ((lineEnd < 0) || !line.startsWith(String.join("", key, SEPARATOR))) {
+			return null;
+		}
+		return toResult(line.substring(0, lineEnd));
+	}
+
+	private static AnalysisResult toResult(String line) {
+		String[] fields = line.split(SEPARATOR, -1);
+		if (fields.length != 8) {
+			// a line torn by a crash
+			return null;
+		}
+		try {
+			return new AnalysisResult(fields[1], Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+					Integer.parseInt(fields[4]), fields[5], fields[6], Long.parseLong(fields[7]));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Position without the move counters, searched moves and engine options:
+	 * the same position reached at another move gets the same analysis.
+	 */
+	private String getKey(String fen, String searchMoves, String currentOptions) {
+		String[] fenFields = fen.trim().split("\\s+");
+		String position = (fenFields.length >= 4)
+				? String.join(" ", fenFields[0], fenFields[1], fenFields[2], fenFields[3])
+				: fen.trim();
+		return String.join("|", position, (searchMoves != null) ? searchMoves.trim() : "", engineOptions,
+				(currentOptions != null) ? currentOptions : "");
+	}
+
+	private static long getKeyHash(String key) {
+		long keyHash = FNV_OFFSET_BASIS;
+		for (int charIndex = 0; charIndex < key.length(); charIndex++) {
+			keyHash = (keyHash ^ key.charAt(charIndex)) * FNV_PRIME;
+		}
+		return keyHash;
+	}
+
+	/**
+	 * Result of the uci lines of a "go" command: the last scored info line of
+	 * the first pv and the bestmove line.
+	 */
+	public static AnalysisResult parse(List<String> searchLines, long moveTimeMS) {
+		String bestMove = "";
+		int score = 0;
+		int mateIn = 0;
+		int depth = 0;
+		String pv = "";
+		String wdl = "";
+		for (String searchLine : searchLines) {
+			String[] tokens = searchLine.trim().split("\\s+");
+			if (tokens[0].equals("bestmove") && (tokens.length > 1)) {
+				bestMove = tokens[1];
+			} else if (tokens[0].equals("info") && searchLine.contains(" score ") && isFirstPv(tokens)) {
+				wdl = "";
+				pv = "";
+				for (int tokenIndex = 1; tokenIndex < tokens.length - 1; tokenIndex++) {
+					if (tokens[tokenIndex].equals("depth")) {
+						depth = Integer.parseInt(tokens[tokenIndex + 1]);
+					} else if (tokens[tokenIndex].equals("score") && (tokenIndex + 2 < tokens.length)) {
+						int value = Integer.parseInt(tokens[tokenIndex + 2]);
+						mateIn = tokens[tokenIndex + 1].equals("mate") ? value : 0;
+						score = (mateIn == 0) ? value : getMateScore(mateIn);
+					} else if (tokens[tokenIndex].equals("wdl") && (tokenIndex + 3 < tokens.length)) {
+						wdl = String.join(" ", tokens[tokenIndex + 1], tokens[tokenIndex + 2],
+								tokens[tokenIndex + 3]);
+					} else if (tokens[tokenIndex].equals("pv")) {
+						StringBuilder pvBuilder = new StringBuilder();
+						for (int pvIndex = tokenIndex + 1; pvIndex < tokens.length; pvIndex++) {
+							pvBuilder.append((pvIndex > tokenIndex + 1) ? " " : "").append(tokens[pvIndex]);
+						}
+						pv = pvBuilder.toString();
+						break;
+					}
+				}
+			}
+		}
+		return new AnalysisResult(bestMove, score, mateIn, depth, pv, wdl, moveTimeMS);
+	}
+
+	/**
+	 * Centipawns from the side to move of a neatchess score. Its mate scores
+	 * are all Double.MAX_VALUE, so they are converted from the moves to mate,
+	 * as in the cache lines.
+	 */
+	public static int getScore(Strength strength) {
+		return strength.isForcedMate() ? getMateScore(strength.getMateIn())
+				: ((Double) (strength.getScore() * 100)).intValue();
+	}
+
+	/**
+	 * Moves to mate of a neatchess score, negative when mated, 0 without a
+	 * mate score.
+	 */
+	public static int getMateIn(Strength strength) {
+		return strength.isForcedMate() ? strength.getMateIn() : 0;
+	}
+
+	private static int getMateScore(int mateIn) {
+		return (mateIn > 0) ? MATE_SCORE - mateIn : -MATE_SCORE - mateIn;
+	}
+
+	private static boolean isFirstPv(String[] tokens) {
+		for (int tokenIndex = 1; tokenIndex < tokens.length - 1; tokenIndex++) {
+			if (tokens[tokenIndex].equals("multipv")) {
+				return tokens[tokenIndex + 1].equals("1");
+			}
+		}
+		return true;
+	}
+
+	public synchronized long getHitsNumber() {
+		return memoryHitsNumber + diskHitsNumber;
+	}
+
+	public synchronized long getMissesNumber() {
+		return missesNumber;
+	}
+
+	public synchronized double getHitRate() {
+		long lookupsNumber = memoryHitsNumber + diskHitsNumber + missesNumber;
+		return (lookupsNumber > 0) ? (double) (memoryHitsNumber + diskHitsNumber) / lookupsNumber : 0;
+	}
+
+	public synchronized void logStatistics() {
+		String statisticsMsg = String.format(
+				"Analysis cache: %d memory hits, %d disk hits, %d misses, hit rate %.1f%%, %d results on disk",
+				memoryHitsNumber, diskHitsNumber, missesNumber, getHitRate() * 100, diskIndex.size());
+		logger.info(statisticsMsg);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		logStatistics();
+		cacheFile.close();
+	}
+}
@@ -0,0 +1,211 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.io.PGNWriter;
+
+/**
+ * Writes the games of one or more producers to a pgn from a single background
+ * thread. Producers hand finished games with their index to a bounded queue;
+ * the writer serializes them in batches, in index order, flushing and syncing
+ * the file at configurable intervals, so that searches never wait on disk I/O
+ * unless the queue is full.
+ */
+public class AsyncPgnWriter implements Closeable {
+	private static final int WRITE_BUFFER_SIZE = 1 << 16;
+	private static final long STATISTICS_INTERVAL_MS = 60000;
+	private static final IndexedGame END_OF_GAMES = new IndexedGame(-1, null);
+	private final BlockingQueue<IndexedGame> queue;
+	private final int batchSize;
+	private final long flushIntervalMS;
+	private final long fsyncIntervalMS;
+	private final FileOutputStream pgnOutputStream;
+	private final Writer pgnOutputWriter;
+	private final TreeMap<Long, String> pendingGames = new TreeMap<>();
+	private final Thread writerThread;
+	private long nextIndex;
+	private volatile IOException writeFailure;
+	private volatile long writtenGamesNumber;
+	private volatile long writtenCharsNumber;
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+	private final AtomicLong fullQueueWaitsNumber = new AtomicLong();
+	private final long startTimeMS = System.currentTimeMillis();
+
+	private static final Logger logger = Logger.getLogger(AsyncPgnWriter.class.getName());
+
+	private static class IndexedGame {
+		private final long index;
+		private final ChessGame chessGame;
+
+		private IndexedGame(long index, ChessGame chessGame) {
+			this.index = index;
+			this.chessGame = chessGame;
+		}
+	}
+
+	/**
+	 * @param firstIndex      index of the first game to write; the following
+	 *                        ones must be consecutive
+	 * @param flushIntervalMS 0 flushes after every batch
+	 * @param fsyncIntervalMS 0 syncs only on close
+	 */
+	public AsyncPgnWriter(String pgnOutputFileName, boolean append, int queueSize, int batchSize,
+			long flushIntervalMS, long fsyncIntervalMS, long firstIndex) throws IOException {
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.batchSize = batchSize;
+		this.flushIntervalMS = flushIntervalMS;
+		this.fsyncIntervalMS = fsyncIntervalMS;
+		this.nextIndex = firstIndex;
+		pgnOutputStream = CompressedStreams.getFileOutputStream(pgnOutputFileName, append);
+		pgnOutputWriter = new BufferedWriter(new OutputStreamWriter(
+				CompressedStreams.getOutputStream(pgnOutputStream, pgnOutputFileName), StandardCharsets.UTF_8),
+				WRITE_BUFFER_SIZE);
+		writerThread = new Thread(this::writeGames, "AsyncPgnWriter");
+		writerThread.start();
+	}
+
+	/**
+	 * Queues a game; the game must not be modified afterwards. Blocks only when
+	 * the queue is full.
+	 */
+	public void submit(long index, ChessGame chessGame) throws IOException {
+		if (writeFailure != null) {
+			throw writeFailure;
+		}
+		IndexedGame indexedGame = new IndexedGame(index, chessGame);
+		try {
+			if (!queue.offer(indexedGame)) {
+				fullQueueWaitsNumber.incrementAndGet();
+				queue.put(indexedGame);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+	}
+
+	private void writeGames() {
+		List<IndexedGame> batch = new ArrayList<>(batchSize);
+		long lastFlushMS = System.currentTimeMillis();
+		long lastFsyncMS = lastFlushMS;
+		long lastStatisticsMS = lastFlushMS;
+		boolean isEnded = false;
+		try {
+			while (!isEnded) {
+				IndexedGame first = queue.poll(Math.max(1, flushIntervalMS), TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, batchSize - 1);
+				}
+				for (IndexedGame indexedGame : batch) {
+					if (indexedGame == END_OF_GAMES) {
+						isEnded = true;
+					} else {
+						pendingGames.put(indexedGame.index, getPgn(indexedGame.chessGame));
+					}
+				}
+				batch.clear();
+				writeOrderedGames(isEnded);
+				long nowMS = System.currentTimeMillis();
+				if (isEnded || (nowMS - lastFlushMS >= flushIntervalMS)) {
+					pgnOutputWriter.flush();
+					lastFlushMS = nowMS;
+				}
+				if (isEnded || ((fsyncIntervalMS > 0) && (nowMS - lastFsyncMS >= fsyncIntervalMS))) {
+					pgnOutputWriter.flush();
+					pgnOutputStream.getFD().sync();
+					lastFsyncMS = nowMS;
+				}
+				if (nowMS - lastStatisticsMS >= STATISTICS_INTERVAL_MS) {
+					logStatistics();
+					lastStatisticsMS = nowMS;
+				}
+			}
+		} catch (IOException e) {
+			writeFailure = e;
+			logger.info(e.getMessage());
+		} catch (InterruptedException e) {
+			writeFailure = new IOException(e);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// games are written in index order; at the end a missing index no longer holds back the following games
+	private void writeOrderedGames(boolean isEnded) throws IOException {
+		while (!pendingGames.isEmpty()) {
+			long firstPendingIndex = pendingGames.firstKey();
+			if ((firstPendingIndex != nextIndex) && !isEnded) {
+				return;
+			}
+			String pgn = pendingGames.remove(firstPendingIndex);
+			pgnOutputWriter.write(pgn);
+			writtenGamesNumber++;
+			writtenCharsNumber += pgn.length();
+			nextIndex = firstPendingIndex + 1;
+		}
+	}
+
+	private String getPgn(ChessGame chessGame) throws IOException {
+		StringWriter pgnStringWriter = new StringWriter();
+		PrintWriter pgnPrintWriter = new PrintWriter(pgnStringWriter);
+		PGNWriter gamePgnWriter = new PGNWriter(pgnPrintWriter);
+		gamePgnWriter.writeGame(chessGame);
+		pgnPrintWriter.print("\r\n");
+		pgnPrintWriter.flush();
+		return pgnStringWriter.toString();
+	}
+
+	public String getStatistics() {
+		long elapsedMS = Math.max(1, System.currentTimeMillis() - startTimeMS);
+		return String.format(
+				"Pgn writer: %d games, %d KB, %.1f games/s, %.1f KB/s, queue depth %d (max %d), full queue waits %d",
+				writtenGamesNumber, writtenCharsNumber / 1024, writtenGamesNumber * 1000.0 / elapsedMS,
+				writtenCharsNumber * 1000.0 / 1024 / elapsedMS, queue.size(), maxQueueDepth.get(),
+				fullQueueWaitsNumber.get());
+	}
+
+	private void logStatistics() {
+		String statisticsMsg = getStatistics();
+		logger.info(statisticsMsg);
+	}
+
+	/**
+	 * Writes the queued games, syncs the file and stops the writer thread.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			while (writerThread.isAlive() && !queue.offer(END_OF_GAMES, 100, TimeUnit.MILLISECONDS)) {
+				// the writer thread is still draining a full queue
+			}
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pgnOutputWriter.close();
+		}
+		logStatistics();
+		if (writeFailure != null) {
+			throw writeFailure;
+		}
+	}
+}
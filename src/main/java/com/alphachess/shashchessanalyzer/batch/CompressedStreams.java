@@ -0,0 +1,119 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Opens game, position and result files compressed according to their
+ * extension: .gz (gzip, appendable as concatenated members), .zip (first
+ * entry only) and .zz (zlib deflate); any other extension is plain text. All
+ * streams are buffered and never hold a whole file in memory, and the text is
+ * UTF-8 like the journal segments, whatever the platform charset.
+ */
+public class CompressedStreams {
+	public static final int BUFFER_SIZE = 1 << 16;
+	private static final String GZIP_EXTENSION = ".gz";
+	private static final String ZIP_EXTENSION = ".zip";
+	private static final String DEFLATE_EXTENSION = ".zz";
+
+	private CompressedStreams() {
+		throw new IllegalStateException("Utility class");
+	}
+
+	public static BufferedReader getBufferedReader(String fileName) throws IOException {
+		return new BufferedReader(new InputStreamReader(getInputStream(fileName), StandardCharsets.UTF_8), BUFFER_SIZE);
+	}
+
+	public static PrintWriter getPrintWriter(String fileName, boolean append) throws IOException {
+		return new PrintWriter(new OutputStreamWriter(getOutputStream(fileName, append), StandardCharsets.UTF_8));
+	}
+
+	public static InputStream getInputStream(String fileName) throws IOException {
+		InputStream fileInputStream = new BufferedInputStream(new FileInputStream(fileName), BUFFER_SIZE);
+		String lowerCaseFileName = fileName.toLowerCase();
+		try {
+			if (lowerCaseFileName.endsWith(GZIP_EXTENSION)) {
+				return new GZIPInputStream(fileInputStream, BUFFER_SIZE);
+			}
+			if (lowerCaseFileName.endsWith(ZIP_EXTENSION)) {
+				ZipInputStream zipInputStream = new ZipInputStream(fileInputStream);
+				if (zipInputStream.getNextEntry() == null) {
+					throw new IOException(String.join("", fileName, " is an empty zip file"));
+				}
+				return zipInputStream;
+			}
+			if (lowerCaseFileName.endsWith(DEFLATE_EXTENSION)) {
+				return new InflaterInputStream(fileInputStream, new Inflater(), BUFFER_SIZE);
+			}
+		} catch (IOException e) {
+			fileInputStream.close();
+			throw e;
+		}
+		return fileInputStream;
+	}
+
+	public static OutputStream getOutputStream(String fileName, boolean append) throws IOException {
+		return getOutputStream(getFileOutputStream(fileName, append), fileName);
+	}
+
+	public static FileOutputStream getFileOutputStream(String fileName, boolean append) throws IOException {
+		if (append && !isAppendable(fileName) && new File(fileName).length() > 0) {
+			throw new IOException(String.join("", fileName, " can't be appended: use a .gz or plain file"));
+		}
+		return new FileOutputStream(fileName, append);
+	}
+
+	/**
+	 * Wraps an already open file stream, so that the caller keeps access to it,
+	 * for example to sync it.
+	 */
+	public static OutputStream getOutputStream(FileOutputStream fileOutputStream, String fileName)
+			throws IOException {
+		OutputStream bufferedOutputStream = new BufferedOutputStream(fileOutputStream, BUFFER_SIZE);
+		String lowerCaseFileName = fileName.toLowerCase();
+		if (lowerCaseFileName.endsWith(GZIP_EXTENSION)) {
+			return new GZIPOutputStream(bufferedOutputStream, BUFFER_SIZE, true);
+		}
+		if (lowerCaseFileName.endsWith(ZIP_EXTENSION)) {
+			ZipOutputStream zipOutputStream = new ZipOutputStream(bufferedOutputStream);
+			String entryName = new File(fileName).getName();
+			zipOutputStream.putNextEntry(
+					new ZipEntry(entryName.substring(0, entryName.length() - ZIP_EXTENSION.length())));
+			return zipOutputStream;
+		}
+		if (lowerCaseFileName.endsWith(DEFLATE_EXTENSION)) {
+			return new DeflaterOutputStream(bufferedOutputStream, new Deflater(), BUFFER_SIZE, true);
+		}
+		return bufferedOutputStream;
+	}
+
+	public static boolean isCompressed(String fileName) {
+		String lowerCaseFileName = fileName.toLowerCase();
+		return lowerCaseFileName.endsWith(GZIP_EXTENSION) || !isAppendable(fileName);
+	}
+
+	public static boolean isAppendable(String fileName) {
+		String lowerCaseFileName = fileName.toLowerCase();
+		return !lowerCaseFileName.endsWith(ZIP_EXTENSION) && !lowerCaseFileName.endsWith(DEFLATE_EXTENSION);
+	}
+}
@@ -0,0 +1,68 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+/**
+ * Measures, for every supported extension, the write time, the size and the
+ * read time of a copy of a pgn, so that the codec of the self-play outputs
+ * and input databases can be chosen knowing the trade-off. The copies are
+ * deleted at the end.
+ * Usage: CompressionBenchmark pgnFile
+ */
+public class CompressionBenchmark {
+	private static final String[] EXTENSIONS = { "", ".gz", ".zip", ".zz" };
+	private static final Logger logger = Logger.getLogger(CompressionBenchmark.class.getName());
+
+	private CompressionBenchmark() {
+		throw new IllegalStateException("Utility class");
+	}
+
+	public static void main(String[] args) {
+		String pgnFileName = args[0];
+		long pgnSize = new File(pgnFileName).length();
+		byte[] buffer = new byte[CompressedStreams.BUFFER_SIZE];
+		for (String extension : EXTENSIONS) {
+			String copyFileName = String.join("", pgnFileName, ".copy", extension);
+			try {
+				long startNS = System.nanoTime();
+				try (InputStream inputStream = CompressedStreams.getInputStream(pgnFileName);
+						OutputStream outputStream = CompressedStreams.getOutputStream(copyFileName, false)) {
+					copy(inputStream, outputStream, buffer);
+				}
+				long writeMS = (System.nanoTime() - startNS) / 1000000;
+				startNS = System.nanoTime();
+				long readBytes;
+				try (InputStream inputStream = CompressedStreams.getInputStream(copyFileName)) {
+					readBytes = copy(inputStream, null, buffer);
+				}
+				long readMS = (System.nanoTime() - startNS) / 1000000;
+				long copySize = new File(copyFileName).length();
+				String benchmarkMsg = String.format("%s: size %d bytes (%.1f%%), write %d ms, read %d ms (%.0f MB/s)",
+						extension.isEmpty() ? "plain" : extension, copySize, copySize * 100.0 / Math.max(1, pgnSize),
+						writeMS, readMS, readBytes / 1048576.0 * 1000.0 / Math.max(1, readMS));
+				logger.info(benchmarkMsg);
+			} catch (IOException e) {
+				logger.info(e.getMessage());
+			} finally {
+				new File(copyFileName).delete();
+			}
+		}
+	}
+
+	private static long copy(InputStream inputStream, OutputStream outputStream, byte[] buffer) throws IOException {
+		long copiedBytes = 0;
+		int readBytes = inputStream.read(buffer);
+		while (readBytes >= 0) {
+			if (outputStream != null) {
+				outputStream.write(buffer, 0, readBytes);
+			}
+			copiedBytes += readBytes;
+			readBytes = inputStream.read(buffer);
+		}
+		return copiedBytes;
+	}
+}
@@ -0,0 +1,264 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.ZobristHash;
+
+import ictk.boardgame.History;
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.ChessMove;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.SAN;
+
+/**
+ * Classifies games by ECO code from their positions rather than their move
+ * order, so that openings reached by transposition get their code too.
+ *
+ * The index maps the Polyglot key of the final position of every line of
+ * ecoAll.pgn, which stores the code in the Site tag and the opening and
+ * variation in the White and Black tags, to its code and name; the first line
+ * reaching a position wins. A game is classified by the deepest of its
+ * positions found in the index, with an incremental key and a lookup per ply.
+ * The index is built from the pgn or read from the compact file written by
+ * write.
+ *
+ * Usage: EcoClassifier ecoAll.pgn eco.idx to write the index, EcoClassifier
+ * eco.idx|ecoAll.pgn games.pgn to classify the games of a pgn
+ */
+public class EcoClassifier {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAGIC = 0x45434f31;
+	private final long[] keys;
+	private final EcoEntry[] ecoEntries;
+
+	private static final Logger logger = Logger.getLogger(EcoClassifier.class.getName());
+
+	public static class EcoEntry {
+		private final String code;
+		private final String name;
+
+		public EcoEntry(String code, String name) {
+			this.code = code;
+			this.name = name;
+		}
+
+		public String getCode() {
+			return code;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private EcoClassifier(Map<Long, EcoEntry> positionEntries) {
+		keys = new long[positionEntries.size()];
+		ecoEntries = new EcoEntry[positionEntries.size()];
+		int entry = 0;
+		for (Map.Entry<Long, EcoEntry> positionEntry : new TreeMap<>(positionEntries).entrySet()) {
+			keys[entry] = positionEntry.getKey();
+			ecoEntries[entry] = positionEntry.getValue();
+			entry++;
+		}
+	}
+
+	/**
+	 * Builds the index from a pgn of ECO lines when the file name ends with
+	 * .pgn, or reads it from an index file otherwise.
+	 */
+	public static EcoClassifier load(String fileName) throws IOException {
+		return fileName.toLowerCase().endsWith(".pgn") ? build(fileName) : read(fileName);
+	}
+
+	public static EcoClassifier build(String ecoPgn) throws IOException {
+		Map<Long, EcoEntry> positionEntries = new HashMap<>();
+		try (PgnTokenizer pgnTokenizer = new PgnTokenizer(ecoPgn)) {
+			while (pgnTokenizer.next()) {
+				String code = pgnTokenizer.getTag("ECO");
+				if ((code == null) || code.trim().isEmpty()) {
+					code = pgnTokenizer.getTag("Site");
+				}
+				ChessBoard finalChessBoard = pgnTokenizer.getFinalBoard();
+				if ((code != null) && !code.trim().isEmpty() && (finalChessBoard != null)) {
+					positionEntries.putIfAbsent(ZobristHash.getKey(finalChessBoard),
+							new EcoEntry(code.trim(), getName(pgnTokenizer)));
+				}
+			}
+		}
+		return new EcoClassifier(positionEntries);
+	}
+
+	private static String getName(PgnTokenizer pgnTokenizer) {
+		String opening = pgnTokenizer.getTag("Opening");
+		if (opening == null) {
+			opening = pgnTokenizer.getTag("White");
+		}
+		String variation = pgnTokenizer.getTag("Variation");
+		if (variation == null) {
+			variation = pgnTokenizer.getTag("Black");
+		}
+		opening = (opening != null) ? opening.trim() : "";
+		variation = (variation != null) ? variation.trim() : "";
+		return variation.isEmpty() ? opening : String.join(", ", opening, variation);
+	}
+
+	public static EcoClassifier read(String indexFile) throws IOException {
+		try (DataInputStream indexInput = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(indexFile), BUFFER_SIZE))) {
+			if (indexInput.readInt() != MAGIC) {
+				throw new IOException(String.join("", indexFile, ": not an ECO index"));
+			}
+			int entriesNumber = indexInput.readInt();
+			Map<Long, EcoEntry> positionEntries = new HashMap<>();
+			for (int entry = 0; entry < entriesNumber; entry++) {
+				long key = indexInput.readLong();
+				positionEntries.put(key, new EcoEntry(indexInput.readUTF(), indexInput.readUTF()));
+			}
+			return new EcoClassifier(positionEntries);
+		}
+	}
+
+	public void write(String indexFile) throws IOException {
+		try (DataOutputStream indexOutput = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(indexFile), BUFFER_SIZE))) {
+			indexOutput.writeInt(MAGIC);
+			indexOutput.writeInt(keys.length);
+			for (int entry = 0; entry < keys.length; entry++) {
+				indexOutput.writeLong(keys[entry]);
+				indexOutput.writeUTF(ecoEntries[entry].getCode());
+				indexOutput.writeUTF(ecoEntries[entry].getName());
+			}
+		}
+	}
+
+	public int getEntriesNumber() {
+		return keys.length;
+	}
+
+	/**
+	 * The ECO line ending in the position of the key, or null if none does.
+	 */
+	public EcoEntry getEntry(long key) {
+		int entry = Arrays.binarySearch(keys, key);
+		return (entry >= 0) ? ecoEntries[entry] : null;
+	}
+
+	public EcoEntry getEntry(ChessBoard chessBoard) {
+		return getEntry(ZobristHash.getKey(chessBoard));
+	}
+
+	/**
+	 * The deepest ECO line reached by the moves from the start position, up
+	 * to an illegal move if any, or null if the game reaches none.
+	 */
+	public EcoEntry classify(String startFen, List<String> sanMoves) {
+		EcoEntry ecoEntry = null;
+		try {
+			ChessBoard chessBoard = ((startFen != null) && !startFen.trim().isEmpty())
+					? (ChessBoard) new FEN().stringToBoard(startFen.trim())
+					: new ChessBoard();
+			long key = ZobristHash.getKey(chessBoard);
+			ecoEntry = getEntry(key);
+			SAN san = new SAN();
+			for (String sanMove : sanMoves) {
+				ChessMove chessMove = (ChessMove) san.stringToMove(chessBoard, sanMove);
+				if (chessMove == null) {
+					break;
+				}
+				key ^= ZobristHash.getMoveDelta(chessBoard, chessMove);
+				chessBoard.playMove(chessMove);
+				EcoEntry positionEntry = getEntry(key);
+				if (positionEntry != null) {
+					ecoEntry = positionEntry;
+				}
+			}
+		} catch (Exception e) {
+			// the moves up to the wrong one are classified
+		}
+		return ecoEntry;
+	}
+
+	/**
+	 * The deepest ECO line reached by the main line of the game, whose history
+	 * is left at its end.
+	 */
+	public EcoEntry classify(ChessGame chessGame) {
+		History history = chessGame.getHistory();
+		history.rewind();
+		EcoEntry ecoEntry = getEntry((ChessBoard) chessGame.getBoard());
+		while (history.hasNext()) {
+			history.next();
+			EcoEntry positionEntry = getEntry((ChessBoard) chessGame.getBoard());
+			if (positionEntry != null) {
+				ecoEntry = positionEntry;
+			}
+		}
+		return ecoEntry;
+	}
+
+	public static void main(String[] args) {
+		try {
+			long startMS = System.currentTimeMillis();
+			EcoClassifier ecoClassifier = load(args[0]);
+			String loadedMsg = String.join("", "Loaded ", Integer.toString(ecoClassifier.getEntriesNumber()),
+					" ECO positions from ", args[0], " in ", Long.toString(System.currentTimeMillis() - startMS),
+					" ms");
+			logger.info(loadedMsg);
+			if (args[1].toLowerCase().endsWith(".pgn")) {
+				classifyGames(ecoClassifier, args[1]);
+			} else {
+				ecoClassifier.write(args[1]);
+				logger.info(String.join("", "Written ", args[1]));
+			}
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+	}
+
+	private static void classifyGames(EcoClassifier ecoClassifier, String pgnFile) throws IOException {
+		long startMS = System.currentTimeMillis();
+		Map<String, Integer> codeGames = new TreeMap<>();
+		long unclassifiedGamesNumber = 0;
+		List<String> mismatches = new ArrayList<>();
+		try (PgnTokenizer pgnTokenizer = new PgnTokenizer(pgnFile)) {
+			while (pgnTokenizer.next()) {
+				EcoEntry ecoEntry = ecoClassifier.classify(pgnTokenizer.getTag("FEN"), pgnTokenizer.getSanMoves());
+				if (ecoEntry == null) {
+					unclassifiedGamesNumber++;
+					continue;
+				}
+				codeGames.merge(ecoEntry.getCode(), 1, Integer::sum);
+				String taggedCode = pgnTokenizer.getTag("ECO");
+				if ((taggedCode != null) && !taggedCode.trim().isEmpty() && !taggedCode.trim().equals(ecoEntry.getCode())
+						&& (mismatches.size() < 10)) {
+					mismatches.add(String.join("", "Game ", Long.toString(pgnTokenizer.getGamesNumber()), " tagged ",
+							taggedCode.trim(), " classified ", ecoEntry.getCode(), " ", ecoEntry.getName()));
+				}
+			}
+			for (Map.Entry<String, Integer> codeGame : codeGames.entrySet()) {
+				logger.info(String.join("", codeGame.getKey(), ": ", Integer.toString(codeGame.getValue())));
+			}
+			for (String mismatch : mismatches) {
+				logger.info(mismatch);
+			}
+			String classifiedMsg = String.join("", "Classified ", Long.toString(pgnTokenizer.getGamesNumber()),
+					" games, ", Long.toString(unclassifiedGamesNumber), " without an ECO position, in ",
+					Long.toString(System.currentTimeMillis() - startMS), " ms");
+			logger.info(classifiedMsg);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static java.lang.String.format;
+import static net.andreinc.neatchess.client.breaks.Break.breakOn;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.StockfishZobristHash;
+import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial;
+import com.alphachess.shashchessanalyzer.ZobristHash;
+import com.alphachess.shashchessanalyzer.batch.AnalysisCache.AnalysisResult;
+import com.alphachess.shashchessanalyzer.batch.ExperienceFile.ExperienceEntry;
+import com.alphachess.shashchessanalyzer.batch.SharedTranspositionTable.TranspositionEntry;
+
+import net.andreinc.neatchess.client.UCI;
+
+/**
+ * Engines started once, configured from the engineName, uciOptions,
+ * threadsNumber, hashSizeMB, concurrency, moveTimeMS and timeoutSeconds
+ * properties, and shared by the analysis threads: each analysis takes an idle
+ * engine and gives it back, so that the engines stay warm across positions
+ * and input files. With an analysisCacheFile, positions already analysed for
+ * at least moveTimeMS are answered from the AnalysisCache. With a
+ * sharedTableFile, the results are also shared with the other processes on
+ * the machine, and those searched at least sharedTableMinDepth deep are
+ * reused. With an experienceFile, the positions the engine has learned at
+ * least experienceMinDepth deep are taken from it without searching.
+ */
+public class EnginePool implements Closeable {
+	public static final String RESULT_HEADER = "bestMove\tscore\tdepth\twinProbability\tpositionType";
+	private final String engineName;
+	private final String uciOptions;
+	private final int threadsNumber;
+	private final int hashSizeMB;
+	private final int enginesNumber;
+	private final long moveTimeMS;
+	private final long timeoutMS;
+	private final BlockingQueue<UCI> engines;
+	private final AnalysisCache analysisCache;
+	private final SharedTranspositionTable sharedTable;
+	private final int sharedTableMinDepth;
+	private final ExperienceFile experienceFile;
+	private final int experienceMinDepth;
+	private final AtomicLong experienceSkipsNumber = new AtomicLong();
+
+	private static final Logger logger = Logger.getLogger(EnginePool.class.getName());
+
+	public EnginePool(Properties properties) throws IOException {
+		engineName = properties.getProperty("engineName");
+		uciOptions = properties.getProperty("uciOptions", "");
+		threadsNumber = Integer.parseInt(properties.getProperty("threadsNumber"));
+		hashSizeMB = Integer.parseInt(properties.getProperty("hashSizeMB"));
+		enginesNumber = Integer.parseInt(properties.getProperty("concurrency"));
+		moveTimeMS = Long.parseLong(properties.getProperty("moveTimeMS"));
+		timeoutMS = Long.parseLong(properties.getProperty("timeoutSeconds")) * 1000;
+		String analysisCacheFile = properties.getProperty("analysisCacheFile", "").trim();
+		analysisCache = analysisCacheFile.isEmpty() ? null
+				: new AnalysisCache(analysisCacheFile,
+						Integer.parseInt(properties.getProperty("analysisCacheSize", "100000")),
+						String.join(" ", engineName, uciOptions));
+		String sharedTableFile = properties.getProperty("sharedTableFile", "").trim();
+		sharedTable = sharedTableFile.isEmpty() ? null
+				: new SharedTranspositionTable(sharedTableFile,
+						Integer.parseInt(properties.getProperty("sharedTableSizeMB", "256")));
+		if ((sharedTable != null) && properties.getProperty("sharedTableNewSession", "no").trim().equalsIgnoreCase("yes")) {
+			sharedTable.newSession();
+		}
+		sharedTableMinDepth = Integer.parseInt(properties.getProperty("sharedTableMinDepth", "20"));
+		String experienceFileName = properties.getProperty("experienceFile", "").trim();
+		experienceFile = experienceFileName.isEmpty() ? null : new ExperienceFile(experienceFileName);
+		experienceMinDepth = Integer.parseInt(properties.getProperty("experienceMinDepth", "30"));
+		engines = new ArrayBlockingQueue<>(enginesNumber);
+		for (int engineIndex = 0; engineIndex < enginesNumber; engineIndex++) {
+			engines.add(getEngine());
+		}
+	}
+
+	public int getEnginesNumber() {
+		return enginesNumber;
+	}
+
+	/**
+	 * Searches the position for moveTimeMS on the first idle engine, unless it
+	 * is cached, and returns the tab separated columns of RESULT_HEADER.
+	 */
+	public String analyze(String positionFen) throws IOException, InterruptedException {
+		AnalysisResult analysisResult = (analysisCache != null) ? analysisCache.get(positionFen, "", moveTimeMS, 0)
+				: null;
+		if (analysisResult == null) {
+			analysisResult = getSharedResult(positionFen);
+		}
+		if (analysisResult == null) {
+			analysisResult = getExperienceResult(positionFen);
+		}
+		if (analysisResult == null) {
+			analysisResult = search(positionFen);
+			if (analysisCache != null) {
+				analysisCache.put(positionFen, "", analysisResult);
+			}
+			if ((sharedTable != null) && analysisResult.isScored()) {
+				sharedTable.store(ZobristHash.getKey(positionFen), analysisResult.getScore(),
+						analysisResult.getDepth(),
+						WinProbabilityByMaterial.getRange(WinProbabilityByMaterial
+								.getWinProbabilityFromScore(analysisResult.getScore(), positionFen)),
+						analysisResult.getBestMove());
+			}
+		}
+		int winProbability = WinProbabilityByMaterial.getWinProbabilityFromScore(analysisResult.getScore(),
+				positionFen);
+		String positionType = WinProbabilityByMaterial
+				.getRangeDescription(WinProbabilityByMaterial.getRange(winProbability));
+		return String.join("\t", analysisResult.getBestMove(), Integer.toString(analysisResult.getScore()),
+				Integer.toString(analysisResult.getDepth()), Integer.toString(winProbability),
+				(positionType != null) ? positionType : "");
+	}
+
+	private AnalysisResult getSharedResult(String positionFen) throws IOException {
+		if (sharedTable == null) {
+			return null;
+		}
+		TranspositionEntry transpositionEntry = sharedTable.probe(ZobristHash.getKey(positionFen));
+		if ((transpositionEntry == null) || (transpositionEntry.getDepth() < sharedTableMinDepth)) {
+			return null;
+		}
+		return new AnalysisResult(transpositionEntry.getBestMove(), transpositionEntry.getScore(), 0,
+				transpositionEntry.getDepth(), "", "", moveTimeMS);
+	}
+
+	private AnalysisResult getExperienceResult(String positionFen) throws IOException {
+		if (experienceFile == null) {
+			return null;
+		}
+		ExperienceEntry experienceEntry = experienceFile.getBestEntry(StockfishZobristHash.getKey(positionFen));
+		if ((experienceEntry == null) || (experienceEntry.getDepth() < experienceMinDepth)) {
+			return null;
+		}
+		experienceSkipsNumber.incrementAndGet();
+		return new AnalysisResult(experienceEntry.getLan(), experienceEntry.getScore(), 0, experienceEntry.getDepth(),
+				"", "", moveTimeMS);
+	}
+
+	private AnalysisResult search(String positionFen) throws InterruptedException {
+		UCI uci = engines.take();
+		boolean isUsable = true;
+		try {
+			uci.positionFen(positionFen);
+			List<String> searchLines = uci.command(format("go movetime %d", moveTimeMS), lines -> lines,
+					breakOn("bestmove"), timeoutMS).getResultOrThrow();
+			return AnalysisCache.parse(searchLines, moveTimeMS);
+		} catch (RuntimeException e) {
+			// a timed out or dead engine is replaced, the others stay warm
+			uci.close();
+			isUsable = false;
+			uci = getEngine();
+			isUsable = true;
+			throw e;
+		} finally {
+			// an engine that could not be restarted leaves the pool one engine short
+			if (isUsable) {
+				engines.put(uci);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (UCI uci : engines) {
+			uci.close();
+		}
+		if (analysisCache != null) {
+			analysisCache.close();
+		}
+		if (sharedTable != null) {
+			sharedTable.logStatistics();
+			sharedTable.close();
+		}
+		if (experienceFile != null) {
+			String experienceSkipsMsg = String.join("", "Searches skipped by the experience: ",
+					Long.toString(experienceSkipsNumber.get()), ", saved ",
+					Long.toString(experienceSkipsNumber.get() * moveTimeMS / 1000), " seconds");
+			logger.info(experienceSkipsMsg);
+			experienceFile.close();
+		}
+	}
+
+	private UCI getEngine() {
+		UCI uci = new UCI(timeoutMS);
+		String engineNameWithExtension = String.join("",
+				(System.getProperty("os.name").contains("Windows") ? engineName : String.join("", "./", engineName)),
+				(System.getProperty("os.name").contains("Windows") ? ".exe" : ""));
+		uci.start(engineNameWithExtension);
+		uci.setOption("Threads", Integer.toString(threadsNumber), timeoutMS).getResultOrThrow();
+		uci.setOption("Hash", Integer.toString(hashSizeMB), timeoutMS).getResultOrThrow();
+		for (String uciOption : uciOptions.split(",")) {
+			int separator = uciOption.indexOf('=');
+			if (separator > 0) {
+				uci.setOption(uciOption.substring(0, separator).trim(), uciOption.substring(separator + 1).trim(),
+						timeoutMS).getResultOrThrow();
+			}
+		}
+		return uci;
+	}
+}
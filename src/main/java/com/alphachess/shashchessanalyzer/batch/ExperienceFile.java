@@ -0,0 +1,376 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.StockfishZobristHash;
+
+/**
+ * Zero-copy reader of the experience files written by the ShashChess
+ * persisted learning: 24 bytes little-endian records of position key, depth,
+ * value, move and performance, appended as the engine learns.
+ *
+ * The records are read through memory-mapped segments, so files of any size
+ * are never loaded on the heap. A file already sorted by key is searched
+ * directly; otherwise a file.exi index of key and record number pairs,
+ * sorted in place in its own mapping, is built once and reused while the
+ * experience file keeps the same size and modification time.
+ *
+ * Usage: ExperienceFile experienceFile [fen]
+ */
+public class ExperienceFile implements Closeable {
+	public static final int RECORD_SIZE = 24;
+	/**
+	 * Internal value of a pawn of the engine the experience comes from, used
+	 * to report the values in centipawns as its uci scores.
+	 */
+	public static final int PAWN_VALUE = 356;
+	private static final String INDEX_EXTENSION = ".exi";
+	private static final long INDEX_MAGIC = 0x3149584553414853L;
+	private static final int INDEX_HEADER_SIZE = 32;
+	private static final int INDEX_ENTRY_SIZE = 16;
+	private static final int DEPTH_OFFSET = 8;
+	private static final int VALUE_OFFSET = 12;
+	private static final int MOVE_OFFSET = 16;
+	private static final int PERFORMANCE_OFFSET = 20;
+	private final String experienceFileName;
+	private final MappedRecords records;
+	private final MappedRecords index;
+	private final long entriesNumber;
+
+	private static final Logger logger = Logger.getLogger(ExperienceFile.class.getName());
+
+	public static class ExperienceEntry {
+		private final long key;
+		private final int depth;
+		private final int value;
+		private final int move;
+		private final int performance;
+
+		public ExperienceEntry(long key, int depth, int value, int move, int performance) {
+			this.key = key;
+			this.depth = depth;
+			this.value = value;
+			this.move = move;
+			this.performance = performance;
+		}
+
+		public long getKey() {
+			return key;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public int getValue() {
+			return value;
+		}
+
+		public int getScore() {
+			return value * 100 / PAWN_VALUE;
+		}
+
+		public int getMove() {
+			return move;
+		}
+
+		public String getLan() {
+			return ExperienceFile.getLan(move);
+		}
+
+		public int getPerformance() {
+			return performance;
+		}
+	}
+
+	public ExperienceFile(String experienceFileName) throws IOException {
+		this.experienceFileName = experienceFileName;
+		File experienceFile = new File(experienceFileName);
+		if (experienceFile.length() % RECORD_SIZE != 0) {
+			logger.info(String.join("", experienceFileName, ": ignoring a truncated last record"));
+		}
+		entriesNumber = experienceFile.length() / RECORD_SIZE;
+		records = new MappedRecords(experienceFile, "r", 0, RECORD_SIZE, entriesNumber, ByteOrder.LITTLE_ENDIAN);
+		// a usable index is checked first, so that an unsorted file is not scanned at every open
+		MappedRecords loadedIndex = loadIndex(experienceFile);
+		index = ((loadedIndex != null) || isSorted()) ? loadedIndex : buildIndex(experienceFile);
+	}
+
+	private boolean isSorted() {
+		for (long record = 1; record < entriesNumber; record++) {
+			if (records.getLong(record - 1, 0) > records.getLong(record, 0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private File getIndexFile() {
+		return new File(String.join("", experienceFileName, INDEX_EXTENSION));
+	}
+
+	/**
+	 * The index file if it matches the experience file, or null.
+	 */
+	private MappedRecords loadIndex(File experienceFile) throws IOException {
+		File indexFile = getIndexFile();
+		if (indexFile.length() == INDEX_HEADER_SIZE + entriesNumber * INDEX_ENTRY_SIZE) {
+			try (RandomAccessFile indexHeader = new RandomAccessFile(indexFile, "r")) {
+				MappedByteBuffer header = indexHeader.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+						INDEX_HEADER_SIZE);
+				header.order(ByteOrder.LITTLE_ENDIAN);
+				if ((header.getLong(0) == INDEX_MAGIC) && (header.getLong(8) == experienceFile.length())
+						&& (header.getLong(16) == experienceFile.lastModified())
+						&& (header.getLong(24) == entriesNumber)) {
+					return new MappedRecords(indexFile, "r", INDEX_HEADER_SIZE, INDEX_ENTRY_SIZE, entriesNumber,
+							ByteOrder.LITTLE_ENDIAN);
+				}
+			}
+		}
+		return null;
+	}
+
+	private MappedRecords buildIndex(File experienceFile) throws IOException {
+		File indexFile = getIndexFile();
+		long startMS = System.currentTimeMillis();
+		File temporaryIndexFile = new File(String.join("", indexFile.getPath(), ".tmp"));
+		try (RandomAccessFile temporaryIndex = new RandomAccessFile(temporaryIndexFile, "rw")) {
+			temporaryIndex.setLength(INDEX_HEADER_SIZE + entriesNumber * INDEX_ENTRY_SIZE);
+		}
+		try (MappedRecords temporaryIndexRecords = new MappedRecords(temporaryIndexFile, "rw", 0,
+				INDEX_ENTRY_SIZE, (INDEX_HEADER_SIZE / INDEX_ENTRY_SIZE) + entriesNumber, ByteOrder.LITTLE_ENDIAN)) {
+			// the header takes the first two entries
+			temporaryIndexRecords.putLong(0, 0, INDEX_MAGIC);
+			temporaryIndexRecords.putLong(0, 8, experienceFile.length());
+			temporaryIndexRecords.putLong(1, 0, experienceFile.lastModified());
+			temporaryIndexRecords.putLong(1, 8, entriesNumber);
+			long firstEntry = INDEX_HEADER_SIZE / INDEX_ENTRY_SIZE;
+			for (long record = 0; record < entriesNumber; record++) {
+				temporaryIndexRecords.putLong(firstEntry + record, 0, records.getLong(record, 0));
+				temporaryIndexRecords.putLong(firstEntry + record, 8, record);
+			}
+			sort(temporaryIndexRecords, firstEntry, firstEntry + entriesNumber);
+			temporaryIndexRecords.force();
+		}
+		Files.move(temporaryIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		String indexedMsg = String.join("", "Indexed ", Long.toString(entriesNumber), " experience entries in ",
+				Long.toString(System.currentTimeMillis() - startMS), " ms");
+		logger.info(indexedMsg);
+		return new MappedRecords(indexFile, "r", INDEX_HEADER_SIZE, INDEX_ENTRY_SIZE, entriesNumber,
+				ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * In place quicksort of the index entries by key, then record, recursing
+	 * on the smaller part so that the stack stays logarithmic.
+	 */
+	private static void sort(MappedRecords entries, long first, long end) {
+		while (end - first > 16) {
+			long middle = first + (end - first) / 2;
+			long pivotKey = entries.getLong(middle, 0);
+			long pivotRecord = entries.getLong(middle, 8);
+			long low = first;
+			long high = end - 1;
+			while (low <= high) {
+				while (compare(entries, low, pivotKey, pivotRecord) < 0) {
+					low++;
+				}
+				while (compare(entries, high, pivotKey, pivotRecord) > 0) {
+					high--;
+				}
+				if (low <= high) {
+					swap(entries, low++, high--);
+				}
+			}
+			if (high + 1 - first < end - low) {
+				sort(entries, first, high + 1);
+				first = low;
+			} else {
+				sort(entries, low, end);
+				end = high + 1;
+			}
+		}
+		for (long entry = first + 1; entry < end; entry++) {
+			for (long previous = entry; (previous > first)
+					&& (compare(entries, previous, entries.getLong(previous - 1, 0),
+							entries.getLong(previous - 1, 8)) < 0); previous--) {
+				swap(entries, previous, previous - 1);
+			}
+		}
+	}
+
+	private static int compare(MappedRecords entries, long entry, long key, long record) {
+		int keyComparison = Long.compare(entries.getLong(entry, 0), key);
+		return (keyComparison != 0) ? keyComparison : Long.compare(entries.getLong(entry, 8), record);
+	}
+
+	private static void swap(MappedRecords entries, long first, long second) {
+		long firstKey = entries.getLong(first, 0);
+		long firstRecord = entries.getLong(first, 8);
+		entries.putLong(first, 0, entries.getLong(second, 0));
+		entries.putLong(first, 8, entries.getLong(second, 8));
+		entries.putLong(second, 0, firstKey);
+		entries.putLong(second, 8, firstRecord);
+	}
+
+	public long getEntriesNumber() {
+		return entriesNumber;
+	}
+
+	/**
+	 * Entry in key order.
+	 */
+	public ExperienceEntry getSortedEntry(long position) {
+		return getEntry((index != null) ? index.getLong(position, 8) : position);
+	}
+
+	/**
+	 * Entry in file order.
+	 */
+	public ExperienceEntry getEntry(long record) {
+		return new ExperienceEntry(records.getLong(record, 0), records.getInt(record, DEPTH_OFFSET),
+				records.getInt(record, VALUE_OFFSET), records.getInt(record, MOVE_OFFSET),
+				records.getInt(record, PERFORMANCE_OFFSET));
+	}
+
+	private long getSortedKey(long position) {
+		return (index != null) ? index.getLong(position, 0) : records.getLong(position, 0);
+	}
+
+	/**
+	 * Every entry of the position, in file order, found by binary search.
+	 */
+	public List<ExperienceEntry> getEntries(long key) {
+		long low = 0;
+		long high = entriesNumber;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (getSortedKey(middle) < key) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		List<ExperienceEntry> entries = new ArrayList<>();
+		for (long position = low; (position < entriesNumber) && (getSortedKey(position) == key); position++) {
+			entries.add(getSortedEntry(position));
+		}
+		return entries;
+	}
+
+	public List<ExperienceEntry> getEntries(String fen) throws IOException {
+		return getEntries(StockfishZobristHash.getKey(fen));
+	}
+
+	/**
+	 * The deepest entry of the position, the one with the best value among
+	 * equally deep ones, or null.
+	 */
+	public ExperienceEntry getBestEntry(long key) {
+		ExperienceEntry bestEntry = null;
+		for (ExperienceEntry entry : getEntries(key)) {
+			if ((bestEntry == null) || (entry.getDepth() > bestEntry.getDepth())
+					|| ((entry.getDepth() == bestEntry.getDepth()) && (entry.getValue() > bestEntry.getValue()))) {
+				bestEntry = entry;
+			}
+		}
+		return bestEntry;
+	}
+
+	/**
+	 * Stockfish move encoding: destination in bits 0-5, origin in bits 6-11,
+	 * promotion piece from the knight in bits 12-13, type in bits 14-15, with
+	 * castling as the king taking its rook.
+	 */
+	public static String getLan(int move) {
+		int origin = (move >>> 6) & 63;
+		int destination = move & 63;
+		int type = (move >>> 14) & 3;
+		if (type == 3) {
+			destination = (destination > origin) ? origin + 2 : origin - 2;
+		}
+		return String.join("", getSquare(origin), getSquare(destination),
+				(type == 1) ? String.valueOf("nbrq".charAt((move >>> 12) & 3)) : "");
+	}
+
+	private static String getSquare(int square) {
+		return String.join("", String.valueOf((char) ('a' + (square & 7))), Integer.toString((square >>> 3) + 1));
+	}
+
+	@Override
+	public void close() throws IOException {
+		records.close();
+		if (index != null) {
+			index.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		long startMS = System.currentTimeMillis();
+		try (ExperienceFile experienceFile = new ExperienceFile(args[0])) {
+			experienceFile.logStatistics();
+			if (args.length > 1) {
+				String fen = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+				for (ExperienceEntry entry : experienceFile.getEntries(fen)) {
+					String entryMsg = String.join("", entry.getLan(), " depth ", Integer.toString(entry.getDepth()),
+							" score ", Integer.toString(entry.getScore()), " performance ",
+							Integer.toString(entry.getPerformance()));
+					logger.info(entryMsg);
+				}
+			}
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+		String timeMsg = String.join("", "Elapsed ", Long.toString(System.currentTimeMillis() - startMS), " ms");
+		logger.info(timeMsg);
+	}
+
+	/**
+	 * Entries, positions, duplicated position and move pairs and the depth
+	 * histogram, in one pass in key order.
+	 */
+	public void logStatistics() {
+		long positionsNumber = 0;
+		long duplicatesNumber = 0;
+		long[] depthsNumbers = new long[256];
+		List<Integer> positionMoves = new ArrayList<>();
+		long previousKey = 0;
+		for (long position = 0; position < entriesNumber; position++) {
+			ExperienceEntry entry = getSortedEntry(position);
+			if ((position == 0) || (entry.getKey() != previousKey)) {
+				positionsNumber++;
+				positionMoves.clear();
+				previousKey = entry.getKey();
+			}
+			if (positionMoves.contains(entry.getMove())) {
+				duplicatesNumber++;
+			} else {
+				positionMoves.add(entry.getMove());
+			}
+			depthsNumbers[Math.max(0, Math.min(entry.getDepth(), 255))]++;
+		}
+		String statisticsMsg = String.join("", experienceFileName, ": ", Long.toString(entriesNumber), " entries, ",
+				Long.toString(positionsNumber), " positions, ", Long.toString(duplicatesNumber),
+				" duplicated moves, ", (index != null) ? "indexed" : "sorted");
+		logger.info(statisticsMsg);
+		StringBuilder histogram = new StringBuilder("Depths:");
+		for (int depth = 0; depth < depthsNumbers.length; depth++) {
+			if (depthsNumbers[depth] > 0) {
+				histogram.append(' ').append(depth).append('=').append(depthsNumbers[depth]);
+			}
+		}
+		logger.info(histogram.toString());
+	}
+}
@@ -0,0 +1,422 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Merges experience files of any size into one compacted experience file,
+ * with a memory use bounded by chunkSizeMB whatever the size of the inputs.
+ *
+ * The inputs are read sequentially in chunks that are sorted in memory and
+ * written as sorted runs to the temporary directory, then the runs are merged
+ * MAX_FAN_IN at a time. Entries of the same position and move are reduced to
+ * the deepest one, the one with the best value among equally deep ones. The
+ * output is sorted by key, so that ExperienceFile searches it without an
+ * index.
+ *
+ * Usage: ExperienceMerger experiencemerger.properties
+ */
+public class ExperienceMerger {
+	private static final int RECORD_SIZE = ExperienceFile.RECORD_SIZE;
+	private static final int MIN_BUFFER_SIZE = 1 << 16;
+	private static final int MAX_BUFFER_SIZE = 1 << 20;
+	private static final int MAX_FAN_IN = 64;
+	private static final int MAX_CHUNK_SIZE_MB = 8192;
+	private static final long BYTES_PER_MB = 1L << 20;
+	private Properties experienceMergerProperties;
+	private List<File> experienceFiles;
+	private File mergedExperienceFile;
+	private File temporaryDirectory;
+	private int chunkRecordsNumber;
+	private int bufferSize;
+	private long inputRecordsNumber = 0;
+	private long outputRecordsNumber = 0;
+	private final List<File> runs = new ArrayList<>();
+
+	private static final Logger logger = Logger.getLogger(ExperienceMerger.class.getName());
+
+	/**
+	 * Sequential reader of experience records, each one turned into three
+	 * longs ordered as the merge wants them: key, move and depth, value and
+	 * performance.
+	 */
+	private static class RecordReader implements Closeable {
+		private final FileInputStream input;
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private long key;
+		private long moveDepth;
+		private long valuePerformance;
+
+		RecordReader(File file, int bufferSize) throws IOException {
+			input = new FileInputStream(file);
+			channel = input.getChannel();
+			buffer = ByteBuffer.allocate(bufferSize);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.flip();
+		}
+
+		boolean next() throws IOException {
+			if (buffer.remaining() < RECORD_SIZE) {
+				buffer.compact();
+				while ((buffer.position() < RECORD_SIZE) && (channel.read(buffer) > 0)) {
+					// fill the buffer with at least a record
+				}
+				buffer.flip();
+				if (buffer.remaining() < RECORD_SIZE) {
+					return false;
+				}
+			}
+			key = buffer.getLong();
+			int depth = buffer.getInt();
+			int value = buffer.getInt();
+			int move = buffer.getInt();
+			int performance = buffer.getInt();
+			moveDepth = ((move & 0xffffffffL) << 32) | ((depth & 0xffffffffL) ^ 0x80000000L);
+			valuePerformance = ((long) value << 32) | (performance & 0xffffffffL);
+			return true;
+		}
+
+		boolean isTruncated() {
+			return buffer.hasRemaining();
+		}
+
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+	}
+
+	/**
+	 * Sequential writer of experience records that keeps the last one of each
+	 * position and move written in sorted order, that is the deepest one.
+	 */
+	private static class RecordWriter implements Closeable {
+		private final RandomAccessFile output;
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private boolean isPending = false;
+		private long pendingKey;
+		private long pendingMoveDepth;
+		private long pendingValuePerformance;
+		private long recordsNumber = 0;
+
+		RecordWriter(File file, int bufferSize) throws IOException {
+			output = new RandomAccessFile(file, "rw");
+			output.setLength(0);
+			channel = output.getChannel();
+			buffer = ByteBuffer.allocate(bufferSize);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		void write(long key, long moveDepth, long valuePerformance) throws IOException {
+			if (!isPending || (key != pendingKey) || ((moveDepth >>> 32) != (pendingMoveDepth >>> 32))) {
+				if (isPending) {
+					flushPending();
+				}
+				recordsNumber++;
+			}
+			isPending = true;
+			pendingKey = key;
+			pendingMoveDepth = moveDepth;
+			pendingValuePerformance = valuePerformance;
+		}
+
+		private void flushPending() throws IOException {
+			if (!buffer.hasRemaining()) {
+				flushBuffer();
+			}
+			buffer.putLong(pendingKey);
+			buffer.putInt((int) (pendingMoveDepth ^ 0x80000000L));
+			buffer.putInt((int) (pendingValuePerformance >> 32));
+			buffer.putInt((int) (pendingMoveDepth >>> 32));
+			buffer.putInt((int) pendingValuePerformance);
+		}
+
+		private void flushBuffer() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		long getRecordsNumber() {
+			return recordsNumber;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				if (isPending) {
+					flushPending();
+					isPending = false;
+				}
+				flushBuffer();
+				channel.force(false);
+			} finally {
+				output.close();
+			}
+		}
+	}
+
+	public ExperienceMerger(String[] args) {
+		experienceMergerProperties = getExperienceMergerProperties(args);
+		setInputParameters();
+	}
+
+	private void setInputParameters() {
+		experienceFiles = new ArrayList<>();
+		for (String experienceFileName : experienceMergerProperties.getProperty("experienceFiles", "").split(",")) {
+			if (!experienceFileName.trim().isEmpty()) {
+				experienceFiles.add(new File(experienceFileName.trim()));
+			}
+		}
+		mergedExperienceFile = new File(experienceMergerProperties.getProperty("mergedExperienceFile"));
+		String temporaryDirectoryName = experienceMergerProperties.getProperty("temporaryDirectory", "").trim();
+		temporaryDirectory = new File(
+				temporaryDirectoryName.isEmpty() ? System.getProperty("java.io.tmpdir") : temporaryDirectoryName);
+		int chunkSizeMB = Math.max(1, Math.min(MAX_CHUNK_SIZE_MB,
+				Integer.parseInt(experienceMergerProperties.getProperty("chunkSizeMB", "256"))));
+		// three longs per record
+		chunkRecordsNumber = (int) (chunkSizeMB * BYTES_PER_MB / 24);
+		// the buffers of a merge of MAX_FAN_IN runs and of its output also fit in the chunk size
+		bufferSize = (int) Math.max(MIN_BUFFER_SIZE,
+				Math.min(MAX_BUFFER_SIZE, chunkSizeMB * BYTES_PER_MB / (MAX_FAN_IN + 1)));
+		bufferSize -= bufferSize % RECORD_SIZE;
+	}
+
+	private Properties getExperienceMergerProperties(String[] args) {
+		Properties properties = new Properties();
+		File file = new File(args[0]);
+		try (FileInputStream fileInput = new FileInputStream(file)) {
+			properties.load(fileInput);
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+		return properties;
+	}
+
+	public static void main(String[] args) {
+		ExperienceMerger experienceMerger = new ExperienceMerger(args);
+		try {
+			experienceMerger.merge();
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+	}
+
+	public void merge() throws IOException {
+		long startMS = System.currentTimeMillis();
+		File temporaryMergedFile = new File(String.join("", mergedExperienceFile.getPath(), ".tmp"));
+		try {
+			List<File> mergingRuns = sortChunks(temporaryMergedFile);
+			long sortedMS = System.currentTimeMillis();
+			logThroughput("Sorted", inputRecordsNumber, sortedMS - startMS);
+			while (mergingRuns.size() > MAX_FAN_IN) {
+				List<File> mergedRuns = new ArrayList<>();
+				for (int firstRun = 0; firstRun < mergingRuns.size(); firstRun += MAX_FAN_IN) {
+					File mergedRun = createRun();
+					mergeRuns(mergingRuns.subList(firstRun, Math.min(mergingRuns.size(), firstRun + MAX_FAN_IN)),
+							mergedRun);
+					mergedRuns.add(mergedRun);
+				}
+				for (File mergedRun : mergingRuns) {
+					Files.delete(mergedRun.toPath());
+				}
+				mergingRuns = mergedRuns;
+			}
+			if (!mergingRuns.isEmpty()) {
+				outputRecordsNumber = mergeRuns(mergingRuns, temporaryMergedFile);
+				logThroughput("Merged", inputRecordsNumber, System.currentTimeMillis() - sortedMS);
+			}
+			Files.move(temporaryMergedFile.toPath(), mergedExperienceFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			for (File run : runs) {
+				Files.deleteIfExists(run.toPath());
+			}
+			Files.deleteIfExists(temporaryMergedFile.toPath());
+		}
+		String mergedMsg = String.join("", "Merged ", Integer.toString(experienceFiles.size()), " files, ",
+				Integer.toString(runs.size()), " sorted runs: ", Long.toString(inputRecordsNumber), " entries in, ",
+				Long.toString(outputRecordsNumber), " entries out, ",
+				Long.toString(inputRecordsNumber - outputRecordsNumber), " duplicates dropped");
+		logger.info(mergedMsg);
+		logThroughput("Total", inputRecordsNumber, System.currentTimeMillis() - startMS);
+	}
+
+	/**
+	 * Sorts the inputs in chunks of chunkRecordsNumber records written as runs.
+	 * When everything fits in one chunk it is written to the output directly.
+	 */
+	private List<File> sortChunks(File temporaryMergedFile) throws IOException {
+		List<File> chunkRuns = new ArrayList<>();
+		long[] chunk = new long[(int) Math.min(3L * chunkRecordsNumber, 3 * getInputRecordsNumber())];
+		int chunkRecords = 0;
+		for (File experienceFile : experienceFiles) {
+			try (RecordReader reader = new RecordReader(experienceFile, bufferSize)) {
+				while (reader.next()) {
+					if (chunkRecords == chunkRecordsNumber) {
+						File run = createRun();
+						chunkRuns.add(run);
+						writeChunk(chunk, chunkRecords, run);
+						chunkRecords = 0;
+					}
+					chunk[3 * chunkRecords] = reader.key;
+					chunk[3 * chunkRecords + 1] = reader.moveDepth;
+					chunk[3 * chunkRecords + 2] = reader.valuePerformance;
+					chunkRecords++;
+					inputRecordsNumber++;
+				}
+				if (reader.isTruncated()) {
+					logger.info(String.join("", experienceFile.getPath(), ": ignoring a truncated last record"));
+				}
+			}
+		}
+		if (chunkRuns.isEmpty()) {
+			outputRecordsNumber = writeChunk(chunk, chunkRecords, temporaryMergedFile);
+		} else if (chunkRecords > 0) {
+			File run = createRun();
+			chunkRuns.add(run);
+			writeChunk(chunk, chunkRecords, run);
+		}
+		return chunkRuns;
+	}
+
+	private long getInputRecordsNumber() {
+		long recordsNumber = 0;
+		for (File experienceFile : experienceFiles) {
+			recordsNumber += experienceFile.length() / RECORD_SIZE;
+		}
+		return recordsNumber;
+	}
+
+	private File createRun() throws IOException {
+		File run = File.createTempFile("experience", ".run", temporaryDirectory);
+		runs.add(run);
+		return run;
+	}
+
+	private long writeChunk(long[] chunk, int chunkRecords, File file) throws IOException {
+		sort(chunk, 0, chunkRecords);
+		try (RecordWriter writer = new RecordWriter(file, bufferSize)) {
+			for (int record = 0; record < chunkRecords; record++) {
+				writer.write(chunk[3 * record], chunk[3 * record + 1], chunk[3 * record + 2]);
+			}
+			return writer.getRecordsNumber();
+		}
+	}
+
+	private long mergeRuns(List<File> runs, File file) throws IOException {
+		PriorityQueue<RecordReader> readers = new PriorityQueue<>(runs.size(), ExperienceMerger::compare);
+		try (RecordWriter writer = new RecordWriter(file, bufferSize)) {
+			for (File run : runs) {
+				RecordReader reader = new RecordReader(run, bufferSize);
+				if (reader.next()) {
+					readers.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+			while (!readers.isEmpty()) {
+				RecordReader reader = readers.poll();
+				writer.write(reader.key, reader.moveDepth, reader.valuePerformance);
+				if (reader.next()) {
+					readers.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+			return writer.getRecordsNumber();
+		} finally {
+			for (RecordReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	private static int compare(RecordReader first, RecordReader second) {
+		int comparison = Long.compare(first.key, second.key);
+		if (comparison == 0) {
+			comparison = Long.compare(first.moveDepth, second.moveDepth);
+		}
+		return (comparison != 0) ? comparison : Long.compare(first.valuePerformance, second.valuePerformance);
+	}
+
+	/**
+	 * In place quicksort of the chunk records, recursing on the smaller part so
+	 * that the stack stays logarithmic.
+	 */
+	private static void sort(long[] chunk, int first, int end) {
+		while (end - first > 16) {
+			int middle = first + (end - first) / 2;
+			long pivotKey = chunk[3 * middle];
+			long pivotMoveDepth = chunk[3 * middle + 1];
+			long pivotValuePerformance = chunk[3 * middle + 2];
+			int low = first;
+			int high = end - 1;
+			while (low <= high) {
+				while (compare(chunk, low, pivotKey, pivotMoveDepth, pivotValuePerformance) < 0) {
+					low++;
+				}
+				while (compare(chunk, high, pivotKey, pivotMoveDepth, pivotValuePerformance) > 0) {
+					high--;
+				}
+				if (low <= high) {
+					swap(chunk, low++, high--);
+				}
+			}
+			if (high + 1 - first < end - low) {
+				sort(chunk, first, high + 1);
+				first = low;
+			} else {
+				sort(chunk, low, end);
+				end = high + 1;
+			}
+		}
+		for (int record = first + 1; record < end; record++) {
+			for (int previous = record; (previous > first) && (compare(chunk, previous, chunk[3 * previous - 3],
+					chunk[3 * previous - 2], chunk[3 * previous - 1]) < 0); previous--) {
+				swap(chunk, previous, previous - 1);
+			}
+		}
+	}
+
+	private static int compare(long[] chunk, int record, long key, long moveDepth, long valuePerformance) {
+		int comparison = Long.compare(chunk[3 * record], key);
+		if (comparison == 0) {
+			comparison = Long.compare(chunk[3 * record + 1], moveDepth);
+		}
+		return (comparison != 0) ? comparison : Long.compare(chunk[3 * record + 2], valuePerformance);
+	}
+
+	private static void swap(long[] chunk, int first, int second) {
+		for (int field = 0; field < 3; field++) {
+			long firstField = chunk[3 * first + field];
+			chunk[3 * first + field] = chunk[3 * second + field];
+			chunk[3 * second + field] = firstField;
+		}
+	}
+
+	private static void logThroughput(String phase, long recordsNumber, long elapsedMS) {
+		double seconds = Math.max(1, elapsedMS) / 1000.0;
+		String throughputMsg = String.join("", phase, ": ", Long.toString(elapsedMS), " ms, ",
+				String.format("%.1f", (double) recordsNumber * RECORD_SIZE / BYTES_PER_MB / seconds), " MB/s, ",
+				String.format("%.0f", recordsNumber / seconds), " entries/s");
+		logger.info(throughputMsg);
+	}
+}
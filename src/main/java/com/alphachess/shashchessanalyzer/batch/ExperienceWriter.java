@@ -0,0 +1,147 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.StockfishZobristHash;
+
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessPiece;
+import ictk.boardgame.chess.io.FEN;
+
+/**
+ * Appends search results to a file in the experience format of the
+ * ShashChess persisted learning, so that they can be loaded by the engine,
+ * merged by ExperienceMerger and looked up by ExperienceFile as if the engine
+ * had learned them itself.
+ *
+ * Records are batched in a buffer written every BATCH_RECORDS records and on
+ * flush or close; a last record torn by a previous crash is dropped at open.
+ */
+public class ExperienceWriter implements Closeable {
+	private static final int RECORD_SIZE = ExperienceFile.RECORD_SIZE;
+	private static final int BATCH_RECORDS = 1024;
+	/**
+	 * Stockfish mate value, from which the plies to mate are subtracted.
+	 */
+	public static final int VALUE_MATE = 32000;
+	/**
+	 * Performance of the records learned by the engine from its own searches.
+	 */
+	public static final int DEFAULT_PERFORMANCE = 100;
+	private static final int PROMOTION = 1 << 14;
+	private static final int EN_PASSANT = 2 << 14;
+	private static final int CASTLING = 3 << 14;
+	private final String experienceFileName;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private long recordsNumber = 0;
+
+	private static final Logger logger = Logger.getLogger(ExperienceWriter.class.getName());
+
+	public ExperienceWriter(String experienceFileName) throws IOException {
+		this.experienceFileName = experienceFileName;
+		file = new RandomAccessFile(experienceFileName, "rw");
+		channel = file.getChannel();
+		long length = channel.size();
+		if (length % RECORD_SIZE != 0) {
+			logger.info(String.join("", experienceFileName, ": dropping a truncated last record"));
+			channel.truncate(length - length % RECORD_SIZE);
+		}
+		channel.position(channel.size());
+		buffer = ByteBuffer.allocate(BATCH_RECORDS * RECORD_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public synchronized void write(long key, int depth, int value, int move, int performance) throws IOException {
+		buffer.putLong(key);
+		buffer.putInt(depth);
+		buffer.putInt(value);
+		buffer.putInt(move);
+		buffer.putInt(performance);
+		recordsNumber++;
+		if (!buffer.hasRemaining()) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes the best move of a position with its score in centipawns, or its
+	 * moves to mate when mateIn is not 0, negative when mated.
+	 */
+	public void write(String fen, String lan, int score, int mateIn, int depth) throws IOException {
+		ChessBoard chessBoard = (ChessBoard) new FEN().stringToBoard(fen);
+		write(StockfishZobristHash.getKey(chessBoard), depth, getValue(score, mateIn), getMove(chessBoard, lan),
+				DEFAULT_PERFORMANCE);
+	}
+
+	public static int getValue(int score, int mateIn) {
+		if (mateIn > 0) {
+			return VALUE_MATE - (2 * mateIn - 1);
+		}
+		if (mateIn < 0) {
+			return -VALUE_MATE - 2 * mateIn;
+		}
+		return score * ExperienceFile.PAWN_VALUE / 100;
+	}
+
+	/**
+	 * Stockfish encoding of a move in long algebraic notation, the inverse of
+	 * ExperienceFile.getLan: the board tells castling and en passant apart.
+	 */
+	public static int getMove(ChessBoard chessBoard, String lan) {
+		int originFile = lan.charAt(0) - 'a';
+		int originRank = lan.charAt(1) - '1';
+		int destinationFile = lan.charAt(2) - 'a';
+		int destinationRank = lan.charAt(3) - '1';
+		int move = ((8 * originRank + originFile) << 6) | (8 * destinationRank + destinationFile);
+		if (lan.length() > 4) {
+			return move | PROMOTION | ("nbrq".indexOf(Character.toLowerCase(lan.charAt(4))) << 12);
+		}
+		ChessPiece chessPiece = chessBoard.getSquare(originFile + 1, originRank + 1).getOccupant();
+		if (chessPiece == null) {
+			return move;
+		}
+		if (chessPiece.isKing() && (Math.abs(destinationFile - originFile) == 2)) {
+			// the king takes its rook
+			int rookFile = (destinationFile > originFile) ? 7 : 0;
+			return ((8 * originRank + originFile) << 6) | (8 * originRank + rookFile) | CASTLING;
+		}
+		if (chessPiece.isPawn() && (destinationFile != originFile)
+				&& (chessBoard.getSquare(destinationFile + 1, destinationRank + 1).getOccupant() == null)) {
+			return move | EN_PASSANT;
+		}
+		return move;
+	}
+
+	public synchronized void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	public long getRecordsNumber() {
+		return recordsNumber;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			flush();
+			channel.force(false);
+		} finally {
+			file.close();
+		}
+		String writtenMsg = String.join("", "Written ", Long.toString(recordsNumber), " experience entries to ",
+				experienceFileName);
+		logger.info(writtenMsg);
+	}
+}
@@ -0,0 +1,133 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.util.Arrays;
+
+import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial;
+import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial.Range;
+import com.alphachess.shashchessanalyzer.ZobristHash;
+
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessResult;
+
+/**
+ * Ends self-play games early: resignation when one side's win probability
+ * stays decided for some plies, draw when the position stays in the
+ * Capablanca range, and threefold repetition on the position key history.
+ */
+public class GameAdjudicator {
+	private final int resignWinProbability;
+	private final int resignPlies;
+	private final int drawPlies;
+	private final int drawMinPly;
+	private long[] positionKeys = new long[256];
+	private int positionKeysNumber;
+	private int lastIrreversiblePly;
+	private int whiteWinPlies;
+	private int blackWinPlies;
+	private int capablancaPlies;
+	private int gamePly;
+	private String reason;
+
+	public GameAdjudicator(int resignWinProbability, int resignPlies, int drawPlies, int drawMinPly) {
+		this.resignWinProbability = resignWinProbability;
+		this.resignPlies = resignPlies;
+		this.drawPlies = drawPlies;
+		this.drawMinPly = drawMinPly;
+	}
+
+	public void newGame(ChessBoard chessBoard) {
+		positionKeysNumber = 0;
+		lastIrreversiblePly = 0;
+		whiteWinPlies = 0;
+		blackWinPlies = 0;
+		capablancaPlies = 0;
+		gamePly = 0;
+		reason = null;
+		addPosition(chessBoard);
+	}
+
+	/**
+	 * Records a played move and returns the adjudicated result, or null if the
+	 * game goes on.
+	 *
+	 * @param winProbability win probability of the side that moved
+	 * @param isBlackMove    whether the move was played by black
+	 * @param chessBoard     the board after the move
+	 */
+	public ChessResult adjudicate(int winProbability, boolean isBlackMove, ChessBoard chessBoard) {
+		gamePly++;
+		addPosition(chessBoard);
+		if (isThreefoldRepetition()) {
+			return getResult(ChessResult.DRAW, "threefold repetition");
+		}
+		int whiteWinProbability = isBlackMove ? 100 - winProbability : winProbability;
+		if (resignPlies > 0) {
+			whiteWinPlies = (whiteWinProbability >= 100 - resignWinProbability) ? whiteWinPlies + 1 : 0;
+			blackWinPlies = (whiteWinProbability <= resignWinProbability) ? blackWinPlies + 1 : 0;
+			if (whiteWinPlies >= resignPlies) {
+				return getResult(ChessResult.WHITE_WIN, "black resigns");
+			}
+			if (blackWinPlies >= resignPlies) {
+				return getResult(ChessResult.BLACK_WIN, "white resigns");
+			}
+		}
+		if (drawPlies > 0) {
+			boolean isCapablanca = WinProbabilityByMaterial
+					.getRange(whiteWinProbability) == Range.SHASHIN_POSITION_CAPABLANCA.getValue();
+			capablancaPlies = isCapablanca ? capablancaPlies + 1 : 0;
+			if ((capablancaPlies >= drawPlies) && (gamePly >= drawMinPly)) {
+				return getResult(ChessResult.DRAW, "stable Capablanca position");
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records a book move, which is only checked for repetitions: it has no
+	 * evaluation to count for resignation or draw.
+	 */
+	public ChessResult adjudicateBookMove(ChessBoard chessBoard) {
+		gamePly++;
+		addPosition(chessBoard);
+		if (isThreefoldRepetition()) {
+			return getResult(ChessResult.DRAW, "threefold repetition");
+		}
+		return null;
+	}
+
+	private ChessResult getResult(int result, String resultReason) {
+		reason = resultReason;
+		return new ChessResult(result);
+	}
+
+	private void addPosition(ChessBoard chessBoard) {
+		if (positionKeysNumber == positionKeys.length) {
+			positionKeys = Arrays.copyOf(positionKeys, positionKeys.length * 2);
+		}
+		if (chessBoard.get50MoveRulePlyCount() == 0) {
+			lastIrreversiblePly = positionKeysNumber;
+		}
+		positionKeys[positionKeysNumber++] = ZobristHash.getKey(chessBoard);
+	}
+
+	// only positions since the last capture or pawn move, with the same side to move, can repeat
+	private boolean isThreefoldRepetition() {
+		int current = positionKeysNumber - 1;
+		long currentKey = positionKeys[current];
+		int repetitions = 1;
+		for (int ply = current - 2; ply >= lastIrreversiblePly; ply -= 2) {
+			if (positionKeys[ply] == currentKey && ++repetitions == 3) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public String getReason() {
+		return reason;
+	}
+
+	public int getGamePly() {
+		return gamePly;
+	}
+}
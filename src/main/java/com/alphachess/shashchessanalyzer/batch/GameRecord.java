@@ -0,0 +1,353 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial;
+import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial.Range;
+
+import ictk.boardgame.AmbiguousMoveException;
+import ictk.boardgame.History;
+import ictk.boardgame.IllegalMoveException;
+import ictk.boardgame.Move;
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.ChessGameInfo;
+import ictk.boardgame.chess.ChessMove;
+import ictk.boardgame.chess.ChessPiece;
+import ictk.boardgame.chess.ChessPlayer;
+import ictk.boardgame.chess.ChessResult;
+import ictk.boardgame.chess.io.ChessAnnotation;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.io.Annotation;
+
+/**
+ * Compact binary form of a self-play game: the pgn header and, per ply, a
+ * 16-bit move (to bits 0-5, from bits 6-11, promotion piece bits 12-13,
+ * promotion flag bit 14, evaluation flag bit 15) followed, for the plies
+ * annotated by self play, by score (16 bits), depth, win probability and
+ * Shashin range (8 bits each).
+ */
+public class GameRecord {
+	public static final int NO_RANGE = Byte.MAX_VALUE;
+	private static final String START_POS = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+	private static final Pattern SELF_PLAY_COMMENT = Pattern.compile("(-?\\d+);(\\d+);(\\d+);s-(\\w*)");
+	private static final int EVALUATION_FLAG = 1 << 15;
+	private static final int PROMOTION_FLAG = 1 << 14;
+	private static final String PROMOTION_PIECES = "nbrq";
+	private String event = "";
+	private String site = "";
+	private String round = "";
+	private String white = "";
+	private String black = "";
+	private String eco = "";
+	private String startFen = "";
+	private Properties auxilleryProperties = new Properties();
+	private int year;
+	private int month;
+	private int day;
+	private int whiteRating;
+	private int blackRating;
+	private int timeControlInitial;
+	private int timeControlIncrement;
+	private int result = ChessResult.UNDECIDED;
+	private int pliesNumber;
+	private short[] moves = new short[0];
+	private short[] scores = new short[0];
+	private byte[] depths = new byte[0];
+	private byte[] winProbabilities = new byte[0];
+	private byte[] ranges = new byte[0];
+
+	public static GameRecord fromChessGame(ChessGame chessGame) {
+		GameRecord gameRecord = new GameRecord();
+		ChessGameInfo chessGameInfo = (ChessGameInfo) chessGame.getGameInfo();
+		if (chessGameInfo != null) {
+			gameRecord.setHeader(chessGameInfo);
+		}
+		History history = chessGame.getHistory();
+		history.rewind();
+		String initialFen = new FEN().boardToString(chessGame.getBoard()).trim();
+		gameRecord.startFen = isStartPosition(initialFen) ? "" : initialFen;
+		gameRecord.allocate(history.size());
+		Move nextMove = history.getNext();
+		while (nextMove != null) {
+			gameRecord.addPly((ChessMove) nextMove);
+			history.next();
+			nextMove = history.getNext();
+		}
+		return gameRecord;
+	}
+
+	// the move counters are not compared: ictk numbers the start position with 0
+	private static boolean isStartPosition(String fen) {
+		String[] fenFields = fen.split(" ");
+		String[] startPositionFields = START_POS.split(" ");
+		for (int i = 0; i < 4; i++) {
+			if ((fenFields.length <= i) || !fenFields[i].equals(startPositionFields[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void setHeader(ChessGameInfo chessGameInfo) {
+		event = getText(chessGameInfo.getEvent());
+		site = getText(chessGameInfo.getSite());
+		round = getText(chessGameInfo.getRound());
+		white = (chessGameInfo.getWhite() != null) ? getText(chessGameInfo.getWhite().getName()) : "";
+		black = (chessGameInfo.getBlack() != null) ? getText(chessGameInfo.getBlack().getName()) : "";
+		eco = getText(chessGameInfo.getECO());
+		year = chessGameInfo.getYear();
+		month = chessGameInfo.getMonth();
+		day = chessGameInfo.getDay();
+		whiteRating = chessGameInfo.getWhiteRating();
+		blackRating = chessGameInfo.getBlackRating();
+		timeControlInitial = chessGameInfo.getTimeControlInitial();
+		timeControlIncrement = chessGameInfo.getTimeControlIncrement();
+		result = (chessGameInfo.getResult() != null) ? ((ChessResult) chessGameInfo.getResult()).getIndex()
+				: ChessResult.UNDECIDED;
+		if (chessGameInfo.getAuxilleryProperties() != null) {
+			auxilleryProperties = chessGameInfo.getAuxilleryProperties();
+		}
+	}
+
+	private static String getText(String text) {
+		return (text != null) ? text : "";
+	}
+
+	private void allocate(int plies) {
+		moves = new short[plies];
+		scores = new short[plies];
+		depths = new byte[plies];
+		winProbabilities = new byte[plies];
+		ranges = new byte[plies];
+	}
+
+	private void addPly(ChessMove chessMove) {
+		if (pliesNumber == moves.length) {
+			int plies = Math.max(16, pliesNumber * 2);
+			moves = Arrays.copyOf(moves, plies);
+			scores = Arrays.copyOf(scores, plies);
+			depths = Arrays.copyOf(depths, plies);
+			winProbabilities = Arrays.copyOf(winProbabilities, plies);
+			ranges = Arrays.copyOf(ranges, plies);
+		}
+		int move = GenericUtil.getMoveInt(chessMove);
+		ChessPiece promotion = chessMove.getPromotion();
+		if (promotion != null) {
+			int promotionPiece = promotion.isKnight() ? 0 : promotion.isBishop() ? 1 : promotion.isRook() ? 2 : 3;
+			move |= PROMOTION_FLAG | (promotionPiece << 12);
+		}
+		Annotation annotation = chessMove.getAnnotation();
+		Matcher commentMatcher = ((annotation != null) && (annotation.getComment() != null))
+				? SELF_PLAY_COMMENT.matcher(annotation.getComment().trim())
+				: null;
+		if ((commentMatcher != null) && commentMatcher.matches()) {
+			move |= EVALUATION_FLAG;
+			scores[pliesNumber] = (short) Math.max(Short.MIN_VALUE,
+					Math.min(Short.MAX_VALUE, Integer.parseInt(commentMatcher.group(1))));
+			depths[pliesNumber] = (byte) Math.min(255, Integer.parseInt(commentMatcher.group(2)));
+			winProbabilities[pliesNumber] = (byte) Integer.parseInt(commentMatcher.group(3));
+			ranges[pliesNumber] = (byte) getRange(commentMatcher.group(4));
+		}
+		moves[pliesNumber++] = (short) move;
+	}
+
+	static int getRange(String abbreviateRangeDescription) {
+		for (Range range : Range.values()) {
+			String rangeDescription = WinProbabilityByMaterial.getRangeDescription(range.getValue());
+			if ((rangeDescription != null) && abbreviateRangeDescription
+					.equals(WinProbabilityByMaterial.getAbbreviateRangeDescription(rangeDescription))) {
+				return range.getValue();
+			}
+		}
+		return NO_RANGE;
+	}
+
+	/**
+	 * Rebuilds the game, with the self-play annotations, replaying the moves
+	 * from the start position.
+	 */
+	public ChessGame toChessGame() throws IOException, IllegalMoveException, AmbiguousMoveException {
+		ChessGameInfo chessGameInfo = new ChessGameInfo();
+		chessGameInfo.setEvent(event);
+		chessGameInfo.setSite(site);
+		chessGameInfo.setRound(round);
+		chessGameInfo.setWhite(new ChessPlayer(white));
+		chessGameInfo.setBlack(new ChessPlayer(black));
+		chessGameInfo.setECO(eco.isEmpty() ? null : eco);
+		if (year > 0) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.clear();
+			calendar.set(year, Math.max(0, month - 1), Math.max(1, day));
+			chessGameInfo.setDate(calendar);
+			chessGameInfo.setYear(year);
+			chessGameInfo.setMonth(month);
+			chessGameInfo.setDay(day);
+		}
+		chessGameInfo.setWhiteRating(whiteRating);
+		chessGameInfo.setBlackRating(blackRating);
+		chessGameInfo.setTimeControlInitial(timeControlInitial);
+		chessGameInfo.setTimeControlIncrement(timeControlIncrement);
+		chessGameInfo.setResult(new ChessResult(result));
+		chessGameInfo.setAuxilleryProperties(auxilleryProperties);
+		ChessGame chessGame = new ChessGame(chessGameInfo);
+		if (!startFen.isEmpty()) {
+			chessGame.setBoard(new FEN().stringToBoard(startFen));
+		}
+		ChessBoard chessBoard = (ChessBoard) chessGame.getBoard();
+		History history = chessGame.getHistory();
+		for (int ply = 0; ply < pliesNumber; ply++) {
+			ChessMove chessMove = LanMoveConverter.getChessMove(chessBoard, getLan(ply));
+			history.add(chessMove);
+			if (isEvaluated(ply)) {
+				ChessAnnotation chessAnnotation = new ChessAnnotation();
+				chessAnnotation.setComment(getComment(ply));
+				chessMove.setAnnotation(chessAnnotation);
+			}
+		}
+		return chessGame;
+	}
+
+	private String getComment(int ply) {
+		String rangeDescription = WinProbabilityByMaterial.getRangeDescription(getRange(ply));
+		String abbreviateRangeDescription = (rangeDescription != null)
+				? WinProbabilityByMaterial.getAbbreviateRangeDescription(rangeDescription)
+				: null;
+		return String.join("", Integer.toString(getScore(ply)), ";", Integer.toString(getDepth(ply)), ";",
+				Integer.toString(getWinProbability(ply)), ";s-",
+				(abbreviateRangeDescription != null) ? abbreviateRangeDescription : "");
+	}
+
+	public String getLan(int ply) {
+		int move = moves[ply] & 0xFFFF;
+		String lan = GenericUtil.getAlgebricMove(move & 0xFFF);
+		if ((move & PROMOTION_FLAG) != 0) {
+			lan = String.join("", lan, Character.toString(PROMOTION_PIECES.charAt((move >> 12) & 3)));
+		}
+		return lan;
+	}
+
+	public void write(DataOutput dataOutput) throws IOException {
+		dataOutput.writeUTF(event);
+		dataOutput.writeUTF(site);
+		dataOutput.writeUTF(round);
+		dataOutput.writeUTF(white);
+		dataOutput.writeUTF(black);
+		dataOutput.writeUTF(eco);
+		dataOutput.writeUTF(startFen);
+		dataOutput.writeShort(auxilleryProperties.size());
+		Enumeration<?> propertyNames = auxilleryProperties.propertyNames();
+		while (propertyNames.hasMoreElements()) {
+			String propertyName = (String) propertyNames.nextElement();
+			dataOutput.writeUTF(propertyName);
+			dataOutput.writeUTF(auxilleryProperties.getProperty(propertyName));
+		}
+		dataOutput.writeShort(year);
+		dataOutput.writeByte(month);
+		dataOutput.writeByte(day);
+		dataOutput.writeShort(whiteRating);
+		dataOutput.writeShort(blackRating);
+		dataOutput.writeInt(timeControlInitial);
+		dataOutput.writeInt(timeControlIncrement);
+		dataOutput.writeByte(result);
+		dataOutput.writeShort(pliesNumber);
+		for (int ply = 0; ply < pliesNumber; ply++) {
+			dataOutput.writeShort(moves[ply]);
+			if (isEvaluated(ply)) {
+				dataOutput.writeShort(scores[ply]);
+				dataOutput.writeByte(depths[ply]);
+				dataOutput.writeByte(winProbabilities[ply]);
+				dataOutput.writeByte(ranges[ply]);
+			}
+		}
+	}
+
+	public static GameRecord read(DataInput dataInput) throws IOException {
+		GameRecord gameRecord = new GameRecord();
+		gameRecord.event = dataInput.readUTF();
+		gameRecord.site = dataInput.readUTF();
+		gameRecord.round = dataInput.readUTF();
+		gameRecord.white = dataInput.readUTF();
+		gameRecord.black = dataInput.readUTF();
+		gameRecord.eco = dataInput.readUTF();
+		gameRecord.startFen = dataInput.readUTF();
+		int auxilleryPropertiesNumber = dataInput.readUnsignedShort();
+		for (int i = 0; i < auxilleryPropertiesNumber; i++) {
+			gameRecord.auxilleryProperties.setProperty(dataInput.readUTF(), dataInput.readUTF());
+		}
+		gameRecord.year = dataInput.readShort();
+		gameRecord.month = dataInput.readByte();
+		gameRecord.day = dataInput.readByte();
+		gameRecord.whiteRating = dataInput.readShort();
+		gameRecord.blackRating = dataInput.readShort();
+		gameRecord.timeControlInitial = dataInput.readInt();
+		gameRecord.timeControlIncrement = dataInput.readInt();
+		gameRecord.result = dataInput.readByte();
+		int plies = dataInput.readUnsignedShort();
+		gameRecord.allocate(plies);
+		for (int ply = 0; ply < plies; ply++) {
+			gameRecord.moves[ply] = dataInput.readShort();
+			if (gameRecord.isEvaluated(ply)) {
+				gameRecord.scores[ply] = dataInput.readShort();
+				gameRecord.depths[ply] = dataInput.readByte();
+				gameRecord.winProbabilities[ply] = dataInput.readByte();
+				gameRecord.ranges[ply] = dataInput.readByte();
+			}
+		}
+		gameRecord.pliesNumber = plies;
+		return gameRecord;
+	}
+
+	public boolean isEvaluated(int ply) {
+		return (moves[ply] & EVALUATION_FLAG) != 0;
+	}
+
+	public int getScore(int ply) {
+		return scores[ply];
+	}
+
+	public int getDepth(int ply) {
+		return depths[ply] & 0xFF;
+	}
+
+	public int getWinProbability(int ply) {
+		return winProbabilities[ply];
+	}
+
+	public int getRange(int ply) {
+		return ranges[ply];
+	}
+
+	public int getPliesNumber() {
+		return pliesNumber;
+	}
+
+	public int getResult() {
+		return result;
+	}
+
+	public String getEco() {
+		return eco;
+	}
+
+	public String getWhite() {
+		return white;
+	}
+
+	public String getBlack() {
+		return black;
+	}
+
+	public String getStartFen() {
+		return startFen;
+	}
+}
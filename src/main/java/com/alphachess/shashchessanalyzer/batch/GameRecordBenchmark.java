@@ -0,0 +1,86 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.io.PGNReader;
+
+/**
+ * Compares a self-play pgn with its game record form: file size, full pgn
+ * parse time, binary read time and binary read plus move replay time.
+ * Usage: GameRecordBenchmark pgnFile
+ */
+public class GameRecordBenchmark {
+	private static final Logger logger = Logger.getLogger(GameRecordBenchmark.class.getName());
+
+	private GameRecordBenchmark() {
+		throw new IllegalStateException("Utility class");
+	}
+
+	public static void main(String[] args) {
+		String pgnFileName = args[0];
+		String gameRecordFileName = String.join("", pgnFileName, ".scg");
+		try {
+			long startNS = System.nanoTime();
+			int gamesNumber = GameRecordConverter.toBinary(pgnFileName, gameRecordFileName);
+			logTime("Pgn to binary", startNS, gamesNumber);
+
+			startNS = System.nanoTime();
+			int parsedGamesNumber = parsePgn(pgnFileName);
+			logTime("Pgn parse", startNS, parsedGamesNumber);
+
+			startNS = System.nanoTime();
+			readGameRecords(gameRecordFileName, false);
+			logTime("Binary read", startNS, gamesNumber);
+
+			startNS = System.nanoTime();
+			readGameRecords(gameRecordFileName, true);
+			logTime("Binary read and replay", startNS, gamesNumber);
+
+			long pgnSize = new File(pgnFileName).length();
+			long gameRecordSize = new File(gameRecordFileName).length();
+			String sizeMsg = String.format("Size: pgn %d bytes, binary %d bytes (%.1f%%)", pgnSize, gameRecordSize,
+					gameRecordSize * 100.0 / Math.max(1, pgnSize));
+			logger.info(sizeMsg);
+		} catch (Exception e) {
+			logger.info(e.getMessage());
+		}
+	}
+
+	private static int parsePgn(String pgnFileName) throws IOException {
+		int gamesNumber = 0;
+		try (BufferedReader pgnBufferedReader = CompressedStreams.getBufferedReader(pgnFileName)) {
+			PGNReader pgnReader = new PGNReader(pgnBufferedReader);
+			ChessGame chessGame = GenericUtil.readGame(pgnReader);
+			while (chessGame != null) {
+				gamesNumber++;
+				chessGame = GenericUtil.readGame(pgnReader);
+			}
+		}
+		return gamesNumber;
+	}
+
+	private static void readGameRecords(String gameRecordFileName, boolean isReplayed) throws Exception {
+		try (GameRecordReader gameRecordReader = new GameRecordReader(gameRecordFileName)) {
+			GameRecord gameRecord = gameRecordReader.readGame();
+			while (gameRecord != null) {
+				if (isReplayed) {
+					gameRecord.toChessGame();
+				}
+				gameRecord = gameRecordReader.readGame();
+			}
+		}
+	}
+
+	private static void logTime(String operation, long startNS, int gamesNumber) {
+		long elapsedMS = Math.max(1, (System.nanoTime() - startNS) / 1000000);
+		String timeMsg = String.format("%s: %d games in %d ms (%.0f games/s)", operation, gamesNumber, elapsedMS,
+				gamesNumber * 1000.0 / elapsedMS);
+		logger.info(timeMsg);
+	}
+}
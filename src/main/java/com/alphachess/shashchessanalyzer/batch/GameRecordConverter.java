@@ -0,0 +1,69 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+
+import ictk.boardgame.AmbiguousMoveException;
+import ictk.boardgame.IllegalMoveException;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.io.PGNReader;
+import ictk.boardgame.chess.io.PGNWriter;
+
+/**
+ * Converts self-play pgns to game record files and back.
+ * Usage: GameRecordConverter toBinary|toPgn inputFile outputFile
+ */
+public class GameRecordConverter {
+	private static final Logger logger = Logger.getLogger(GameRecordConverter.class.getName());
+
+	private GameRecordConverter() {
+		throw new IllegalStateException("Utility class");
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 3) {
+			logger.info("Usage: GameRecordConverter toBinary|toPgn inputFile outputFile");
+			return;
+		}
+		try {
+			int gamesNumber = args[0].equalsIgnoreCase("toPgn") ? toPgn(args[1], args[2])
+					: toBinary(args[1], args[2]);
+			String convertedMsg = String.join("", "Converted games: ", Integer.toString(gamesNumber));
+			logger.info(convertedMsg);
+		} catch (IOException | IllegalMoveException | AmbiguousMoveException e) {
+			logger.info(e.getMessage());
+		}
+	}
+
+	public static int toBinary(String pgnFileName, String gameRecordFileName) throws IOException {
+		try (BufferedReader pgnBufferedReader = CompressedStreams.getBufferedReader(pgnFileName);
+				GameRecordWriter gameRecordWriter = new GameRecordWriter(gameRecordFileName)) {
+			PGNReader pgnReader = new PGNReader(pgnBufferedReader);
+			ChessGame chessGame = GenericUtil.readGame(pgnReader);
+			while (chessGame != null) {
+				gameRecordWriter.write(GameRecord.fromChessGame(chessGame));
+				chessGame = GenericUtil.readGame(pgnReader);
+			}
+			return gameRecordWriter.getGamesNumber();
+		}
+	}
+
+	public static int toPgn(String gameRecordFileName, String pgnFileName)
+			throws IOException, IllegalMoveException, AmbiguousMoveException {
+		try (GameRecordReader gameRecordReader = new GameRecordReader(gameRecordFileName);
+				PrintWriter pw = CompressedStreams.getPrintWriter(pgnFileName, false)) {
+			PGNWriter pgnWriter = new PGNWriter(pw);
+			GameRecord gameRecord = gameRecordReader.readGame();
+			while (gameRecord != null) {
+				pgnWriter.writeGame(gameRecord.toChessGame());
+				pw.print("\r\n");
+				gameRecord = gameRecordReader.readGame();
+			}
+			return gameRecordReader.getGamesNumber();
+		}
+	}
+}
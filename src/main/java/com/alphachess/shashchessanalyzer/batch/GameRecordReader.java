@@ -0,0 +1,82 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the games written by {@link GameRecordWriter}, one after the other or
+ * by game number through the game header index.
+ */
+public class GameRecordReader implements Closeable {
+	private static final int READ_BUFFER_SIZE = 1 << 16;
+	private final RandomAccessFile gameRecordFile;
+	private final FileChannel gameRecordChannel;
+	private final long[] gameOffsets;
+	private DataInputStream dataInputStream;
+	private int nextGame;
+
+	public GameRecordReader(String gameRecordFileName) throws IOException {
+		gameRecordFile = new RandomAccessFile(gameRecordFileName, "r");
+		gameRecordChannel = gameRecordFile.getChannel();
+		if ((gameRecordFile.length() < GameRecordWriter.TRAILER_SIZE + 6)
+				|| (gameRecordFile.readInt() != GameRecordWriter.MAGIC)
+				|| (gameRecordFile.readShort() != GameRecordWriter.VERSION)) {
+			close();
+			throw new IOException(String.join("", gameRecordFileName, " is not a game record file"));
+		}
+		gameRecordFile.seek(gameRecordFile.length() - GameRecordWriter.TRAILER_SIZE);
+		long indexOffset = gameRecordFile.readLong();
+		if (gameRecordFile.readInt() != GameRecordWriter.MAGIC) {
+			close();
+			throw new IOException(String.join("", gameRecordFileName, " is truncated"));
+		}
+		DataInputStream indexInputStream = getDataInputStream(indexOffset);
+		gameOffsets = new long[indexInputStream.readInt()];
+		for (int i = 0; i < gameOffsets.length; i++) {
+			gameOffsets[i] = indexInputStream.readLong();
+		}
+		seekGame(0);
+	}
+
+	private DataInputStream getDataInputStream(long offset) throws IOException {
+		gameRecordChannel.position(offset);
+		return new DataInputStream(
+				new BufferedInputStream(Channels.newInputStream(gameRecordChannel), READ_BUFFER_SIZE));
+	}
+
+	public int getGamesNumber() {
+		return gameOffsets.length;
+	}
+
+	/**
+	 * Positions the reader so that the next {@link #readGame()} returns the
+	 * given game, counted from 0.
+	 */
+	public void seekGame(int gameNumber) throws IOException {
+		nextGame = gameNumber;
+		if (gameNumber < gameOffsets.length) {
+			dataInputStream = getDataInputStream(gameOffsets[gameNumber]);
+		}
+	}
+
+	/**
+	 * Returns the next game, null after the last one.
+	 */
+	public GameRecord readGame() throws IOException {
+		if (nextGame >= gameOffsets.length) {
+			return null;
+		}
+		nextGame++;
+		return GameRecord.read(dataInputStream);
+	}
+
+	@Override
+	public void close() throws IOException {
+		gameRecordFile.close();
+	}
+}
@@ -0,0 +1,83 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial;
+
+import ictk.boardgame.chess.ChessResult;
+
+/**
+ * Self-play statistics read straight from a game record file, without
+ * replaying the moves: results, game length, search depth and the Shashin
+ * range distribution of the evaluated plies.
+ * Usage: GameRecordStatistics gameRecordFile
+ */
+public class GameRecordStatistics {
+	private long gamesNumber;
+	private long whiteWins;
+	private long blackWins;
+	private long draws;
+	private long pliesNumber;
+	private long evaluatedPliesNumber;
+	private long depthsSum;
+	private final Map<Integer, Long> rangePlies = new TreeMap<>();
+
+	private static final Logger logger = Logger.getLogger(GameRecordStatistics.class.getName());
+
+	public static void main(String[] args) {
+		GameRecordStatistics gameRecordStatistics = new GameRecordStatistics();
+		try {
+			gameRecordStatistics.addGames(args[0]);
+			gameRecordStatistics.logStatistics();
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+	}
+
+	public void addGames(String gameRecordFileName) throws IOException {
+		try (GameRecordReader gameRecordReader = new GameRecordReader(gameRecordFileName)) {
+			GameRecord gameRecord = gameRecordReader.readGame();
+			while (gameRecord != null) {
+				addGame(gameRecord);
+				gameRecord = gameRecordReader.readGame();
+			}
+		}
+	}
+
+	public void addGame(GameRecord gameRecord) {
+		gamesNumber++;
+		if (gameRecord.getResult() == ChessResult.WHITE_WIN) {
+			whiteWins++;
+		} else if (gameRecord.getResult() == ChessResult.BLACK_WIN) {
+			blackWins++;
+		} else if (gameRecord.getResult() == ChessResult.DRAW) {
+			draws++;
+		}
+		pliesNumber += gameRecord.getPliesNumber();
+		for (int ply = 0; ply < gameRecord.getPliesNumber(); ply++) {
+			if (gameRecord.isEvaluated(ply)) {
+				evaluatedPliesNumber++;
+				depthsSum += gameRecord.getDepth(ply);
+				rangePlies.merge(gameRecord.getRange(ply), 1L, Long::sum);
+			}
+		}
+	}
+
+	private void logStatistics() {
+		String gamesMsg = String.format("Games: %d (1-0 %d, 0-1 %d, 1/2 %d), average plies %.1f", gamesNumber,
+				whiteWins, blackWins, draws, (double) pliesNumber / Math.max(1, gamesNumber));
+		logger.info(gamesMsg);
+		String pliesMsg = String.format("Self-play plies: %d, average depth %.1f", evaluatedPliesNumber,
+				(double) depthsSum / Math.max(1, evaluatedPliesNumber));
+		logger.info(pliesMsg);
+		rangePlies.forEach((range, plies) -> {
+			String rangeDescription = WinProbabilityByMaterial.getRangeDescription(range);
+			String rangeMsg = String.format("\t%s: %d (%.1f%%)", (rangeDescription != null) ? rangeDescription : "-",
+					plies, plies * 100.0 / Math.max(1, evaluatedPliesNumber));
+			logger.info(rangeMsg);
+		});
+	}
+}
@@ -0,0 +1,82 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes game records: a file header, the games one after the other and, on
+ * close, the game header index (the offset of every game) followed by a
+ * trailer pointing to it.
+ */
+public class GameRecordWriter implements Closeable {
+	static final int MAGIC = 0x53434752;
+	static final int VERSION = 1;
+	static final int TRAILER_SIZE = 12;
+	private static final int WRITE_BUFFER_SIZE = 1 << 16;
+	private final CountingOutputStream countingOutputStream;
+	private final DataOutputStream dataOutputStream;
+	private long[] gameOffsets = new long[1024];
+	private int gamesNumber;
+
+	// DataOutputStream counts written bytes in an int, not enough for multi-gigabyte files
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		private CountingOutputStream(OutputStream outputStream) {
+			super(outputStream);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	public GameRecordWriter(String gameRecordFileName) throws IOException {
+		countingOutputStream = new CountingOutputStream(
+				new BufferedOutputStream(new FileOutputStream(gameRecordFileName), WRITE_BUFFER_SIZE));
+		dataOutputStream = new DataOutputStream(countingOutputStream);
+		dataOutputStream.writeInt(MAGIC);
+		dataOutputStream.writeShort(VERSION);
+	}
+
+	public void write(GameRecord gameRecord) throws IOException {
+		if (gamesNumber == gameOffsets.length) {
+			gameOffsets = Arrays.copyOf(gameOffsets, gamesNumber * 2);
+		}
+		gameOffsets[gamesNumber++] = countingOutputStream.count;
+		gameRecord.write(dataOutputStream);
+	}
+
+	public int getGamesNumber() {
+		return gamesNumber;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			long indexOffset = countingOutputStream.count;
+			dataOutputStream.writeInt(gamesNumber);
+			for (int i = 0; i < gamesNumber; i++) {
+				dataOutputStream.writeLong(gameOffsets[i]);
+			}
+			dataOutputStream.writeLong(indexOffset);
+			dataOutputStream.writeInt(MAGIC);
+		} finally {
+			dataOutputStream.close();
+		}
+	}
+}
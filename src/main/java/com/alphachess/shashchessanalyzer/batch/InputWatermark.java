@@ -0,0 +1,181 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import ictk.boardgame.chess.ChessGame;
+
+/**
+ * Persistent watermark of an input pgn, kept in a .watermark file next to it,
+ * so that a re-run only processes the games appended or changed since the
+ * previous runs. It records the hash of every processed game and, at the end
+ * of a complete run from the first game, the file identity, the processed
+ * size and the checksum of the processed bytes. If the file still starts with those bytes, the
+ * processed part is skipped without reading it; otherwise every game is
+ * checked against the processed hashes. Only ShashChessPlayer keeps one, for
+ * its inputGamesPgn.
+ */
+public class InputWatermark {
+	private static final String FILE_RECORD = "file";
+	private static final String GAME_RECORD = "game";
+	private static final String SEPARATOR = "\t";
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private final File inputFile;
+	private final File watermarkFile;
+	private final Set<Long> processedGames = new HashSet<>();
+	private String[] lastFileRecord;
+	private long processedOffset;
+	private final long runOffset;
+	private final long runChecksum;
+
+	private static final Logger logger = Logger.getLogger(InputWatermark.class.getName());
+
+	public InputWatermark(String inputFileName) throws IOException {
+		inputFile = new File(inputFileName);
+		watermarkFile = new File(String.join("", inputFileName, ".watermark"));
+		load();
+		runOffset = inputFile.length();
+		runChecksum = getChecksum(runOffset);
+		processedOffset = getVerifiedOffset();
+		String watermarkMsg = String.join("", "Watermark of ", inputFileName, ": ",
+				Integer.toString(processedGames.size()), " processed games, first ", Long.toString(processedOffset),
+				" bytes unchanged");
+		logger.info(watermarkMsg);
+	}
+
+	private void load() throws IOException {
+		if (!watermarkFile.exists()) {
+			return;
+		}
+		try (BufferedReader watermarkReader = new BufferedReader(new FileReader(watermarkFile))) {
+			String line = watermarkReader.readLine();
+			while (line != null) {
+				String[] fields = line.split(SEPARATOR);
+				try {
+					if (fields[0].equals(GAME_RECORD) && (fields.length == 2)) {
+						processedGames.add(Long.parseUnsignedLong(fields[1], 16));
+					} else if (fields[0].equals(FILE_RECORD) && (fields.length == 5)) {
+						lastFileRecord = fields;
+					}
+				} catch (NumberFormatException e) {
+					// a record torn by a crash is ignored
+				}
+				line = watermarkReader.readLine();
+			}
+		}
+	}
+
+	private long getVerifiedOffset() throws IOException {
+		if (lastFileRecord == null) {
+			return 0;
+		}
+		try {
+			long recordedOffset = Long.parseLong(lastFileRecord[3]);
+			if (!lastFileRecord[1].equals(inputFile.getCanonicalPath()) || !lastFileRecord[2].equals(getFileKey())
+					|| (recordedOffset > runOffset)) {
+				logger.info("The input file has been replaced: checking every game");
+				return 0;
+			}
+			long recordedChecksum = Long.parseLong(lastFileRecord[4], 16);
+			long currentChecksum = (recordedOffset == runOffset) ? runChecksum : getChecksum(recordedOffset);
+			if (currentChecksum != recordedChecksum) {
+				logger.info("Already processed games have changed: checking every game");
+				return 0;
+			}
+			return recordedOffset;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private String getFileKey() throws IOException {
+		Object fileKey = Files.readAttributes(inputFile.toPath(), BasicFileAttributes.class).fileKey();
+		return (fileKey != null) ? fileKey.toString() : "-";
+	}
+
+	private long getChecksum(long length) throws IOException {
+		CRC32 crc32 = new CRC32();
+		byte[] buffer = new byte[CompressedStreams.BUFFER_SIZE];
+		try (InputStream inputStream = new FileInputStream(inputFile)) {
+			long remainingBytes = length;
+			while (remainingBytes > 0) {
+				int readBytes = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remainingBytes));
+				if (readBytes < 0) {
+					break;
+				}
+				crc32.update(buffer, 0, readBytes);
+				remainingBytes -= readBytes;
+			}
+		}
+		return crc32.getValue();
+	}
+
+	/**
+	 * Bytes at the start of the input already processed by a complete run and
+	 * unchanged since, which can be skipped.
+	 */
+	public long getProcessedOffset() {
+		return processedOffset;
+	}
+
+	public int getProcessedGamesNumber() {
+		return processedGames.size();
+	}
+
+	public boolean isProcessed(long gameHash) {
+		return processedGames.contains(gameHash);
+	}
+
+	public void addGame(long gameHash) throws IOException {
+		if (processedGames.add(gameHash)) {
+			append(GAME_RECORD, Long.toHexString(gameHash));
+		}
+	}
+
+	/**
+	 * Records that the whole input, as it was at the start of the run, has been
+	 * processed, if the run started from its first game; otherwise the games
+	 * before it were never played and only the game hashes are kept.
+	 */
+	public void close(boolean isFromFirstGame) throws IOException {
+		if (!isFromFirstGame) {
+			return;
+		}
+		append(FILE_RECORD, inputFile.getCanonicalPath(), getFileKey(), Long.toString(runOffset),
+				Long.toHexString(runChecksum));
+	}
+
+	/**
+	 * FNV-1a hash of the tags and moves of a game, independent of its pgn
+	 * formatting and compression.
+	 */
+	public static long getGameHash(ChessGame chessGame) {
+		String gameText = String.join("\n", chessGame.getGameInfo().toString(), chessGame.getHistory().toString());
+		long gameHash = FNV_OFFSET_BASIS;
+		for (int charIndex = 0; charIndex < gameText.length(); charIndex++) {
+			gameHash = (gameHash ^ gameText.charAt(charIndex)) * FNV_PRIME;
+		}
+		return gameHash;
+	}
+
+	private void append(String... fields) throws IOException {
+		try (FileOutputStream watermarkOutputStream = new FileOutputStream(watermarkFile, true)) {
+			watermarkOutputStream.write(
+					String.join("", String.join(SEPARATOR, fields), "\n").getBytes(StandardCharsets.UTF_8));
+			watermarkOutputStream.getFD().sync();
+		}
+	}
+}
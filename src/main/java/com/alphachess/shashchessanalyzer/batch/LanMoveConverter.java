@@ -0,0 +1,90 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import ictk.boardgame.IllegalMoveException;
+import ictk.boardgame.chess.Bishop;
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessMove;
+import ictk.boardgame.chess.ChessPiece;
+import ictk.boardgame.chess.Knight;
+import ictk.boardgame.chess.Queen;
+import ictk.boardgame.chess.Rook;
+
+/**
+ * Converts the long algebraic moves returned by uci engines into ictk moves.
+ */
+public class LanMoveConverter {
+
+	private LanMoveConverter() {
+		throw new IllegalStateException("Utility class");
+	}
+
+	public static ChessMove getChessMove(ChessBoard chessBoard, String lan) throws IllegalMoveException {
+		String moveOriginSquareCoordinates = lan.substring(0, 2);
+		String moveDestinationSquareCoordinates = lan.substring(2, 4);
+		byte moveOriginSquareFile = (byte) (moveOriginSquareCoordinates.charAt(0) - 96);
+		byte moveOriginSquareRank = Byte.parseByte(moveOriginSquareCoordinates.substring(1));
+		byte moveDestinationSquareFile = (byte) (moveDestinationSquareCoordinates.charAt(0) - 96);
+		byte moveDestinationSquareRank = Byte.parseByte(moveDestinationSquareCoordinates.substring(1));
+
+		ChessMove chessMove = null;
+		chessMove = getPromotionChessMove(chessBoard, lan, moveOriginSquareFile, moveOriginSquareRank,
+				moveDestinationSquareFile, moveDestinationSquareRank, chessMove);
+		if (chessMove == null) {
+			chessMove = getCastleChessMove(chessBoard, moveOriginSquareCoordinates, moveDestinationSquareCoordinates,
+					chessMove);
+		}
+		if (chessMove == null) {
+			chessMove = new ChessMove(chessBoard, moveOriginSquareFile, moveOriginSquareRank,
+					moveDestinationSquareFile, moveDestinationSquareRank);
+		}
+		return chessMove;
+	}
+
+	private static ChessMove getPromotionChessMove(ChessBoard chessBoard, String lan, byte moveOriginSquareFile,
+			byte moveOriginSquareRank, byte moveDestinationSquareFile, byte moveDestinationSquareRank,
+			ChessMove chessMove) throws IllegalMoveException {
+		if (lan.length() == 5) {
+			char promotionUnit = lan.substring(4, 5).charAt(0);
+			int promo = 0;
+			switch (promotionUnit) {
+			case 'q':
+				promo = Queen.INDEX;
+				break;
+			case 'r':
+				promo = Rook.INDEX;
+				break;
+			case 'b':
+				promo = Bishop.INDEX;
+				break;
+			case 'n':
+				promo = Knight.INDEX;
+				break;
+			default:
+				break;
+			}
+			chessMove = new ChessMove(chessBoard, moveOriginSquareFile, moveOriginSquareRank,
+					moveDestinationSquareFile, moveDestinationSquareRank, promo);
+		}
+		return chessMove;
+	}
+
+	private static ChessMove getCastleChessMove(ChessBoard chessBoard, String moveOriginSquareCoordinates,
+			String moveDestinationSquareCoordinates, ChessMove chessMove) throws IllegalMoveException {
+		ChessPiece e1Occupant = chessBoard.getSquare(5, 1).getOccupant();
+		boolean ise1WhiteKing = ((e1Occupant != null) && (e1Occupant.isKing()) && (!e1Occupant.isBlack()));
+		ChessPiece e8Occupant = chessBoard.getSquare(5, 8).getOccupant();
+		boolean ise8BlackKing = ((e8Occupant != null) && (e8Occupant.isKing()) && (e8Occupant.isBlack()));
+
+		if ((moveOriginSquareCoordinates.equals("e1") && moveDestinationSquareCoordinates.equals("g1") && ise1WhiteKing)
+				|| (moveOriginSquareCoordinates.equals("e8") && moveDestinationSquareCoordinates.equals("g8")
+						&& ise8BlackKing)) {
+			chessMove = new ChessMove(chessBoard, ChessMove.CASTLE_KINGSIDE);
+		}
+		if ((moveOriginSquareCoordinates.equals("e1") && moveDestinationSquareCoordinates.equals("c1") && ise1WhiteKing)
+				|| (moveOriginSquareCoordinates.equals("e8") && moveDestinationSquareCoordinates.equals("c8")
+						&& ise8BlackKing)) {
+			chessMove = new ChessMove(chessBoard, ChessMove.CASTLE_QUEENSIDE);
+		}
+		return chessMove;
+	}
+}
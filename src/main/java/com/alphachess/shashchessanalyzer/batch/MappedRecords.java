@@ -0,0 +1,63 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed size records over memory-mapped segments of 2^SEGMENT_SHIFT
+ * records, so that files larger than a buffer can be mapped.
+ */
+class MappedRecords implements Closeable {
+	private static final int SEGMENT_SHIFT = 26;
+	private final RandomAccessFile file;
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+	private final int recordSize;
+
+	MappedRecords(File mappedFile, String mode, long headerSize, int recordSize, long recordsNumber,
+			ByteOrder byteOrder) throws IOException {
+		file = new RandomAccessFile(mappedFile, mode);
+		this.recordSize = recordSize;
+		FileChannel.MapMode mapMode = mode.equals("r") ? FileChannel.MapMode.READ_ONLY
+				: FileChannel.MapMode.READ_WRITE;
+		for (long firstRecord = 0; firstRecord < recordsNumber; firstRecord += 1L << SEGMENT_SHIFT) {
+			long segmentRecords = Math.min(1L << SEGMENT_SHIFT, recordsNumber - firstRecord);
+			MappedByteBuffer segment = file.getChannel().map(mapMode, headerSize + firstRecord * recordSize,
+					segmentRecords * recordSize);
+			segment.order(byteOrder);
+			segments.add(segment);
+		}
+	}
+
+	long getLong(long record, int offset) {
+		return segments.get((int) (record >>> SEGMENT_SHIFT))
+				.getLong((int) (record & ((1L << SEGMENT_SHIFT) - 1)) * recordSize + offset);
+	}
+
+	int getInt(long record, int offset) {
+		return segments.get((int) (record >>> SEGMENT_SHIFT))
+				.getInt((int) (record & ((1L << SEGMENT_SHIFT) - 1)) * recordSize + offset);
+	}
+
+	void putLong(long record, int offset, long value) {
+		segments.get((int) (record >>> SEGMENT_SHIFT))
+				.putLong((int) (record & ((1L << SEGMENT_SHIFT) - 1)) * recordSize + offset, value);
+	}
+
+	void force() {
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
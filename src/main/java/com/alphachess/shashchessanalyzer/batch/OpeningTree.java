@@ -0,0 +1,243 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.ZobristHash;
+
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.io.FEN;
+
+/**
+ * Zero-copy reader of the opening trees built by OpeningTreeBuilder: the
+ * statistics of the moves of every position of a game collection, read
+ * through memory-mapped segments without loading them in the heap.
+ *
+ * Big-endian layout: a header of HEADER_SIZE bytes, the positions sorted by
+ * unsigned Polyglot key, 16 bytes of key and first move, closed by a sentinel
+ * position, then the moves of every position, 24 bytes of Polyglot move,
+ * games, wins and draws of the side to move, and the key of the position
+ * reached. A position is found by binary search and its moves are the records
+ * up to the first move of the next one.
+ *
+ * Usage: OpeningTree tree.bin [fen]
+ */
+public class OpeningTree implements Closeable {
+	public static final long MAGIC = 0x4f50454e54524545L;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	private static final int POSITION_SIZE = 16;
+	private static final int EDGE_SIZE = 24;
+	private static final int FIRST_EDGE_OFFSET = 8;
+	private static final int GAMES_OFFSET = 4;
+	private static final int WINS_OFFSET = 8;
+	private static final int DRAWS_OFFSET = 12;
+	private static final int CHILD_KEY_OFFSET = 16;
+	private static final int BENCHMARK_LOOKUPS = 1000000;
+	private final String treeFileName;
+	private final int maxPly;
+	private final long positionsNumber;
+	private final long edgesNumber;
+	private final MappedRecords positions;
+	private final MappedRecords edges;
+
+	private static final Logger logger = Logger.getLogger(OpeningTree.class.getName());
+
+	public static class TreeMove {
+		private final String lan;
+		private final int games;
+		private final int wins;
+		private final int draws;
+		private final long childKey;
+
+		public TreeMove(String lan, int games, int wins, int draws, long childKey) {
+			this.lan = lan;
+			this.games = games;
+			this.wins = wins;
+			this.draws = draws;
+			this.childKey = childKey;
+		}
+
+		public String getLan() {
+			return lan;
+		}
+
+		public int getGames() {
+			return games;
+		}
+
+		public int getWins() {
+			return wins;
+		}
+
+		public int getDraws() {
+			return draws;
+		}
+
+		public int getLosses() {
+			return games - wins - draws;
+		}
+
+		/**
+		 * Polyglot key of the position reached by the move.
+		 */
+		public long getChildKey() {
+			return childKey;
+		}
+	}
+
+	public OpeningTree(String treeFileName) throws IOException {
+		this.treeFileName = treeFileName;
+		File treeFile = new File(treeFileName);
+		try (DataInputStream headerInput = new DataInputStream(new FileInputStream(treeFile))) {
+			if (headerInput.readLong() != MAGIC) {
+				throw new IOException(String.join("", treeFileName, ": not an opening tree"));
+			}
+			int version = headerInput.readInt();
+			if (version != VERSION) {
+				throw new IOException(
+						String.join("", treeFileName, ": unsupported opening tree version ", Integer.toString(version)));
+			}
+			maxPly = headerInput.readInt();
+			positionsNumber = headerInput.readLong();
+			edgesNumber = headerInput.readLong();
+		}
+		positions = new MappedRecords(treeFile, "r", HEADER_SIZE, POSITION_SIZE, positionsNumber + 1,
+				ByteOrder.BIG_ENDIAN);
+		edges = new MappedRecords(treeFile, "r", HEADER_SIZE + (positionsNumber + 1) * POSITION_SIZE, EDGE_SIZE,
+				edgesNumber, ByteOrder.BIG_ENDIAN);
+	}
+
+	public long getPositionsNumber() {
+		return positionsNumber;
+	}
+
+	public long getEdgesNumber() {
+		return edgesNumber;
+	}
+
+	public int getMaxPly() {
+		return maxPly;
+	}
+
+	/**
+	 * Index of the position of the key, or -1 if the tree does not have it.
+	 */
+	private long getPosition(long key) {
+		long low = 0;
+		long high = positionsNumber;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (Long.compareUnsigned(positions.getLong(middle, 0), key) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return ((low < positionsNumber) && (positions.getLong(low, 0) == key)) ? low : -1;
+	}
+
+	/**
+	 * Games played from the position of the key, 0 if the tree does not have
+	 * it.
+	 */
+	public long getGamesNumber(long key) {
+		long position = getPosition(key);
+		if (position < 0) {
+			return 0;
+		}
+		long gamesNumber = 0;
+		long lastEdge = positions.getLong(position + 1, FIRST_EDGE_OFFSET);
+		for (long edge = positions.getLong(position, FIRST_EDGE_OFFSET); edge < lastEdge; edge++) {
+			gamesNumber += edges.getInt(edge, GAMES_OFFSET);
+		}
+		return gamesNumber;
+	}
+
+	/**
+	 * Every move played from the position, most played first.
+	 */
+	public List<TreeMove> getMoves(ChessBoard chessBoard) {
+		List<TreeMove> treeMoves = new ArrayList<>();
+		long position = getPosition(ZobristHash.getKey(chessBoard));
+		if (position < 0) {
+			return treeMoves;
+		}
+		long lastEdge = positions.getLong(position + 1, FIRST_EDGE_OFFSET);
+		for (long edge = positions.getLong(position, FIRST_EDGE_OFFSET); edge < lastEdge; edge++) {
+			treeMoves.add(new TreeMove(PolyglotBook.getLan(chessBoard, edges.getInt(edge, 0)),
+					edges.getInt(edge, GAMES_OFFSET), edges.getInt(edge, WINS_OFFSET),
+					edges.getInt(edge, DRAWS_OFFSET), edges.getLong(edge, CHILD_KEY_OFFSET)));
+		}
+		treeMoves.sort((first, second) -> Integer.compare(second.getGames(), first.getGames()));
+		return treeMoves;
+	}
+
+	public List<TreeMove> getMoves(String fen) throws IOException {
+		return getMoves((ChessBoard) new FEN().stringToBoard(fen));
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			positions.close();
+		} finally {
+			edges.close();
+		}
+	}
+
+	/**
+	 * Average time of a lookup of the games of a position, over keys spread
+	 * across the tree.
+	 */
+	private void logLookupTime() {
+		if (positionsNumber == 0) {
+			return;
+		}
+		long[] keys = new long[(int) Math.min(positionsNumber, 1 << 16)];
+		for (int key = 0; key < keys.length; key++) {
+			keys[key] = positions.getLong(key * positionsNumber / keys.length, 0);
+		}
+		long gamesNumber = 0;
+		long startNS = System.nanoTime();
+		for (int lookup = 0; lookup < BENCHMARK_LOOKUPS; lookup++) {
+			gamesNumber += getGamesNumber(keys[lookup % keys.length]);
+		}
+		long elapsedNS = System.nanoTime() - startNS;
+		String lookupMsg = String.join("", Integer.toString(BENCHMARK_LOOKUPS), " lookups of ",
+				Long.toString(gamesNumber), " games in ", Long.toString(elapsedNS / 1000000), " ms, ",
+				Long.toString(elapsedNS / BENCHMARK_LOOKUPS), " ns per lookup");
+		logger.info(lookupMsg);
+	}
+
+	public static void main(String[] args) {
+		try (OpeningTree openingTree = new OpeningTree(args[0])) {
+			String treeMsg = String.join("", openingTree.treeFileName, ": ",
+					Long.toString(openingTree.getPositionsNumber()), " positions, ",
+					Long.toString(openingTree.getEdgesNumber()), " moves, up to ply ",
+					Integer.toString(openingTree.getMaxPly()));
+			logger.info(treeMsg);
+			if (args.length > 1) {
+				String fen = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+				for (TreeMove treeMove : openingTree.getMoves(fen)) {
+					String moveMsg = String.join("", treeMove.getLan(), " games ", Integer.toString(treeMove.getGames()),
+							" +", Integer.toString(treeMove.getWins()), " =", Integer.toString(treeMove.getDraws()),
+							" -", Integer.toString(treeMove.getLosses()), " next ",
+							Long.toHexString(treeMove.getChildKey()));
+					logger.info(moveMsg);
+				}
+			}
+			openingTree.logLookupTime();
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+	}
+}
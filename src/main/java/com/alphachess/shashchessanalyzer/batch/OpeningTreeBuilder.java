@@ -0,0 +1,156 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Builds the opening tree read by OpeningTree from pgn files, such as
+ * ecoAll.pgn and game databases, within a fixed heap whatever their size.
+ *
+ * The games, wins and draws of every position and move are counted by a
+ * PositionMoveCounter of threadsNumber workers and memoryMB, and streamed in
+ * key order: the moves are appended to a temporary edges file while the
+ * positions, with their first edge, are written after the header, so that the
+ * tree is written in a single pass. The edges are then appended to the
+ * positions and the header completed.
+ *
+ * Usage: OpeningTreeBuilder openingtreebuilder.properties
+ */
+public class OpeningTreeBuilder {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final long BYTES_PER_MB = 1L << 20;
+	private Properties openingTreeBuilderProperties;
+	private List<String> pgnFiles;
+	private File treeFile;
+	private File temporaryDirectory;
+	private int maxPly;
+	private int threadsNumber;
+	private long memoryBytes;
+	private long positionsNumber = 0;
+	private long edgesNumber = 0;
+	private long lastKey = 0;
+
+	private static final Logger logger = Logger.getLogger(OpeningTreeBuilder.class.getName());
+
+	public OpeningTreeBuilder(String[] args) {
+		openingTreeBuilderProperties = getOpeningTreeBuilderProperties(args);
+		setInputParameters();
+	}
+
+	private void setInputParameters() {
+		pgnFiles = new ArrayList<>();
+		for (String pgnFile : openingTreeBuilderProperties.getProperty("pgnFiles", "").split(",")) {
+			if (!pgnFile.trim().isEmpty()) {
+				pgnFiles.add(pgnFile.trim());
+			}
+		}
+		treeFile = new File(openingTreeBuilderProperties.getProperty("treeFile"));
+		String temporaryDirectoryName = openingTreeBuilderProperties.getProperty("temporaryDirectory", "").trim();
+		temporaryDirectory = new File(
+				temporaryDirectoryName.isEmpty() ? System.getProperty("java.io.tmpdir") : temporaryDirectoryName);
+		maxPly = Integer.parseInt(openingTreeBuilderProperties.getProperty("maxPly", "30"));
+		threadsNumber = Integer.parseInt(openingTreeBuilderProperties.getProperty("threadsNumber", "2"));
+		memoryBytes = Long.parseLong(openingTreeBuilderProperties.getProperty("memoryMB", "256")) * BYTES_PER_MB;
+	}
+
+	private Properties getOpeningTreeBuilderProperties(String[] args) {
+		Properties properties = new Properties();
+		File file = new File(args[0]);
+		try (FileInputStream fileInput = new FileInputStream(file)) {
+			properties.load(fileInput);
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+		return properties;
+	}
+
+	public static void main(String[] args) {
+		OpeningTreeBuilder openingTreeBuilder = new OpeningTreeBuilder(args);
+		try {
+			openingTreeBuilder.build();
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		} catch (InterruptedException e) {
+			logger.info(e.getMessage());
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void build() throws IOException, InterruptedException {
+		long startMS = System.currentTimeMillis();
+		File temporaryTreeFile = new File(String.join("", treeFile.getPath(), ".tmp"));
+		File edgesFile = File.createTempFile("tree", ".edges", temporaryDirectory);
+		try {
+			try (DataOutputStream treeOutput = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporaryTreeFile), BUFFER_SIZE));
+					DataOutputStream edgesOutput = new DataOutputStream(
+							new BufferedOutputStream(new FileOutputStream(edgesFile), BUFFER_SIZE))) {
+				treeOutput.write(new byte[OpeningTree.HEADER_SIZE]);
+				new PositionMoveCounter(maxPly, threadsNumber, memoryBytes, temporaryDirectory).count(pgnFiles,
+						(key, move, childKey, games, wins, draws) -> {
+							if ((edgesNumber == 0) || (key != lastKey)) {
+								treeOutput.writeLong(key);
+								treeOutput.writeLong(edgesNumber);
+								positionsNumber++;
+								lastKey = key;
+							}
+							edgesOutput.writeInt(move);
+							edgesOutput.writeInt((int) Math.min(Integer.MAX_VALUE, games));
+							edgesOutput.writeInt((int) Math.min(Integer.MAX_VALUE, wins));
+							edgesOutput.writeInt((int) Math.min(Integer.MAX_VALUE, draws));
+							edgesOutput.writeLong(childKey);
+							edgesNumber++;
+						});
+				// the sentinel closing the edges of the last position
+				treeOutput.writeLong(-1L);
+				treeOutput.writeLong(edgesNumber);
+				edgesOutput.flush();
+				appendEdges(treeOutput, edgesFile);
+			}
+			writeHeader(temporaryTreeFile);
+			Files.move(temporaryTreeFile.toPath(), treeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(edgesFile.toPath());
+			Files.deleteIfExists(temporaryTreeFile.toPath());
+		}
+		String builtMsg = String.join("", "Built ", treeFile.getPath(), ": ", Long.toString(positionsNumber),
+				" positions, ", Long.toString(edgesNumber), " moves, ", Long.toString(treeFile.length()), " bytes, ",
+				Long.toString(System.currentTimeMillis() - startMS), " ms");
+		logger.info(builtMsg);
+	}
+
+	private static void appendEdges(DataOutputStream treeOutput, File edgesFile) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream edgesInput = new BufferedInputStream(new FileInputStream(edgesFile), BUFFER_SIZE)) {
+			int read = edgesInput.read(buffer);
+			while (read >= 0) {
+				treeOutput.write(buffer, 0, read);
+				read = edgesInput.read(buffer);
+			}
+		}
+	}
+
+	private void writeHeader(File temporaryTreeFile) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(temporaryTreeFile, "rw")) {
+			file.writeLong(OpeningTree.MAGIC);
+			file.writeInt(OpeningTree.VERSION);
+			file.writeInt(maxPly);
+			file.writeLong(positionsNumber);
+			file.writeLong(edgesNumber);
+			file.getChannel().force(false);
+		}
+	}
+}
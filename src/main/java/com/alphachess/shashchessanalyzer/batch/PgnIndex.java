@@ -0,0 +1,383 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+import java.util.logging.Logger;
+
+import ictk.boardgame.AmbiguousMoveException;
+import ictk.boardgame.IllegalMoveException;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.io.PGNReader;
+import ictk.boardgame.io.InvalidGameFormatException;
+
+/**
+ * Byte offsets of the games of a plain pgn file, for reading a single game or
+ * a range of games without parsing what precedes them, and for parsing ranges
+ * in parallel. The index is kept in a .pgi file next to the pgn, the same
+ * format as the shipped ecoAll.pgi: a little endian 64 bit count followed by
+ * as many 64 bit offsets, the last being the pgn size. An existing .pgi is
+ * reused when it matches the pgn, otherwise it is rebuilt with a single pass.
+ * Games are numbered from 0 in file order, incorrect games included.
+ * Usage: PgnIndex pgnFile
+ */
+public class PgnIndex implements Closeable {
+	private static final String INDEX_EXTENSION = ".pgi";
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int CHECKED_OFFSETS = 64;
+	private static final int CHUNK_GAMES = 64;
+
+	private final String pgnFileName;
+	private final long[] offsets;
+	private final FileChannel pgnChannel;
+
+	private static final Logger logger = Logger.getLogger(PgnIndex.class.getName());
+
+	public static void main(String[] args) {
+		try (PgnIndex pgnIndex = new PgnIndex(args[0])) {
+			int gamesNumber = pgnIndex.getGamesNumber();
+			long startNS = System.nanoTime();
+			int sequentialGames = 0;
+			for (int gameIndex = 0; gameIndex < gamesNumber; gameIndex++) {
+				if (pgnIndex.readGame(gameIndex) != null) {
+					sequentialGames++;
+				}
+			}
+			long sequentialMS = Math.max(1, (System.nanoTime() - startNS) / 1000000);
+			startNS = System.nanoTime();
+			List<Boolean> parsedGames = pgnIndex.parseGames(0, gamesNumber, (gameIndex, chessGame) -> Boolean.TRUE);
+			long parallelMS = Math.max(1, (System.nanoTime() - startNS) / 1000000);
+			long parallelGames = parsedGames.stream().filter(parsedGame -> parsedGame != null).count();
+			String parseMsg = String.format("Parsed %d/%d games: sequential %d ms, parallel %d ms on %d threads",
+					sequentialGames, gamesNumber, sequentialMS, parallelMS, ForkJoinPool.commonPool().getParallelism());
+			logger.info(parseMsg);
+			if (parallelGames != sequentialGames) {
+				logger.info(String.join("", "Parallel parsing found ", Long.toString(parallelGames), " games"));
+			}
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+	}
+
+	public PgnIndex(String pgnFileName) throws IOException {
+		if (CompressedStreams.isCompressed(pgnFileName)) {
+			throw new IOException(String.join("", pgnFileName, " is compressed and can't be indexed"));
+		}
+		this.pgnFileName = pgnFileName;
+		pgnChannel = FileChannel.open(new File(pgnFileName).toPath(), StandardOpenOption.READ);
+		try {
+			String indexFileName = getIndexFileName(pgnFileName);
+			long[] loadedOffsets = loadOffsets(indexFileName);
+			if (loadedOffsets != null) {
+				offsets = loadedOffsets;
+			} else {
+				long startNS = System.nanoTime();
+				offsets = buildOffsets();
+				saveOffsets(indexFileName);
+				String builtMsg = String.join("", "Indexed ", Integer.toString(getGamesNumber()), " games of ",
+						pgnFileName, " in ", Long.toString((System.nanoTime() - startNS) / 1000000), " ms");
+				logger.info(builtMsg);
+			}
+		} catch (IOException e) {
+			pgnChannel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * ecoAll.pgn is indexed by ecoAll.pgi.
+	 */
+	public static String getIndexFileName(String pgnFileName) {
+		int extensionIndex = pgnFileName.lastIndexOf('.');
+		if ((extensionIndex <= pgnFileName.lastIndexOf(File.separatorChar)) || (extensionIndex < 0)) {
+			return String.join("", pgnFileName, INDEX_EXTENSION);
+		}
+		return String.join("", pgnFileName.substring(0, extensionIndex), INDEX_EXTENSION);
+	}
+
+	public int getGamesNumber() {
+		return offsets.length - 1;
+	}
+
+	public long getOffset(int gameIndex) {
+		return offsets[gameIndex];
+	}
+
+	/**
+	 * Returns the index of the first game starting at or after the offset.
+	 */
+	public int getGameIndex(long offset) {
+		int gameIndex = Arrays.binarySearch(offsets, 0, getGamesNumber(), offset);
+		return (gameIndex >= 0) ? gameIndex : -gameIndex - 1;
+	}
+
+	public String getPgnFileName() {
+		return pgnFileName;
+	}
+
+	/**
+	 * Returns a reader of the games from firstGameIndex included to
+	 * lastGameIndex excluded, to be read for example with a PGNReader.
+	 */
+	public BufferedReader getReader(int firstGameIndex, int lastGameIndex) {
+		return new BufferedReader(new InputStreamReader(new BufferedInputStream(
+				new RangeInputStream(pgnChannel, offsets[firstGameIndex], offsets[lastGameIndex]), BUFFER_SIZE)));
+	}
+
+	/**
+	 * Returns the game or null if it has an incorrect pgn. It can be called
+	 * concurrently.
+	 */
+	public ChessGame readGame(int gameIndex) throws IOException {
+		try (BufferedReader gameBufferedReader = getReader(gameIndex, gameIndex + 1)) {
+			return (ChessGame) new PGNReader(gameBufferedReader).readGame();
+		} catch (InvalidGameFormatException | IllegalMoveException | AmbiguousMoveException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parses the games from firstGameIndex included to lastGameIndex excluded
+	 * on the common fork/join pool and returns, in game order, what gameMapper
+	 * makes of each of them; incorrect games give null.
+	 */
+	public <T> List<T> parseGames(int firstGameIndex, int lastGameIndex,
+			BiFunction<Integer, ChessGame, T> gameMapper) {
+		return ForkJoinPool.commonPool().invoke(new ParseTask<>(this, firstGameIndex, lastGameIndex, gameMapper));
+	}
+
+	@Override
+	public void close() throws IOException {
+		pgnChannel.close();
+	}
+
+	private long[] loadOffsets(String indexFileName) throws IOException {
+		File indexFile = new File(indexFileName);
+		long pgnSize = pgnChannel.size();
+		if (!indexFile.exists() || (indexFile.length() < 16) || (indexFile.length() % 8 != 0)) {
+			return null;
+		}
+		try (DataInputStream indexInputStream = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(indexFile), BUFFER_SIZE))) {
+			long offsetsNumber = Long.reverseBytes(indexInputStream.readLong());
+			if ((offsetsNumber != (indexFile.length() / 8) - 1) || (offsetsNumber > Integer.MAX_VALUE)) {
+				return null;
+			}
+			long[] loadedOffsets = new long[(int) offsetsNumber];
+			for (int offsetIndex = 0; offsetIndex < loadedOffsets.length; offsetIndex++) {
+				loadedOffsets[offsetIndex] = Long.reverseBytes(indexInputStream.readLong());
+				if ((offsetIndex > 0) && (loadedOffsets[offsetIndex] < loadedOffsets[offsetIndex - 1])) {
+					return null;
+				}
+			}
+			if ((loadedOffsets[loadedOffsets.length - 1] != pgnSize) || !isGameStartSample(loadedOffsets)) {
+				return null;
+			}
+			return loadedOffsets;
+		}
+	}
+
+	private boolean isGameStartSample(long[] loadedOffsets) throws IOException {
+		int gamesNumber = loadedOffsets.length - 1;
+		int step = Math.max(1, gamesNumber / CHECKED_OFFSETS);
+		ByteBuffer firstByte = ByteBuffer.allocate(1);
+		for (int gameIndex = 0; gameIndex < gamesNumber; gameIndex += step) {
+			firstByte.clear();
+			if ((pgnChannel.read(firstByte, loadedOffsets[gameIndex]) != 1) || (firstByte.get(0) != '[')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A game starts at the first tag line following movetext; braces and
+	 * semicolon comments are skipped, since they may contain lines starting
+	 * with a bracket.
+	 */
+	private long[] buildOffsets() throws IOException {
+		long[] builtOffsets = new long[1024];
+		int offsetsNumber = 0;
+		boolean isInTags = false;
+		boolean isLineStarted = false;
+		boolean isTagLine = false;
+		boolean isLineComment = false;
+		int braceDepth = 0;
+		long lineStart = 0;
+		long position = 0;
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		while (pgnChannel.read(buffer, position) > 0) {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				byte currentByte = buffer.get();
+				if (currentByte == '\n') {
+					isLineStarted = false;
+					isTagLine = false;
+					isLineComment = false;
+					lineStart = position + 1;
+				} else if (!isLineStarted) {
+					if ((currentByte != ' ') && (currentByte != '\t') && (currentByte != '\r')
+							&& !isByteOrderMark(position)) {
+						isLineStarted = true;
+						if ((braceDepth == 0) && (currentByte == '[')) {
+							isTagLine = true;
+							if (!isInTags) {
+								if (offsetsNumber == builtOffsets.length) {
+									builtOffsets = Arrays.copyOf(builtOffsets, offsetsNumber * 2);
+								}
+								builtOffsets[offsetsNumber++] = lineStart;
+								isInTags = true;
+							}
+						} else {
+							isInTags = false;
+							braceDepth = getBraceDepth(currentByte, braceDepth);
+							isLineComment = (braceDepth == 0) && (currentByte == ';');
+						}
+					}
+				} else if (!isTagLine && !isLineComment) {
+					isLineComment = (braceDepth == 0) && (currentByte == ';');
+					braceDepth = getBraceDepth(currentByte, braceDepth);
+				}
+				position++;
+			}
+			buffer.clear();
+		}
+		builtOffsets = Arrays.copyOf(builtOffsets, offsetsNumber + 1);
+		builtOffsets[offsetsNumber] = position;
+		return builtOffsets;
+	}
+
+	private boolean isByteOrderMark(long position) throws IOException {
+		if (position > 2) {
+			return false;
+		}
+		ByteBuffer byteOrderMark = ByteBuffer.allocate(3);
+		return (pgnChannel.read(byteOrderMark, 0) == 3) && ((byteOrderMark.get(0) & 0xFF) == 0xEF)
+				&& ((byteOrderMark.get(1) & 0xFF) == 0xBB) && ((byteOrderMark.get(2) & 0xFF) == 0xBF);
+	}
+
+	private static int getBraceDepth(byte currentByte, int braceDepth) {
+		if (currentByte == '{') {
+			return braceDepth + 1;
+		}
+		if ((currentByte == '}') && (braceDepth > 0)) {
+			return braceDepth - 1;
+		}
+		return braceDepth;
+	}
+
+	private void saveOffsets(String indexFileName) {
+		File temporaryIndexFile = new File(String.join("", indexFileName, ".tmp"));
+		try (DataOutputStream indexOutputStream = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporaryIndexFile), BUFFER_SIZE))) {
+			indexOutputStream.writeLong(Long.reverseBytes(offsets.length));
+			for (long offset : offsets) {
+				indexOutputStream.writeLong(Long.reverseBytes(offset));
+			}
+		} catch (IOException e) {
+			// a read-only directory only costs a rebuild next time
+			logger.info(e.getMessage());
+			temporaryIndexFile.delete();
+			return;
+		}
+		File indexFile = new File(indexFileName);
+		if ((indexFile.exists() && !indexFile.delete()) || !temporaryIndexFile.renameTo(indexFile)) {
+			logger.info(String.join("", "Can't write the index ", indexFileName));
+			temporaryIndexFile.delete();
+		}
+	}
+
+	private static class ParseTask<T> extends RecursiveTask<List<T>> {
+		private static final long serialVersionUID = 1L;
+		private final transient PgnIndex pgnIndex;
+		private final int firstGameIndex;
+		private final int lastGameIndex;
+		private final transient BiFunction<Integer, ChessGame, T> gameMapper;
+
+		ParseTask(PgnIndex pgnIndex, int firstGameIndex, int lastGameIndex,
+				BiFunction<Integer, ChessGame, T> gameMapper) {
+			this.pgnIndex = pgnIndex;
+			this.firstGameIndex = firstGameIndex;
+			this.lastGameIndex = lastGameIndex;
+			this.gameMapper = gameMapper;
+		}
+
+		@Override
+		protected List<T> compute() {
+			if (lastGameIndex - firstGameIndex > CHUNK_GAMES) {
+				int middleGameIndex = (firstGameIndex + lastGameIndex) >>> 1;
+				ParseTask<T> secondHalf = new ParseTask<>(pgnIndex, middleGameIndex, lastGameIndex, gameMapper);
+				secondHalf.fork();
+				List<T> firstHalfResults = new ParseTask<>(pgnIndex, firstGameIndex, middleGameIndex, gameMapper)
+						.compute();
+				firstHalfResults.addAll(secondHalf.join());
+				return firstHalfResults;
+			}
+			List<T> results = new ArrayList<>(lastGameIndex - firstGameIndex);
+			for (int gameIndex = firstGameIndex; gameIndex < lastGameIndex; gameIndex++) {
+				ChessGame chessGame;
+				try {
+					chessGame = pgnIndex.readGame(gameIndex);
+				} catch (IOException e) {
+					logger.info(e.getMessage());
+					chessGame = null;
+				}
+				results.add((chessGame != null) ? gameMapper.apply(gameIndex, chessGame) : null);
+			}
+			return results;
+		}
+	}
+
+	/**
+	 * Reads a byte range with positional reads, so that several ranges of the
+	 * same channel can be read at the same time.
+	 */
+	private static class RangeInputStream extends InputStream {
+		private final FileChannel channel;
+		private long position;
+		private final long end;
+
+		RangeInputStream(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] oneByte = new byte[1];
+			return (read(oneByte, 0, 1) == 1) ? (oneByte[0] & 0xFF) : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			int readLength = (int) Math.min(length, end - position);
+			int readBytes = channel.read(ByteBuffer.wrap(bytes, offset, readLength), position);
+			if (readBytes > 0) {
+				position += readBytes;
+			}
+			return readBytes;
+		}
+	}
+}
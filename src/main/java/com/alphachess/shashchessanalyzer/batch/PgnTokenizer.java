@@ -0,0 +1,458 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessMove;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.SAN;
+
+/**
+ * Streams the games of a plain pgn from memory-mapped windows without
+ * building ictk games: tags are located while scanning and decoded only when
+ * asked for, the san moves are split only when asked for and replayed on a
+ * board only for the final position. Games with a malformed tag or with
+ * unbalanced comments or variations are skipped in place and counted.
+ * Not thread safe: each thread needs its own tokenizer.
+ */
+public class PgnTokenizer implements Closeable {
+	private static final int WINDOW_SIZE = 1 << 28;
+	private static final byte[] EVENT_TAG = "[Event ".getBytes(StandardCharsets.US_ASCII);
+	private static final String[] RESULTS = { "1-0", "0-1", "1/2-1/2", "*" };
+
+	private enum GameStatus {
+		CORRECT, INCORRECT, TRUNCATED
+	}
+
+	private final FileChannel pgnChannel;
+	private final long pgnSize;
+	private MappedByteBuffer window;
+	private long windowStart;
+	private int windowLimit;
+	private int position;
+
+	private int gameStart;
+	private int gameEnd;
+	private int movetextStart;
+	private int[] tagRanges = new int[64];
+	private int tagsNumber;
+	private List<String> sanMoves;
+	private String result;
+
+	private long gamesNumber;
+	private long incorrectGamesNumber;
+	private final SAN san = new SAN();
+	private final FEN fen = new FEN();
+
+	public PgnTokenizer(String pgnFileName) throws IOException {
+		pgnChannel = FileChannel.open(new File(pgnFileName).toPath(), StandardOpenOption.READ);
+		pgnSize = pgnChannel.size();
+		map(0, WINDOW_SIZE);
+	}
+
+	/**
+	 * Moves to the next correct game and returns false at the end of the file.
+	 */
+	public boolean next() throws IOException {
+		sanMoves = null;
+		result = null;
+		int requiredWindowSize = WINDOW_SIZE;
+		while (true) {
+			while ((position < windowLimit) && !((window.get(position) == '[') && isLineStart(position))) {
+				position++;
+			}
+			if (position >= windowLimit) {
+				if (isLastWindow()) {
+					return false;
+				}
+				map(windowStart + position, WINDOW_SIZE);
+				continue;
+			}
+			GameStatus gameStatus = scanGame(position);
+			if (gameStatus == GameStatus.TRUNCATED) {
+				// the game crosses the window end: map again from its start
+				requiredWindowSize = (position == 0) ? requiredWindowSize * 2 : WINDOW_SIZE;
+				map(windowStart + position, requiredWindowSize);
+				continue;
+			}
+			position = gameEnd;
+			if (gameStatus == GameStatus.INCORRECT) {
+				incorrectGamesNumber++;
+				continue;
+			}
+			gamesNumber++;
+			return true;
+		}
+	}
+
+	public long getGamesNumber() {
+		return gamesNumber;
+	}
+
+	public long getIncorrectGamesNumber() {
+		return incorrectGamesNumber;
+	}
+
+	/**
+	 * Returns the file offset of the current game.
+	 */
+	public long getGameOffset() {
+		return windowStart + gameStart;
+	}
+
+	public int getTagsNumber() {
+		return tagsNumber;
+	}
+
+	public String getTagName(int tagIndex) {
+		return getString(tagRanges[tagIndex * 4], tagRanges[tagIndex * 4 + 1]);
+	}
+
+	public String getTagValue(int tagIndex) {
+		String tagValue = getString(tagRanges[tagIndex * 4 + 2], tagRanges[tagIndex * 4 + 3]);
+		return (tagValue.indexOf('\\') >= 0) ? tagValue.replace("\\\"", "\"").replace("\\\\", "\\") : tagValue;
+	}
+
+	/**
+	 * Returns the value of the tag or null if the game hasn't it.
+	 */
+	public String getTag(String tagName) {
+		for (int tagIndex = 0; tagIndex < tagsNumber; tagIndex++) {
+			if (isTagName(tagIndex, tagName)) {
+				return getTagValue(tagIndex);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the main line moves in san, without move numbers, comments,
+	 * variations, nags and annotation glyphs.
+	 */
+	public List<String> getSanMoves() {
+		if (sanMoves == null) {
+			splitMovetext();
+		}
+		return sanMoves;
+	}
+
+	/**
+	 * Returns the game termination marker, or the Result tag if the movetext
+	 * hasn't it.
+	 */
+	public String getResult() {
+		if (sanMoves == null) {
+			splitMovetext();
+		}
+		return (result != null) ? result : getTag("Result");
+	}
+
+	/**
+	 * Replays the moves from the FEN tag or the initial position and returns
+	 * the final board, or null if a move is illegal or ambiguous.
+	 */
+	public ChessBoard getFinalBoard() {
+		try {
+			String startFen = getTag("FEN");
+			ChessBoard chessBoard = ((startFen != null) && !startFen.trim().isEmpty())
+					? (ChessBoard) fen.stringToBoard(startFen.trim())
+					: new ChessBoard();
+			for (String sanMove : getSanMoves()) {
+				ChessMove chessMove = (ChessMove) san.stringToMove(chessBoard, sanMove);
+				if (chessMove == null) {
+					return null;
+				}
+				chessBoard.playMove(chessMove);
+			}
+			return chessBoard;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	public String getFinalFen() {
+		ChessBoard finalChessBoard = getFinalBoard();
+		return (finalChessBoard != null) ? fen.boardToString(finalChessBoard) : null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		pgnChannel.close();
+	}
+
+	private void map(long start, int size) throws IOException {
+		windowStart = start;
+		window = pgnChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size, pgnSize - start));
+		windowLimit = window.limit();
+		position = 0;
+	}
+
+	private boolean isLastWindow() {
+		return windowStart + windowLimit >= pgnSize;
+	}
+
+	/**
+	 * Windows are always mapped from a line start; the first line may follow
+	 * a byte order mark.
+	 */
+	private boolean isLineStart(int bytePosition) {
+		if ((bytePosition == 0) || (window.get(bytePosition - 1) == '\n')) {
+			return true;
+		}
+		return (windowStart == 0) && (bytePosition == 3) && ((window.get(0) & 0xFF) == 0xEF)
+				&& ((window.get(1) & 0xFF) == 0xBB) && ((window.get(2) & 0xFF) == 0xBF);
+	}
+
+	private GameStatus scanGame(int start) {
+		gameStart = start;
+		tagsNumber = 0;
+		boolean isCorrect = true;
+		int scanPosition = start;
+		while ((scanPosition < windowLimit) && (window.get(scanPosition) == '[')) {
+			int tagEnd = scanTag(scanPosition);
+			if (tagEnd < 0) {
+				isCorrect = false;
+				break;
+			}
+			scanPosition = skipWhitespace(tagEnd);
+		}
+		if (!isCorrect) {
+			scanPosition = skipLine(scanPosition);
+			while ((scanPosition < windowLimit) && (window.get(scanPosition) == '[')) {
+				scanPosition = skipWhitespace(skipLine(scanPosition));
+			}
+		}
+		movetextStart = scanPosition;
+		int braceDepth = 0;
+		int parenthesisDepth = 0;
+		boolean isLineComment = false;
+		while (scanPosition < windowLimit) {
+			byte currentByte = window.get(scanPosition);
+			if ((currentByte == '[') && isLineStart(scanPosition)) {
+				if ((braceDepth == 0) && (parenthesisDepth == 0) && !isLineComment) {
+					break;
+				}
+				if (isEventTag(scanPosition)) {
+					isCorrect = false;
+					break;
+				}
+			}
+			if (currentByte == '\n') {
+				isLineComment = false;
+			} else if (isLineComment) {
+				// skipped up to the end of the line
+			} else if (braceDepth > 0) {
+				if (currentByte == '}') {
+					braceDepth--;
+				}
+			} else if (currentByte == '{') {
+				braceDepth++;
+			} else if (currentByte == ';') {
+				isLineComment = true;
+			} else if (currentByte == '(') {
+				parenthesisDepth++;
+			} else if (currentByte == ')') {
+				if (parenthesisDepth == 0) {
+					isCorrect = false;
+				} else {
+					parenthesisDepth--;
+				}
+			}
+			scanPosition++;
+		}
+		if ((scanPosition >= windowLimit) && !isLastWindow()) {
+			return GameStatus.TRUNCATED;
+		}
+		gameEnd = scanPosition;
+		if ((braceDepth != 0) || (parenthesisDepth != 0) || (tagsNumber == 0)) {
+			isCorrect = false;
+		}
+		return isCorrect ? GameStatus.CORRECT : GameStatus.INCORRECT;
+	}
+
+	/**
+	 * Scans [Name "value"] and returns the position after it, or -1 if the tag
+	 * is malformed.
+	 */
+	private int scanTag(int tagStart) {
+		int scanPosition = skipSpaces(tagStart + 1);
+		int nameStart = scanPosition;
+		while ((scanPosition < windowLimit) && isNameByte(window.get(scanPosition))) {
+			scanPosition++;
+		}
+		int nameEnd = scanPosition;
+		scanPosition = skipSpaces(scanPosition);
+		if ((nameEnd == nameStart) || (scanPosition >= windowLimit) || (window.get(scanPosition) != '"')) {
+			return -1;
+		}
+		int valueStart = ++scanPosition;
+		while ((scanPosition < windowLimit) && (window.get(scanPosition) != '"')) {
+			byte currentByte = window.get(scanPosition);
+			if (currentByte == '\n') {
+				return -1;
+			}
+			scanPosition += (currentByte == '\\') ? 2 : 1;
+		}
+		if (scanPosition >= windowLimit) {
+			return -1;
+		}
+		int valueEnd = scanPosition;
+		scanPosition = skipSpaces(scanPosition + 1);
+		if ((scanPosition >= windowLimit) || (window.get(scanPosition) != ']')) {
+			return -1;
+		}
+		if ((tagsNumber + 1) * 4 > tagRanges.length) {
+			tagRanges = Arrays.copyOf(tagRanges, tagRanges.length * 2);
+		}
+		tagRanges[tagsNumber * 4] = nameStart;
+		tagRanges[tagsNumber * 4 + 1] = nameEnd;
+		tagRanges[tagsNumber * 4 + 2] = valueStart;
+		tagRanges[tagsNumber * 4 + 3] = valueEnd;
+		tagsNumber++;
+		return scanPosition + 1;
+	}
+
+	private boolean isEventTag(int scanPosition) {
+		if (scanPosition + EVENT_TAG.length > windowLimit) {
+			return false;
+		}
+		for (int eventIndex = 0; eventIndex < EVENT_TAG.length; eventIndex++) {
+			if (window.get(scanPosition + eventIndex) != EVENT_TAG[eventIndex]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isTagName(int tagIndex, String tagName) {
+		int nameStart = tagRanges[tagIndex * 4];
+		if (tagRanges[tagIndex * 4 + 1] - nameStart != tagName.length()) {
+			return false;
+		}
+		for (int nameIndex = 0; nameIndex < tagName.length(); nameIndex++) {
+			if (window.get(nameStart + nameIndex) != tagName.charAt(nameIndex)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isNameByte(byte currentByte) {
+		return ((currentByte >= 'A') && (currentByte <= 'Z')) || ((currentByte >= 'a') && (currentByte <= 'z'))
+				|| ((currentByte >= '0') && (currentByte <= '9')) || (currentByte == '_');
+	}
+
+	private int skipSpaces(int scanPosition) {
+		while ((scanPosition < windowLimit)
+				&& ((window.get(scanPosition) == ' ') || (window.get(scanPosition) == '\t'))) {
+			scanPosition++;
+		}
+		return scanPosition;
+	}
+
+	private int skipWhitespace(int scanPosition) {
+		while ((scanPosition < windowLimit) && (window.get(scanPosition) <= ' ') && (window.get(scanPosition) >= 0)) {
+			scanPosition++;
+		}
+		return scanPosition;
+	}
+
+	private int skipLine(int scanPosition) {
+		while ((scanPosition < windowLimit) && (window.get(scanPosition) != '\n')) {
+			scanPosition++;
+		}
+		return Math.min(scanPosition + 1, windowLimit);
+	}
+
+	private String getString(int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int byteIndex = 0; byteIndex < bytes.length; byteIndex++) {
+			bytes[byteIndex] = window.get(start + byteIndex);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private void splitMovetext() {
+		sanMoves = new ArrayList<>();
+		int braceDepth = 0;
+		int parenthesisDepth = 0;
+		int scanPosition = movetextStart;
+		while (scanPosition < gameEnd) {
+			byte currentByte = window.get(scanPosition);
+			if (braceDepth > 0) {
+				if (currentByte == '}') {
+					braceDepth--;
+				}
+				scanPosition++;
+			} else if (currentByte == '{') {
+				braceDepth++;
+				scanPosition++;
+			} else if (currentByte == ';') {
+				scanPosition = skipLine(scanPosition);
+			} else if (currentByte == '(') {
+				parenthesisDepth++;
+				scanPosition++;
+			} else if (currentByte == ')') {
+				parenthesisDepth--;
+				scanPosition++;
+			} else if ((currentByte <= ' ') && (currentByte >= 0)) {
+				scanPosition++;
+			} else {
+				int tokenEnd = scanPosition;
+				while ((tokenEnd < gameEnd) && isTokenByte(window.get(tokenEnd))) {
+					tokenEnd++;
+				}
+				if (parenthesisDepth == 0) {
+					addToken(scanPosition, tokenEnd);
+				}
+				scanPosition = Math.max(tokenEnd, scanPosition + 1);
+			}
+		}
+	}
+
+	private static boolean isTokenByte(byte currentByte) {
+		return ((currentByte > ' ') || (currentByte < 0)) && (currentByte != '{') && (currentByte != '(')
+				&& (currentByte != ')') && (currentByte != ';');
+	}
+
+	private void addToken(int tokenStart, int tokenEnd) {
+		if (window.get(tokenStart) == '$') {
+			return;
+		}
+		String token = getString(tokenStart, tokenEnd);
+		for (String gameResult : RESULTS) {
+			if (token.equals(gameResult)) {
+				result = gameResult;
+				return;
+			}
+		}
+		// move numbers may be attached to the move, as in 1.e4 or 1...e5
+		int sanStart = 0;
+		while ((sanStart < token.length()) && Character.isDigit(token.charAt(sanStart))) {
+			sanStart++;
+		}
+		if ((sanStart > 0) && (sanStart < token.length()) && (token.charAt(sanStart) != '.')) {
+			sanStart = 0;
+		}
+		while ((sanStart < token.length()) && (token.charAt(sanStart) == '.')) {
+			sanStart++;
+		}
+		int sanEnd = token.length();
+		while ((sanEnd > sanStart) && ((token.charAt(sanEnd - 1) == '!') || (token.charAt(sanEnd - 1) == '?'))) {
+			sanEnd--;
+		}
+		if (sanEnd > sanStart) {
+			sanMoves.add(token.substring(sanStart, sanEnd));
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.PGNReader;
+
+/**
+ * Compares ictk PGNReader with PgnTokenizer on a pgn scaled up by
+ * concatenating it a given number of times: full ictk parse, tokenizer
+ * headers only, headers and san moves, and headers, moves and final position.
+ * The final positions of both parsers are also compared.
+ * Usage: PgnTokenizerBenchmark pgnFile copiesNumber
+ */
+public class PgnTokenizerBenchmark {
+	private static final Logger logger = Logger.getLogger(PgnTokenizerBenchmark.class.getName());
+
+	private PgnTokenizerBenchmark() {
+		throw new IllegalStateException("Utility class");
+	}
+
+	public static void main(String[] args) {
+		String pgnFileName = args[0];
+		int copiesNumber = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		String scaledPgnFileName = String.join("", pgnFileName, ".x", Integer.toString(copiesNumber), ".pgn");
+		try {
+			scale(pgnFileName, scaledPgnFileName, copiesNumber);
+			String sizeMsg = String.join("", "Scaled pgn: ", Long.toString(new File(scaledPgnFileName).length()),
+					" bytes");
+			logger.info(sizeMsg);
+
+			long startNS = System.nanoTime();
+			int parsedGamesNumber = 0;
+			try (BufferedReader pgnBufferedReader = CompressedStreams.getBufferedReader(scaledPgnFileName)) {
+				PGNReader pgnReader = new PGNReader(pgnBufferedReader);
+				while (GenericUtil.readGame(pgnReader) != null) {
+					parsedGamesNumber++;
+				}
+			}
+			logTime("ictk PGNReader", startNS, parsedGamesNumber);
+
+			for (int detailLevel = 0; detailLevel < 3; detailLevel++) {
+				startNS = System.nanoTime();
+				long tokenizedGamesNumber = tokenize(scaledPgnFileName, detailLevel);
+				logTime((detailLevel == 0) ? "PgnTokenizer headers"
+						: (detailLevel == 1) ? "PgnTokenizer headers and moves"
+								: "PgnTokenizer headers, moves and final position",
+						startNS, tokenizedGamesNumber);
+			}
+			logger.info(String.join("", "Different final positions: ",
+					Integer.toString(compareFinalPositions(pgnFileName))));
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		} finally {
+			new File(scaledPgnFileName).delete();
+		}
+	}
+
+	private static void scale(String pgnFileName, String scaledPgnFileName, int copiesNumber) throws IOException {
+		byte[] buffer = new byte[CompressedStreams.BUFFER_SIZE];
+		try (OutputStream outputStream = CompressedStreams.getOutputStream(scaledPgnFileName, false)) {
+			for (int copy = 0; copy < copiesNumber; copy++) {
+				try (InputStream inputStream = CompressedStreams.getInputStream(pgnFileName)) {
+					int readBytes = inputStream.read(buffer);
+					while (readBytes >= 0) {
+						outputStream.write(buffer, 0, readBytes);
+						readBytes = inputStream.read(buffer);
+					}
+				}
+				outputStream.write('\n');
+			}
+		}
+	}
+
+	private static long tokenize(String pgnFileName, int detailLevel) throws IOException {
+		try (PgnTokenizer pgnTokenizer = new PgnTokenizer(pgnFileName)) {
+			while (pgnTokenizer.next()) {
+				pgnTokenizer.getTag("Site");
+				if (detailLevel == 1) {
+					pgnTokenizer.getSanMoves();
+				} else if (detailLevel == 2) {
+					pgnTokenizer.getFinalBoard();
+				}
+			}
+			return pgnTokenizer.getGamesNumber();
+		}
+	}
+
+	private static int compareFinalPositions(String pgnFileName) throws IOException {
+		int differentPositionsNumber = 0;
+		FEN fen = new FEN();
+		try (BufferedReader pgnBufferedReader = CompressedStreams.getBufferedReader(pgnFileName);
+				PgnTokenizer pgnTokenizer = new PgnTokenizer(pgnFileName)) {
+			PGNReader pgnReader = new PGNReader(pgnBufferedReader);
+			ChessGame chessGame = GenericUtil.readGame(pgnReader);
+			while ((chessGame != null) && pgnTokenizer.next()) {
+				chessGame.getHistory().goToEnd();
+				ChessBoard finalChessBoard = pgnTokenizer.getFinalBoard();
+				if ((finalChessBoard == null)
+						|| !fen.boardToString(chessGame.getBoard()).equals(fen.boardToString(finalChessBoard))) {
+					differentPositionsNumber++;
+				}
+				chessGame = GenericUtil.readGame(pgnReader);
+			}
+		}
+		return differentPositionsNumber;
+	}
+
+	private static void logTime(String operation, long startNS, long gamesNumber) {
+		long elapsedMS = Math.max(1, (System.nanoTime() - startNS) / 1000000);
+		String timeMsg = String.format("%s: %d games in %d ms (%.0f games/s)", operation, gamesNumber, elapsedMS,
+				gamesNumber * 1000.0 / elapsedMS);
+		logger.info(timeMsg);
+	}
+}
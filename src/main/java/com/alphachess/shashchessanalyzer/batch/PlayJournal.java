@@ -0,0 +1,208 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.io.PGNWriter;
+
+/**
+ * Crash-safe journal of a self-play run. Each completed game is written to its
+ * own segment file, made visible by an atomic rename and merged into the output
+ * pgn at the end of the run; the moves of the game in progress are appended
+ * and synced to the journal file ply by ply, so that a restart skips the
+ * completed input games and goes on from the last played ply.
+ */
+public class PlayJournal {
+	private static final String GAME_RECORD = "game";
+	private static final String MOVE_RECORD = "move";
+	private static final String DONE_RECORD = "done";
+	private static final String SEPARATOR = "\t";
+	private final File journalFile;
+	private final File segmentsDirectory;
+	private final Set<Integer> doneGames = new HashSet<>();
+	private final List<String[]> inProgressMoves = new ArrayList<>();
+	private int inProgressGameNumber = -1;
+
+	private static final Logger logger = Logger.getLogger(PlayJournal.class.getName());
+
+	public PlayJournal(String journalFileName, String pgnOutputFileName) throws IOException {
+		journalFile = new File(journalFileName);
+		segmentsDirectory = new File(String.join("", pgnOutputFileName, ".segments"));
+		if (!segmentsDirectory.exists() && !segmentsDirectory.mkdirs()) {
+			throw new IOException(String.join("", "Unable to create ", segmentsDirectory.getPath()));
+		}
+		load();
+	}
+
+	private void load() throws IOException {
+		if (journalFile.exists()) {
+			truncateTornRecord();
+			try (BufferedReader journalReader = new BufferedReader(new FileReader(journalFile))) {
+				String line = journalReader.readLine();
+				while (line != null) {
+					loadRecord(line.split(SEPARATOR));
+					line = journalReader.readLine();
+				}
+			}
+		}
+		File[] segmentFiles = segmentsDirectory.listFiles((dir, name) -> name.endsWith(".pgn"));
+		if (segmentFiles != null) {
+			for (File segmentFile : segmentFiles) {
+				doneGames.add(Integer.parseInt(segmentFile.getName().replace(".pgn", "")));
+			}
+		}
+		if (doneGames.contains(inProgressGameNumber)) {
+			inProgressMoves.clear();
+		}
+		String journalMsg = String.join("", "Journal: ", Integer.toString(doneGames.size()), " completed games, ",
+				Integer.toString(inProgressMoves.size()), " plies of game ", Integer.toString(inProgressGameNumber),
+				" to resume");
+		logger.info(journalMsg);
+	}
+
+	/**
+	 * A record torn by a crash is the last one, without its newline: it is cut
+	 * off, as a prefix of a record can still look like a whole one, and the
+	 * next records are appended in its place.
+	 */
+	private void truncateTornRecord() throws IOException {
+		try (RandomAccessFile journalRandomAccessFile = new RandomAccessFile(journalFile, "rw")) {
+			long journalLength = journalRandomAccessFile.length();
+			long completeLength = journalLength;
+			while (completeLength > 0) {
+				journalRandomAccessFile.seek(completeLength - 1);
+				if (journalRandomAccessFile.read() == '\n') {
+					break;
+				}
+				completeLength--;
+			}
+			if (completeLength < journalLength) {
+				String tornRecordMsg = String.join("", "Journal: torn record of ",
+						Long.toString(journalLength - completeLength), " bytes removed");
+				logger.info(tornRecordMsg);
+				journalRandomAccessFile.setLength(completeLength);
+			}
+		}
+	}
+
+	private void loadRecord(String[] fields) {
+		try {
+			if (fields[0].equals(GAME_RECORD) && fields.length == 2) {
+				inProgressGameNumber = Integer.parseInt(fields[1]);
+				inProgressMoves.clear();
+			} else if (fields[0].equals(MOVE_RECORD) && fields.length == 6
+					&& Integer.parseInt(fields[1]) == inProgressGameNumber) {
+				inProgressMoves.add(Arrays.copyOfRange(fields, 2, 6));
+			} else if (fields[0].equals(DONE_RECORD) && fields.length == 2) {
+				doneGames.add(Integer.parseInt(fields[1]));
+			}
+		} catch (NumberFormatException e) {
+			logger.info(e.getMessage());
+		}
+	}
+
+	public boolean isDone(int gameNumber) {
+		return doneGames.contains(gameNumber);
+	}
+
+	/**
+	 * Returns the journaled plies of the game as lan, score, depth and position
+	 * type, and starts journaling it.
+	 */
+	public List<String[]> startGame(int gameNumber) throws IOException {
+		List<String[]> resumedMoves = new ArrayList<>();
+		if (gameNumber == inProgressGameNumber) {
+			resumedMoves.addAll(inProgressMoves);
+		} else {
+			append(GAME_RECORD, Integer.toString(gameNumber));
+		}
+		inProgressGameNumber = gameNumber;
+		inProgressMoves.clear();
+		return resumedMoves;
+	}
+
+	/**
+	 * A negative depth marks a book ply.
+	 */
+	public void addMove(int gameNumber, String lan, int score, int depth, String positionType) throws IOException {
+		append(MOVE_RECORD, Integer.toString(gameNumber), lan, Integer.toString(score), Integer.toString(depth),
+				positionType);
+	}
+
+	public void commitGame(int gameNumber, ChessGame chessGame) throws IOException {
+		File segmentFile = getSegmentFile(gameNumber);
+		File temporarySegmentFile = new File(segmentsDirectory, String.join("", segmentFile.getName(), ".tmp"));
+		try (FileOutputStream segmentOutputStream = new FileOutputStream(temporarySegmentFile)) {
+			PrintWriter segmentWriter = new PrintWriter(
+					new OutputStreamWriter(segmentOutputStream, StandardCharsets.UTF_8));
+			PGNWriter segmentPgnWriter = new PGNWriter(segmentWriter);
+			segmentPgnWriter.writeGame(chessGame);
+			segmentWriter.print("\r\n");
+			segmentWriter.flush();
+			segmentOutputStream.getFD().sync();
+		}
+		Files.move(temporarySegmentFile.toPath(), segmentFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		append(DONE_RECORD, Integer.toString(gameNumber));
+		doneGames.add(gameNumber);
+	}
+
+	/**
+	 * Appends the segments to the output pgn in input game order, then removes
+	 * them and the journal: the run is complete. A temporary segment left by a
+	 * crash before its rename belongs to a game played again, so it is removed
+	 * too.
+	 */
+	public void mergeSegments(PrintWriter pw) throws IOException {
+		File[] segmentFiles = segmentsDirectory.listFiles((dir, name) -> name.endsWith(".pgn"));
+		if (segmentFiles == null) {
+			return;
+		}
+		Arrays.sort(segmentFiles);
+		for (File segmentFile : segmentFiles) {
+			pw.print(new String(Files.readAllBytes(segmentFile.toPath()), StandardCharsets.UTF_8));
+		}
+		pw.flush();
+		if (pw.checkError()) {
+			throw new IOException("Unable to write the output pgn");
+		}
+		for (File segmentFile : segmentFiles) {
+			Files.delete(segmentFile.toPath());
+		}
+		File[] temporarySegmentFiles = segmentsDirectory.listFiles((dir, name) -> name.endsWith(".tmp"));
+		if (temporarySegmentFiles != null) {
+			for (File temporarySegmentFile : temporarySegmentFiles) {
+				Files.delete(temporarySegmentFile.toPath());
+			}
+		}
+		Files.deleteIfExists(segmentsDirectory.toPath());
+		Files.deleteIfExists(journalFile.toPath());
+	}
+
+	private File getSegmentFile(int gameNumber) {
+		return new File(segmentsDirectory, String.format("%08d.pgn", gameNumber));
+	}
+
+	private void append(String... fields) throws IOException {
+		try (FileOutputStream journalOutputStream = new FileOutputStream(journalFile, true)) {
+			journalOutputStream.write(
+					String.join("", String.join(SEPARATOR, fields), "\n").getBytes(StandardCharsets.UTF_8));
+			journalOutputStream.getFD().sync();
+		}
+	}
+}
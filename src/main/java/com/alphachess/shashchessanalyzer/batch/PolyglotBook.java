@@ -0,0 +1,199 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+import com.alphachess.shashchessanalyzer.ZobristHash;
+
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessMove;
+import ictk.boardgame.chess.ChessPiece;
+import ictk.boardgame.chess.io.FEN;
+
+/**
+ * Zero-copy reader of Polyglot opening books: 16 bytes big-endian entries of
+ * position key, move, weight and learn, sorted by key, read through
+ * memory-mapped segments and searched by binary search.
+ *
+ * Usage: PolyglotBook book.bin [fen]
+ */
+public class PolyglotBook implements Closeable {
+	public static final int ENTRY_SIZE = 16;
+	private static final int MOVE_OFFSET = 8;
+	private static final int LEARN_OFFSET = 12;
+	private final String bookFileName;
+	private final long entriesNumber;
+	private final MappedRecords entries;
+
+	private static final Logger logger = Logger.getLogger(PolyglotBook.class.getName());
+
+	public static class BookEntry {
+		private final String lan;
+		private final int weight;
+		private final int learn;
+
+		public BookEntry(String lan, int weight, int learn) {
+			this.lan = lan;
+			this.weight = weight;
+			this.learn = learn;
+		}
+
+		public String getLan() {
+			return lan;
+		}
+
+		public int getWeight() {
+			return weight;
+		}
+
+		public int getLearn() {
+			return learn;
+		}
+	}
+
+	public PolyglotBook(String bookFileName) throws IOException {
+		this.bookFileName = bookFileName;
+		File bookFile = new File(bookFileName);
+		entriesNumber = bookFile.length() / ENTRY_SIZE;
+		entries = new MappedRecords(bookFile, "r", 0, ENTRY_SIZE, entriesNumber, ByteOrder.BIG_ENDIAN);
+	}
+
+	public long getEntriesNumber() {
+		return entriesNumber;
+	}
+
+	/**
+	 * Every move of the position, in book order, found by binary search on
+	 * the unsigned keys.
+	 */
+	public List<BookEntry> getEntries(ChessBoard chessBoard) {
+		long key = ZobristHash.getKey(chessBoard);
+		long low = 0;
+		long high = entriesNumber;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			if (Long.compareUnsigned(entries.getLong(middle, 0), key) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		List<BookEntry> bookEntries = new ArrayList<>();
+		for (long entry = low; (entry < entriesNumber) && (entries.getLong(entry, 0) == key); entry++) {
+			int moveWeight = entries.getInt(entry, MOVE_OFFSET);
+			bookEntries.add(new BookEntry(getLan(chessBoard, moveWeight >>> 16), moveWeight & 0xffff,
+					entries.getInt(entry, LEARN_OFFSET)));
+		}
+		return bookEntries;
+	}
+
+	public List<BookEntry> getEntries(String fen) throws IOException {
+		return getEntries((ChessBoard) new FEN().stringToBoard(fen));
+	}
+
+	/**
+	 * The heaviest move of the position, or null if it has no move with a
+	 * weight.
+	 */
+	public BookEntry getBestEntry(String fen) throws IOException {
+		BookEntry bestEntry = null;
+		for (BookEntry bookEntry : getEntries(fen)) {
+			if ((bookEntry.getWeight() > 0) && ((bestEntry == null) || (bookEntry.getWeight() > bestEntry.getWeight()))) {
+				bestEntry = bookEntry;
+			}
+		}
+		return bestEntry;
+	}
+
+	/**
+	 * A move of the position drawn with a probability proportional to its
+	 * weight, or null if it has no move with a weight.
+	 */
+	public BookEntry getWeightedEntry(String fen, Random random) throws IOException {
+		List<BookEntry> bookEntries = getEntries(fen);
+		long weightsSum = 0;
+		for (BookEntry bookEntry : bookEntries) {
+			weightsSum += bookEntry.getWeight();
+		}
+		if (weightsSum == 0) {
+			return null;
+		}
+		long drawnWeight = (long) (random.nextDouble() * weightsSum);
+		for (BookEntry bookEntry : bookEntries) {
+			drawnWeight -= bookEntry.getWeight();
+			if (drawnWeight < 0) {
+				return bookEntry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Polyglot move encoding: destination file and row in bits 0-5, origin
+	 * file and row in bits 6-11, promotion piece from the knight in bits 12-14,
+	 * with castling as the king taking its rook.
+	 */
+	static String getLan(ChessBoard chessBoard, int move) {
+		int destination = move & 63;
+		int origin = (move >>> 6) & 63;
+		int promotion = (move >>> 12) & 7;
+		ChessPiece chessPiece = chessBoard.getSquare((origin & 7) + 1, (origin >>> 3) + 1).getOccupant();
+		if ((chessPiece != null) && chessPiece.isKing() && (Math.abs((destination & 7) - (origin & 7)) > 1)) {
+			destination = (destination > origin) ? origin + 2 : origin - 2;
+		}
+		return String.join("", getSquare(origin), getSquare(destination),
+				(promotion > 0) ? String.valueOf("nbrq".charAt(promotion - 1)) : "");
+	}
+
+	/**
+	 * Polyglot encoding of a move, the inverse of getLan.
+	 */
+	public static int getMove(ChessMove chessMove) {
+		int move = GenericUtil.getMoveInt(chessMove);
+		if (chessMove.isCastleKingside() || chessMove.isCastleQueenside()) {
+			int rookFile = chessMove.isCastleKingside() ? 7 : 0;
+			move = (move & ~7) | rookFile;
+		}
+		ChessPiece promotion = chessMove.getPromotion();
+		if (promotion != null) {
+			int promotionPiece = promotion.isKnight() ? 1 : promotion.isBishop() ? 2 : promotion.isRook() ? 3 : 4;
+			move |= promotionPiece << 12;
+		}
+		return move;
+	}
+
+	private static String getSquare(int square) {
+		return String.join("", String.valueOf((char) ('a' + (square & 7))), Integer.toString((square >>> 3) + 1));
+	}
+
+	@Override
+	public void close() throws IOException {
+		entries.close();
+	}
+
+	public static void main(String[] args) {
+		try (PolyglotBook polyglotBook = new PolyglotBook(args[0])) {
+			String entriesMsg = String.join("", polyglotBook.bookFileName, ": ",
+					Long.toString(polyglotBook.getEntriesNumber()), " entries");
+			logger.info(entriesMsg);
+			if (args.length > 1) {
+				String fen = String.join(" ", Arrays.copyOfRange(args, 1, args.length));
+				for (BookEntry entry : polyglotBook.getEntries(fen)) {
+					String entryMsg = String.join("", entry.getLan(), " weight ", Integer.toString(entry.getWeight()),
+							" learn ", Integer.toString(entry.getLearn()));
+					logger.info(entryMsg);
+				}
+			}
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Builds a Polyglot opening book from pgn files, such as ecoAll.pgn and the
+ * self-play outputs, within a fixed heap whatever their size.
+ *
+ * The games, wins and draws of every position and move are counted by a
+ * PositionMoveCounter of threadsNumber workers and memoryMB, and streamed into
+ * the book, sorted by key, with the moves played at least minGames times
+ * weighted by 2 * wins + draws of the side to move, scaled to the Polyglot 16
+ * bits. Games without a result count as draws, so that the moves of opening
+ * collections such as ecoAll.pgn are weighted by frequency.
+ *
+ * Usage: PolyglotBookBuilder polyglotbookbuilder.properties
+ */
+public class PolyglotBookBuilder {
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAX_WEIGHT = 0xffff;
+	private static final long BYTES_PER_MB = 1L << 20;
+	private Properties polyglotBookBuilderProperties;
+	private List<String> pgnFiles;
+	private File bookFile;
+	private File temporaryDirectory;
+	private int maxPly;
+	private int minGames;
+	private int threadsNumber;
+	private long memoryBytes;
+	private long positionsNumber = 0;
+	private long entriesNumber = 0;
+
+	private static final Logger logger = Logger.getLogger(PolyglotBookBuilder.class.getName());
+
+	public PolyglotBookBuilder(String[] args) {
+		polyglotBookBuilderProperties = getPolyglotBookBuilderProperties(args);
+		setInputParameters();
+	}
+
+	private void setInputParameters() {
+		pgnFiles = new ArrayList<>();
+		for (String pgnFile : polyglotBookBuilderProperties.getProperty("pgnFiles", "").split(",")) {
+			if (!pgnFile.trim().isEmpty()) {
+				pgnFiles.add(pgnFile.trim());
+			}
+		}
+		bookFile = new File(polyglotBookBuilderProperties.getProperty("bookFile"));
+		String temporaryDirectoryName = polyglotBookBuilderProperties.getProperty("temporaryDirectory", "").trim();
+		temporaryDirectory = new File(
+				temporaryDirectoryName.isEmpty() ? System.getProperty("java.io.tmpdir") : temporaryDirectoryName);
+		maxPly = Integer.parseInt(polyglotBookBuilderProperties.getProperty("maxPly", "30"));
+		minGames = Integer.parseInt(polyglotBookBuilderProperties.getProperty("minGames", "1"));
+		threadsNumber = Integer.parseInt(polyglotBookBuilderProperties.getProperty("threadsNumber", "2"));
+		memoryBytes = Long.parseLong(polyglotBookBuilderProperties.getProperty("memoryMB", "256")) * BYTES_PER_MB;
+	}
+
+	private Properties getPolyglotBookBuilderProperties(String[] args) {
+		Properties properties = new Properties();
+		File file = new File(args[0]);
+		try (FileInputStream fileInput = new FileInputStream(file)) {
+			properties.load(fileInput);
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+		return properties;
+	}
+
+	public static void main(String[] args) {
+		PolyglotBookBuilder polyglotBookBuilder = new PolyglotBookBuilder(args);
+		try {
+			polyglotBookBuilder.build();
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		} catch (InterruptedException e) {
+			logger.info(e.getMessage());
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void build() throws IOException, InterruptedException {
+		long startMS = System.currentTimeMillis();
+		File temporaryBookFile = new File(String.join("", bookFile.getPath(), ".tmp"));
+		try {
+			try (DataOutputStream bookOutput = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporaryBookFile), BUFFER_SIZE))) {
+				List<long[]> positionMoves = new ArrayList<>();
+				new PositionMoveCounter(maxPly, threadsNumber, memoryBytes, temporaryDirectory).count(pgnFiles,
+						(key, move, childKey, games, wins, draws) -> {
+							if (!positionMoves.isEmpty() && (positionMoves.get(0)[0] != key)) {
+								writePosition(bookOutput, positionMoves);
+							}
+							positionMoves.add(new long[] { key, move, games, wins, draws });
+						});
+				writePosition(bookOutput, positionMoves);
+			}
+			Files.move(temporaryBookFile.toPath(), bookFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temporaryBookFile.toPath());
+		}
+		String builtMsg = String.join("", "Built ", bookFile.getPath(), ": ", Long.toString(positionsNumber),
+				" positions, ", Long.toString(entriesNumber), " entries, ",
+				Long.toString(System.currentTimeMillis() - startMS), " ms");
+		logger.info(builtMsg);
+	}
+
+	/**
+	 * Writes the book entries of a position, heaviest first; moves never
+	 * scoring a point are left out as Polyglot books never play them.
+	 */
+	private void writePosition(DataOutputStream bookOutput, List<long[]> positionMoves) throws IOException {
+		long maxPoints = 0;
+		List<long[]> bookMoves = new ArrayList<>();
+		for (long[] positionMove : positionMoves) {
+			long points = 2 * positionMove[3] + positionMove[4];
+			if ((positionMove[2] >= minGames) && (points > 0)) {
+				bookMoves.add(new long[] { positionMove[0], positionMove[1], points });
+				maxPoints = Math.max(maxPoints, points);
+			}
+		}
+		positionMoves.clear();
+		if (bookMoves.isEmpty()) {
+			return;
+		}
+		bookMoves.sort((first, second) -> Long.compare(second[2], first[2]));
+		for (long[] bookMove : bookMoves) {
+			long weight = (maxPoints > MAX_WEIGHT) ? Math.max(1, bookMove[2] * MAX_WEIGHT / maxPoints) : bookMove[2];
+			bookOutput.writeLong(bookMove[0]);
+			bookOutput.writeShort((int) bookMove[1]);
+			bookOutput.writeShort((int) weight);
+			bookOutput.writeInt(0);
+			entriesNumber++;
+		}
+		positionsNumber++;
+	}
+}
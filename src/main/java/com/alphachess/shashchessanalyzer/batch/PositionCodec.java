@@ -0,0 +1,331 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-width 28 byte position encoding, parsed from and formatted to fen
+ * without ictk or chesslib boards:
+ * <ul>
+ * <li>bytes 0-7: occupancy bitboard, bit 0 is a1 and bit 63 h8;</li>
+ * <li>bytes 8-23: a 4 bit code per occupied square in square order, low
+ * nibble first;</li>
+ * <li>bytes 24-25: halfmove clock, bytes 26-27: fullmove number.</li>
+ * </ul>
+ * Codes 0-5 are the white pawn, knight, bishop, rook, queen and king, 6-11 the
+ * black ones; side to move, castling rights and en passant are folded into
+ * the other codes: 12 is a pawn that has just moved two squares (the en
+ * passant square is behind it), 13 and 14 are a white and a black rook still
+ * able to castle, 15 is the black king with black to move. A legal position
+ * has at most 32 pieces, so that 16 bytes are always enough. Castling rights
+ * are the standard ones, with the rooks in the corners. All multi-byte fields
+ * are big endian, so that encoded positions sort by occupancy.
+ */
+public class PositionCodec {
+	public static final int POSITION_SIZE = 28;
+	private static final int PIECES_OFFSET = 8;
+	private static final int HALFMOVE_OFFSET = 24;
+	private static final int FULLMOVE_OFFSET = 26;
+	private static final int MAX_PIECES = 32;
+	private static final String PIECE_CHARS = "PNBRQKpnbrqk";
+	private static final int WHITE_ROOK = 3;
+	private static final int WHITE_KING = 5;
+	private static final int BLACK_ROOK = 9;
+	private static final int BLACK_KING = 11;
+	private static final int EN_PASSANT_PAWN = 12;
+	private static final int WHITE_CASTLING_ROOK = 13;
+	private static final int BLACK_CASTLING_ROOK = 14;
+	private static final int BLACK_KING_TO_MOVE = 15;
+
+	private PositionCodec() {
+		throw new IllegalStateException("Utility class");
+	}
+
+	public static byte[] encode(String fen) {
+		byte[] position = new byte[POSITION_SIZE];
+		encode(fen, position, 0);
+		return position;
+	}
+
+	/**
+	 * Encodes the fen into position from offset, throwing an
+	 * IllegalArgumentException if it is malformed or can't be encoded.
+	 */
+	public static void encode(String fen, byte[] position, int offset) {
+		String[] fields = getFields(fen);
+		if (fields.length < 4) {
+			throw new IllegalArgumentException(String.join("", "Incomplete fen: ", fen));
+		}
+		int[] codes = new int[64];
+		Arrays.fill(codes, -1);
+		long occupancy = parsePlacement(fields[0], codes, fen);
+		boolean isBlackMove = fields[1].equals("b");
+		if (!isBlackMove && !fields[1].equals("w")) {
+			throw new IllegalArgumentException(String.join("", "Wrong side to move: ", fen));
+		}
+		setCastlingRooks(fields[2], codes, fen);
+		setEnPassantPawn(fields[3], codes, isBlackMove, fen);
+		if (isBlackMove) {
+			int blackKingSquare = -1;
+			for (int square = 0; square < 64; square++) {
+				if (codes[square] == BLACK_KING) {
+					blackKingSquare = square;
+				}
+			}
+			// the side to move is stored in the black king
+			if (blackKingSquare < 0) {
+				throw new IllegalArgumentException(String.join("", "Black to move without black king: ", fen));
+			}
+			codes[blackKingSquare] = BLACK_KING_TO_MOVE;
+		}
+		if (Long.bitCount(occupancy) > MAX_PIECES) {
+			throw new IllegalArgumentException(String.join("", "More than 32 pieces: ", fen));
+		}
+		int halfmoveClock = (fields.length > 4) ? parseCounter(fields[4], fen) : 0;
+		int fullmoveNumber = (fields.length > 5) ? parseCounter(fields[5], fen) : 1;
+		writeLong(position, offset, occupancy);
+		for (int piecesIndex = PIECES_OFFSET; piecesIndex < HALFMOVE_OFFSET; piecesIndex++) {
+			position[offset + piecesIndex] = 0;
+		}
+		int pieceIndex = 0;
+		for (long remaining = occupancy; remaining != 0; remaining &= remaining - 1) {
+			int square = Long.numberOfTrailingZeros(remaining);
+			position[offset + PIECES_OFFSET + (pieceIndex >> 1)] |= (byte) (codes[square] << ((pieceIndex & 1) * 4));
+			pieceIndex++;
+		}
+		writeShort(position, offset + HALFMOVE_OFFSET, halfmoveClock);
+		writeShort(position, offset + FULLMOVE_OFFSET, fullmoveNumber);
+	}
+
+	/**
+	 * Splits the fen at whitespace without a regular expression.
+	 */
+	private static String[] getFields(String fen) {
+		String[] fields = new String[6];
+		int fieldsNumber = 0;
+		int fieldStart = -1;
+		for (int charIndex = 0; charIndex <= fen.length(); charIndex++) {
+			boolean isWhitespace = (charIndex == fen.length()) || Character.isWhitespace(fen.charAt(charIndex));
+			if (!isWhitespace && (fieldStart < 0)) {
+				fieldStart = charIndex;
+			} else if (isWhitespace && (fieldStart >= 0)) {
+				if (fieldsNumber == fields.length) {
+					throw new IllegalArgumentException(String.join("", "Too many fen fields: ", fen));
+				}
+				fields[fieldsNumber++] = fen.substring(fieldStart, charIndex);
+				fieldStart = -1;
+			}
+		}
+		return Arrays.copyOf(fields, fieldsNumber);
+	}
+
+	private static long parsePlacement(String placement, int[] codes, String fen) {
+		long occupancy = 0;
+		int rank = 7;
+		int file = 0;
+		for (int charIndex = 0; charIndex < placement.length(); charIndex++) {
+			char placementChar = placement.charAt(charIndex);
+			if (placementChar == '/') {
+				if ((file != 8) || (rank == 0)) {
+					throw new IllegalArgumentException(String.join("", "Wrong placement: ", fen));
+				}
+				rank--;
+				file = 0;
+			} else if ((placementChar >= '1') && (placementChar <= '8')) {
+				file += placementChar - '0';
+			} else {
+				int code = PIECE_CHARS.indexOf(placementChar);
+				if ((code < 0) || (file > 7)) {
+					throw new IllegalArgumentException(String.join("", "Wrong placement: ", fen));
+				}
+				int square = rank * 8 + file;
+				codes[square] = code;
+				occupancy |= 1L << square;
+				file++;
+			}
+			if (file > 8) {
+				throw new IllegalArgumentException(String.join("", "Wrong placement: ", fen));
+			}
+		}
+		if ((rank != 0) || (file != 8)) {
+			throw new IllegalArgumentException(String.join("", "Wrong placement: ", fen));
+		}
+		return occupancy;
+	}
+
+	private static void setCastlingRooks(String castling, int[] codes, String fen) {
+		if (castling.equals("-")) {
+			return;
+		}
+		for (int charIndex = 0; charIndex < castling.length(); charIndex++) {
+			char castlingChar = castling.charAt(charIndex);
+			int rookSquare;
+			int kingSquare;
+			if (castlingChar == 'K') {
+				rookSquare = 7;
+				kingSquare = 4;
+			} else if (castlingChar == 'Q') {
+				rookSquare = 0;
+				kingSquare = 4;
+			} else if (castlingChar == 'k') {
+				rookSquare = 63;
+				kingSquare = 60;
+			} else if (castlingChar == 'q') {
+				rookSquare = 56;
+				kingSquare = 60;
+			} else {
+				throw new IllegalArgumentException(String.join("", "Wrong castling rights: ", fen));
+			}
+			boolean isWhite = Character.isUpperCase(castlingChar);
+			int rook = isWhite ? WHITE_ROOK : BLACK_ROOK;
+			if (((codes[rookSquare] != rook) && (codes[rookSquare] != (isWhite ? WHITE_CASTLING_ROOK
+					: BLACK_CASTLING_ROOK))) || (codes[kingSquare] != (isWhite ? WHITE_KING : BLACK_KING))) {
+				throw new IllegalArgumentException(String.join("", "Castling without king and rook: ", fen));
+			}
+			codes[rookSquare] = isWhite ? WHITE_CASTLING_ROOK : BLACK_CASTLING_ROOK;
+		}
+	}
+
+	private static void setEnPassantPawn(String enPassant, int[] codes, boolean isBlackMove, String fen) {
+		if (enPassant.equals("-")) {
+			return;
+		}
+		int file = enPassant.charAt(0) - 'a';
+		int rank = (enPassant.length() == 2) ? enPassant.charAt(1) - '1' : -1;
+		if ((file < 0) || (file > 7) || (rank != (isBlackMove ? 2 : 5))) {
+			throw new IllegalArgumentException(String.join("", "Wrong en passant square: ", fen));
+		}
+		// the pawn which has just moved is beyond the en passant square
+		int pawnSquare = isBlackMove ? (3 * 8 + file) : (4 * 8 + file);
+		if (codes[pawnSquare] != (isBlackMove ? 0 : 6)) {
+			throw new IllegalArgumentException(String.join("", "En passant without pawn: ", fen));
+		}
+		codes[pawnSquare] = EN_PASSANT_PAWN;
+	}
+
+	private static int parseCounter(String counter, String fen) {
+		try {
+			int counterValue = Integer.parseInt(counter);
+			if ((counterValue < 0) || (counterValue > 0xFFFF)) {
+				throw new IllegalArgumentException(String.join("", "Move counter out of range: ", fen));
+			}
+			return counterValue;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.join("", "Wrong move counter: ", fen));
+		}
+	}
+
+	public static String decode(byte[] position) {
+		return decode(position, 0);
+	}
+
+	public static String decode(byte[] position, int offset) {
+		long occupancy = readLong(position, offset);
+		char[] board = new char[64];
+		boolean isBlackMove = false;
+		boolean[] castlingRooks = new boolean[64];
+		int enPassantSquare = -1;
+		int pieceIndex = 0;
+		for (long remaining = occupancy; remaining != 0; remaining &= remaining - 1) {
+			int square = Long.numberOfTrailingZeros(remaining);
+			int code = (position[offset + PIECES_OFFSET + (pieceIndex >> 1)] >> ((pieceIndex & 1) * 4)) & 0xF;
+			pieceIndex++;
+			if (code == EN_PASSANT_PAWN) {
+				boolean isWhitePawn = (square >> 3) == 3;
+				code = isWhitePawn ? 0 : 6;
+				enPassantSquare = isWhitePawn ? square - 8 : square + 8;
+			} else if ((code == WHITE_CASTLING_ROOK) || (code == BLACK_CASTLING_ROOK)) {
+				castlingRooks[square] = true;
+				code = (code == WHITE_CASTLING_ROOK) ? WHITE_ROOK : BLACK_ROOK;
+			} else if (code == BLACK_KING_TO_MOVE) {
+				isBlackMove = true;
+				code = BLACK_KING;
+			}
+			board[square] = PIECE_CHARS.charAt(code);
+		}
+		StringBuilder fen = new StringBuilder(90);
+		for (int rank = 7; rank >= 0; rank--) {
+			int emptySquares = 0;
+			for (int file = 0; file < 8; file++) {
+				char piece = board[rank * 8 + file];
+				if (piece == 0) {
+					emptySquares++;
+				} else {
+					if (emptySquares > 0) {
+						fen.append((char) ('0' + emptySquares));
+						emptySquares = 0;
+					}
+					fen.append(piece);
+				}
+			}
+			if (emptySquares > 0) {
+				fen.append((char) ('0' + emptySquares));
+			}
+			if (rank > 0) {
+				fen.append('/');
+			}
+		}
+		fen.append(isBlackMove ? " b " : " w ");
+		int castlingLength = fen.length();
+		appendCastling(fen, castlingRooks[7], 'K');
+		appendCastling(fen, castlingRooks[0], 'Q');
+		appendCastling(fen, castlingRooks[63], 'k');
+		appendCastling(fen, castlingRooks[56], 'q');
+		if (fen.length() == castlingLength) {
+			fen.append('-');
+		}
+		fen.append(' ');
+		if (enPassantSquare >= 0) {
+			fen.append((char) ('a' + (enPassantSquare & 7))).append((char) ('1' + (enPassantSquare >> 3)));
+		} else {
+			fen.append('-');
+		}
+		fen.append(' ').append(readShort(position, offset + HALFMOVE_OFFSET)).append(' ')
+				.append(readShort(position, offset + FULLMOVE_OFFSET));
+		return fen.toString();
+	}
+
+	private static void appendCastling(StringBuilder fen, boolean isCastlingRook, char castlingChar) {
+		if (isCastlingRook) {
+			fen.append(castlingChar);
+		}
+	}
+
+	public static boolean isBlackMove(byte[] position, int offset) {
+		int piecesNumber = Long.bitCount(readLong(position, offset));
+		for (int pieceIndex = 0; pieceIndex < piecesNumber; pieceIndex++) {
+			if (((position[offset + PIECES_OFFSET + (pieceIndex >> 1)] >> ((pieceIndex & 1) * 4))
+					& 0xF) == BLACK_KING_TO_MOVE) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static int getPiecesNumber(byte[] position, int offset) {
+		return Long.bitCount(readLong(position, offset));
+	}
+
+	private static void writeLong(byte[] bytes, int offset, long value) {
+		for (int byteIndex = 7; byteIndex >= 0; byteIndex--) {
+			bytes[offset + byteIndex] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	private static long readLong(byte[] bytes, int offset) {
+		long value = 0;
+		for (int byteIndex = 0; byteIndex < 8; byteIndex++) {
+			value = (value << 8) | (bytes[offset + byteIndex] & 0xFF);
+		}
+		return value;
+	}
+
+	private static void writeShort(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value >>> 8);
+		bytes[offset + 1] = (byte) value;
+	}
+
+	private static int readShort(byte[] bytes, int offset) {
+		return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+	}
+}
@@ -0,0 +1,492 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Append-only job queue of positions in a memory-mapped file, shared by any
+ * number of worker threads and processes on the same machine.
+ *
+ * The file starts with a 64 bytes header: magic, version, record size, then
+ * the appended positions number, the claim cursor (every position before it
+ * has been claimed at least once), the done cursor (every position before it
+ * has been acked or has failed), the acked and the failed positions numbers.
+ * Each position is a 40 bytes record: the 28 bytes of PositionCodec, its
+ * state, its claims number and the time of its last claim.
+ *
+ * Every change is made holding a lock on the header, so the cursors never go
+ * back and a position is handed to one worker at a time. A claim not acked
+ * within its lease, because the worker has died or its engine has failed, is
+ * handed out again once no fresh positions are left, up to maxClaims times.
+ * Since the results are written and synced to disk before the ack, a
+ * position is never lost but can be analysed twice if its worker dies between
+ * the two.
+ *
+ * Usage: PositionJobQueue properties add fenFile | status | work
+ */
+// the header locks are only held, never referenced, in the body of their try
+@SuppressWarnings("try")
+public class PositionJobQueue implements Closeable {
+	private static final int MAGIC = 0x53434a51;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int RECORD_SIZE = 40;
+	private static final int APPENDED_OFFSET = 16;
+	private static final int CLAIM_CURSOR_OFFSET = 24;
+	private static final int DONE_CURSOR_OFFSET = 32;
+	private static final int ACKED_OFFSET = 40;
+	private static final int FAILED_OFFSET = 48;
+	private static final int STATE_OFFSET = PositionCodec.POSITION_SIZE;
+	private static final int CLAIMS_OFFSET = PositionCodec.POSITION_SIZE + 1;
+	private static final int CLAIM_TIME_OFFSET = 32;
+	private static final int SEGMENT_SHIFT = 20;
+	private static final long SEGMENT_RECORDS = 1L << SEGMENT_SHIFT;
+	private static final byte PENDING = 0;
+	private static final byte CLAIMED = 1;
+	private static final byte ACKED = 2;
+	private static final byte FAILED = 3;
+	private final RandomAccessFile queueFile;
+	private final FileChannel queueChannel;
+	private final MappedByteBuffer header;
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+	private static final Logger logger = Logger.getLogger(PositionJobQueue.class.getName());
+
+	public static class PositionJob {
+		private final long index;
+		private final String fen;
+
+		public PositionJob(long index, String fen) {
+			this.index = index;
+			this.fen = fen;
+		}
+
+		public long getIndex() {
+			return index;
+		}
+
+		public String getFen() {
+			return fen;
+		}
+	}
+
+	public PositionJobQueue(String queueFileName) throws IOException {
+		queueFile = new RandomAccessFile(queueFileName, "rw");
+		queueChannel = queueFile.getChannel();
+		try (FileLock headerLock = queueChannel.lock(0, HEADER_SIZE, false)) {
+			boolean isNew = queueChannel.size() < HEADER_SIZE;
+			header = queueChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			if (isNew) {
+				header.putInt(0, MAGIC);
+				header.putInt(4, VERSION);
+				header.putInt(8, RECORD_SIZE);
+				header.force();
+			} else if ((header.getInt(0) != MAGIC) || (header.getInt(4) != VERSION)
+					|| (header.getInt(8) != RECORD_SIZE)) {
+				queueFile.close();
+				throw new IOException(String.join("", queueFileName, " is not a position job queue"));
+			}
+		}
+	}
+
+	public synchronized long getAppendedNumber() throws IOException {
+		try (FileLock headerLock = queueChannel.lock(0, HEADER_SIZE, false)) {
+			return header.getLong(APPENDED_OFFSET);
+		}
+	}
+
+	public synchronized long getAckedNumber() throws IOException {
+		try (FileLock headerLock = queueChannel.lock(0, HEADER_SIZE, false)) {
+			return header.getLong(ACKED_OFFSET);
+		}
+	}
+
+	public synchronized long getFailedNumber() throws IOException {
+		try (FileLock headerLock = queueChannel.lock(0, HEADER_SIZE, false)) {
+			return header.getLong(FAILED_OFFSET);
+		}
+	}
+
+	/**
+	 * Positions neither acked nor failed yet, including the claimed ones.
+	 */
+	public synchronized long getBacklog() throws IOException {
+		try (FileLock headerLock = queueChannel.lock(0, HEADER_SIZE, false)) {
+			return header.getLong(APPENDED_OFFSET) - header.getLong(ACKED_OFFSET) - header.getLong(FAILED_OFFSET);
+		}
+	}
+
+	/**
+	 * Positions claimed and neither acked nor failed yet.
+	 */
+	public synchronized long getClaimedNumber() throws IOException {
+		try (FileLock headerLock = queueChannel.lock(0, HEADER_SIZE, false)) {
+			long claimCursor = header.getLong(CLAIM_CURSOR_OFFSET);
+			mapSegments(claimCursor);
+			long claimedNumber = 0;
+			for (long index = header.getLong(DONE_CURSOR_OFFSET); index < claimCursor; index++) {
+				if (getSegment(index).get(getRecordOffset(index) + STATE_OFFSET) == CLAIMED) {
+					claimedNumber++;
+				}
+			}
+			return claimedNumber;
+		}
+	}
+
+	/**
+	 * Appends the positions and makes them durable before they can be
+	 * claimed. Invalid fens are rejected by PositionCodec before anything is
+	 * written.
+	 */
+	public synchronized void append(List<String> fens) throws IOException {
+		byte[] records = new byte[fens.size() * RECORD_SIZE];
+		for (int fenIndex = 0; fenIndex < fens.size(); fenIndex++) {
+			PositionCodec.encode(fens.get(fenIndex), records, fenIndex * RECORD_SIZE);
+		}
+		try (FileLock headerLock = queueChannel.lock(0, HEADER_SIZE, false)) {
+			long appendedNumber = header.getLong(APPENDED_OFFSET);
+			mapSegments(appendedNumber + fens.size());
+			for (int fenIndex = 0; fenIndex < fens.size(); fenIndex++) {
+				long index = appendedNumber + fenIndex;
+				ByteBuffer segment = getSegment(index);
+				segment.position(getRecordOffset(index));
+				segment.put(records, fenIndex * RECORD_SIZE, RECORD_SIZE);
+			}
+			forceSegments(appendedNumber, appendedNumber + fens.size());
+			header.putLong(APPENDED_OFFSET, appendedNumber + fens.size());
+			header.force();
+		}
+	}
+
+	/**
+	 * Claims up to maxJobs positions, the fresh ones first and then those
+	 * whose claim is older than leaseMS. A position claimed maxClaims times
+	 * without an ack is marked as failed instead of being handed out again.
+	 */
+	public synchronized List<PositionJob> claim(int maxJobs, long leaseMS, int maxClaims) throws IOException {
+		List<PositionJob> jobs = new ArrayList<>();
+		long nowMS = System.currentTimeMillis();
+		try (FileLock headerLock = queueChannel.lock(0, HEADER_SIZE, false)) {
+			long appendedNumber = header.getLong(APPENDED_OFFSET);
+			long claimCursor = header.getLong(CLAIM_CURSOR_OFFSET);
+			mapSegments(appendedNumber);
+			while ((jobs.size() < maxJobs) && (claimCursor < appendedNumber)) {
+				jobs.add(claimRecord(claimCursor, nowMS));
+				claimCursor++;
+			}
+			header.putLong(CLAIM_CURSOR_OFFSET, claimCursor);
+			for (long index = header.getLong(DONE_CURSOR_OFFSET); (jobs.size() < maxJobs)
+					&& (index < claimCursor); index++) {
+				ByteBuffer segment = getSegment(index);
+				int recordOffset = getRecordOffset(index);
+				if ((segment.get(recordOffset + STATE_OFFSET) == CLAIMED)
+						&& (nowMS - segment.getLong(recordOffset + CLAIM_TIME_OFFSET) >= leaseMS)) {
+					if ((segment.get(recordOffset + CLAIMS_OFFSET) & 0xff) >= maxClaims) {
+						setDone(index, FAILED);
+					} else {
+						jobs.add(claimRecord(index, nowMS));
+					}
+				}
+			}
+		}
+		return jobs;
+	}
+
+	private PositionJob claimRecord(long index, long nowMS) {
+		ByteBuffer segment = getSegment(index);
+		int recordOffset = getRecordOffset(index);
+		segment.put(recordOffset + STATE_OFFSET, CLAIMED);
+		int claimsNumber = segment.get(recordOffset + CLAIMS_OFFSET) & 0xff;
+		segment.put(recordOffset + CLAIMS_OFFSET, (byte) Math.min(claimsNumber + 1, 0xff));
+		segment.putLong(recordOffset + CLAIM_TIME_OFFSET, nowMS);
+		byte[] position = new byte[PositionCodec.POSITION_SIZE];
+		segment.position(recordOffset);
+		segment.get(position);
+		return new PositionJob(index, PositionCodec.decode(position));
+	}
+
+	/**
+	 * Marks the positions as done, durably. Results must be written and
+	 * flushed before.
+	 */
+	public synchronized void ack(List<PositionJob> jobs) throws IOException {
+		if (jobs.isEmpty()) {
+			return;
+		}
+		try (FileLock headerLock = queueChannel.lock(0, HEADER_SIZE, false)) {
+			long firstIndex = Long.MAX_VALUE;
+			long lastIndex = 0;
+			mapSegments(header.getLong(APPENDED_OFFSET));
+			for (PositionJob job : jobs) {
+				setDone(job.getIndex(), ACKED);
+				firstIndex = Math.min(firstIndex, job.getIndex());
+				lastIndex = Math.max(lastIndex, job.getIndex());
+			}
+			forceSegments(firstIndex, lastIndex + 1);
+			header.force();
+		}
+	}
+
+	/**
+	 * Gives a claim back before its lease expires, so that another worker can
+	 * retry it at once.
+	 */
+	public synchronized void release(PositionJob job) throws IOException {
+		try (FileLock headerLock = queueChannel.lock(0, HEADER_SIZE, false)) {
+			mapSegments(header.getLong(APPENDED_OFFSET));
+			ByteBuffer segment = getSegment(job.getIndex());
+			int recordOffset = getRecordOffset(job.getIndex());
+			if (segment.get(recordOffset + STATE_OFFSET) == CLAIMED) {
+				segment.putLong(recordOffset + CLAIM_TIME_OFFSET, 0);
+			}
+		}
+	}
+
+	private void setDone(long index, byte state) {
+		ByteBuffer segment = getSegment(index);
+		int recordOffset = getRecordOffset(index);
+		byte previousState = segment.get(recordOffset + STATE_OFFSET);
+		if ((previousState == ACKED) || (previousState == FAILED)) {
+			// a late ack of a position already retried by another worker
+			return;
+		}
+		segment.put(recordOffset + STATE_OFFSET, state);
+		int countOffset = (state == ACKED) ? ACKED_OFFSET : FAILED_OFFSET;
+		header.putLong(countOffset, header.getLong(countOffset) + 1);
+		long doneCursor = header.getLong(DONE_CURSOR_OFFSET);
+		long claimCursor = header.getLong(CLAIM_CURSOR_OFFSET);
+		while (doneCursor < claimCursor) {
+			byte doneState = getSegment(doneCursor).get(getRecordOffset(doneCursor) + STATE_OFFSET);
+			if ((doneState != ACKED) && (doneState != FAILED)) {
+				break;
+			}
+			doneCursor++;
+		}
+		header.putLong(DONE_CURSOR_OFFSET, doneCursor);
+	}
+
+	/**
+	 * Segments of SEGMENT_RECORDS records are mapped as other processes or
+	 * appends grow the queue, so that it is not limited to 2 GB.
+	 */
+	private void mapSegments(long recordsNumber) throws IOException {
+		while ((long) segments.size() * SEGMENT_RECORDS < recordsNumber) {
+			long segmentPosition = HEADER_SIZE + segments.size() * SEGMENT_RECORDS * RECORD_SIZE;
+			segments.add(queueChannel.map(FileChannel.MapMode.READ_WRITE, segmentPosition,
+					SEGMENT_RECORDS * RECORD_SIZE));
+		}
+	}
+
+	private void forceSegments(long firstIndex, long endIndex) {
+		for (long segmentIndex = firstIndex >> SEGMENT_SHIFT; segmentIndex <= (endIndex - 1) >> SEGMENT_SHIFT
+				&& segmentIndex < segments.size(); segmentIndex++) {
+			segments.get((int) segmentIndex).force();
+		}
+	}
+
+	private ByteBuffer getSegment(long index) {
+		return segments.get((int) (index >> SEGMENT_SHIFT));
+	}
+
+	private static int getRecordOffset(long index) {
+		return (int) (index & (SEGMENT_RECORDS - 1)) * RECORD_SIZE;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+		header.force();
+		queueFile.close();
+	}
+
+	public static void main(String[] args) {
+		Properties properties = getPositionJobQueueProperties(args[0]);
+		String command = (args.length > 1) ? args[1] : "status";
+		try (PositionJobQueue positionJobQueue = new PositionJobQueue(properties.getProperty("queueFile"))) {
+			if (command.equalsIgnoreCase("add")) {
+				positionJobQueue.add(args[2], Integer.parseInt(properties.getProperty("appendBatchSize", "10000")));
+			} else if (command.equalsIgnoreCase("work")) {
+				positionJobQueue.work(properties);
+			}
+			positionJobQueue.logStatus();
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		} catch (InterruptedException e) {
+			logger.info(e.getMessage());
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static Properties getPositionJobQueueProperties(String propertiesFileName) {
+		Properties properties = new Properties();
+		try (FileInputStream fileInput = new FileInputStream(new File(propertiesFileName))) {
+			properties.load(fileInput);
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+		return properties;
+	}
+
+	private void logStatus() throws IOException {
+		String statusMsg = String.join("", "Appended ", Long.toString(getAppendedNumber()), ", acked ",
+				Long.toString(getAckedNumber()), ", failed ", Long.toString(getFailedNumber()), ", claimed ",
+				Long.toString(getClaimedNumber()), ", backlog ", Long.toString(getBacklog()));
+		logger.info(statusMsg);
+	}
+
+	/**
+	 * One fen or epd per line, optionally compressed; the epd operations are
+	 * dropped and the move counters added. Invalid positions are skipped.
+	 */
+	private void add(String fenFileName, int appendBatchSize) throws IOException {
+		long addedNumber = 0;
+		long rejectedNumber = 0;
+		List<String> fens = new ArrayList<>();
+		try (BufferedReader fenBufferedReader = CompressedStreams.getBufferedReader(fenFileName)) {
+			String line = fenBufferedReader.readLine();
+			while (line != null) {
+				String[] fields = line.trim().split("\\s+");
+				if ((fields.length >= 4) && !fields[0].startsWith("#")) {
+					boolean hasMoveCounters = (fields.length >= 6) && fields[4].matches("\\d+")
+							&& fields[5].matches("\\d+");
+					String positionFen = String.join(" ", fields[0], fields[1], fields[2], fields[3],
+							hasMoveCounters ? fields[4] : "0", hasMoveCounters ? fields[5] : "1");
+					try {
+						PositionCodec.encode(positionFen);
+						fens.add(positionFen);
+					} catch (IllegalArgumentException e) {
+						rejectedNumber++;
+					}
+				}
+				if (fens.size() >= appendBatchSize) {
+					append(fens);
+					addedNumber += fens.size();
+					fens.clear();
+				}
+				line = fenBufferedReader.readLine();
+			}
+		}
+		append(fens);
+		addedNumber += fens.size();
+		String addedMsg = String.join("", "Added ", Long.toString(addedNumber), " positions from ", fenFileName,
+				", rejected ", Long.toString(rejectedNumber));
+		logger.info(addedMsg);
+	}
+
+	/**
+	 * Analyses the queued positions with a pool of engines, writing the
+	 * results to queueFile.results.pid.tsv, until the queue is done or, with
+	 * exitWhenEmpty=no, forever.
+	 */
+	private void work(Properties properties) throws IOException, InterruptedException {
+		int claimBatchSize = Integer.parseInt(properties.getProperty("claimBatchSize", "8"));
+		long leaseMS = Long.parseLong(properties.getProperty("leaseSeconds", "600")) * 1000;
+		int maxClaims = Integer.parseInt(properties.getProperty("maxClaims", "3"));
+		long statisticsMS = Long.parseLong(properties.getProperty("statisticsSeconds", "60")) * 1000;
+		boolean isExitWhenEmpty = properties.getProperty("exitWhenEmpty", "yes").trim().equalsIgnoreCase("yes");
+		String processId = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+		String resultsFileName = String.join("", properties.getProperty("queueFile"), ".results.", processId,
+				".tsv");
+		AtomicLong analysedNumber = new AtomicLong();
+		try (EnginePool enginePool = new EnginePool(properties);
+				FileOutputStream resultsStream = CompressedStreams.getFileOutputStream(resultsFileName, true);
+				PrintWriter resultsWriter = new PrintWriter(new OutputStreamWriter(
+						CompressedStreams.getOutputStream(resultsStream, resultsFileName), StandardCharsets.UTF_8))) {
+			resultsWriter.println(String.join("\t", "index", "fen", EnginePool.RESULT_HEADER));
+			List<Thread> workers = new ArrayList<>();
+			for (int workerIndex = 0; workerIndex < enginePool.getEnginesNumber(); workerIndex++) {
+				Thread worker = new Thread(() -> {
+					try {
+						analyzeJobs(enginePool, resultsStream, resultsWriter, claimBatchSize, leaseMS, maxClaims,
+								isExitWhenEmpty, analysedNumber);
+					} catch (IOException e) {
+						logger.info(e.getMessage());
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				});
+				worker.start();
+				workers.add(worker);
+			}
+			long startMS = System.currentTimeMillis();
+			for (Thread worker : workers) {
+				while (worker.isAlive()) {
+					worker.join(statisticsMS);
+					if (worker.isAlive()) {
+						logThroughput(analysedNumber.get(), startMS);
+					}
+				}
+			}
+			logThroughput(analysedNumber.get(), startMS);
+		}
+	}
+
+	/**
+	 * The results of a batch are synced to the file before it is acked.
+	 */
+	private void analyzeJobs(EnginePool enginePool, FileOutputStream resultsStream, PrintWriter resultsWriter,
+			int claimBatchSize, long leaseMS, int maxClaims, boolean isExitWhenEmpty, AtomicLong analysedNumber)
+			throws IOException, InterruptedException {
+		while (true) {
+			List<PositionJob> jobs = claim(claimBatchSize, leaseMS, maxClaims);
+			if (jobs.isEmpty()) {
+				if (isExitWhenEmpty && (getBacklog() == 0)) {
+					return;
+				}
+				// positions claimed by other workers may still come back
+				Thread.sleep(1000);
+				continue;
+			}
+			List<PositionJob> analysedJobs = new ArrayList<>();
+			for (PositionJob job : jobs) {
+				try {
+					String result = enginePool.analyze(job.getFen());
+					synchronized (resultsWriter) {
+						resultsWriter.println(
+								String.join("\t", Long.toString(job.getIndex()), job.getFen(), result));
+					}
+					analysedJobs.add(job);
+				} catch (RuntimeException e) {
+					logger.info(String.join("", job.getFen(), ": ", e.getMessage()));
+					release(job);
+				}
+			}
+			synchronized (resultsWriter) {
+				resultsWriter.flush();
+				if (resultsWriter.checkError()) {
+					throw new IOException("Unable to write the results");
+				}
+				resultsStream.getFD().sync();
+			}
+			ack(analysedJobs);
+			analysedNumber.addAndGet(analysedJobs.size());
+		}
+	}
+
+	private void logThroughput(long analysedNumber, long startMS) throws IOException {
+		long elapsedMS = Math.max(1, System.currentTimeMillis() - startMS);
+		String throughputMsg = String.format("Analysed %d positions at %.2f positions/s, backlog %d", analysedNumber,
+				analysedNumber * 1000.0 / elapsedMS, getBacklog());
+		logger.info(throughputMsg);
+	}
+}
@@ -0,0 +1,526 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.ZobristHash;
+
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessMove;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.SAN;
+
+/**
+ * Counts the games, wins and draws of the side to move of every position and
+ * move of pgn files, within a fixed heap whatever their size, for the book
+ * and opening tree builders.
+ *
+ * A PgnTokenizer splits the games, replayed in parallel by threadsNumber
+ * workers; the statistics are counted in an open addressing table of
+ * primitive arrays, spilled to a sorted run of the temporary directory
+ * whenever it is full. The runs are then merged MAX_FAN_IN at a time and the
+ * statistics streamed in unsigned key and move order. Games without a result
+ * count as draws, so that the moves of opening collections such as ecoAll.pgn
+ * are weighted by frequency.
+ */
+class PositionMoveCounter {
+	private static final int BATCH_GAMES = 256;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAX_FAN_IN = 64;
+	// key, child key, move, games, wins and draws
+	private static final int SLOT_SIZE = 32;
+	private static final List<PgnGame> END_OF_GAMES = new ArrayList<>();
+	private final int maxPly;
+	private final int threadsNumber;
+	private final File temporaryDirectory;
+	private final MoveTable moveTable;
+	private final List<File> runs = new ArrayList<>();
+	private final AtomicLong gamesNumber = new AtomicLong();
+	private final AtomicLong pliesNumber = new AtomicLong();
+	private final AtomicLong illegalGamesNumber = new AtomicLong();
+
+	private static final Logger logger = Logger.getLogger(PositionMoveCounter.class.getName());
+
+	/**
+	 * Receives the statistics of every position and move, in unsigned key and
+	 * move order.
+	 */
+	interface MoveStatisticsConsumer {
+		void accept(long key, int move, long childKey, long games, long wins, long draws) throws IOException;
+	}
+
+	private static class PgnGame {
+		private final String startFen;
+		private final List<String> sanMoves;
+		private final String result;
+
+		PgnGame(String startFen, List<String> sanMoves, String result) {
+			this.startFen = startFen;
+			this.sanMoves = sanMoves;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Open addressing table of the statistics of position and move pairs, with
+	 * moves stored plus one so that 0 marks a free slot.
+	 */
+	private static class MoveTable {
+		private final long[] keys;
+		private final long[] childKeys;
+		private final int[] moves;
+		private final int[] games;
+		private final int[] wins;
+		private final int[] draws;
+		private final int mask;
+		private final int maxSize;
+		private int size = 0;
+
+		MoveTable(long memoryBytes) {
+			int capacity = Integer.highestOneBit((int) Math.min(1 << 30, Math.max(1024, memoryBytes / SLOT_SIZE)));
+			keys = new long[capacity];
+			childKeys = new long[capacity];
+			moves = new int[capacity];
+			games = new int[capacity];
+			wins = new int[capacity];
+			draws = new int[capacity];
+			mask = capacity - 1;
+			maxSize = capacity / 4 * 3;
+		}
+
+		/**
+		 * Counts a move with the points of the side to move, 2 for a win, 1
+		 * for a draw and 0 for a loss.
+		 */
+		void add(long key, int move, long childKey, int points) {
+			long hash = (key ^ (move * 0x9e3779b97f4a7c15L)) * 0xbf58476d1ce4e5b9L;
+			int slot = (int) (hash ^ (hash >>> 32)) & mask;
+			while ((moves[slot] != 0) && ((keys[slot] != key) || (moves[slot] != move + 1))) {
+				slot = (slot + 1) & mask;
+			}
+			if (moves[slot] == 0) {
+				keys[slot] = key;
+				childKeys[slot] = childKey;
+				moves[slot] = move + 1;
+				games[slot] = 0;
+				wins[slot] = 0;
+				draws[slot] = 0;
+				size++;
+			}
+			games[slot]++;
+			if (points == 2) {
+				wins[slot]++;
+			} else if (points == 1) {
+				draws[slot]++;
+			}
+		}
+
+		boolean isFull() {
+			return size >= maxSize;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		/**
+		 * Writes the pairs sorted by unsigned key and move to a run and empties
+		 * the table.
+		 */
+		void spill(File run) throws IOException {
+			int used = 0;
+			for (int slot = 0; slot < moves.length; slot++) {
+				if (moves[slot] != 0) {
+					keys[used] = keys[slot];
+					childKeys[used] = childKeys[slot];
+					moves[used] = moves[slot];
+					games[used] = games[slot];
+					wins[used] = wins[slot];
+					draws[used] = draws[slot];
+					used++;
+				}
+			}
+			sort(0, used);
+			try (DataOutputStream runOutput = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))) {
+				for (int slot = 0; slot < used; slot++) {
+					writeRecord(runOutput, keys[slot], moves[slot] - 1, childKeys[slot], games[slot], wins[slot],
+							draws[slot]);
+				}
+			}
+			Arrays.fill(moves, 0);
+			size = 0;
+		}
+
+		/**
+		 * In place quicksort of the first slots, recursing on the smaller part
+		 * so that the stack stays logarithmic.
+		 */
+		private void sort(int first, int end) {
+			while (end - first > 16) {
+				int middle = first + (end - first) / 2;
+				long pivotKey = keys[middle];
+				int pivotMove = moves[middle];
+				int low = first;
+				int high = end - 1;
+				while (low <= high) {
+					while (compare(keys[low], moves[low], pivotKey, pivotMove) < 0) {
+						low++;
+					}
+					while (compare(keys[high], moves[high], pivotKey, pivotMove) > 0) {
+						high--;
+					}
+					if (low <= high) {
+						swap(low++, high--);
+					}
+				}
+				if (high + 1 - first < end - low) {
+					sort(first, high + 1);
+					first = low;
+				} else {
+					sort(low, end);
+					end = high + 1;
+				}
+			}
+			for (int slot = first + 1; slot < end; slot++) {
+				for (int previous = slot; (previous > first)
+						&& (compare(keys[previous], moves[previous], keys[previous - 1], moves[previous - 1]) < 0);
+						previous--) {
+					swap(previous, previous - 1);
+				}
+			}
+		}
+
+		private void swap(int first, int second) {
+			long firstKey = keys[first];
+			keys[first] = keys[second];
+			keys[second] = firstKey;
+			long firstChildKey = childKeys[first];
+			childKeys[first] = childKeys[second];
+			childKeys[second] = firstChildKey;
+			int firstMove = moves[first];
+			moves[first] = moves[second];
+			moves[second] = firstMove;
+			int firstGames = games[first];
+			games[first] = games[second];
+			games[second] = firstGames;
+			int firstWins = wins[first];
+			wins[first] = wins[second];
+			wins[second] = firstWins;
+			int firstDraws = draws[first];
+			draws[first] = draws[second];
+			draws[second] = firstDraws;
+		}
+	}
+
+	/**
+	 * Sequential reader of a run of position and move statistics.
+	 */
+	private static class RunReader implements Closeable {
+		private final DataInputStream runInput;
+		private long key;
+		private int move;
+		private long childKey;
+		private int games;
+		private int wins;
+		private int draws;
+
+		RunReader(File run) throws IOException {
+			runInput = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+		}
+
+		boolean next() throws IOException {
+			try {
+				key = runInput.readLong();
+				move = runInput.readInt();
+				childKey = runInput.readLong();
+				games = runInput.readInt();
+				wins = runInput.readInt();
+				draws = runInput.readInt();
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			runInput.close();
+		}
+	}
+
+	PositionMoveCounter(int maxPly, int threadsNumber, long memoryBytes, File temporaryDirectory) {
+		this.maxPly = maxPly;
+		this.threadsNumber = threadsNumber;
+		this.temporaryDirectory = temporaryDirectory;
+		moveTable = new MoveTable(memoryBytes);
+	}
+
+	/**
+	 * Counts the games of the pgn files and streams the merged statistics to
+	 * the consumer, deleting the runs at the end.
+	 */
+	void count(List<String> pgnFiles, MoveStatisticsConsumer consumer) throws IOException, InterruptedException {
+		long startMS = System.currentTimeMillis();
+		try {
+			for (String pgnFile : pgnFiles) {
+				countGames(pgnFile);
+			}
+			if (!moveTable.isEmpty()) {
+				moveTable.spill(createRun());
+			}
+			long countedMS = System.currentTimeMillis();
+			String countedMsg = String.join("", "Counted ", Long.toString(gamesNumber.get()), " games, ",
+					Long.toString(pliesNumber.get()), " plies, ", Long.toString(illegalGamesNumber.get()),
+					" with an illegal move, in ", Integer.toString(runs.size()), " runs, ",
+					Long.toString(countedMS - startMS), " ms (",
+					Long.toString(gamesNumber.get() * 1000 / Math.max(1, countedMS - startMS)), " games/s)");
+			logger.info(countedMsg);
+			List<File> mergingRuns = new ArrayList<>(runs);
+			while (mergingRuns.size() > MAX_FAN_IN) {
+				List<File> mergedRuns = new ArrayList<>();
+				for (int firstRun = 0; firstRun < mergingRuns.size(); firstRun += MAX_FAN_IN) {
+					File mergedRun = createRun();
+					try (DataOutputStream runOutput = new DataOutputStream(
+							new BufferedOutputStream(new FileOutputStream(mergedRun), BUFFER_SIZE))) {
+						mergeRuns(mergingRuns.subList(firstRun, Math.min(mergingRuns.size(), firstRun + MAX_FAN_IN)),
+								(key, move, childKey, games, wins, draws) -> writeRecord(runOutput, key, move, childKey,
+										(int) Math.min(Integer.MAX_VALUE, games),
+										(int) Math.min(Integer.MAX_VALUE, wins),
+										(int) Math.min(Integer.MAX_VALUE, draws)));
+					}
+					mergedRuns.add(mergedRun);
+				}
+				for (File mergedRun : mergingRuns) {
+					Files.delete(mergedRun.toPath());
+				}
+				mergingRuns = mergedRuns;
+			}
+			mergeRuns(mergingRuns, consumer);
+		} finally {
+			for (File run : runs) {
+				Files.deleteIfExists(run.toPath());
+			}
+		}
+	}
+
+	/**
+	 * The tokenizer thread hands batches of games to the workers through a
+	 * bounded queue, so that the games in flight stay few.
+	 */
+	private void countGames(String pgnFile) throws IOException, InterruptedException {
+		BlockingQueue<List<PgnGame>> batches = new ArrayBlockingQueue<>(threadsNumber * 2);
+		ExecutorService workers = Executors.newFixedThreadPool(threadsNumber);
+		List<Future<Void>> results = new ArrayList<>();
+		for (int worker = 0; worker < threadsNumber; worker++) {
+			results.add(workers.submit(() -> {
+				replayGames(batches);
+				return null;
+			}));
+		}
+		try (PgnTokenizer pgnTokenizer = new PgnTokenizer(pgnFile)) {
+			List<PgnGame> batch = new ArrayList<>(BATCH_GAMES);
+			while (pgnTokenizer.next()) {
+				batch.add(new PgnGame(pgnTokenizer.getTag("FEN"), pgnTokenizer.getSanMoves(),
+						pgnTokenizer.getResult()));
+				if (batch.size() == BATCH_GAMES) {
+					putBatch(batches, batch, results);
+					batch = new ArrayList<>(BATCH_GAMES);
+				}
+			}
+			if (!batch.isEmpty()) {
+				putBatch(batches, batch, results);
+			}
+			for (int worker = 0; worker < threadsNumber; worker++) {
+				putBatch(batches, END_OF_GAMES, results);
+			}
+			for (Future<Void> result : results) {
+				getResult(result);
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * A worker done before the end of the games has failed: its error is
+	 * thrown instead of waiting for room in the queue forever.
+	 */
+	private static void putBatch(BlockingQueue<List<PgnGame>> batches, List<PgnGame> batch,
+			List<Future<Void>> results) throws IOException, InterruptedException {
+		while (!batches.offer(batch, 1, TimeUnit.SECONDS)) {
+			for (Future<Void> result : results) {
+				if (result.isDone()) {
+					getResult(result);
+				}
+			}
+		}
+	}
+
+	private static void getResult(Future<Void> result) throws IOException, InterruptedException {
+		try {
+			result.get();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private void replayGames(BlockingQueue<List<PgnGame>> batches) throws IOException, InterruptedException {
+		SAN san = new SAN();
+		FEN fen = new FEN();
+		long[] keys = new long[maxPly + 1];
+		int[] moves = new int[maxPly];
+		List<PgnGame> batch = batches.take();
+		while (batch != END_OF_GAMES) {
+			for (PgnGame pgnGame : batch) {
+				int plies = replayGame(pgnGame, san, fen, keys, moves);
+				boolean isWhiteFirst = (pgnGame.startFen == null) || !pgnGame.startFen.contains(" b ");
+				int whitePoints = "1-0".equals(pgnGame.result) ? 2 : "0-1".equals(pgnGame.result) ? 0 : 1;
+				synchronized (moveTable) {
+					for (int ply = 0; ply < plies; ply++) {
+						boolean isWhiteMove = ((ply % 2) == 0) == isWhiteFirst;
+						moveTable.add(keys[ply], moves[ply], keys[ply + 1],
+								isWhiteMove ? whitePoints : 2 - whitePoints);
+						if (moveTable.isFull()) {
+							moveTable.spill(createRun());
+						}
+					}
+				}
+				gamesNumber.incrementAndGet();
+				pliesNumber.addAndGet(plies);
+			}
+			batch = batches.take();
+		}
+	}
+
+	/**
+	 * Replays the first maxPly moves of the game, keeping the Polyglot move of
+	 * each ply and the position keys before and after it, up to an illegal
+	 * move if any.
+	 */
+	private int replayGame(PgnGame pgnGame, SAN san, FEN fen, long[] keys, int[] moves) {
+		int plies = 0;
+		try {
+			ChessBoard chessBoard = ((pgnGame.startFen != null) && !pgnGame.startFen.trim().isEmpty())
+					? (ChessBoard) fen.stringToBoard(pgnGame.startFen.trim())
+					: new ChessBoard();
+			keys[0] = ZobristHash.getKey(chessBoard);
+			for (String sanMove : pgnGame.sanMoves) {
+				if (plies == maxPly) {
+					break;
+				}
+				ChessMove chessMove = (ChessMove) san.stringToMove(chessBoard, sanMove);
+				if (chessMove == null) {
+					illegalGamesNumber.incrementAndGet();
+					break;
+				}
+				moves[plies] = PolyglotBook.getMove(chessMove);
+				keys[plies + 1] = keys[plies] ^ ZobristHash.getMoveDelta(chessBoard, chessMove);
+				chessBoard.playMove(chessMove);
+				plies++;
+			}
+		} catch (Exception e) {
+			illegalGamesNumber.incrementAndGet();
+		}
+		return plies;
+	}
+
+	private synchronized File createRun() throws IOException {
+		File run = File.createTempFile("moves", ".run", temporaryDirectory);
+		runs.add(run);
+		return run;
+	}
+
+	private static void writeRecord(DataOutputStream runOutput, long key, int move, long childKey, int games,
+			int wins, int draws) throws IOException {
+		runOutput.writeLong(key);
+		runOutput.writeInt(move);
+		runOutput.writeLong(childKey);
+		runOutput.writeInt(games);
+		runOutput.writeInt(wins);
+		runOutput.writeInt(draws);
+	}
+
+	private static int compare(long firstKey, int firstMove, long secondKey, int secondMove) {
+		int comparison = Long.compareUnsigned(firstKey, secondKey);
+		return (comparison != 0) ? comparison : Integer.compare(firstMove, secondMove);
+	}
+
+	/**
+	 * Merges the runs adding up the statistics of the same position and move.
+	 */
+	private static void mergeRuns(List<File> mergingRuns, MoveStatisticsConsumer consumer) throws IOException {
+		PriorityQueue<RunReader> readers = new PriorityQueue<>(Math.max(1, mergingRuns.size()),
+				(first, second) -> compare(first.key, first.move, second.key, second.move));
+		try {
+			for (File run : mergingRuns) {
+				RunReader reader = new RunReader(run);
+				if (reader.next()) {
+					readers.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+			boolean isPending = false;
+			long pendingKey = 0;
+			int pendingMove = 0;
+			long pendingChildKey = 0;
+			long pendingGames = 0;
+			long pendingWins = 0;
+			long pendingDraws = 0;
+			while (!readers.isEmpty()) {
+				RunReader reader = readers.poll();
+				if (!isPending || (pendingKey != reader.key) || (pendingMove != reader.move)) {
+					if (isPending) {
+						consumer.accept(pendingKey, pendingMove, pendingChildKey, pendingGames, pendingWins,
+								pendingDraws);
+					}
+					isPending = true;
+					pendingKey = reader.key;
+					pendingMove = reader.move;
+					pendingChildKey = reader.childKey;
+					pendingGames = 0;
+					pendingWins = 0;
+					pendingDraws = 0;
+				}
+				pendingGames += reader.games;
+				pendingWins += reader.wins;
+				pendingDraws += reader.draws;
+				if (reader.next()) {
+					readers.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+			if (isPending) {
+				consumer.accept(pendingKey, pendingMove, pendingChildKey, pendingGames, pendingWins, pendingDraws);
+			}
+		} finally {
+			for (RunReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+}
@@ -16,6 +16,7 @@ import java.util.logging.Logger;
 
 import com.alphachess.shashchessanalyzer.MoveRangeWinProbability;
 import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial;
+import com.alphachess.shashchessanalyzer.batch.AnalysisCache.AnalysisResult;
 import com.github.bhlangonijr.chesslib.Board;
 import com.github.bhlangonijr.chesslib.Piece;
 
@@ -25,9 +26,7 @@ import ictk.boardgame.chess.Square;
 import ictk.boardgame.chess.io.FEN;
 import net.andreinc.neatchess.client.UCI;
 import net.andreinc.neatchess.client.UCIResponse;
-import net.andreinc.neatchess.client.model.Analysis;
 import net.andreinc.neatchess.client.model.EngineInfo;
-import net.andreinc.neatchess.client.model.Move;
 import net.andreinc.neatchess.client.model.option.EngineOption;
 
 /**
@@ -59,6 +58,7 @@ public class SacrificesFinder {
 	private String searchMoves;
 	private String showEngineInfos;
 	private String psychological;
+	private AnalysisCache analysisCache;
 	private static Logger logger = Logger.getLogger(SacrificesFinder.class.getName());
 
 	public SacrificesFinder(String sacrificesFinderPropertiesPath,String fen) {
@@ -113,6 +113,7 @@ public class SacrificesFinder {
 
 		SacrificesFinder sacrificesFinder = new SacrificesFinder(args[0],args[1]);
 		try {
+			sacrificesFinder.openAnalysisCache();
 			sacrificesFinder.startEngine();
 			sacrificesFinder.setInitialUciOptions();
 			String showEngineInfos = sacrificesFinder.getShowEngineInfos();
@@ -187,48 +188,63 @@ public class SacrificesFinder {
 		return movesRanges;
 	}
 
-	private int getWinProbability(String currentLegalMoveSan, String currentFen) {
+	private int getWinProbability(String currentLegalMoveSan, String currentFen) throws IOException {
 		long currentAverageTimeMSForMove = strongestAverageTimeSecondsForMove * 1000;
-		uci.uciNewGame();
-		uci.positionFen(fen);
-		String goCommand = currentLegalMoveSan.isEmpty() ? "go movetime %d"
-				: String.join("", "go movetime %d ", "searchmoves ", currentLegalMoveSan);
-		UCIResponse<Analysis> response = uci.command(format(goCommand, currentAverageTimeMSForMove),
-				UCI.analysis::process, breakOn("bestmove"), uci.getDefaultTimeout());
-		Analysis analysis = response.getResultOrThrow();
-		Move bestMove = analysis.getBestMove();
-		if ((bestMove == null) || bestMove.getLan().trim().isEmpty()) {
-			searchMoves = uci.bestMove(currentAverageTimeMSForMove).getResultOrThrow().getCurrent();
-			goCommand = String.join("", "go movetime %d ", "searchmoves ", searchMoves);
-			response = uci.command(format(goCommand, currentAverageTimeMSForMove), UCI.analysis::process,
-					breakOn("bestmove"), uci.getDefaultTimeout());
-			analysis = response.getResultOrThrow();
-			bestMove = analysis.getBestMove();
+		AnalysisResult analysisResult = analyze(currentFen, currentLegalMoveSan, currentAverageTimeMSForMove);
+		if (!analysisResult.isScored()) {
+			searchMoves = analysisResult.getBestMove();
+			analysisResult = analyze(currentFen, searchMoves, currentAverageTimeMSForMove);
 		}
-		if (bestMove != null) {
-			int score = ((Double) (bestMove.getStrength().getScore() * 100)).intValue();
-			return WinProbabilityByMaterial.getWinProbabilityFromScore(score, currentFen);
+		if (analysisResult.isScored()) {
+			return WinProbabilityByMaterial.getWinProbabilityFromScore(analysisResult.getScore(), currentFen);
 		} else {
 			return 0;
 		}
 	}
 
+	private AnalysisResult analyze(String currentFen, String currentSearchMoves, long currentAverageTimeMSForMove)
+			throws IOException {
+		AnalysisResult analysisResult = (analysisCache != null)
+				? analysisCache.get(currentFen, currentSearchMoves, currentAverageTimeMSForMove, 0)
+				: null;
+		if (analysisResult == null) {
+			uci.uciNewGame();
+			uci.positionFen(currentFen);
+			String goCommand = currentSearchMoves.isEmpty() ? "go movetime %d"
+					: String.join("", "go movetime %d ", "searchmoves ", currentSearchMoves);
+			List<String> searchLines = uci.command(format(goCommand, currentAverageTimeMSForMove), lines -> lines,
+					breakOn("bestmove"), uci.getDefaultTimeout()).getResultOrThrow();
+			analysisResult = AnalysisCache.parse(searchLines, currentAverageTimeMSForMove);
+			if (analysisCache != null) {
+				analysisCache.put(currentFen, currentSearchMoves, analysisResult);
+			}
+		}
+		return analysisResult;
+	}
+
+	private void openAnalysisCache() throws IOException {
+		String analysisCacheFile = sacrificesFinderProperties.getProperty("analysisCacheFile", "").trim();
+		if (!analysisCacheFile.isEmpty()) {
+			String engineOptions = String.join(" ", engineName, Integer.toString(multiPV), syzygyPath,
+					syzygyProbeDepth, fullDepthThreads, openingVariety, persistedLearning, readOnlyLearning, mcts,
+					mCTSThreads);
+			analysisCache = new AnalysisCache(analysisCacheFile,
+					Integer.parseInt(sacrificesFinderProperties.getProperty("analysisCacheSize", "100000")),
+					engineOptions);
+		}
+	}
+
 	public boolean isSacrifice(com.github.bhlangonijr.chesslib.move.Move nextMove, Board currentChessBoard,
-			float sideToMoveMaterialDifference, boolean isBlackInitialSide) {
+			float sideToMoveMaterialDifference, boolean isBlackInitialSide) throws IOException {
 		long currentAverageTimeMSForMove = strongestAverageTimeSecondsForMove * 1000;
 		currentChessBoard.doMove(nextMove);
 		String afterNextMoveChessBoardFen = currentChessBoard.getFen();
 		Board afterNextMoveBoard = new Board();
 		afterNextMoveBoard.loadFromFen(afterNextMoveChessBoardFen);
 		currentChessBoard.undoMove();
-		uci.uciNewGame();
-		uci.positionFen(afterNextMoveChessBoardFen);
-		UCIResponse<Analysis> response = uci.analysis(currentAverageTimeMSForMove);
-		Analysis analysis = response.getResultOrThrow();
-		Move bestMove = analysis.getBestMove();
-		String bestMoveLan = bestMove.getLan();
+		String bestMoveLan = analyze(afterNextMoveChessBoardFen, "", currentAverageTimeMSForMove).getBestMove();
 		com.github.bhlangonijr.chesslib.move.Move chessLibMove = null;
-		if (bestMoveLan != null) {
+		if (!bestMoveLan.isEmpty()) {
 			chessLibMove = new com.github.bhlangonijr.chesslib.move.Move(bestMoveLan,
 					afterNextMoveBoard.getSideToMove());
 		}
@@ -358,6 +374,13 @@ public class SacrificesFinder {
 
 	private void closeEngine() {
 		uci.close();
+		if (analysisCache != null) {
+			try {
+				analysisCache.close();
+			} catch (IOException e) {
+				logger.info(e.getMessage());
+			}
+		}
 		logger.info("Engine closed");
 		System.exit(0);
 	}
@@ -0,0 +1,129 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+import com.alphachess.shashchessanalyzer.ZobristHash;
+
+import ictk.boardgame.AmbiguousMoveException;
+import ictk.boardgame.History;
+import ictk.boardgame.IllegalMoveException;
+import ictk.boardgame.Move;
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.io.PGNReader;
+import ictk.boardgame.io.Annotation;
+import ictk.boardgame.io.InvalidGameFormatException;
+
+/**
+ * Finds input games whose final position, the self-play seed, transposes into
+ * a seed already played in this run or in earlier output pgns.
+ */
+public class SeedPositionDeduplicator {
+	private static final String SELF_PLAY_COMMENT_REGEX = "-?\\d+;\\d+;\\d+;s-.*";
+	// incorrect input games are not played but keep their number, as in the play loop
+	private static final ChessGame INCORRECT_GAME = new ChessGame();
+	private final Map<Long, String> playedSeedSources = new HashMap<>();
+
+	private static final Logger logger = Logger.getLogger(SeedPositionDeduplicator.class.getName());
+
+	/**
+	 * Registers the seed of every game of an earlier output pgn: the position
+	 * before its first move annotated by self play, a book move or a searched
+	 * one.
+	 */
+	public void addPlayedPgn(String playedPgn) throws IOException {
+		if (!new File(playedPgn).exists()) {
+			return;
+		}
+		try (BufferedReader playedBufferedReader = CompressedStreams.getBufferedReader(playedPgn)) {
+			PGNReader playedPgnReader = new PGNReader(playedBufferedReader);
+			int playedGameNumber = 0;
+			ChessGame playedGame = GenericUtil.readGame(playedPgnReader);
+			while (playedGame != null) {
+				playedGameNumber++;
+				ChessBoard seedChessBoard = getSelfPlaySeed(playedGame);
+				if (seedChessBoard != null) {
+					playedSeedSources.putIfAbsent(ZobristHash.getKey(seedChessBoard),
+							String.join("", playedPgn, " game ", Integer.toString(playedGameNumber)));
+				}
+				playedGame = GenericUtil.readGame(playedPgnReader);
+			}
+		}
+		String playedSeedsMsg = String.join("", "Played seeds after ", playedPgn, ": ",
+				Integer.toString(playedSeedSources.size()));
+		logger.info(playedSeedsMsg);
+	}
+
+	/**
+	 * Returns the numbers of the input games whose seed was already played,
+	 * counted in file order with the incorrect games like the play loop. The
+	 * games before firstInputGame are not played, so their seeds are not
+	 * registered.
+	 */
+	public Set<Integer> getDuplicateInputGames(String inputGamesPgn, int firstInputGame) throws IOException {
+		Set<Integer> duplicateInputGames = new HashSet<>();
+		try (BufferedReader inputBufferedReader = CompressedStreams.getBufferedReader(inputGamesPgn)) {
+			PGNReader inputPgnReader = new PGNReader(inputBufferedReader);
+			int inputGameNumber = 0;
+			ChessGame inputGame = readInputGame(inputPgnReader);
+			while (inputGame != null) {
+				inputGameNumber++;
+				if ((inputGame == INCORRECT_GAME) || (inputGameNumber < firstInputGame)) {
+					inputGame = readInputGame(inputPgnReader);
+					continue;
+				}
+				inputGame.getHistory().goToEnd();
+				long seedKey = ZobristHash.getKey((ChessBoard) inputGame.getBoard());
+				String inputGameSource = String.join("", "input game ", Integer.toString(inputGameNumber));
+				String playedSeedSource = playedSeedSources.putIfAbsent(seedKey, inputGameSource);
+				if (playedSeedSource != null) {
+					duplicateInputGames.add(inputGameNumber);
+					logger.info(String.join("", "Skipping ", inputGameSource, ": same seed position as ",
+							playedSeedSource));
+				}
+				inputGame = readInputGame(inputPgnReader);
+			}
+			String duplicatesMsg = String.join("", "Duplicate seed positions: ",
+					Integer.toString(duplicateInputGames.size()), "/", Integer.toString(inputGameNumber));
+			logger.info(duplicatesMsg);
+		}
+		return duplicateInputGames;
+	}
+
+	/**
+	 * The next game, INCORRECT_GAME if it has an incorrect pgn, or null.
+	 */
+	private static ChessGame readInputGame(PGNReader pgnReader) throws IOException {
+		try {
+			return (ChessGame) pgnReader.readGame();
+		} catch (InvalidGameFormatException | IllegalMoveException | AmbiguousMoveException ex) {
+			return INCORRECT_GAME;
+		}
+	}
+
+	private ChessBoard getSelfPlaySeed(ChessGame playedGame) {
+		History playedHistory = playedGame.getHistory();
+		playedHistory.rewind();
+		Move nextMove = playedHistory.getNext();
+		while (nextMove != null) {
+			Annotation annotation = nextMove.getAnnotation();
+			String comment = ((annotation != null) && (annotation.getComment() != null))
+					? annotation.getComment().trim()
+					: "";
+			if (comment.equals(ShashChessPlayer.BOOK_COMMENT) || comment.matches(SELF_PLAY_COMMENT_REGEX)) {
+				return (ChessBoard) playedGame.getBoard();
+			}
+			playedHistory.next();
+			nextMove = playedHistory.getNext();
+		}
+		return null;
+	}
+}
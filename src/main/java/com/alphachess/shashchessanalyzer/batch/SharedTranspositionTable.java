@@ -0,0 +1,317 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Fixed-size transposition table of analysis results in a memory-mapped
+ * file, shared off-heap by any number of threads and local processes. It is
+ * keyed by the 64 bits ZobristHash of the position and holds its score,
+ * depth, best move and Shashin range.
+ *
+ * The entries are open addressed in buckets of BUCKET_ENTRIES. No lock is
+ * taken on them: each entry starts with a check word, a hash of its key, data
+ * and move, written with them. An entry mixing the words of two concurrent
+ * stores, or torn by a process killed in the middle of a store, fails the
+ * check, so it is never returned and is the first one replaced; the store
+ * that lost the race only costs a search. In a full bucket the entry with the
+ * lowest depth, aged by the generations passed since it was stored, is
+ * replaced; an entry of the same position is only replaced by a deeper or
+ * newer one. The generation is kept in the header and shared by all the
+ * processes: opening the table does not change it, newSession does, under a
+ * lock of the header, when the stored results should start giving way to the
+ * new ones.
+ */
+public class SharedTranspositionTable implements Closeable {
+	public static final int MAX_SIZE_MB = 1024;
+	private static final int MAGIC = 0x53435454;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 64;
+	private static final int ENTRIES_NUMBER_OFFSET = 8;
+	private static final int GENERATION_OFFSET = 16;
+	private static final int ENTRY_SIZE = 32;
+	private static final int BUCKET_ENTRIES = 4;
+	private static final int KEY_OFFSET = 8;
+	private static final int DATA_OFFSET = 16;
+	private static final int MOVE_OFFSET = 24;
+	// the header locks of the tables of this jvm must not overlap
+	private static final Object HEADER_MONITOR = new Object();
+	private final RandomAccessFile tableFile;
+	private final MappedByteBuffer table;
+	private final long bucketsMask;
+	private final LongAdder probesNumber = new LongAdder();
+	private final LongAdder hitsNumber = new LongAdder();
+	private final LongAdder storesNumber = new LongAdder();
+
+	private static final Logger logger = Logger.getLogger(SharedTranspositionTable.class.getName());
+
+	public static class TranspositionEntry {
+		private final int score;
+		private final int depth;
+		private final int range;
+		private final String bestMove;
+
+		public TranspositionEntry(int score, int depth, int range, String bestMove) {
+			this.score = score;
+			this.depth = depth;
+			this.range = range;
+			this.bestMove = bestMove;
+		}
+
+		public int getScore() {
+			return score;
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public int getRange() {
+			return range;
+		}
+
+		public String getBestMove() {
+			return bestMove;
+		}
+	}
+
+	/**
+	 * Opens the table, creating it with sizeMB, rounded down to a power of
+	 * two, if the file does not exist; an existing table keeps its size.
+	 */
+	@SuppressWarnings("try")
+	public SharedTranspositionTable(String tableFileName, int sizeMB) throws IOException {
+		tableFile = new RandomAccessFile(tableFileName, "rw");
+		FileChannel tableChannel = tableFile.getChannel();
+		long entriesNumber;
+		// only the creation is serialized, so that two processes do not size the same file differently
+		synchronized (HEADER_MONITOR) {
+			try (FileLock creationLock = tableChannel.lock(0, HEADER_SIZE, false)) {
+				if (tableChannel.size() < HEADER_SIZE) {
+					entriesNumber = Long.highestOneBit(
+							(long) Math.max(1, Math.min(sizeMB, MAX_SIZE_MB)) * 1024 * 1024 / ENTRY_SIZE);
+					tableFile.setLength(HEADER_SIZE + entriesNumber * ENTRY_SIZE);
+					table = tableChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + entriesNumber * ENTRY_SIZE);
+					table.putInt(4, VERSION);
+					table.putLong(ENTRIES_NUMBER_OFFSET, entriesNumber);
+					table.putInt(0, MAGIC);
+					table.force();
+				} else {
+					MappedByteBuffer header = tableChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+					entriesNumber = header.getLong(ENTRIES_NUMBER_OFFSET);
+					if ((header.getInt(0) != MAGIC) || (header.getInt(4) != VERSION)
+							|| (Long.bitCount(entriesNumber) != 1)
+							|| (tableChannel.size() != HEADER_SIZE + entriesNumber * ENTRY_SIZE)) {
+						tableFile.close();
+						throw new IOException(String.join("", tableFileName, " is not a shared transposition table"));
+					}
+					table = tableChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + entriesNumber * ENTRY_SIZE);
+				}
+			}
+		}
+		bucketsMask = entriesNumber / BUCKET_ENTRIES - 1;
+		String openedMsg = String.join("", "Shared transposition table ", tableFileName, ": ",
+				Long.toString(entriesNumber), " entries, generation ", Integer.toString(getGeneration()));
+		logger.info(openedMsg);
+	}
+
+	/**
+	 * Starts a new generation for all the processes sharing the table, so that
+	 * the entries stored until now are replaced first. Returns it.
+	 */
+	@SuppressWarnings("try")
+	public int newSession() throws IOException {
+		int generation;
+		synchronized (HEADER_MONITOR) {
+			try (FileLock headerLock = tableFile.getChannel().lock(0, HEADER_SIZE, false)) {
+				generation = (int) (table.getLong(GENERATION_OFFSET) + 1) & 0xff;
+				table.putLong(GENERATION_OFFSET, generation);
+			}
+		}
+		String sessionMsg = String.join("", "Shared transposition table: generation ", Integer.toString(generation));
+		logger.info(sessionMsg);
+		return generation;
+	}
+
+	public int getGeneration() {
+		return (int) table.getLong(GENERATION_OFFSET) & 0xff;
+	}
+
+	/**
+	 * Generations passed since the entry generation; an entry stored by a
+	 * process that had not seen the last newSession yet is just current.
+	 */
+	private static int getAge(int generation, long data) {
+		return Math.max(0, (byte) (generation - ((int) (data >>> 56) & 0xff)));
+	}
+
+	/**
+	 * The entry of the position, or null.
+	 */
+	public TranspositionEntry probe(long key) {
+		probesNumber.increment();
+		int bucketOffset = getBucketOffset(key);
+		for (int entryIndex = 0; entryIndex < BUCKET_ENTRIES; entryIndex++) {
+			int entryOffset = bucketOffset + entryIndex * ENTRY_SIZE;
+			long check = table.getLong(entryOffset);
+			long entryKey = table.getLong(entryOffset + KEY_OFFSET);
+			long data = table.getLong(entryOffset + DATA_OFFSET);
+			long move = table.getLong(entryOffset + MOVE_OFFSET);
+			if ((check == 0) && (entryKey == 0) && (data == 0) && (move == 0)) {
+				// entries are filled in order, so the position is not in the bucket
+				return null;
+			}
+			if ((entryKey == key) && (check == getCheck(entryKey, data, move))) {
+				hitsNumber.increment();
+				return new TranspositionEntry((int) data, (int) (data >>> 32) & 0xffff, (byte) (data >>> 48),
+						toMove(move));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the analysis of the position, unless a deeper analysis of it from
+	 * this generation is already there. Returns whether it was stored.
+	 */
+	public boolean store(long key, int score, int depth, int range, String bestMove) {
+		int storedDepth = Math.max(0, Math.min(depth, 0xffff));
+		int generation = getGeneration();
+		int bucketOffset = getBucketOffset(key);
+		int replacedOffset = -1;
+		int replacedValue = Integer.MAX_VALUE;
+		for (int entryIndex = 0; entryIndex < BUCKET_ENTRIES; entryIndex++) {
+			int entryOffset = bucketOffset + entryIndex * ENTRY_SIZE;
+			long check = table.getLong(entryOffset);
+			long entryKey = table.getLong(entryOffset + KEY_OFFSET);
+			long data = table.getLong(entryOffset + DATA_OFFSET);
+			long move = table.getLong(entryOffset + MOVE_OFFSET);
+			boolean isEmpty = (check == 0) && (entryKey == 0) && (data == 0) && (move == 0);
+			boolean isValid = !isEmpty && (check == getCheck(entryKey, data, move));
+			int entryDepth = (int) (data >>> 32) & 0xffff;
+			int entryAge = getAge(generation, data);
+			if (isEmpty || (isValid && (entryKey == key))) {
+				if (!isEmpty && (entryAge == 0) && (entryDepth > storedDepth)) {
+					return false;
+				}
+				replacedOffset = entryOffset;
+				break;
+			}
+			// an entry torn by concurrent or interrupted stores is replaced first
+			int entryValue = isValid ? entryDepth - 8 * entryAge : Integer.MIN_VALUE;
+			if (entryValue < replacedValue) {
+				replacedValue = entryValue;
+				replacedOffset = entryOffset;
+			}
+		}
+		long data = (score & 0xffffffffL) | ((long) storedDepth << 32) | (((long) range & 0xff) << 48)
+				| ((long) generation << 56);
+		long move = toLong(bestMove);
+		table.putLong(replacedOffset + KEY_OFFSET, key);
+		table.putLong(replacedOffset + DATA_OFFSET, data);
+		table.putLong(replacedOffset + MOVE_OFFSET, move);
+		table.putLong(replacedOffset, getCheck(key, data, move));
+		storesNumber.increment();
+		return true;
+	}
+
+	/**
+	 * Hash of the words of an entry, never 0, so that an empty entry does not
+	 * pass it and the words of two different entries do not either.
+	 */
+	private static long getCheck(long key, long data, long move) {
+		long check = mix(mix(mix(key) ^ data) ^ move);
+		return (check != 0) ? check : 1;
+	}
+
+	private static long mix(long value) {
+		long mixed = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+		mixed = (mixed ^ (mixed >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		return mixed ^ (mixed >>> 33);
+	}
+
+	private int getBucketOffset(long key) {
+		// the high bits select the bucket, so that they are independent of the low bits of the key
+		long bucketIndex = ((key >>> 32) ^ key) & bucketsMask;
+		return (int) (HEADER_SIZE + bucketIndex * BUCKET_ENTRIES * ENTRY_SIZE);
+	}
+
+	/**
+	 * Best move in coordinate notation, up to 8 ascii characters, packed in
+	 * the entry.
+	 */
+	private static long toLong(String bestMove) {
+		long move = 0;
+		if (bestMove != null) {
+			byte[] moveBytes = bestMove.getBytes(StandardCharsets.US_ASCII);
+			for (int byteIndex = 0; byteIndex < Math.min(moveBytes.length, 8); byteIndex++) {
+				move |= ((long) moveBytes[byteIndex] & 0xff) << (8 * byteIndex);
+			}
+		}
+		return move;
+	}
+
+	private static String toMove(long move) {
+		StringBuilder bestMove = new StringBuilder(8);
+		for (int byteIndex = 0; (byteIndex < 8) && (((move >>> (8 * byteIndex)) & 0xff) != 0); byteIndex++) {
+			bestMove.append((char) ((move >>> (8 * byteIndex)) & 0xff));
+		}
+		return bestMove.toString();
+	}
+
+	/**
+	 * Permille of the first 1000 buckets entries stored in this generation,
+	 * as the uci hashfull.
+	 */
+	public int getHashfull() {
+		int entriesNumber = (int) Math.min(1000, (bucketsMask + 1) * BUCKET_ENTRIES);
+		int currentEntriesNumber = 0;
+		int generation = getGeneration();
+		for (int entryIndex = 0; entryIndex < entriesNumber; entryIndex++) {
+			int entryOffset = HEADER_SIZE + entryIndex * ENTRY_SIZE;
+			long data = table.getLong(entryOffset + DATA_OFFSET);
+			if ((table.getLong(entryOffset) == getCheck(table.getLong(entryOffset + KEY_OFFSET), data,
+					table.getLong(entryOffset + MOVE_OFFSET))) && (((data >>> 56) & 0xff) == generation)) {
+				currentEntriesNumber++;
+			}
+		}
+		return currentEntriesNumber * 1000 / entriesNumber;
+	}
+
+	public long getProbesNumber() {
+		return probesNumber.sum();
+	}
+
+	public long getHitsNumber() {
+		return hitsNumber.sum();
+	}
+
+	public long getStoresNumber() {
+		return storesNumber.sum();
+	}
+
+	public void logStatistics() {
+		long probes = getProbesNumber();
+		String statisticsMsg = String.format(
+				"Shared transposition table: %d probes, %d hits (%.1f%%), %d stores, hashfull %d", probes,
+				getHitsNumber(), (probes > 0) ? getHitsNumber() * 100.0 / probes : 0.0, getStoresNumber(),
+				getHashfull());
+		logger.info(statisticsMsg);
+	}
+
+	/**
+	 * The mapping itself is released when the table is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		table.force();
+		tableFile.close();
+	}
+}
@@ -0,0 +1,268 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static java.lang.String.format;
+import static net.andreinc.neatchess.client.breaks.Break.breakOn;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial;
+
+import ictk.boardgame.AmbiguousMoveException;
+import ictk.boardgame.History;
+import ictk.boardgame.IllegalMoveException;
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.ChessGameInfo;
+import ictk.boardgame.chess.ChessPlayer;
+import ictk.boardgame.chess.ChessResult;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.PGNReader;
+import ictk.boardgame.chess.io.PGNWriter;
+import net.andreinc.neatchess.client.UCI;
+import net.andreinc.neatchess.client.model.BestMove;
+import net.andreinc.neatchess.client.model.Move;
+
+/**
+ * Match between two engine configurations: game pairs with reversed colours
+ * from the seed positions of a pgn, played in parallel, stopped by an SPRT as
+ * soon as the result is decided.
+ */
+public class ShashChessGauntlet {
+	private Properties shashChessGauntletProperties;
+	private String engineNameA;
+	private String engineNameB;
+	private String uciOptionsA;
+	private String uciOptionsB;
+	private int threadsNumber;
+	private int hashSizeMB;
+	private long moveTimeMS;
+	private long timeoutMS;
+	private int concurrency;
+	private int maxGamePairs;
+	private int maxMovesNumber;
+	private String seedsPgn;
+	private String pgnOutputFileName;
+	private double elo0;
+	private double elo1;
+	private double alpha;
+	private double beta;
+	private int resignWinProbability;
+	private int resignPlies;
+	private int drawPlies;
+	private int drawMinMoveNumber;
+	private List<String> seedFens = new ArrayList<>();
+	private Sprt sprt;
+	private PGNWriter pgnWriter;
+	private PrintWriter pw;
+	private final AtomicInteger nextSeed = new AtomicInteger();
+	private final AtomicBoolean decided = new AtomicBoolean();
+
+	private static final Logger logger = Logger.getLogger(ShashChessGauntlet.class.getName());
+
+	public ShashChessGauntlet(String[] args) {
+		shashChessGauntletProperties = getShashChessGauntletProperties(args);
+		setInputParameters();
+		sprt = new Sprt(elo0, elo1, alpha, beta);
+	}
+
+	private void setInputParameters() {
+		engineNameA = shashChessGauntletProperties.getProperty("engineNameA");
+		engineNameB = shashChessGauntletProperties.getProperty("engineNameB", engineNameA);
+		uciOptionsA = shashChessGauntletProperties.getProperty("uciOptionsA", "");
+		uciOptionsB = shashChessGauntletProperties.getProperty("uciOptionsB", "");
+		threadsNumber = Integer.parseInt(shashChessGauntletProperties.getProperty("threadsNumber"));
+		hashSizeMB = Integer.parseInt(shashChessGauntletProperties.getProperty("hashSizeMB"));
+		moveTimeMS = Long.parseLong(shashChessGauntletProperties.getProperty("moveTimeMS"));
+		timeoutMS = Long.parseLong(shashChessGauntletProperties.getProperty("timeoutSeconds")) * 1000;
+		concurrency = Integer.parseInt(shashChessGauntletProperties.getProperty("concurrency"));
+		maxGamePairs = Integer.parseInt(shashChessGauntletProperties.getProperty("maxGamePairs"));
+		maxMovesNumber = Integer.parseInt(shashChessGauntletProperties.getProperty("maxMovesNumber"));
+		seedsPgn = shashChessGauntletProperties.getProperty("seedsPgn");
+		pgnOutputFileName = shashChessGauntletProperties.getProperty("pgnOutputFileName");
+		elo0 = Double.parseDouble(shashChessGauntletProperties.getProperty("elo0"));
+		elo1 = Double.parseDouble(shashChessGauntletProperties.getProperty("elo1"));
+		alpha = Double.parseDouble(shashChessGauntletProperties.getProperty("alpha"));
+		beta = Double.parseDouble(shashChessGauntletProperties.getProperty("beta"));
+		resignWinProbability = Integer.parseInt(shashChessGauntletProperties.getProperty("resignWinProbability", "0"));
+		resignPlies = Integer.parseInt(shashChessGauntletProperties.getProperty("resignPlies", "0"));
+		drawPlies = Integer.parseInt(shashChessGauntletProperties.getProperty("drawPlies", "0"));
+		drawMinMoveNumber = Integer.parseInt(shashChessGauntletProperties.getProperty("drawMinMoveNumber", "0"));
+	}
+
+	private Properties getShashChessGauntletProperties(String[] args) {
+		Properties properties = new Properties();
+		File file = new File(args[0]);
+		try (FileInputStream fileInput = new FileInputStream(file)) {
+			properties.load(fileInput);
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+		return properties;
+	}
+
+	public static void main(String[] args) {
+		ShashChessGauntlet shashChessGauntlet = new ShashChessGauntlet(args);
+		try {
+			shashChessGauntlet.loadSeedFens();
+			shashChessGauntlet.play();
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		} catch (InterruptedException e) {
+			logger.info(e.getMessage());
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void loadSeedFens() throws IOException {
+		FEN fen = new FEN();
+		try (BufferedReader seedsBufferedReader = CompressedStreams.getBufferedReader(seedsPgn.trim())) {
+			PGNReader seedsPgnReader = new PGNReader(seedsBufferedReader);
+			ChessGame seedGame = GenericUtil.readGame(seedsPgnReader);
+			while (seedGame != null) {
+				seedGame.getHistory().goToEnd();
+				seedFens.add(fen.boardToString(seedGame.getBoard()));
+				seedGame = GenericUtil.readGame(seedsPgnReader);
+			}
+		}
+		String seedsMsg = String.join("", "Seed positions: ", Integer.toString(seedFens.size()));
+		logger.info(seedsMsg);
+	}
+
+
+	private void play() throws IOException, InterruptedException {
+		pw = CompressedStreams.getPrintWriter(pgnOutputFileName, true);
+		pgnWriter = new PGNWriter(pw);
+		ExecutorService executorService = Executors.newFixedThreadPool(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			executorService.execute(this::playGamePairs);
+		}
+		executorService.shutdown();
+		executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		pw.close();
+		pgnWriter.close();
+		Sprt.Decision decision = sprt.getDecision();
+		String resultMsg = String.join("", sprt.getStatus(), " - ",
+				decision == Sprt.Decision.H1 ? "B is stronger than A"
+						: decision == Sprt.Decision.H0 ? "B is not stronger than A" : "undecided");
+		logger.info(resultMsg);
+	}
+
+	private void playGamePairs() {
+		UCI uciA = getEngine(engineNameA, uciOptionsA);
+		UCI uciB = getEngine(engineNameB, uciOptionsB);
+		GameAdjudicator gameAdjudicator = new GameAdjudicator(resignWinProbability, resignPlies, drawPlies,
+				drawMinMoveNumber * 2);
+		try {
+			int seed = nextSeed.getAndIncrement();
+			while (!decided.get() && (seed < maxGamePairs)) {
+				String seedFen = seedFens.get(seed % seedFens.size());
+				double firstScore = getScoreB(playGame(seedFen, uciA, uciB, false, gameAdjudicator), false);
+				double secondScore = getScoreB(playGame(seedFen, uciB, uciA, true, gameAdjudicator), true);
+				Sprt.Decision decision = sprt.addPair(firstScore, secondScore);
+				logger.info(sprt.getStatus());
+				if (decision != Sprt.Decision.CONTINUE) {
+					decided.set(true);
+				}
+				seed = nextSeed.getAndIncrement();
+			}
+		} catch (IOException | IllegalMoveException | AmbiguousMoveException e) {
+			logger.info(e.getMessage());
+		} finally {
+			uciA.close();
+			uciB.close();
+		}
+	}
+
+	private double getScoreB(ChessResult result, boolean isWhiteB) {
+		if (result.isDraw()) {
+			return 0.5;
+		}
+		return (result.isWhiteWin() == isWhiteB) ? 1 : 0;
+	}
+
+	private ChessResult playGame(String seedFen, UCI whiteUci, UCI blackUci, boolean isWhiteB,
+			GameAdjudicator gameAdjudicator)
+			throws IOException, IllegalMoveException, AmbiguousMoveException {
+		FEN fen = new FEN();
+		ChessBoard chessBoard = (ChessBoard) fen.stringToBoard(seedFen);
+		ChessGame chessGame = new ChessGame();
+		chessGame.setBoard(chessBoard);
+		History history = chessGame.getHistory();
+		whiteUci.uciNewGame();
+		blackUci.uciNewGame();
+		gameAdjudicator.newGame(chessBoard);
+		ChessResult result = null;
+		int ply = 0;
+		while ((result == null) && (ply < maxMovesNumber * 2)) {
+			if (chessBoard.isCheckmate()) {
+				result = new ChessResult(chessBoard.isBlackMove() ? ChessResult.WHITE_WIN : ChessResult.BLACK_WIN);
+			} else if (chessBoard.isStalemate() || chessBoard.is50MoveRuleApplicible()) {
+				result = new ChessResult(ChessResult.DRAW);
+			} else {
+				boolean isBlackMove = chessBoard.isBlackMove();
+				UCI sideUci = isBlackMove ? blackUci : whiteUci;
+				String currentFen = fen.boardToString(chessBoard);
+				sideUci.positionFen(currentFen);
+				List<String> searchLines = sideUci.command(format("go movetime %d", moveTimeMS), lines -> lines,
+						breakOn("bestmove"), timeoutMS).getResultOrThrow();
+				BestMove bestMoveOnly = UCI.bestMove.process(searchLines);
+				Move bestMove = UCI.analysis.process(searchLines).getBestMove();
+				int score = (bestMove != null) ? AnalysisCache.getScore(bestMove.getStrength()) : 0;
+				history.add(LanMoveConverter.getChessMove(chessBoard, bestMoveOnly.getCurrent()));
+				ply++;
+				result = gameAdjudicator.adjudicate(
+						WinProbabilityByMaterial.getWinProbabilityFromScore(score, currentFen), isBlackMove,
+						chessBoard);
+			}
+		}
+		if (result == null) {
+			result = new ChessResult(ChessResult.DRAW);
+		}
+		writeGame(chessGame, isWhiteB, result);
+		return result;
+	}
+
+	private synchronized void writeGame(ChessGame chessGame, boolean isWhiteB, ChessResult result) throws IOException {
+		ChessGameInfo chessGameInfo = new ChessGameInfo();
+		chessGameInfo.setWhite(new ChessPlayer(isWhiteB ? engineNameB + " B" : engineNameA + " A"));
+		chessGameInfo.setBlack(new ChessPlayer(isWhiteB ? engineNameA + " A" : engineNameB + " B"));
+		chessGameInfo.setEvent("Gauntlet");
+		chessGameInfo.setResult(result);
+		chessGame.setGameInfo(chessGameInfo);
+		pgnWriter.writeGame(chessGame);
+		pw.print("\r\n");
+		pw.flush();
+	}
+
+	private UCI getEngine(String engineName, String uciOptions) {
+		UCI uci = new UCI(timeoutMS);
+		String engineNameWithExtension = String.join("",
+				(System.getProperty("os.name").contains("Windows") ? engineName : String.join("", "./", engineName)),
+				(System.getProperty("os.name").contains("Windows") ? ".exe" : ""));
+		uci.start(engineNameWithExtension);
+		uci.setOption("Threads", Integer.toString(threadsNumber), timeoutMS).getResultOrThrow();
+		uci.setOption("Hash", Integer.toString(hashSizeMB), timeoutMS).getResultOrThrow();
+		for (String uciOption : uciOptions.split(",")) {
+			int separator = uciOption.indexOf('=');
+			if (separator > 0) {
+				uci.setOption(uciOption.substring(0, separator).trim(), uciOption.substring(separator + 1).trim(),
+						timeoutMS).getResultOrThrow();
+			}
+		}
+		return uci;
+	}
+}
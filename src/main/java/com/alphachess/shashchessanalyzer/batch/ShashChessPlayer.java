@@ -6,26 +6,33 @@ import static net.andreinc.neatchess.client.breaks.Break.breakOn;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
 import java.util.logging.Logger;
 
+import com.alphachess.shashchessanalyzer.StockfishZobristHash;
 import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial;
 import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial.Range;
 import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial.RangeDescription;
+import com.alphachess.shashchessanalyzer.batch.AnalysisCache.AnalysisResult;
+import com.alphachess.shashchessanalyzer.batch.ExperienceFile.ExperienceEntry;
+import com.alphachess.shashchessanalyzer.batch.EcoClassifier.EcoEntry;
+import com.alphachess.shashchessanalyzer.batch.PolyglotBook.BookEntry;
 
 import ictk.boardgame.AmbiguousMoveException;
 import ictk.boardgame.History;
 import ictk.boardgame.IllegalMoveException;
 import ictk.boardgame.Result;
-import ictk.boardgame.chess.Bishop;
 import ictk.boardgame.chess.ChessBoard;
 import ictk.boardgame.chess.ChessGame;
 import ictk.boardgame.chess.ChessGameInfo;
@@ -33,9 +40,6 @@ import ictk.boardgame.chess.ChessMove;
 import ictk.boardgame.chess.ChessPiece;
 import ictk.boardgame.chess.ChessPlayer;
 import ictk.boardgame.chess.ChessResult;
-import ictk.boardgame.chess.Knight;
-import ictk.boardgame.chess.Queen;
-import ictk.boardgame.chess.Rook;
 import ictk.boardgame.chess.io.ChessAnnotation;
 import ictk.boardgame.chess.io.FEN;
 import ictk.boardgame.chess.io.PGNReader;
@@ -53,7 +57,13 @@ public class ShashChessPlayer {
 	private static final String LIVE_BOOK_PROXY_URL = "LiveBook Proxy Url";
 	private static final String START_POS = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
 	private static final String CHESSDB_TABLEBASE = "ChessDB Tablebase";
+	private static final String NO_PERSONALITY = "none";
+	// journaled depth of a book ply, which has no evaluation of its own
+	private static final int BOOK_DEPTH = -1;
+	// comment of a book ply, which marks the seed of the game like the evaluation comment of a searched ply
+	static final String BOOK_COMMENT = "book";
 	UCI uci = null;
+	UCI blackUci = null;
 	private Properties shashChessPlayerProperties;
 	private int threadsNumber;
 	private int hashSizeMB;
@@ -89,7 +99,7 @@ public class ShashChessPlayer {
 	private String inputGamesPgn;
 	private Date dataInizioElaborazionePrincipale;
 	private PGNReader pgnReader;
-	private FileReader gamesFileReader;
+	private Reader gamesFileReader;
 	private BufferedReader gamesInputBufferedReader;
 	private long numeroPartiteTotali = 0;
 	private long numeroPartiteInserite = 0;
@@ -101,6 +111,46 @@ public class ShashChessPlayer {
 	private PrintWriter pw = null;
 	private boolean blackCastleable = true;
 	private boolean whiteCastleable = true;
+	private String dualEngine;
+	private String whitePonderMove;
+	private String blackPonderMove;
+	private String lastPlayedLan;
+	private long ponderNumber = 0;
+	private long ponderHitNumber = 0;
+	private GameAdjudicator gameAdjudicator;
+	private ChessResult adjudicatedResult;
+	private long playedGamesNumber = 0;
+	private long adjudicatedGamesNumber = 0;
+	private long savedPliesNumber = 0;
+	private String skipDuplicateSeeds;
+	private int firstInputGame;
+	private PgnIndex inputGamesIndex;
+	private String watermark;
+	private InputWatermark inputWatermark;
+	private AnalysisCache analysisCache;
+	private ExperienceFile experienceFile;
+	private int experienceMinDepth;
+	private long experienceSkipsNumber = 0;
+	private long experienceSavedMS = 0;
+	private ExperienceWriter experienceWriter;
+	private PolyglotBook polyglotBook;
+	private EcoClassifier ecoClassifier;
+	private int bookDepth;
+	private String bookMoveSelection;
+	private final Random bookRandom = new Random();
+	private int gameBookPliesNumber;
+	private boolean isOutOfBook;
+	private boolean isBookPly;
+	private String bookFen;
+	private String bookLan;
+	private long bookPliesNumber = 0;
+	private String playedPgns;
+	private String journalFileName;
+	private PlayJournal playJournal;
+	private int currentInputGameNumber = 0;
+	private String asyncPgnWriter;
+	private AsyncPgnWriter asyncGamesWriter;
+	private long submittedGamesNumber = 0;
 
 	private static final Logger logger = Logger.getLogger(ShashChessPlayer.class.getName());
 
@@ -109,6 +159,9 @@ public class ShashChessPlayer {
 		setInputParameters();
 		setTimeoutMS(timeoutSeconds * 1000);
 		uci = new UCI(timeoutMS);
+		if (isDualEngine()) {
+			blackUci = new UCI(timeoutMS);
+		}
 	}
 
 	private void setInputParameters() {
@@ -138,6 +191,21 @@ public class ShashChessPlayer {
 		setPgnOutputFileName(shashChessPlayerProperties.getProperty("pgnOutputFileName"));
 		setInputGamesPgn(shashChessPlayerProperties.getProperty("inputGamesPgn"));
 		setGamesMoveFromEco(Integer.parseInt(shashChessPlayerProperties.getProperty("gamesMoveFromEco")));
+		setDualEngine(shashChessPlayerProperties.getProperty("dualEngine"));
+		setSkipDuplicateSeeds(shashChessPlayerProperties.getProperty("skipDuplicateSeeds"));
+		setPlayedPgns(shashChessPlayerProperties.getProperty("playedPgns"));
+		setJournalFileName(shashChessPlayerProperties.getProperty("journalFileName"));
+		setAsyncPgnWriter(shashChessPlayerProperties.getProperty("asyncPgnWriter"));
+		setFirstInputGame(getIntProperty("firstInputGame", 1));
+		setWatermark(shashChessPlayerProperties.getProperty("watermark"));
+		setGameAdjudicator(new GameAdjudicator(getIntProperty("resignWinProbability", 0),
+				getIntProperty("resignPlies", 0), getIntProperty("drawPlies", 0),
+				getIntProperty("drawMinMoveNumber", 0) * 2));
+	}
+
+	private int getIntProperty(String key, int defaultValue) {
+		String value = shashChessPlayerProperties.getProperty(key);
+		return ((value != null) && !value.trim().isEmpty()) ? Integer.parseInt(value.trim()) : defaultValue;
 	}
 
 	public long getStrongestAverageTimeSeconds() {
@@ -162,6 +230,12 @@ public class ShashChessPlayer {
 
 		ShashChessPlayer shashChessPlayer = new ShashChessPlayer(args);
 		try {
+			shashChessPlayer.openInputWatermark();
+			shashChessPlayer.openAnalysisCache();
+			shashChessPlayer.openExperienceFile();
+			shashChessPlayer.openPolyglotBook();
+			shashChessPlayer.openEcoClassifier();
+			shashChessPlayer.logDualEngineBypasses();
 			shashChessPlayer.setPgnWriter();
 			shashChessPlayer.initShashChess();
 			String beginPlayingMsg = String.join(" ", "Begin playing at",
@@ -177,19 +251,230 @@ public class ShashChessPlayer {
 			}
 		} catch (Exception e) {
 			shashChessPlayer.closeWrite();
+			shashChessPlayer.closeAnalysisCache();
+			shashChessPlayer.closeExperienceFile();
+			shashChessPlayer.closePolyglotBook();
 			shashChessPlayer.closeShashChess();
 			logger.info("End computation for timeout");
 			System.exit(0);
 		}
 	}
 
+	private void openInputWatermark() throws IOException {
+		if (isWatermark() && (inputGamesPgn != null) && !inputGamesPgn.trim().isEmpty()) {
+			inputWatermark = new InputWatermark(inputGamesPgn.trim());
+		}
+	}
+
+	/**
+	 * With an analysisCacheFile, the single engine moves of positions already
+	 * searched with the same options are replayed from the AnalysisCache.
+	 */
+	private void openAnalysisCache() throws IOException {
+		String analysisCacheFile = shashChessPlayerProperties.getProperty("analysisCacheFile", "").trim();
+		if (!analysisCacheFile.isEmpty()) {
+			String engineOptions = String.join(" ", engineName, syzygyPath, syzygyProbeDepth, fullDepthThreads,
+					variety, persistedLearning, readOnlyLearning, String.valueOf(livebookProxyUrl),
+					String.valueOf(chessDBTablebase), mcts, mCTSThreads);
+			analysisCache = new AnalysisCache(analysisCacheFile,
+					Integer.parseInt(shashChessPlayerProperties.getProperty("analysisCacheSize", "100000")),
+					engineOptions);
+		}
+	}
+
+	private void closeAnalysisCache() {
+		if (analysisCache != null) {
+			try {
+				analysisCache.close();
+			} catch (IOException e) {
+				logger.info(e.getMessage());
+			}
+			analysisCache = null;
+		}
+	}
+
+	/**
+	 * With an experienceFile, the single engine moves of positions learned at
+	 * least experienceMinDepth deep are played from it without searching. With
+	 * an experienceOutputFile, the searched moves are written to it in the same
+	 * format, whatever the persisted learning of the engine.
+	 */
+	private void openExperienceFile() throws IOException {
+		String experienceFileName = shashChessPlayerProperties.getProperty("experienceFile", "").trim();
+		if (!experienceFileName.isEmpty()) {
+			experienceFile = new ExperienceFile(experienceFileName);
+			experienceMinDepth = Integer.parseInt(shashChessPlayerProperties.getProperty("experienceMinDepth", "30"));
+		}
+		String experienceOutputFileName = shashChessPlayerProperties.getProperty("experienceOutputFile", "").trim();
+		if (!experienceOutputFileName.isEmpty()) {
+			experienceWriter = new ExperienceWriter(experienceOutputFileName);
+		}
+	}
+
+	private void closeExperienceFile() {
+		if (experienceFile != null) {
+			try {
+				experienceFile.close();
+			} catch (IOException e) {
+				logger.info(e.getMessage());
+			}
+			experienceFile = null;
+		}
+		if (experienceWriter != null) {
+			try {
+				experienceWriter.close();
+			} catch (IOException e) {
+				logger.info(e.getMessage());
+			}
+			experienceWriter = null;
+		}
+	}
+
+	/**
+	 * With a bookFile, the single engine plays the first bookDepth plies of
+	 * every game from the Polyglot book, until a position is out of book.
+	 */
+	private void openPolyglotBook() throws IOException {
+		String bookFileName = shashChessPlayerProperties.getProperty("bookFile", "").trim();
+		if (!bookFileName.isEmpty()) {
+			polyglotBook = new PolyglotBook(bookFileName);
+			bookDepth = Integer.parseInt(shashChessPlayerProperties.getProperty("bookDepth", "16"));
+			bookMoveSelection = shashChessPlayerProperties.getProperty("bookMoveSelection", "weighted");
+		}
+	}
+
+	/**
+	 * With an ecoIndexFile, the ECO code of the games comes from their deepest
+	 * position of the index, so that transpositions are classified too.
+	 */
+	private void openEcoClassifier() throws IOException {
+		String ecoIndexFileName = shashChessPlayerProperties.getProperty("ecoIndexFile", "").trim();
+		if (!ecoIndexFileName.isEmpty()) {
+			ecoClassifier = EcoClassifier.load(ecoIndexFileName);
+			String ecoIndexMsg = String.join("", "ECO index: ", Integer.toString(ecoClassifier.getEntriesNumber()),
+					" positions from ", ecoIndexFileName);
+			logger.info(ecoIndexMsg);
+		}
+	}
+
+	/**
+	 * The ECO code of the input game from the index, or else from its ECO tag
+	 * or, as in ecoAll.pgn, from its Site.
+	 */
+	private String getInputEcoCode(ChessGame currentInputGame) {
+		if (ecoClassifier != null) {
+			EcoEntry ecoEntry = ecoClassifier.classify(currentInputGame);
+			if (ecoEntry != null) {
+				String ecoEntryMsg = String.join("", "ECO: ", ecoEntry.getCode(), " ", ecoEntry.getName());
+				logger.info(ecoEntryMsg);
+				return ecoEntry.getCode();
+			}
+		}
+		ChessGameInfo currentInputChessGameInfo = (ChessGameInfo) (currentInputGame.getGameInfo());
+		return currentInputChessGameInfo.getECO() != null ? currentInputChessGameInfo.getECO()
+				: currentInputGame.getGameInfo().getSite();
+	}
+
+	/**
+	 * The dual engines keep searching and pondering across plies, so the
+	 * book, the experience lookups and the analysis cache are bypassed: only
+	 * the experience output is written.
+	 */
+	private void logDualEngineBypasses() {
+		if (isDualEngine() && ((polyglotBook != null) || (experienceFile != null) || (analysisCache != null))) {
+			logger.info("Dual engine: bookFile, experienceFile and analysisCacheFile are ignored");
+		}
+	}
+
+	private void closePolyglotBook() {
+		if (polyglotBook != null) {
+			try {
+				polyglotBook.close();
+			} catch (IOException e) {
+				logger.info(e.getMessage());
+			}
+			polyglotBook = null;
+		}
+	}
+
+	private void startBookGame() {
+		gameBookPliesNumber = 0;
+		isOutOfBook = false;
+		isBookPly = false;
+		bookFen = null;
+		bookLan = null;
+	}
+
+	/**
+	 * The book move is drawn at the first step and played at the second one.
+	 */
+	private String getBookLan(String fen, int step) throws IOException {
+		if ((polyglotBook == null) || isOutOfBook || (gameBookPliesNumber >= bookDepth)) {
+			return null;
+		}
+		if (step == 1) {
+			BookEntry bookEntry = bookMoveSelection.equalsIgnoreCase("best") ? polyglotBook.getBestEntry(fen)
+					: polyglotBook.getWeightedEntry(fen, bookRandom);
+			bookFen = fen;
+			bookLan = (bookEntry != null) ? bookEntry.getLan() : null;
+			isOutOfBook = (bookEntry == null);
+		}
+		return fen.equals(bookFen) ? bookLan : null;
+	}
+
+	private void endBookGame() {
+		bookPliesNumber += gameBookPliesNumber;
+		// the single engine searches each ply twice
+		String bookGameMsg = String.join("", "Book plies: ", Integer.toString(gameBookPliesNumber), ", saved ",
+				Long.toString(gameBookPliesNumber * getStrongestAverageTimeSecondsForMove() * 2), " seconds");
+		logger.info(bookGameMsg);
+	}
+
+	private void logBookSavings() {
+		String bookSavingsMsg = String.join("", "Book plies: ", Long.toString(bookPliesNumber), " in ",
+				Long.toString(playedGamesNumber), " games, saved ",
+				Long.toString(bookPliesNumber * getStrongestAverageTimeSecondsForMove() * 2), " seconds");
+		logger.info(bookSavingsMsg);
+	}
+
+	private void writeExperience(String fen, String lan, int score, int mateIn, int depth) throws IOException {
+		if ((experienceWriter != null) && (lan != null)) {
+			experienceWriter.write(fen, lan, score, mateIn, depth);
+		}
+	}
+
+	private ExperienceEntry getExperienceEntry(String fen) throws IOException {
+		if (experienceFile == null) {
+			return null;
+		}
+		ExperienceEntry experienceEntry = experienceFile.getBestEntry(StockfishZobristHash.getKey(fen));
+		return ((experienceEntry != null) && (experienceEntry.getDepth() >= experienceMinDepth)) ? experienceEntry
+				: null;
+	}
+
+	private void logExperienceSkips() {
+		String experienceSkipsMsg = String.join("", "Searches skipped by the experience: ",
+				Long.toString(experienceSkipsNumber), ", saved ", Long.toString(experienceSavedMS / 1000),
+				" seconds");
+		logger.info(experienceSkipsMsg);
+	}
+
 	private void playFromPgnInput() throws IllegalMoveException, AmbiguousMoveException {
 		setDataInizioElaborazionePrincipale(new Date());
-		int currentInputGameNumber = 0;
 		try {
+			Set<Integer> duplicateInputGames = getDuplicateInputGames();
 			pgnReader = getPGNReaderFromFile();
 			ChessGame currentInputGame = getCurrentInputGame();
 			while (currentInputGame != null) {
+				long currentInputGameHash = (inputWatermark != null) ? InputWatermark.getGameHash(currentInputGame) : 0;
+				if ((currentInputGameNumber + 1 < firstInputGame)
+						|| ((inputWatermark != null) && inputWatermark.isProcessed(currentInputGameHash))
+						|| duplicateInputGames.contains(currentInputGameNumber + 1)
+						|| ((playJournal != null) && playJournal.isDone(currentInputGameNumber + 1))) {
+					currentInputGameNumber++;
+					currentInputGame = getCurrentInputGame();
+					continue;
+				}
 				String gameInfoMsg = currentInputGame.getGameInfo().toString();
 				logger.info(gameInfoMsg);
 				String historyMsg = currentInputGame.getHistory().toString();
@@ -204,27 +489,66 @@ public class ShashChessPlayer {
 				setMoveCounter(
 						(((semiMoveNumber + 1) % 2 != 0) ? (int) Math.floor((double) (semiMoveNumber + 1) / (double) 2)
 								: ((semiMoveNumber + 1) / 2)));
-				ChessGameInfo currentInputChessGameInfo = (ChessGameInfo) (currentInputGame.getGameInfo());
-				String currentEcoCode = currentInputChessGameInfo.getECO() != null ? currentInputChessGameInfo.getECO()
-						: currentInputGame.getGameInfo().getSite();
-				setEcoCode(currentEcoCode);
+				setEcoCode(getInputEcoCode(currentInputGame));
 				setMaxMovesNumber(getMoveCounter() + getGamesMoveFromEco());
 				playFromIterationFen(currentInputHistory);
+				if (inputWatermark != null) {
+					inputWatermark.addGame(currentInputGameHash);
+				}
 				currentInputGame = getCurrentInputGame();
 			}
 			closeAll();
 		} catch (IllegalMoveException | AmbiguousMoveException | IOException e) {
 			logger.info(e.getMessage());
+			// the games already played are synced and the writer thread stopped, so that the jvm exits
+			closeWrite();
+			closeAnalysisCache();
+			closeExperienceFile();
+			closePolyglotBook();
+			closeShashChess();
 		}
 
 	}
 
+	private Set<Integer> getDuplicateInputGames() throws IOException {
+		if (!isSkipDuplicateSeeds()) {
+			return new HashSet<>();
+		}
+		SeedPositionDeduplicator seedPositionDeduplicator = new SeedPositionDeduplicator();
+		String currentPlayedPgns = getPlayedPgns();
+		if ((currentPlayedPgns != null) && !currentPlayedPgns.trim().isEmpty()) {
+			for (String playedPgn : currentPlayedPgns.split(",")) {
+				seedPositionDeduplicator.addPlayedPgn(playedPgn.trim());
+			}
+		}
+		return seedPositionDeduplicator.getDuplicateInputGames(inputGamesPgn.trim(), firstInputGame);
+	}
+
 	private void closeAll() throws IOException {
+		if (isDualEngine()) {
+			logPonderHitRate();
+		}
+		logAdjudicationSavings();
+		if (experienceFile != null) {
+			logExperienceSkips();
+		}
+		if (polyglotBook != null) {
+			logBookSavings();
+		}
+		if (playJournal != null) {
+			playJournal.mergeSegments(pw);
+		}
 		closeWrite();
+		if (inputWatermark != null) {
+			inputWatermark.close(firstInputGame <= 1);
+		}
+		closeAnalysisCache();
+		closeExperienceFile();
+		closePolyglotBook();
 		closeShashChess();
+		closeGamesReader();
 		logger.info("Engine closed");
 		System.exit(0);
-		closeGamesReader();
 	}
 
 	private void playFromIterationFen(History currentInputHistory)
@@ -249,6 +573,7 @@ public class ShashChessPlayer {
 
 	private void setCurrentChessGameFromInput(ChessGame currentInputGame) {
 		setCurrentChessGame(new ChessGame());
+		setCurrentChessGameInfo(new ChessGameInfo());
 		getCurrentChessGame().setGameInfo(getChessGameInfo());
 		getCurrentChessGame().setBoard(currentInputGame.getBoard());
 	}
@@ -264,15 +589,46 @@ public class ShashChessPlayer {
 					logger.info(iterationChessBoardMsg);
 					logger.info("");
 				}
+				if ((ecoClassifier != null) && (getCurrentInputChessGame() == null)) {
+					EcoEntry ecoEntry = ecoClassifier.getEntry(iterationChessBoard);
+					if (ecoEntry != null) {
+						setEcoCode(ecoEntry.getCode());
+					}
+				}
 				logger.info("Starting self play");
 				History currentHistory = getCurrentHistory(iterationChessBoard);
 				if (currentHistory != null) {
+					if (isDualEngine()) {
+						startDualEngineGame();
+					}
+					getGameAdjudicator().newGame(iterationChessBoard);
+					setAdjudicatedResult(null);
+					startBookGame();
+					iterationFen = resumeJournaledGame(iterationFen, iterationChessBoard, currentHistory);
 					while ((!iterationChessBoard.isCheckmate() && (getSemiMoveNumber() < getMaxMovesNumber() * 2))
-							&& (!iterationChessBoard.is50MoveRuleApplicible())) {
-						doStep(iterationFen, 1, iterationChessBoard.isBlackMove());
-						setShashinUciOptions(getCurrentPositionType());
-						iterationFen = getStep2Fen(iterationFen, iterationChessBoard, currentHistory);
-						restartShashChess();
+							&& (!iterationChessBoard.is50MoveRuleApplicible()) && (!iterationChessBoard.isStalemate())
+							&& (getAdjudicatedResult() == null)) {
+						boolean isBlackMove = iterationChessBoard.isBlackMove();
+						String fenBeforeMove = iterationFen;
+						if (isDualEngine()) {
+							iterationFen = getDualEngineStepFen(iterationFen, iterationChessBoard, currentHistory);
+						} else {
+							doStep(iterationFen, 1, isBlackMove);
+							setShashinUciOptions(uci, getCurrentPositionType());
+							iterationFen = getStep2Fen(iterationFen, iterationChessBoard, currentHistory);
+							restartShashChess();
+						}
+						adjudicate(fenBeforeMove, isBlackMove, iterationChessBoard);
+						if (playJournal != null) {
+							playJournal.addMove(currentInputGameNumber, getLastPlayedLan(), getIterationScore(),
+									isBookPly ? BOOK_DEPTH : getIterationDepth(), getCurrentPositionType());
+						}
+					}
+					if (isDualEngine()) {
+						endDualEngineGame();
+					}
+					if (polyglotBook != null) {
+						endBookGame();
 					}
 				}
 			}
@@ -280,6 +636,42 @@ public class ShashChessPlayer {
 		}
 	}
 
+	private String resumeJournaledGame(String iterationFen, ChessBoard iterationChessBoard, History currentHistory)
+			throws IOException, IllegalMoveException, AmbiguousMoveException {
+		if (playJournal == null) {
+			return iterationFen;
+		}
+		for (String[] journaledMove : playJournal.startGame(currentInputGameNumber)) {
+			boolean isBlackMove = iterationChessBoard.isBlackMove();
+			String fenBeforeMove = iterationFen;
+			isBookPly = Integer.parseInt(journaledMove[2]) == BOOK_DEPTH;
+			if (isBookPly) {
+				logBookNotation(journaledMove[0], isBlackMove);
+			} else {
+				setIterationScore(Integer.parseInt(journaledMove[1]));
+				setIterationDepth(Integer.parseInt(journaledMove[2]));
+				setCurrentPositionType(journaledMove[3]);
+				logStepNotation(journaledMove[0], iterationFen, isBlackMove);
+			}
+			iterationFen = getCurrentIterationFen(iterationChessBoard, currentHistory, journaledMove[0]);
+			adjudicate(fenBeforeMove, isBlackMove, iterationChessBoard);
+		}
+		return iterationFen;
+	}
+
+	/**
+	 * A book ply only counts for the repetitions, as it carries no evaluation.
+	 */
+	private void adjudicate(String fenBeforeMove, boolean isBlackMove, ChessBoard iterationChessBoard) {
+		if (isBookPly) {
+			setAdjudicatedResult(getGameAdjudicator().adjudicateBookMove(iterationChessBoard));
+			return;
+		}
+		setAdjudicatedResult(getGameAdjudicator().adjudicate(
+				WinProbabilityByMaterial.getWinProbabilityFromScore(getIterationScore(), fenBeforeMove), isBlackMove,
+				iterationChessBoard));
+	}
+
 	private void restartShashChess() {
 		closeShashChess();
 		initShashChess();
@@ -289,8 +681,12 @@ public class ShashChessPlayer {
 		logger.info("");
 		int finalScore = getIterationScore();
 		String currentGameFen = getCurrentFen().trim();
-		ChessResult gameResult = getGameResult(finalScore, currentGameFen);
+		ChessResult gameResult = getFinalGameResult((ChessBoard) getCurrentChessGame().getBoard());
+		if (gameResult == null) {
+			gameResult = getGameResult(finalScore, currentGameFen);
+		}
 		getCurrentChessGameInfo().setResult(gameResult);
+		countPlayedGame();
 		String gameInfoMsg = getCurrentChessGame().getGameInfo().toString();
 		logger.info(gameInfoMsg);
 		String historyMsg = getCurrentChessGame().getHistory().toString();
@@ -302,8 +698,15 @@ public class ShashChessPlayer {
 		pgnReader.close();
 		gamesFileReader.close();
 		gamesInputBufferedReader.close();
+		if (inputGamesIndex != null) {
+			inputGamesIndex.close();
+		}
 	}
 
+	/**
+	 * An incorrect game is skipped but keeps its number, so that the input
+	 * games are numbered in file order like the seek of the pgn index does.
+	 */
 	private ChessGame getCurrentInputGame() {
 		ChessGame currentInputGame = null;
 		while (currentInputGame == null) {
@@ -319,7 +722,8 @@ public class ShashChessPlayer {
 
 			} catch (InvalidGameFormatException | IllegalMoveException | AmbiguousMoveException ex) {
 				numeroPartiteInFormatoScorretto++;
-				logger.info(String.join("", "Game ", Long.toString(numeroPartiteTotali + 1), " has an incorrect pgn."));
+				currentInputGameNumber++;
+				logger.info(String.join("", "Game ", Integer.toString(currentInputGameNumber), " has an incorrect pgn."));
 			} catch (IOException ioEx) {
 				return null;
 			}
@@ -327,13 +731,61 @@ public class ShashChessPlayer {
 		return currentInputGame;
 	}
 
-	private PGNReader getPGNReaderFromFile() throws FileNotFoundException {
-		gamesFileReader = new FileReader(inputGamesPgn.trim());
+	private PGNReader getPGNReaderFromFile() throws IOException {
+		String inputGamesFileName = inputGamesPgn.trim();
+		long processedOffset = (inputWatermark != null) ? inputWatermark.getProcessedOffset() : 0;
+		if (((firstInputGame > 1) || (processedOffset > 0)) && !CompressedStreams.isCompressed(inputGamesFileName)) {
+			// the offset index seeks straight to the first game, which keeps its number in the file
+			inputGamesIndex = new PgnIndex(inputGamesFileName);
+			int firstGameIndex = Math.min(Math.max(firstInputGame - 1, inputGamesIndex.getGameIndex(processedOffset)),
+					inputGamesIndex.getGamesNumber());
+			gamesFileReader = inputGamesIndex.getReader(firstGameIndex, inputGamesIndex.getGamesNumber());
+			currentInputGameNumber = firstGameIndex;
+		} else {
+			gamesFileReader = new InputStreamReader(CompressedStreams.getInputStream(inputGamesFileName));
+		}
 		gamesInputBufferedReader = new BufferedReader(gamesFileReader);
 		pgnReader = new PGNReader(gamesInputBufferedReader);
 		return pgnReader;
 	}
 
+	private ChessResult getFinalGameResult(ChessBoard finalChessBoard) {
+		if (finalChessBoard.isCheckmate()) {
+			return new ChessResult(finalChessBoard.isBlackMove() ? ChessResult.WHITE_WIN : ChessResult.BLACK_WIN);
+		}
+		if (finalChessBoard.isStalemate() || finalChessBoard.is50MoveRuleApplicible()) {
+			return new ChessResult(ChessResult.DRAW);
+		}
+		if (getAdjudicatedResult() != null) {
+			String adjudicationMsg = String.join("", "Game adjudicated after ",
+					Integer.toString(getGameAdjudicator().getGamePly()), " plies: ", getGameAdjudicator().getReason());
+			logger.info(adjudicationMsg);
+		}
+		return getAdjudicatedResult();
+	}
+
+	private void countPlayedGame() {
+		playedGamesNumber++;
+		if (getAdjudicatedResult() != null) {
+			adjudicatedGamesNumber++;
+			savedPliesNumber += Math.max(0, getMaxMovesNumber() * 2 - getSemiMoveNumber());
+		}
+		if (playedGamesNumber % 100 == 0) {
+			logAdjudicationSavings();
+		}
+	}
+
+	private void logAdjudicationSavings() {
+		long savedPliesPer100Games = (playedGamesNumber > 0) ? (savedPliesNumber * 100 / playedGamesNumber) : 0;
+		// the single engine searches each ply twice, the dual engines once
+		long secondsForPly = getStrongestAverageTimeSecondsForMove() * (isDualEngine() ? 1 : 2);
+		String adjudicationSavingsMsg = String.join("", "Adjudicated games: ", Long.toString(adjudicatedGamesNumber),
+				"/", Long.toString(playedGamesNumber), ", saved per 100 games: ", Long.toString(savedPliesPer100Games),
+				" plies (", Long.toString(savedPliesPer100Games * secondsForPly),
+				" seconds)");
+		logger.info(adjudicationSavingsMsg);
+	}
+
 	private ChessResult getGameResult(int finalScore, String finalFen) {
 		ChessBoard finalChessBoard = null;
 		try {
@@ -367,6 +819,9 @@ public class ShashChessPlayer {
 
 	private History getCurrentHistory(ChessBoard iterationChessBoard) {
 		setCurrentChessGame(getCurrentChessGame(iterationChessBoard));
+		if (getCurrentInputChessGame() == null) {
+			setCurrentChessGameInfo(new ChessGameInfo());
+		}
 		ChessGameInfo currentistoryChessGameInfo = getChessGameInfo();
 		if (getCurrentInputChessGame() == null) {
 			getCurrentChessGame().setGameInfo(currentistoryChessGameInfo);
@@ -416,7 +871,7 @@ public class ShashChessPlayer {
 	}
 
 	private String getStep2Fen(String iterationFen, ChessBoard iterationChessBoard, History currentHistory)
-			throws IllegalMoveException, AmbiguousMoveException {
+			throws IOException, IllegalMoveException, AmbiguousMoveException {
 		String lan = doStep(iterationFen, 2, iterationChessBoard.isBlackMove());
 		if (lan != null) {
 			iterationFen = getCurrentIterationFen(iterationChessBoard, currentHistory, lan);
@@ -427,33 +882,18 @@ public class ShashChessPlayer {
 
 	private String getCurrentIterationFen(ChessBoard iterationChessBoard, History currentHistory, String lan)
 			throws IllegalMoveException, AmbiguousMoveException {
-		String moveOriginSquareCoordinates = lan.substring(0, 2);
-		String moveDestinationSquareCoordinates = lan.substring(2, 4);
-		byte moveOriginSquareFile = (byte) (moveOriginSquareCoordinates.charAt(0) - 96);
-		byte moveOriginSquareRank = Byte.parseByte(moveOriginSquareCoordinates.substring(1));
-		byte moveDestinationSquareFile = (byte) (moveDestinationSquareCoordinates.charAt(0) - 96);
-		byte moveDestinationSquareRank = Byte.parseByte(moveDestinationSquareCoordinates.substring(1));
 		String iterationFen = null;
-
-		ChessMove iterationChessMove = null;
-		iterationChessMove = getPromotionChessMove(iterationChessBoard, lan, moveOriginSquareFile, moveOriginSquareRank,
-				moveDestinationSquareFile, moveDestinationSquareRank, iterationChessMove);
-		if (iterationChessMove == null) {
-			iterationChessMove = getCastleChessMove(iterationChessBoard, moveOriginSquareCoordinates,
-					moveDestinationSquareCoordinates, iterationChessMove);
-		}
-		if (iterationChessMove == null) {
-			iterationChessMove = new ChessMove(iterationChessBoard, moveOriginSquareFile, moveOriginSquareRank,
-					moveDestinationSquareFile, moveDestinationSquareRank);
-		}
+		ChessMove iterationChessMove = LanMoveConverter.getChessMove(iterationChessBoard, lan);
 		currentHistory.add(iterationChessMove);
+		setLastPlayedLan(lan);
 		semiMoveNumber++;
 		setMoveCounter((((semiMoveNumber + 1) % 2 != 0) ? (int) Math.floor((double) (semiMoveNumber + 1) / (double) 2)
 				: ((semiMoveNumber + 1) / 2)));
-		ChessAnnotation iterationChessMoveAnnotation = new ChessAnnotation();
 		iterationFen = new FEN().boardToString(iterationChessBoard);
-		iterationChessMoveAnnotation.setComment(
-				String.join("", Integer.toString(getIterationScore()), ";", Integer.toString(getIterationDepth()), ";",
+		// a book move has no evaluation comment, as it was not searched
+		ChessAnnotation iterationChessMoveAnnotation = new ChessAnnotation();
+		iterationChessMoveAnnotation.setComment(isBookPly ? BOOK_COMMENT
+				: String.join("", Integer.toString(getIterationScore()), ";", Integer.toString(getIterationDepth()), ";",
 						Integer.toString(WinProbabilityByMaterial.getWinProbabilityFromScore(getIterationScore(),iterationFen)),
 						";", getAbbreviatePositionType(getCurrentPositionType())));
 		iterationChessMove.setAnnotation(iterationChessMoveAnnotation);
@@ -468,34 +908,6 @@ public class ShashChessPlayer {
 		return iterationFen;
 	}
 
-	private ChessMove getPromotionChessMove(ChessBoard iterationChessBoard, String lan, byte moveOriginSquareFile,
-			byte moveOriginSquareRank, byte moveDestinationSquareFile, byte moveDestinationSquareRank,
-			ChessMove chessMove) throws IllegalMoveException {
-		if (lan.length() == 5) {
-			char promotionUnit = lan.substring(4, 5).charAt(0);
-			int promo = 0;
-			switch (promotionUnit) {
-			case 'q':
-				promo = Queen.INDEX;
-				break;
-			case 'r':
-				promo = Rook.INDEX;
-				break;
-			case 'b':
-				promo = Bishop.INDEX;
-				break;
-			case 'n':
-				promo = Knight.INDEX;
-				break;
-			default:
-				break;
-			}
-			chessMove = new ChessMove(iterationChessBoard, moveOriginSquareFile, moveOriginSquareRank,
-					moveDestinationSquareFile, moveDestinationSquareRank, promo);
-		}
-		return chessMove;
-	}
-
 	private void setCasteable(ChessBoard iterationChessBoard, ChessMove iterationChessMove,
 			ChessPiece iterationChessMoveUnit) {
 		boolean isBlackIterationChessMoveUnit = iterationChessMoveUnit.isBlack();
@@ -541,37 +953,51 @@ public class ShashChessPlayer {
 		}
 	}
 
-	private ChessMove getCastleChessMove(ChessBoard iterationChessBoard, String moveOriginSquareCoordinates,
-			String moveDestinationSquareCoordinates, ChessMove chessMove) throws IllegalMoveException {
-		ChessPiece e1Occupant = iterationChessBoard.getSquare(5, 1).getOccupant();
-		boolean ise1WhiteKing = ((e1Occupant != null) && (e1Occupant.isKing()) && (!e1Occupant.isBlack()));
-		ChessPiece e8Occupant = iterationChessBoard.getSquare(5, 8).getOccupant();
-		boolean ise8BlackKing = ((e8Occupant != null) && (e8Occupant.isKing()) && (e8Occupant.isBlack()));
-
-		if ((moveOriginSquareCoordinates.equals("e1") && moveDestinationSquareCoordinates.equals("g1") && ise1WhiteKing)
-				|| (moveOriginSquareCoordinates.equals("e8") && moveDestinationSquareCoordinates.equals("g8")
-						&& ise8BlackKing)) {
-			chessMove = new ChessMove(iterationChessBoard, ChessMove.CASTLE_KINGSIDE);
-		}
-		if ((moveOriginSquareCoordinates.equals("e1") && moveDestinationSquareCoordinates.equals("c1") && ise1WhiteKing)
-				|| (moveOriginSquareCoordinates.equals("e8") && moveDestinationSquareCoordinates.equals("c8")
-						&& ise8BlackKing)) {
-			chessMove = new ChessMove(iterationChessBoard, ChessMove.CASTLE_QUEENSIDE);
-		}
-		return chessMove;
-	}
-
 	private void initShashChess() {
-		startShashChess();
-		setInitialUciOptions();
+		startShashChess(uci);
+		setInitialUciOptions(uci);
+		if (isDualEngine()) {
+			startShashChess(blackUci);
+			setInitialUciOptions(blackUci);
+		}
 		String showInitEngineInfos = getShowEngineInfos();
 		if ((showInitEngineInfos != null) && (!showInitEngineInfos.isEmpty()) && (showInitEngineInfos.equalsIgnoreCase("yes"))) {
 			retrieveShashChessInfo();
 		}
 	}
 
-	private String doStep(String fen, int step, boolean isBlackMove) {
+	private String doStep(String fen, int step, boolean isBlackMove) throws IOException {
+		String currentBookLan = getBookLan(fen, step);
+		// the evaluation of the last searched ply is kept through the book plies
+		isBookPly = currentBookLan != null;
+		if (isBookPly) {
+			if (step == 2) {
+				gameBookPliesNumber++;
+				logBookNotation(currentBookLan, isBlackMove);
+			}
+			return currentBookLan;
+		}
 		long currentAverageTimeMSForMove = strongestAverageTimeSecondsForMove * 1000;
+		// step 1 searches on a restarted engine without personalities, step 2 with the ones of the step 1 position type
+		String shashinOptions = (step == 1) ? NO_PERSONALITY : String.valueOf(getCurrentPositionType());
+		AnalysisResult analysisResult = (analysisCache != null)
+				? analysisCache.get(fen, "", shashinOptions, currentAverageTimeMSForMove, 0)
+				: null;
+		if (analysisResult != null) {
+			if (step == 2) {
+				writeExperience(fen, analysisResult.getBestMove(), analysisResult.getScore(), analysisResult.getMateIn(),
+						analysisResult.getDepth());
+			}
+			return endStep(analysisResult.getBestMove(), analysisResult.getScore(), analysisResult.getDepth(), fen,
+					step, isBlackMove);
+		}
+		ExperienceEntry experienceEntry = getExperienceEntry(fen);
+		if (experienceEntry != null) {
+			experienceSkipsNumber++;
+			experienceSavedMS += currentAverageTimeMSForMove;
+			return endStep(experienceEntry.getLan(), experienceEntry.getScore(), experienceEntry.getDepth(), fen, step,
+					isBlackMove);
+		}
 		uci.uciNewGame();
 		uci.positionFen(fen);
 		UCIResponse<Analysis> response = uci.analysis(currentAverageTimeMSForMove, timeoutMS);
@@ -595,30 +1021,166 @@ public class ShashChessPlayer {
 			uci.setOption(CHESSDB_TABLEBASE, chessDBTablebase, timeoutMS).getResultOrThrow();
 		}
 		String lan = bestMove.getLan();
-		setIterationScore(((Double) (bestMove.getStrength().getScore() * 100)).intValue());
-		setIterationDepth(bestMove.getDepth());
+		int score = AnalysisCache.getScore(bestMove.getStrength());
+		int mateIn = AnalysisCache.getMateIn(bestMove.getStrength());
+		if (analysisCache != null) {
+			analysisCache.put(fen, "", shashinOptions, new AnalysisResult(lan, score, mateIn, bestMove.getDepth(),
+					String.join(" ", bestMove.getContinuation()), "", currentAverageTimeMSForMove));
+		}
+		if (step == 2) {
+			writeExperience(fen, lan, score, mateIn, bestMove.getDepth());
+		}
+		return endStep(lan, score, bestMove.getDepth(), fen, step, isBlackMove);
+	}
+
+	private String endStep(String lan, int score, int depth, String fen, int step, boolean isBlackMove) {
+		setIterationScore(score);
+		setIterationDepth(depth);
 		setCurrentPositionType(getPositionType(iterationScore, fen));
 		if (step == 2) {
-			setMoveCounter(
-					(((semiMoveNumber + 2) % 2 != 0) ? (int) Math.floor((double) (semiMoveNumber + 2) / (double) 2)
-							: ((semiMoveNumber + 2) / 2)));
-			String notationMsg = String.join("",
-					(String.join("", Integer.toString(this.moveCounter), isBlackMove ? "...." : ".")),
-					bestMove.getLan(), " ", String.join("", Integer.toString(iterationScore), ";"),
-					String.join("", Integer.toString(iterationDepth), ";",
-							Integer.toString(WinProbabilityByMaterial.getWinProbabilityFromScore(iterationScore, fen)),
-							";"),
-					getAbbreviatePositionType(getCurrentPositionType()));
-			logger.info(notationMsg);
+			logStepNotation(lan, fen, isBlackMove);
 		}
 		return lan;
 	}
 
+	private void logBookNotation(String lan, boolean isBlackMove) {
+		setMoveCounter((((semiMoveNumber + 2) % 2 != 0) ? (int) Math.floor((double) (semiMoveNumber + 2) / (double) 2)
+				: ((semiMoveNumber + 2) / 2)));
+		String notationMsg = String.join("", Integer.toString(this.moveCounter), isBlackMove ? "...." : ".", lan,
+				" book");
+		logger.info(notationMsg);
+	}
+
+	private void logStepNotation(String lan, String fen, boolean isBlackMove) {
+		setMoveCounter((((semiMoveNumber + 2) % 2 != 0) ? (int) Math.floor((double) (semiMoveNumber + 2) / (double) 2)
+				: ((semiMoveNumber + 2) / 2)));
+		String notationMsg = String.join("",
+				(String.join("", Integer.toString(this.moveCounter), isBlackMove ? "...." : ".")), lan, " ",
+				String.join("", Integer.toString(iterationScore), ";"),
+				String.join("", Integer.toString(iterationDepth), ";",
+						Integer.toString(WinProbabilityByMaterial.getWinProbabilityFromScore(iterationScore, fen)), ";"),
+				getAbbreviatePositionType(getCurrentPositionType()));
+		logger.info(notationMsg);
+	}
+
+	private void startDualEngineGame() {
+		uci.uciNewGame();
+		blackUci.uciNewGame();
+		setLastPlayedLan(null);
+	}
+
+	private String getDualEngineStepFen(String iterationFen, ChessBoard iterationChessBoard, History currentHistory)
+			throws IOException, IllegalMoveException, AmbiguousMoveException {
+		boolean isBlackMove = iterationChessBoard.isBlackMove();
+		UCI sideEngine = isBlackMove ? blackUci : uci;
+		List<String> searchLines = getPonderHitLines(sideEngine, isBlackMove);
+		if (searchLines == null) {
+			searchLines = getSearchLines(sideEngine, iterationFen);
+		}
+		BestMove bestMoveOnly = UCI.bestMove.process(searchLines);
+		Move bestMove = UCI.analysis.process(searchLines).getBestMove();
+		if (bestMove == null) {
+			searchLines = getSearchLinesWithoutBooks(sideEngine, iterationFen, bestMoveOnly.getCurrent());
+			bestMoveOnly = UCI.bestMove.process(searchLines);
+			bestMove = UCI.analysis.process(searchLines).getBestMove();
+		}
+		String lan = bestMoveOnly.getCurrent();
+		setIterationScore(AnalysisCache.getScore(bestMove.getStrength()));
+		setIterationDepth(bestMove.getDepth());
+		setCurrentPositionType(getPositionType(iterationScore, iterationFen));
+		writeExperience(iterationFen, lan, iterationScore, AnalysisCache.getMateIn(bestMove.getStrength()),
+				iterationDepth);
+		logStepNotation(lan, iterationFen, isBlackMove);
+		String fenBeforeMove = iterationFen;
+		iterationFen = getCurrentIterationFen(iterationChessBoard, currentHistory, lan);
+		// the dual engines are never restarted, so the personalities of the previous position type are cleared
+		clearPersonalities(sideEngine);
+		setShashinUciOptions(sideEngine, getCurrentPositionType());
+		startPondering(sideEngine, isBlackMove, fenBeforeMove, lan, bestMoveOnly.getPonder());
+		return iterationFen;
+	}
+
+	private List<String> getPonderHitLines(UCI sideEngine, boolean isBlackMove) {
+		String ponderMove = isBlackMove ? getBlackPonderMove() : getWhitePonderMove();
+		if (ponderMove == null) {
+			return null;
+		}
+		setPonderMove(isBlackMove, null);
+		ponderNumber++;
+		if (ponderMove.equals(getLastPlayedLan())) {
+			ponderHitNumber++;
+			return sideEngine.command("ponderhit", lines -> lines, breakOn("bestmove"), timeoutMS).getResultOrThrow();
+		}
+		sideEngine.command("stop", lines -> lines, breakOn("bestmove"), timeoutMS).getResultOrThrow();
+		return null;
+	}
+
+	private List<String> getSearchLines(UCI sideEngine, String fen) {
+		long currentAverageTimeMSForMove = strongestAverageTimeSecondsForMove * 1000;
+		sideEngine.positionFen(fen);
+		return sideEngine.command(format("go movetime %d", currentAverageTimeMSForMove), lines -> lines,
+				breakOn("bestmove"), timeoutMS).getResultOrThrow();
+	}
+
+	private List<String> getSearchLinesWithoutBooks(UCI sideEngine, String fen, String searchMoves) {
+		sideEngine.setOption(LIVE_BOOK_PROXY_URL, "", timeoutMS).getResultOrThrow();
+		sideEngine.setOption(CHESSDB_TABLEBASE, "false", timeoutMS).getResultOrThrow();
+		String goCommand = (searchMoves != null && !searchMoves.isEmpty())
+				? String.join("", "go movetime %d ", "searchmoves ", searchMoves)
+				: "go movetime %d";
+		sideEngine.positionFen(fen);
+		List<String> searchLines = sideEngine.command(format(goCommand, strongestAverageTimeSecondsForMove * 1000),
+				lines -> lines, breakOn("bestmove"), timeoutMS).getResultOrThrow();
+		sideEngine.setOption(LIVE_BOOK_PROXY_URL, livebookProxyUrl, timeoutMS).getResultOrThrow();
+		sideEngine.setOption(CHESSDB_TABLEBASE, chessDBTablebase, timeoutMS).getResultOrThrow();
+		return searchLines;
+	}
+
+	private void startPondering(UCI sideEngine, boolean isBlackMove, String fen, String lan, String ponderMove) {
+		if ((ponderMove == null) || ponderMove.isEmpty()) {
+			return;
+		}
+		long currentAverageTimeMSForMove = strongestAverageTimeSecondsForMove * 1000;
+		sideEngine.command(String.join(" ", "position fen", fen, "moves", lan, ponderMove), lines -> lines,
+				breakOn("readyok"), timeoutMS).getResultOrThrow();
+		// "go ponder" is followed by isready, so the command returns as soon as the engine acknowledges it
+		sideEngine.command(format("go ponder movetime %d", currentAverageTimeMSForMove), lines -> lines,
+				breakOn("readyok"), timeoutMS).getResultOrThrow();
+		setPonderMove(isBlackMove, ponderMove);
+	}
+
+	private void endDualEngineGame() {
+		if (getWhitePonderMove() != null) {
+			uci.command("stop", lines -> lines, breakOn("bestmove"), timeoutMS).getResultOrThrow();
+			setWhitePonderMove(null);
+		}
+		if (getBlackPonderMove() != null) {
+			blackUci.command("stop", lines -> lines, breakOn("bestmove"), timeoutMS).getResultOrThrow();
+			setBlackPonderMove(null);
+		}
+		logPonderHitRate();
+	}
+
+	private void logPonderHitRate() {
+		long ponderHitRate = (ponderNumber > 0) ? (ponderHitNumber * 100 / ponderNumber) : 0;
+		String ponderHitRateMsg = String.join("", "Ponder hits: ", Long.toString(ponderHitNumber), "/",
+				Long.toString(ponderNumber), " (", Long.toString(ponderHitRate), "%)");
+		logger.info(ponderHitRateMsg);
+	}
+
+	private void setPonderMove(boolean isBlackMove, String ponderMove) {
+		if (isBlackMove) {
+			setBlackPonderMove(ponderMove);
+		} else {
+			setWhitePonderMove(ponderMove);
+		}
+	}
+
 	private String getAbbreviatePositionType(String positionType) {
 		return String.join("", "s-", WinProbabilityByMaterial.getAbbreviateRangeDescription(positionType));
 	}
 
-	private void setShashinUciOptions(String positionType) {
+	private void setShashinUciOptions(UCI engine, String positionType) {
 		RangeDescription[] rangeDescriptions = RangeDescription.values();
 		RangeDescription rangeDescription = null;
 		for (RangeDescription currentRangeDescription : rangeDescriptions) {
@@ -636,34 +1198,34 @@ public class ShashChessPlayer {
 			case LOW_TAL:
 			case MIDDLE_TAL:
 			case HIGH_TAL:
-				uci.setOption(rangeDescription.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(rangeDescription.getDescription(), "true", timeoutMS).getResultOrThrow();
 				break;
 			case HIGH_MIDDLE_PETROSIAN:
-				uci.setOption(RangeDescription.HIGH_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
-				uci.setOption(RangeDescription.MIDDLE_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.HIGH_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.MIDDLE_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
 				break;
 			case MIDDLE_LOW_PETROSIAN:
-				uci.setOption(RangeDescription.MIDDLE_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
-				uci.setOption(RangeDescription.LOW_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.MIDDLE_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.LOW_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
 				break;
 			case CAOS_PETROSIAN_CAPABLANCA:
-				uci.setOption(RangeDescription.LOW_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
-				uci.setOption(RangeDescription.CAPABLANCA.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.LOW_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.CAPABLANCA.getDescription(), "true", timeoutMS).getResultOrThrow();
 				break;
 			case CAOS_TAL_CAPABLANCA:
-				uci.setOption(RangeDescription.CAPABLANCA.getDescription(), "true", timeoutMS).getResultOrThrow();
-				uci.setOption(RangeDescription.LOW_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.CAPABLANCA.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.LOW_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
 				break;
 			case LOW_MIDDLE_TAL:
-				uci.setOption(RangeDescription.LOW_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
-				uci.setOption(RangeDescription.MIDDLE_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.LOW_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.MIDDLE_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
 				break;
 			case MIDDLE_HIGH_TAL:
-				uci.setOption(RangeDescription.MIDDLE_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
-				uci.setOption(RangeDescription.HIGH_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.MIDDLE_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
+				engine.setOption(RangeDescription.HIGH_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
 				break;
 			case CAOS_TAL_CAPABLANCA_PETROSIAN:
-				setAllPersonalities();
+				setAllPersonalities(engine);
 				break;
 			default:
 				break;
@@ -672,15 +1234,26 @@ public class ShashChessPlayer {
 		}
 	}
 
-	private void setAllPersonalities() {
-		uci.setOption(RangeDescription.HIGH_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
-		uci.setOption(RangeDescription.MIDDLE_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
-		uci.setOption(RangeDescription.LOW_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
-		uci.setOption(RangeDescription.CAPABLANCA.getDescription(), "true", timeoutMS).getResultOrThrow();
-		uci.setOption(RangeDescription.LOW_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
-		uci.setOption(RangeDescription.LOW_MIDDLE_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
-		uci.setOption(RangeDescription.MIDDLE_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
-		uci.setOption(RangeDescription.HIGH_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
+	private void setAllPersonalities(UCI engine) {
+		engine.setOption(RangeDescription.HIGH_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.MIDDLE_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.LOW_PETROSIAN.getDescription(), "true", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.CAPABLANCA.getDescription(), "true", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.LOW_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.LOW_MIDDLE_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.MIDDLE_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.HIGH_TAL.getDescription(), "true", timeoutMS).getResultOrThrow();
+	}
+
+	private void clearPersonalities(UCI engine) {
+		engine.setOption(RangeDescription.HIGH_PETROSIAN.getDescription(), "false", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.MIDDLE_PETROSIAN.getDescription(), "false", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.LOW_PETROSIAN.getDescription(), "false", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.CAPABLANCA.getDescription(), "false", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.LOW_TAL.getDescription(), "false", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.LOW_MIDDLE_TAL.getDescription(), "false", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.MIDDLE_TAL.getDescription(), "false", timeoutMS).getResultOrThrow();
+		engine.setOption(RangeDescription.HIGH_TAL.getDescription(), "false", timeoutMS).getResultOrThrow();
 	}
 
 	private String getPositionType(int score, String fen) {
@@ -689,24 +1262,27 @@ public class ShashChessPlayer {
 		return WinProbabilityByMaterial.getRangeDescription(range);
 	}
 
-	private void setInitialUciOptions() {
+	private void setInitialUciOptions(UCI engine) {
 		try {
-			uci.setOption("Threads", Integer.toString(threadsNumber), timeoutMS).getResultOrThrow();
-			uci.setOption("Hash", Integer.toString(hashSizeMB), timeoutMS).getResultOrThrow();
-			uci.setOption("SyzygyPath", syzygyPath, timeoutMS).getResultOrThrow();
-			uci.setOption("SyzygyProbeDepth", syzygyProbeDepth, timeoutMS).getResultOrThrow();
-			uci.setOption("Full depth threads", fullDepthThreads, timeoutMS).getResultOrThrow();
-			uci.setOption("Variety", variety, timeoutMS).getResultOrThrow();
-			uci.setOption("Persisted learning", persistedLearning, timeoutMS).getResultOrThrow();
-			uci.setOption("Read only learning", readOnlyLearning, timeoutMS).getResultOrThrow();
+			engine.setOption("Threads", Integer.toString(threadsNumber), timeoutMS).getResultOrThrow();
+			engine.setOption("Hash", Integer.toString(hashSizeMB), timeoutMS).getResultOrThrow();
+			engine.setOption("SyzygyPath", syzygyPath, timeoutMS).getResultOrThrow();
+			engine.setOption("SyzygyProbeDepth", syzygyProbeDepth, timeoutMS).getResultOrThrow();
+			engine.setOption("Full depth threads", fullDepthThreads, timeoutMS).getResultOrThrow();
+			engine.setOption("Variety", variety, timeoutMS).getResultOrThrow();
+			engine.setOption("Persisted learning", persistedLearning, timeoutMS).getResultOrThrow();
+			engine.setOption("Read only learning", readOnlyLearning, timeoutMS).getResultOrThrow();
 			if (livebookProxyUrl != null) {
-				uci.setOption(LIVE_BOOK_PROXY_URL, livebookProxyUrl, timeoutMS).getResultOrThrow();
+				engine.setOption(LIVE_BOOK_PROXY_URL, livebookProxyUrl, timeoutMS).getResultOrThrow();
 			}
 			if (chessDBTablebase != null) {
-				uci.setOption(CHESSDB_TABLEBASE, chessDBTablebase, timeoutMS).getResultOrThrow();
+				engine.setOption(CHESSDB_TABLEBASE, chessDBTablebase, timeoutMS).getResultOrThrow();
+			}
+			engine.setOption("MCTS", mcts, timeoutMS).getResultOrThrow();
+			engine.setOption("MCTSThreads", mCTSThreads, timeoutMS).getResultOrThrow();
+			if (isDualEngine()) {
+				engine.setOption("Ponder", "true", timeoutMS).getResultOrThrow();
 			}
-			uci.setOption("MCTS", mcts, timeoutMS).getResultOrThrow();
-			uci.setOption("MCTSThreads", mCTSThreads, timeoutMS).getResultOrThrow();
 		} catch (Exception e) {
 			closeWrite();
 			closeShashChess();
@@ -737,13 +1313,25 @@ public class ShashChessPlayer {
 
 	private void closeShashChess() {
 		uci.close();
+		if (blackUci != null) {
+			blackUci.close();
+		}
 	}
 
 	private void writePgn() {
 		try {
-			pgnWriter.writeGame(getCurrentChessGame());
-			pw.print("\r\n");
+			if (playJournal != null) {
+				playJournal.commitGame(currentInputGameNumber, getCurrentChessGame());
+			} else if (asyncGamesWriter != null) {
+				asyncGamesWriter.submit(submittedGamesNumber++, getCurrentChessGame());
+			} else {
+				pgnWriter.writeGame(getCurrentChessGame());
+				pw.print("\r\n");
+			}
 			if (inputGamesPgn == null) {
+				if (playJournal != null) {
+					playJournal.mergeSegments(pw);
+				}
 				closeWrite();
 				closeShashChess();
 			}
@@ -755,21 +1343,48 @@ public class ShashChessPlayer {
 
 	private void setPgnWriter() throws IOException {
 		String appendGamePgn = getAppendGame();
-		pw = new PrintWriter(new FileWriter(getPgnOutputFileName(),
-				((appendGamePgn != null) && (appendGamePgn.equalsIgnoreCase("Yes")))));
+		// the games of a re-run are merged into the output of the previous runs
+		boolean isAppended = ((appendGamePgn != null) && (appendGamePgn.equalsIgnoreCase("Yes")))
+				|| ((inputWatermark != null) && (inputWatermark.getProcessedGamesNumber() > 0));
+		String currentJournalFileName = getJournalFileName();
+		boolean isJournaled = (currentJournalFileName != null) && !currentJournalFileName.trim().isEmpty();
+		if (!isJournaled && isAsyncPgnWriter()) {
+			asyncGamesWriter = new AsyncPgnWriter(getPgnOutputFileName(), isAppended,
+					getIntProperty("pgnWriterQueueSize", 64), getIntProperty("pgnWriterBatchSize", 16),
+					getIntProperty("pgnWriterFlushIntervalMS", 1000), getIntProperty("pgnWriterFsyncIntervalMS", 0),
+					submittedGamesNumber);
+			return;
+		}
+		if (isJournaled && isAsyncPgnWriter()) {
+			logger.info("asyncPgnWriter is ignored with a journal: the games are written by the journal");
+		}
+		pw = CompressedStreams.getPrintWriter(getPgnOutputFileName(), isAppended);
 		pgnWriter = new PGNWriter(pw);
+		if (isJournaled) {
+			playJournal = new PlayJournal(currentJournalFileName.trim(), getPgnOutputFileName());
+		}
 	}
 
 	private void closeWrite() {
-		pw.close();
-		pgnWriter.close();
+		if (pw != null) {
+			pw.close();
+			pgnWriter.close();
+		}
+		if (asyncGamesWriter != null) {
+			try {
+				asyncGamesWriter.close();
+			} catch (IOException e) {
+				logger.info(e.getMessage());
+			}
+			asyncGamesWriter = null;
+		}
 	}
 
-	private void startShashChess() {
+	private void startShashChess(UCI engine) {
 		String engineNameWithExtension = String.join("",
 				(System.getProperty("os.name").contains("Windows") ? engineName : String.join("", "./", engineName)),
 				(System.getProperty("os.name").contains("Windows") ? ".exe" : ""));
-		uci.start(engineNameWithExtension);
+		engine.start(engineNameWithExtension);
 	}
 
 	public UCI getUci() {
@@ -1032,7 +1647,7 @@ public class ShashChessPlayer {
 		this.pgnReader = pgnReader;
 	}
 
-	public FileReader getGamesFileReader() {
+	public Reader getGamesFileReader() {
 		return gamesFileReader;
 	}
 
@@ -1040,7 +1655,7 @@ public class ShashChessPlayer {
 		return gamesInputBufferedReader;
 	}
 
-	public void setGamesFileReader(FileReader gamesFileReader) {
+	public void setGamesFileReader(Reader gamesFileReader) {
 		this.gamesFileReader = gamesFileReader;
 	}
 
@@ -1152,4 +1767,124 @@ public class ShashChessPlayer {
 		this.livebookProxyUrl = livebookProxyUrl;
 	}
 
+	public String getDualEngine() {
+		return dualEngine;
+	}
+
+	public void setDualEngine(String dualEngine) {
+		this.dualEngine = dualEngine;
+	}
+
+	public boolean isDualEngine() {
+		return (dualEngine != null) && dualEngine.trim().equalsIgnoreCase("yes");
+	}
+
+	public String getWhitePonderMove() {
+		return whitePonderMove;
+	}
+
+	public void setWhitePonderMove(String whitePonderMove) {
+		this.whitePonderMove = whitePonderMove;
+	}
+
+	public String getBlackPonderMove() {
+		return blackPonderMove;
+	}
+
+	public void setBlackPonderMove(String blackPonderMove) {
+		this.blackPonderMove = blackPonderMove;
+	}
+
+	public String getLastPlayedLan() {
+		return lastPlayedLan;
+	}
+
+	public void setLastPlayedLan(String lastPlayedLan) {
+		this.lastPlayedLan = lastPlayedLan;
+	}
+
+	public long getPonderNumber() {
+		return ponderNumber;
+	}
+
+	public long getPonderHitNumber() {
+		return ponderHitNumber;
+	}
+
+	public String getSkipDuplicateSeeds() {
+		return skipDuplicateSeeds;
+	}
+
+	public void setSkipDuplicateSeeds(String skipDuplicateSeeds) {
+		this.skipDuplicateSeeds = skipDuplicateSeeds;
+	}
+
+	public int getFirstInputGame() {
+		return firstInputGame;
+	}
+
+	public void setFirstInputGame(int firstInputGame) {
+		this.firstInputGame = firstInputGame;
+	}
+
+	public boolean isSkipDuplicateSeeds() {
+		return (skipDuplicateSeeds != null) && skipDuplicateSeeds.trim().equalsIgnoreCase("yes");
+	}
+
+	public String getPlayedPgns() {
+		return playedPgns;
+	}
+
+	public void setPlayedPgns(String playedPgns) {
+		this.playedPgns = playedPgns;
+	}
+
+	public String getJournalFileName() {
+		return journalFileName;
+	}
+
+	public void setJournalFileName(String journalFileName) {
+		this.journalFileName = journalFileName;
+	}
+
+	public String getAsyncPgnWriter() {
+		return asyncPgnWriter;
+	}
+
+	public void setAsyncPgnWriter(String asyncPgnWriter) {
+		this.asyncPgnWriter = asyncPgnWriter;
+	}
+
+	public String getWatermark() {
+		return watermark;
+	}
+
+	public void setWatermark(String watermark) {
+		this.watermark = watermark;
+	}
+
+	public boolean isWatermark() {
+		return (watermark != null) && watermark.trim().equalsIgnoreCase("yes");
+	}
+
+	public boolean isAsyncPgnWriter() {
+		return (asyncPgnWriter != null) && asyncPgnWriter.trim().equalsIgnoreCase("yes");
+	}
+
+	public GameAdjudicator getGameAdjudicator() {
+		return gameAdjudicator;
+	}
+
+	public void setGameAdjudicator(GameAdjudicator gameAdjudicator) {
+		this.gameAdjudicator = gameAdjudicator;
+	}
+
+	public ChessResult getAdjudicatedResult() {
+		return adjudicatedResult;
+	}
+
+	public void setAdjudicatedResult(ChessResult adjudicatedResult) {
+		this.adjudicatedResult = adjudicatedResult;
+	}
+
 }
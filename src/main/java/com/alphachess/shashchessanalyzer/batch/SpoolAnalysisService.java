@@ -0,0 +1,339 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+
+import ictk.boardgame.History;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.PGNReader;
+
+/**
+ * Long-running analysis of the pgn, fen and epd files, optionally compressed,
+ * dropped into a spool directory. A WatchService reports the new files; once
+ * a file has stopped growing its positions are streamed to a pool of engines
+ * started once and kept warm across files. The results are written to
+ * file.analysis.tsv next to the input, followed by a file.done marker, or a
+ * file.failed marker if the file could not be read or some positions could
+ * not be analysed. Files with a marker are never analysed again.
+ */
+public class SpoolAnalysisService {
+	private static final String RESULTS_EXTENSION = ".analysis.tsv";
+	private static final String DONE_EXTENSION = ".done";
+	private static final String FAILED_EXTENSION = ".failed";
+	private static final String[] INPUT_EXTENSIONS = { ".pgn", ".fen", ".epd" };
+	private static final String[] COMPRESSED_EXTENSIONS = { ".gz", ".zip", ".zz" };
+	private Properties spoolAnalysisServiceProperties;
+	private int concurrency;
+	private Path spoolDirectory;
+	private long fileSettleMS;
+	private String analyzeEveryPly;
+	private EnginePool enginePool;
+	private ExecutorService analysisExecutor;
+	private Semaphore inFlightPositions;
+	private int maxInFlightPositions;
+
+	private static final Logger logger = Logger.getLogger(SpoolAnalysisService.class.getName());
+
+	public SpoolAnalysisService(String[] args) {
+		spoolAnalysisServiceProperties = getSpoolAnalysisServiceProperties(args);
+		setInputParameters();
+	}
+
+	private void setInputParameters() {
+		concurrency = Integer.parseInt(spoolAnalysisServiceProperties.getProperty("concurrency"));
+		spoolDirectory = new File(spoolAnalysisServiceProperties.getProperty("spoolDirectory")).toPath();
+		fileSettleMS = Long.parseLong(spoolAnalysisServiceProperties.getProperty("fileSettleMS", "2000"));
+		analyzeEveryPly = spoolAnalysisServiceProperties.getProperty("analyzeEveryPly", "no");
+	}
+
+	private Properties getSpoolAnalysisServiceProperties(String[] args) {
+		Properties properties = new Properties();
+		File file = new File(args[0]);
+		try (FileInputStream fileInput = new FileInputStream(file)) {
+			properties.load(fileInput);
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+		return properties;
+	}
+
+	public static void main(String[] args) {
+		SpoolAnalysisService spoolAnalysisService = new SpoolAnalysisService(args);
+		try {
+			spoolAnalysisService.startEngines();
+			spoolAnalysisService.watch();
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		} catch (InterruptedException e) {
+			logger.info(e.getMessage());
+			Thread.currentThread().interrupt();
+		} finally {
+			spoolAnalysisService.stopEngines();
+		}
+	}
+
+	private void startEngines() throws IOException {
+		enginePool = new EnginePool(spoolAnalysisServiceProperties);
+		analysisExecutor = Executors.newFixedThreadPool(concurrency);
+		// enough queued positions to keep every engine busy while the file is read
+		maxInFlightPositions = concurrency * 4;
+		inFlightPositions = new Semaphore(maxInFlightPositions);
+		String startedMsg = String.join("", "Started ", Integer.toString(concurrency), " engines watching ",
+				spoolDirectory.toString());
+		logger.info(startedMsg);
+	}
+
+	private void stopEngines() {
+		if (analysisExecutor != null) {
+			analysisExecutor.shutdownNow();
+		}
+		if (enginePool != null) {
+			try {
+				enginePool.close();
+			} catch (IOException e) {
+				logger.info(e.getMessage());
+			}
+		}
+	}
+
+	private void watch() throws IOException, InterruptedException {
+		Set<Path> pendingFiles = new LinkedHashSet<>();
+		try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+			spoolDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			addSpooledFiles(pendingFiles);
+			while (true) {
+				WatchKey watchKey = watchService.poll(fileSettleMS, TimeUnit.MILLISECONDS);
+				if (watchKey != null) {
+					for (WatchEvent<?> watchEvent : watchKey.pollEvents()) {
+						if (watchEvent.kind() == StandardWatchEventKinds.OVERFLOW) {
+							addSpooledFiles(pendingFiles);
+						} else {
+							pendingFiles.add(spoolDirectory.resolve((Path) watchEvent.context()));
+						}
+					}
+					if (!watchKey.reset()) {
+						throw new IOException(String.join("", spoolDirectory.toString(), " is no longer accessible"));
+					}
+				}
+				analyzeSettledFiles(pendingFiles);
+			}
+		}
+	}
+
+	private void addSpooledFiles(Set<Path> pendingFiles) throws IOException {
+		try (DirectoryStream<Path> spooledFiles = Files.newDirectoryStream(spoolDirectory)) {
+			for (Path spooledFile : spooledFiles) {
+				pendingFiles.add(spooledFile);
+			}
+		}
+	}
+
+	/**
+	 * A file is analysed once it has not been modified for fileSettleMS, so
+	 * that files still being copied into the spool are not read half written.
+	 */
+	private void analyzeSettledFiles(Set<Path> pendingFiles) throws InterruptedException {
+		Iterator<Path> pendingFilesIterator = pendingFiles.iterator();
+		while (pendingFilesIterator.hasNext()) {
+			Path pendingFile = pendingFilesIterator.next();
+			if (!isInputFile(pendingFile) || !Files.isRegularFile(pendingFile)) {
+				pendingFilesIterator.remove();
+			} else if (System.currentTimeMillis() - pendingFile.toFile().lastModified() >= fileSettleMS) {
+				pendingFilesIterator.remove();
+				analyzeFile(pendingFile);
+			}
+		}
+	}
+
+	private boolean isInputFile(Path spooledFile) {
+		String fileName = spooledFile.toString();
+		if (new File(String.join("", fileName, DONE_EXTENSION)).exists()
+				|| new File(String.join("", fileName, FAILED_EXTENSION)).exists()) {
+			return false;
+		}
+		String uncompressedFileName = getUncompressedFileName(fileName);
+		for (String inputExtension : INPUT_EXTENSIONS) {
+			if (uncompressedFileName.endsWith(inputExtension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String getUncompressedFileName(String fileName) {
+		String uncompressedFileName = fileName.toLowerCase();
+		for (String compressedExtension : COMPRESSED_EXTENSIONS) {
+			if (uncompressedFileName.endsWith(compressedExtension)) {
+				return uncompressedFileName.substring(0, uncompressedFileName.length() - compressedExtension.length());
+			}
+		}
+		return uncompressedFileName;
+	}
+
+	private void analyzeFile(Path inputFile) throws InterruptedException {
+		String inputFileName = inputFile.toString();
+		String beginMsg = String.join("", "Analysing ", inputFileName);
+		logger.info(beginMsg);
+		long startMS = System.currentTimeMillis();
+		Path resultsFile = new File(String.join("", inputFileName, RESULTS_EXTENSION)).toPath();
+		Path temporaryResultsFile = new File(String.join("", inputFileName, RESULTS_EXTENSION, ".tmp")).toPath();
+		AtomicInteger positionsNumber = new AtomicInteger();
+		AtomicInteger failedPositionsNumber = new AtomicInteger();
+		String failure = null;
+		try (PrintWriter resultsWriter = CompressedStreams.getPrintWriter(temporaryResultsFile.toString(), false)) {
+			resultsWriter.println(String.join("\t", "source", "fen", EnginePool.RESULT_HEADER));
+			try {
+				if (getUncompressedFileName(inputFileName).endsWith(".pgn")) {
+					streamPgnPositions(inputFileName, resultsWriter, positionsNumber, failedPositionsNumber);
+				} else {
+					streamEpdPositions(inputFileName, resultsWriter, positionsNumber, failedPositionsNumber);
+				}
+			} finally {
+				// all the permits are back once every submitted position has been analysed, also when the input
+				// fails, so that the results writer is not closed under the positions in flight
+				inFlightPositions.acquireUninterruptibly(maxInFlightPositions);
+				inFlightPositions.release(maxInFlightPositions);
+			}
+			if (resultsWriter.checkError()) {
+				throw new IOException(String.join("", "Unable to write ", resultsFile.toString()));
+			}
+		} catch (IOException e) {
+			failure = e.getMessage();
+		} catch (InterruptedException e) {
+			// the file is analysed again at the next start
+			temporaryResultsFile.toFile().delete();
+			throw e;
+		}
+		try {
+			if (failure != null) {
+				Files.deleteIfExists(temporaryResultsFile);
+			} else {
+				Files.move(temporaryResultsFile, resultsFile, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				if (failedPositionsNumber.get() > 0) {
+					failure = String.join("", Integer.toString(failedPositionsNumber.get()),
+							" positions not analysed");
+				}
+			}
+			String marker = String.join("\t", Integer.toString(positionsNumber.get()),
+					Integer.toString(failedPositionsNumber.get()),
+					Long.toString(System.currentTimeMillis() - startMS), (failure != null) ? failure : "");
+			Files.write(new File(String.join("", inputFileName, (failure == null) ? DONE_EXTENSION : FAILED_EXTENSION))
+					.toPath(), String.join("", marker, "\n").getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+		String endMsg = String.join("", (failure == null) ? "Analysed " : "Failed ", inputFileName, ": ",
+				Integer.toString(positionsNumber.get()), " positions in ",
+				Long.toString((System.currentTimeMillis() - startMS) / 1000), " seconds",
+				(failure != null) ? String.join("", " - ", failure) : "");
+		logger.info(endMsg);
+	}
+
+	private void streamPgnPositions(String inputFileName, PrintWriter resultsWriter, AtomicInteger positionsNumber,
+			AtomicInteger failedPositionsNumber) throws IOException, InterruptedException {
+		FEN fen = new FEN();
+		boolean isEveryPly = analyzeEveryPly.trim().equalsIgnoreCase("yes");
+		try (BufferedReader inputBufferedReader = CompressedStreams.getBufferedReader(inputFileName)) {
+			PGNReader pgnReader = new PGNReader(inputBufferedReader);
+			int gameNumber = 0;
+			ChessGame chessGame = GenericUtil.readGame(pgnReader);
+			while (chessGame != null) {
+				gameNumber++;
+				History history = chessGame.getHistory();
+				if (isEveryPly) {
+					history.rewind();
+					int ply = 0;
+					while (history.getNext() != null) {
+						history.next();
+						ply++;
+						submitPosition(String.join("", "game ", Integer.toString(gameNumber), " ply ",
+								Integer.toString(ply)), fen.boardToString(chessGame.getBoard()), resultsWriter,
+								positionsNumber, failedPositionsNumber);
+					}
+				} else {
+					history.goToEnd();
+					submitPosition(String.join("", "game ", Integer.toString(gameNumber)),
+							fen.boardToString(chessGame.getBoard()), resultsWriter, positionsNumber,
+							failedPositionsNumber);
+				}
+				chessGame = GenericUtil.readGame(pgnReader);
+			}
+		}
+	}
+
+	/**
+	 * One fen or epd per line; the epd operations are dropped and the move
+	 * counters added.
+	 */
+	private void streamEpdPositions(String inputFileName, PrintWriter resultsWriter, AtomicInteger positionsNumber,
+			AtomicInteger failedPositionsNumber) throws IOException, InterruptedException {
+		try (BufferedReader inputBufferedReader = CompressedStreams.getBufferedReader(inputFileName)) {
+			int lineNumber = 0;
+			String line = inputBufferedReader.readLine();
+			while (line != null) {
+				lineNumber++;
+				String[] fields = line.trim().split("\\s+");
+				if ((fields.length >= 4) && !fields[0].startsWith("#")) {
+					boolean hasMoveCounters = (fields.length >= 6) && fields[4].matches("\\d+")
+							&& fields[5].matches("\\d+");
+					String positionFen = String.join(" ", fields[0], fields[1], fields[2], fields[3],
+							hasMoveCounters ? fields[4] : "0", hasMoveCounters ? fields[5] : "1");
+					submitPosition(String.join("", "line ", Integer.toString(lineNumber)), positionFen,
+							resultsWriter, positionsNumber, failedPositionsNumber);
+				}
+				line = inputBufferedReader.readLine();
+			}
+		}
+	}
+
+	private void submitPosition(String source, String positionFen, PrintWriter resultsWriter,
+			AtomicInteger positionsNumber, AtomicInteger failedPositionsNumber) throws InterruptedException {
+		inFlightPositions.acquire();
+		positionsNumber.incrementAndGet();
+		analysisExecutor.execute(() -> {
+			try {
+				String result = enginePool.analyze(positionFen);
+				synchronized (resultsWriter) {
+					resultsWriter.println(String.join("\t", source, positionFen, result));
+				}
+			} catch (InterruptedException e) {
+				failedPositionsNumber.incrementAndGet();
+				logger.info(String.join("", source, ": interrupted"));
+				Thread.currentThread().interrupt();
+			} catch (IOException | RuntimeException e) {
+				failedPositionsNumber.incrementAndGet();
+				logger.info(String.join("", source, ": ", e.getMessage()));
+			} finally {
+				inFlightPositions.release();
+			}
+		});
+	}
+}
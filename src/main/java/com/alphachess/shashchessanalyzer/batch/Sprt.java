@@ -0,0 +1,100 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+/**
+ * Sequential probability ratio test on game pairs (pentanomial model): each
+ * sample is the score of a pair played from the same seed with reversed
+ * colours, so the opening bias cancels out.
+ */
+public class Sprt {
+	public enum Decision {
+		CONTINUE, H0, H1
+	}
+
+	private final double score0;
+	private final double score1;
+	private final double lowerBound;
+	private final double upperBound;
+	// pair scores 0, 0.5, 1, 1.5, 2
+	private final long[] pentanomial = new long[5];
+	private long wins;
+	private long draws;
+	private long losses;
+
+	public Sprt(double elo0, double elo1, double alpha, double beta) {
+		this.score0 = getScore(elo0);
+		this.score1 = getScore(elo1);
+		this.lowerBound = Math.log(beta / (1 - alpha));
+		this.upperBound = Math.log((1 - beta) / alpha);
+	}
+
+	private static double getScore(double elo) {
+		return 1 / (1 + Math.pow(10, -elo / 400));
+	}
+
+	/**
+	 * @param firstScore  0, 0.5 or 1 for the tested configuration in the first
+	 *                    game of the pair
+	 * @param secondScore the same for the reversed colours game
+	 */
+	public synchronized Decision addPair(double firstScore, double secondScore) {
+		countGame(firstScore);
+		countGame(secondScore);
+		pentanomial[(int) Math.round((firstScore + secondScore) * 2)]++;
+		return getDecision();
+	}
+
+	private void countGame(double score) {
+		if (score == 1) {
+			wins++;
+		} else if (score == 0) {
+			losses++;
+		} else {
+			draws++;
+		}
+	}
+
+	public synchronized Decision getDecision() {
+		double llr = getLlr();
+		if (llr >= upperBound) {
+			return Decision.H1;
+		}
+		if (llr <= lowerBound) {
+			return Decision.H0;
+		}
+		return Decision.CONTINUE;
+	}
+
+	public synchronized double getLlr() {
+		long pairs = getPairs();
+		if (pairs == 0) {
+			return 0;
+		}
+		double mean = 0;
+		for (int i = 0; i < pentanomial.length; i++) {
+			mean += pentanomial[i] * (i / 4.0);
+		}
+		mean /= pairs;
+		double variance = 0;
+		for (int i = 0; i < pentanomial.length; i++) {
+			variance += pentanomial[i] * Math.pow((i / 4.0) - mean, 2);
+		}
+		variance /= pairs;
+		if (variance == 0) {
+			return 0;
+		}
+		return (score1 - score0) * (2 * mean - score0 - score1) / (2 * variance / pairs);
+	}
+
+	public synchronized long getPairs() {
+		long pairs = 0;
+		for (long pairsNumber : pentanomial) {
+			pairs += pairsNumber;
+		}
+		return pairs;
+	}
+
+	public synchronized String getStatus() {
+		return String.format("Pairs: %d, W-D-L: %d-%d-%d, LLR: %.2f (%.2f, %.2f)", getPairs(), wins, draws, losses,
+				getLlr(), lowerBound, upperBound);
+	}
+}
@@ -0,0 +1,212 @@
+package com.alphachess.shashchessanalyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.github.bhlangonijr.chesslib.Board;
+import com.github.bhlangonijr.chesslib.move.Move;
+
+import ictk.boardgame.AmbiguousMoveException;
+import ictk.boardgame.History;
+import ictk.boardgame.IllegalMoveException;
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.ChessMove;
+import ictk.boardgame.chess.ChessPiece;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.PGNReader;
+import ictk.boardgame.chess.io.SAN;
+
+public class IncrementalZobristHashTest {
+	// the reference keys of the Polyglot book format specification
+	private static final String[] POLYGLOT_GAMES = { "", "e4", "e4 d5", "e4 d5 e5", "e4 d5 e5 f5", "e4 d5 e5 f5 Ke2",
+			"e4 d5 e5 f5 Ke2 Kf7", "a4 b5 h4 b4 c4", "a4 b5 h4 b4 c4 bxc3 Ra3" };
+	private static final long[] POLYGLOT_KEYS = { 0x463b96181691fc9cL, 0x823c9b50fd114196L, 0x0756b94461c50fb0L,
+			0x662fafb965db29d4L, 0x22a48b5a8e47ff78L, 0x652a607ca3f242c1L, 0x00fdd303c946bdd9L, 0x3c8123ea7b067637L,
+			0x5c3f9b829b279560L };
+
+	@Test
+	public void shouldMatchPolyglotReferenceKeys() throws IllegalMoveException, AmbiguousMoveException {
+		for (int game = 0; game < POLYGLOT_GAMES.length; game++) {
+			assertKey(POLYGLOT_GAMES[game], POLYGLOT_KEYS[game]);
+		}
+	}
+
+	@Test
+	public void shouldMatchPolyglotReferenceKeysOnChesslibBoards()
+			throws IllegalMoveException, AmbiguousMoveException {
+		for (int game = 0; game < POLYGLOT_GAMES.length; game++) {
+			assertChesslibKey(POLYGLOT_GAMES[game], POLYGLOT_KEYS[game]);
+		}
+	}
+
+	@Test
+	public void shouldHashSpecialMovesLikeFullKeys()
+			throws IOException, IllegalMoveException, AmbiguousMoveException {
+		// castling both ways, en passant, promotions with and without capture, rook captures losing rights
+		assertMove("r3k2r/8/8/8/8/8/8/R3K2R w KQkq - 0 1", "O-O");
+		assertMove("r3k2r/8/8/8/8/8/8/R3K2R b KQkq - 0 1", "O-O-O");
+		assertMove("4k3/8/8/3pP3/8/8/8/4K3 w - d6 0 2", "exd6");
+		assertMove("4k3/8/8/8/3pP3/8/8/4K3 b - e3 0 2", "dxe3");
+		assertMove("1n2k3/P7/8/8/8/8/8/4K3 w - - 0 1", "a8=Q");
+		assertMove("1n2k3/P7/8/8/8/8/8/4K3 w - - 0 1", "axb8=N");
+		assertMove("r3k2r/8/8/8/8/8/8/R3K2R w KQkq - 0 1", "Rxa8+");
+		assertMove("r3k2r/8/8/8/8/8/8/R3K2R b KQkq - 0 1", "Rxh1+");
+		assertMove("4k3/8/8/8/8/8/4P3/4K3 w - - 0 1", "e4");
+		assertMove("4k3/8/8/8/5p2/8/4P3/4K3 w - - 0 1", "e4");
+	}
+
+	@Test
+	public void shouldMakeAndUnmakeEveryEcoAllMove() throws IOException {
+		int movesNumber = 0;
+		try (BufferedReader pgnBufferedReader = new BufferedReader(new FileReader("ecoAll.pgn"))) {
+			PGNReader pgnReader = new PGNReader(pgnBufferedReader);
+			ChessGame chessGame = GenericUtil.readGame(pgnReader);
+			while (chessGame != null) {
+				History history = chessGame.getHistory();
+				history.rewind();
+				ChessBoard chessBoard = (ChessBoard) chessGame.getBoard();
+				IncrementalZobristHash incrementalZobristHash = new IncrementalZobristHash(chessBoard);
+				while (history.getNext() != null) {
+					incrementalZobristHash.makeMove(chessBoard, (ChessMove) history.getNext());
+					history.next();
+					assertEquals(ZobristHash.getKey(chessBoard), incrementalZobristHash.getKey());
+					movesNumber++;
+				}
+				long finalKey = incrementalZobristHash.getKey();
+				while (incrementalZobristHash.getPly() > 0) {
+					history.prev();
+					assertEquals(ZobristHash.getKey(chessBoard), incrementalZobristHash.unmakeMove());
+				}
+				history.goToEnd();
+				assertEquals(finalKey, ZobristHash.getKey(chessBoard));
+				chessGame = GenericUtil.readGame(pgnReader);
+			}
+		}
+		assertTrue(movesNumber > 10000);
+	}
+
+	/**
+	 * The chesslib board replays the ictk games through their coordinate
+	 * moves, so that both libraries give the same keys at every ply.
+	 */
+	@Test
+	public void shouldMakeAndUnmakeEveryEcoAllMoveOnChesslibBoards() throws IOException {
+		int movesNumber = 0;
+		try (BufferedReader pgnBufferedReader = new BufferedReader(new FileReader("ecoAll.pgn"))) {
+			PGNReader pgnReader = new PGNReader(pgnBufferedReader);
+			FEN fen = new FEN();
+			ChessGame chessGame = GenericUtil.readGame(pgnReader);
+			while (chessGame != null) {
+				History history = chessGame.getHistory();
+				history.rewind();
+				ChessBoard chessBoard = (ChessBoard) chessGame.getBoard();
+				Board board = new Board();
+				board.loadFromFen(fen.boardToString(chessBoard));
+				IncrementalZobristHash incrementalZobristHash = new IncrementalZobristHash(board);
+				assertEquals(ZobristHash.getKey(chessBoard), incrementalZobristHash.getKey());
+				while (history.getNext() != null) {
+					Move move = new Move(getLan((ChessMove) history.getNext()), board.getSideToMove());
+					incrementalZobristHash.makeMove(board, move);
+					board.doMove(move);
+					history.next();
+					assertEquals(ZobristHash.getKey(board), incrementalZobristHash.getKey());
+					assertEquals(ZobristHash.getKey(chessBoard), incrementalZobristHash.getKey());
+					movesNumber++;
+				}
+				while (incrementalZobristHash.getPly() > 0) {
+					board.undoMove();
+					assertEquals(ZobristHash.getKey(board), incrementalZobristHash.unmakeMove());
+				}
+				chessGame = GenericUtil.readGame(pgnReader);
+			}
+		}
+		assertTrue(movesNumber > 10000);
+	}
+
+	@Test
+	public void shouldFindRepetitions() throws IOException, IllegalMoveException, AmbiguousMoveException {
+		ChessBoard chessBoard = new ChessBoard();
+		IncrementalZobristHash incrementalZobristHash = new IncrementalZobristHash(chessBoard);
+		SAN san = new SAN();
+		for (String sanMove : new String[] { "Nf3", "Nf6", "Ng1", "Ng8" }) {
+			assertFalse(incrementalZobristHash.isRepetition());
+			ChessMove chessMove = (ChessMove) san.stringToMove(chessBoard, sanMove);
+			incrementalZobristHash.makeMove(chessBoard, chessMove);
+			chessBoard.playMove(chessMove);
+		}
+		assertTrue(incrementalZobristHash.isRepetition());
+		incrementalZobristHash.unmakeMove();
+		assertFalse(incrementalZobristHash.isRepetition());
+	}
+
+	private static void assertKey(String sanMoves, long key) throws IllegalMoveException, AmbiguousMoveException {
+		ChessBoard chessBoard = new ChessBoard();
+		IncrementalZobristHash incrementalZobristHash = new IncrementalZobristHash(chessBoard);
+		long startKey = incrementalZobristHash.getKey();
+		SAN san = new SAN();
+		for (String sanMove : sanMoves.split(" ")) {
+			if (!sanMove.isEmpty()) {
+				ChessMove chessMove = (ChessMove) san.stringToMove(chessBoard, sanMove);
+				incrementalZobristHash.makeMove(chessBoard, chessMove);
+				chessBoard.playMove(chessMove);
+				assertEquals(ZobristHash.getKey(chessBoard), incrementalZobristHash.getKey());
+			}
+		}
+		assertEquals(key, incrementalZobristHash.getKey());
+		while (incrementalZobristHash.getPly() > 0) {
+			incrementalZobristHash.unmakeMove();
+		}
+		assertEquals(startKey, incrementalZobristHash.getKey());
+	}
+
+	private static void assertChesslibKey(String sanMoves, long key)
+			throws IllegalMoveException, AmbiguousMoveException {
+		ChessBoard chessBoard = new ChessBoard();
+		Board board = new Board();
+		IncrementalZobristHash incrementalZobristHash = new IncrementalZobristHash(board);
+		long startKey = incrementalZobristHash.getKey();
+		SAN san = new SAN();
+		for (String sanMove : sanMoves.split(" ")) {
+			if (!sanMove.isEmpty()) {
+				ChessMove chessMove = (ChessMove) san.stringToMove(chessBoard, sanMove);
+				Move move = new Move(getLan(chessMove), board.getSideToMove());
+				incrementalZobristHash.makeMove(board, move);
+				board.doMove(move);
+				chessBoard.playMove(chessMove);
+				assertEquals(ZobristHash.getKey(board), incrementalZobristHash.getKey());
+			}
+		}
+		assertEquals(key, incrementalZobristHash.getKey());
+		while (incrementalZobristHash.getPly() > 0) {
+			board.undoMove();
+			assertEquals(ZobristHash.getKey(board), incrementalZobristHash.unmakeMove());
+		}
+		assertEquals(startKey, incrementalZobristHash.getKey());
+	}
+
+	private static String getLan(ChessMove chessMove) {
+		ChessPiece promotion = chessMove.getPromotion();
+		String promotionLetter = (promotion == null) ? ""
+				: promotion.isKnight() ? "n" : promotion.isBishop() ? "b" : promotion.isRook() ? "r" : "q";
+		return String.join("", GenericUtil.getAlgebricSquare(GenericUtil.getSquareInt(chessMove.getOrigin())),
+				GenericUtil.getAlgebricSquare(GenericUtil.getSquareInt(chessMove.getDestination())), promotionLetter);
+	}
+
+	private static void assertMove(String fen, String sanMove)
+			throws IOException, IllegalMoveException, AmbiguousMoveException {
+		ChessBoard chessBoard = (ChessBoard) new FEN().stringToBoard(fen);
+		long key = ZobristHash.getKey(chessBoard);
+		ChessMove chessMove = (ChessMove) new SAN().stringToMove(chessBoard, sanMove);
+		long delta = ZobristHash.getMoveDelta(chessBoard, chessMove);
+		chessBoard.playMove(chessMove);
+		assertEquals(ZobristHash.getKey(chessBoard), key ^ delta);
+	}
+}
@@ -0,0 +1,113 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.alphachess.shashchessanalyzer.batch.AnalysisCache.AnalysisResult;
+
+public class AnalysisCacheTest {
+	private static final String ENGINE_OPTIONS = "ShashChess";
+	private static final int PROCESSES_NUMBER = 4;
+	private static final int RESULTS_NUMBER = 500;
+
+	@Test
+	public void shouldShareResultsBetweenCaches() throws IOException {
+		File cacheFile = getCacheFile();
+		try (AnalysisCache firstCache = new AnalysisCache(cacheFile.getPath(), 10, ENGINE_OPTIONS);
+				AnalysisCache secondCache = new AnalysisCache(cacheFile.getPath(), 10, ENGINE_OPTIONS)) {
+			firstCache.put(getFen(1), "", getResult(1, 20));
+			assertEquals(20, secondCache.get(getFen(1), "", 1000, 0).getDepth());
+			secondCache.put(getFen(2), "", getResult(2, 22));
+			assertEquals("e2e4", firstCache.get(getFen(2), "", 1000, 0).getBestMove());
+			// a shallower result does not replace the deeper one of the other cache
+			secondCache.put(getFen(1), "", getResult(1, 10));
+			assertEquals(20, firstCache.get(getFen(1), "", 1000, 0).getDepth());
+			// a line torn by a crash is skipped
+			Files.write(cacheFile.toPath(), "torn".getBytes(StandardCharsets.ISO_8859_1),
+					StandardOpenOption.APPEND);
+			firstCache.put(getFen(3), "", getResult(3, 24));
+			assertEquals(24, secondCache.get(getFen(3), "", 1000, 0).getDepth());
+		}
+		try (AnalysisCache cache = new AnalysisCache(cacheFile.getPath(), 10, ENGINE_OPTIONS)) {
+			for (int position = 1; position <= 3; position++) {
+				assertNotNull(cache.get(getFen(position), "", 1000, 0));
+			}
+			assertNull(cache.get(getFen(4), "", 1000, 0));
+		} finally {
+			cacheFile.delete();
+		}
+	}
+
+	/**
+	 * Processes append distinct results to the same file: none of them is
+	 * overwritten by another process.
+	 */
+	@Test
+	public void shouldKeepTheResultsOfEveryProcess() throws IOException, InterruptedException {
+		File cacheFile = getCacheFile();
+		try {
+			List<Process> processes = new ArrayList<>();
+			for (int processIndex = 0; processIndex < PROCESSES_NUMBER; processIndex++) {
+				processes.add(new ProcessBuilder(
+						String.join(File.separator, System.getProperty("java.home"), "bin", "java"), "-cp",
+						System.getProperty("java.class.path"), AnalysisCacheTest.class.getName(), cacheFile.getPath(),
+						Integer.toString(processIndex)).inheritIO().start());
+			}
+			for (Process process : processes) {
+				assertEquals(0, process.waitFor());
+			}
+			try (AnalysisCache cache = new AnalysisCache(cacheFile.getPath(), 10, ENGINE_OPTIONS)) {
+				for (int position = 0; position < PROCESSES_NUMBER * RESULTS_NUMBER; position++) {
+					assertEquals(getResult(position, 20).getScore(),
+							cache.get(getFen(position), "", 1000, 0).getScore());
+				}
+			}
+			assertEquals(PROCESSES_NUMBER * RESULTS_NUMBER, Files.readAllLines(cacheFile.toPath()).size());
+		} finally {
+			cacheFile.delete();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int processIndex = Integer.parseInt(args[1]);
+		try (AnalysisCache cache = new AnalysisCache(args[0], 10, ENGINE_OPTIONS)) {
+			for (int result = 0; result < RESULTS_NUMBER; result++) {
+				int position = result * PROCESSES_NUMBER + processIndex;
+				cache.put(getFen(position), "", getResult(position, 20));
+			}
+		}
+	}
+
+	// distinct positions: the number is written in binary with the white rooks of the first two ranks
+	private static String getFen(int position) {
+		StringBuilder placement = new StringBuilder();
+		for (int square = 0; square < 16; square++) {
+			placement.append(((position >> square) & 1) != 0 ? 'R' : '1');
+			if (square == 7) {
+				placement.append('/');
+			}
+		}
+		return String.join(" ", String.join("/", "4k3/8/8/8/8/8", placement), "w", "-", "-", "0", "1");
+	}
+
+	private static AnalysisResult getResult(int position, int depth) {
+		return new AnalysisResult("e2e4", position % 1000 - 500, 0, depth, "e2e4 e7e5", "", 1000);
+	}
+
+	private static File getCacheFile() throws IOException {
+		File cacheFile = File.createTempFile("analysis", ".cache");
+		cacheFile.delete();
+		return cacheFile;
+	}
+}
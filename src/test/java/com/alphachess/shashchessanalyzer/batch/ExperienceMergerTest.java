@@ -0,0 +1,108 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.alphachess.shashchessanalyzer.batch.ExperienceFile.ExperienceEntry;
+
+public class ExperienceMergerTest {
+	// more than the 43690 records of a 1 MB chunk, so that the inputs are sorted in several runs
+	private static final int RECORDS_NUMBER = 60000;
+	private static final int KEYS_NUMBER = 5000;
+	private static final int MOVES_NUMBER = 4;
+
+	@Test
+	public void shouldKeepTheDeepestEntryOfEveryPositionAndMove() throws IOException {
+		File temporaryDirectory = Files.createTempDirectory("experiencemerger").toFile();
+		File[] experienceFiles = { new File(temporaryDirectory, "first.bin"),
+				new File(temporaryDirectory, "second.bin") };
+		File mergedExperienceFile = new File(temporaryDirectory, "merged.bin");
+		File propertiesFile = new File(temporaryDirectory, "experiencemerger.properties");
+		try {
+			Map<String, ExperienceEntry> deepestEntries = new HashMap<>();
+			Random random = new Random(1);
+			for (File experienceFile : experienceFiles) {
+				writeEntries(experienceFile, random, deepestEntries);
+			}
+			Properties properties = new Properties();
+			properties.setProperty("experienceFiles",
+					String.join(",", experienceFiles[0].getPath(), experienceFiles[1].getPath()));
+			properties.setProperty("mergedExperienceFile", mergedExperienceFile.getPath());
+			properties.setProperty("chunkSizeMB", "1");
+			properties.setProperty("temporaryDirectory", temporaryDirectory.getPath());
+			try (FileOutputStream propertiesOutput = new FileOutputStream(propertiesFile)) {
+				properties.store(propertiesOutput, null);
+			}
+			new ExperienceMerger(new String[] { propertiesFile.getPath() }).merge();
+			try (ExperienceFile mergedExperience = new ExperienceFile(mergedExperienceFile.getPath())) {
+				assertEquals(deepestEntries.size(), mergedExperience.getEntriesNumber());
+				long previousKey = Long.MIN_VALUE;
+				for (long record = 0; record < mergedExperience.getEntriesNumber(); record++) {
+					ExperienceEntry entry = mergedExperience.getEntry(record);
+					assertTrue(entry.getKey() >= previousKey);
+					previousKey = entry.getKey();
+					ExperienceEntry deepestEntry = deepestEntries.get(getKeyMove(entry));
+					assertNotNull(deepestEntry);
+					assertEquals(deepestEntry.getDepth(), entry.getDepth());
+					assertEquals(deepestEntry.getValue(), entry.getValue());
+					assertEquals(deepestEntry.getPerformance(), entry.getPerformance());
+				}
+			}
+			// only the merged file is left
+			assertEquals(4, temporaryDirectory.listFiles().length);
+		} finally {
+			for (File file : temporaryDirectory.listFiles()) {
+				file.delete();
+			}
+			temporaryDirectory.delete();
+		}
+	}
+
+	private static void writeEntries(File experienceFile, Random random, Map<String, ExperienceEntry> deepestEntries)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(RECORDS_NUMBER * ExperienceFile.RECORD_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		for (int record = 0; record < RECORDS_NUMBER; record++) {
+			long key = random.nextInt(KEYS_NUMBER) * 0x9e3779b97f4a7c15L;
+			ExperienceEntry entry = new ExperienceEntry(key, random.nextInt(40) - 4, random.nextInt(1001) - 500,
+					random.nextInt(MOVES_NUMBER) + 100, random.nextInt(101));
+			buffer.putLong(entry.getKey());
+			buffer.putInt(entry.getDepth());
+			buffer.putInt(entry.getValue());
+			buffer.putInt(entry.getMove());
+			buffer.putInt(entry.getPerformance());
+			deepestEntries.merge(getKeyMove(entry), entry,
+					(first, second) -> isDeeper(second, first) ? second : first);
+		}
+		Files.write(experienceFile.toPath(), buffer.array());
+	}
+
+	// among equally deep entries the one with the best value, then the best performance
+	private static boolean isDeeper(ExperienceEntry first, ExperienceEntry second) {
+		if (first.getDepth() != second.getDepth()) {
+			return first.getDepth() > second.getDepth();
+		}
+		if (first.getValue() != second.getValue()) {
+			return first.getValue() > second.getValue();
+		}
+		return first.getPerformance() > second.getPerformance();
+	}
+
+	private static String getKeyMove(ExperienceEntry entry) {
+		return String.join(" ", Long.toString(entry.getKey()), Integer.toString(entry.getMove()));
+	}
+}
@@ -0,0 +1,170 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.alphachess.shashchessanalyzer.WinProbabilityByMaterial;
+
+import ictk.boardgame.AmbiguousMoveException;
+import ictk.boardgame.IllegalMoveException;
+import ictk.boardgame.chess.ChessBoard;
+import ictk.boardgame.chess.ChessMove;
+import ictk.boardgame.chess.ChessResult;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.SAN;
+import net.andreinc.neatchess.client.model.Strength;
+
+public class GameAdjudicatorTest {
+	private static final String[] OPENING_MOVES = { "e4", "e5", "Nf3", "Nc6", "Bc4", "Bc5", "c3", "Nf6" };
+	private static final String[] KNIGHT_MOVES = { "Nf3", "Nf6", "Ng1", "Ng8", "Nf3", "Nf6", "Ng1", "Ng8" };
+
+	@Test
+	public void shouldResignAfterDecidedPlies() throws IllegalMoveException, AmbiguousMoveException {
+		GameAdjudicator gameAdjudicator = new GameAdjudicator(5, 4, 0, 0);
+		ChessBoard chessBoard = new ChessBoard();
+		gameAdjudicator.newGame(chessBoard);
+		SAN san = new SAN();
+		ChessResult result = null;
+		for (int ply = 0; ply < 4; ply++) {
+			assertNull(result);
+			boolean isBlackMove = chessBoard.isBlackMove();
+			chessBoard.playMove((ChessMove) san.stringToMove(chessBoard, OPENING_MOVES[ply]));
+			// white keeps winning: 99 for white, 1 for black
+			result = gameAdjudicator.adjudicate(isBlackMove ? 1 : 99, isBlackMove, chessBoard);
+		}
+		assertTrue(result.isWhiteWin());
+		assertEquals("black resigns", gameAdjudicator.getReason());
+	}
+
+	/**
+	 * Both mate scores are Double.MAX_VALUE in neatchess: the mated side must
+	 * still get the losing win probability.
+	 */
+	@Test
+	public void shouldResignWhenMated() throws IllegalMoveException, AmbiguousMoveException {
+		GameAdjudicator gameAdjudicator = new GameAdjudicator(5, 4, 0, 0);
+		ChessBoard chessBoard = new ChessBoard();
+		gameAdjudicator.newGame(chessBoard);
+		SAN san = new SAN();
+		FEN fen = new FEN();
+		ChessResult result = null;
+		for (int ply = 0; ply < 4; ply++) {
+			assertNull(result);
+			boolean isBlackMove = chessBoard.isBlackMove();
+			int score = AnalysisCache.getScore(new Strength(isBlackMove ? "mate -4" : "mate 5"));
+			int winProbability = WinProbabilityByMaterial.getWinProbabilityFromScore(score,
+					fen.boardToString(chessBoard));
+			chessBoard.playMove((ChessMove) san.stringToMove(chessBoard, OPENING_MOVES[ply]));
+			result = gameAdjudicator.adjudicate(winProbability, isBlackMove, chessBoard);
+		}
+		assertTrue(result.isWhiteWin());
+		assertEquals("black resigns", gameAdjudicator.getReason());
+	}
+
+	@Test
+	public void shouldDrawStableCapablancaPositionsAfterMinPly() throws IllegalMoveException, AmbiguousMoveException {
+		GameAdjudicator gameAdjudicator = new GameAdjudicator(5, 4, 4, 8);
+		ChessBoard chessBoard = new ChessBoard();
+		gameAdjudicator.newGame(chessBoard);
+		SAN san = new SAN();
+		for (int ply = 0; ply < OPENING_MOVES.length; ply++) {
+			boolean isBlackMove = chessBoard.isBlackMove();
+			chessBoard.playMove((ChessMove) san.stringToMove(chessBoard, OPENING_MOVES[ply]));
+			ChessResult result = gameAdjudicator.adjudicate(50, isBlackMove, chessBoard);
+			if (ply < OPENING_MOVES.length - 1) {
+				assertNull(result);
+			} else {
+				assertTrue(result.isDraw());
+				assertEquals("stable Capablanca position", gameAdjudicator.getReason());
+			}
+		}
+	}
+
+	@Test
+	public void shouldDrawThreefoldRepetition() throws IllegalMoveException, AmbiguousMoveException {
+		GameAdjudicator gameAdjudicator = new GameAdjudicator(5, 4, 0, 0);
+		ChessBoard chessBoard = new ChessBoard();
+		gameAdjudicator.newGame(chessBoard);
+		SAN san = new SAN();
+		for (int ply = 0; ply < KNIGHT_MOVES.length; ply++) {
+			boolean isBlackMove = chessBoard.isBlackMove();
+			chessBoard.playMove((ChessMove) san.stringToMove(chessBoard, KNIGHT_MOVES[ply]));
+			ChessResult result = gameAdjudicator.adjudicate(50, isBlackMove, chessBoard);
+			if (ply < KNIGHT_MOVES.length - 1) {
+				assertNull(result);
+			} else {
+				assertTrue(result.isDraw());
+				assertEquals("threefold repetition", gameAdjudicator.getReason());
+			}
+		}
+	}
+
+	/**
+	 * Distinct king positions, none of them irreversible, fill more plies than
+	 * a usual game before the repetition.
+	 */
+	@Test
+	public void shouldDrawThreefoldRepetitionInLongGames() throws IOException {
+		GameAdjudicator gameAdjudicator = new GameAdjudicator(5, 4, 0, 0);
+		FEN fen = new FEN();
+		gameAdjudicator.newGame(getKingsBoard(fen, 0, 63, false));
+		int ply = 0;
+		for (int whiteKingSquare = 0; whiteKingSquare < 64; whiteKingSquare++) {
+			for (int blackKingSquare = 0; blackKingSquare < 64; blackKingSquare++) {
+				if (areKingsApart(whiteKingSquare, blackKingSquare) && (ply < 1500)) {
+					ply++;
+					assertNull(gameAdjudicator.adjudicate(50, ply % 2 == 0,
+							getKingsBoard(fen, whiteKingSquare, blackKingSquare, ply % 2 != 0)));
+				}
+			}
+		}
+		assertEquals(1500, gameAdjudicator.getGamePly());
+		ChessBoard firstChessBoard = getKingsBoard(fen, 0, 63, true);
+		ChessBoard secondChessBoard = getKingsBoard(fen, 7, 56, false);
+		assertNull(gameAdjudicator.adjudicate(50, false, firstChessBoard));
+		assertNull(gameAdjudicator.adjudicate(50, true, secondChessBoard));
+		assertNull(gameAdjudicator.adjudicate(50, false, firstChessBoard));
+		assertNull(gameAdjudicator.adjudicate(50, true, secondChessBoard));
+		assertTrue(gameAdjudicator.adjudicate(50, false, firstChessBoard).isDraw());
+		assertEquals("threefold repetition", gameAdjudicator.getReason());
+	}
+
+	private static boolean areKingsApart(int whiteKingSquare, int blackKingSquare) {
+		return (Math.abs(whiteKingSquare / 8 - blackKingSquare / 8) > 1)
+				|| (Math.abs(whiteKingSquare % 8 - blackKingSquare % 8) > 1);
+	}
+
+	private static ChessBoard getKingsBoard(FEN fen, int whiteKingSquare, int blackKingSquare, boolean isBlackMove)
+			throws IOException {
+		StringBuilder placement = new StringBuilder();
+		for (int rank = 7; rank >= 0; rank--) {
+			int emptySquares = 0;
+			for (int file = 0; file < 8; file++) {
+				int square = rank * 8 + file;
+				char piece = (square == whiteKingSquare) ? 'K' : (square == blackKingSquare) ? 'k' : ' ';
+				if (piece == ' ') {
+					emptySquares++;
+					continue;
+				}
+				if (emptySquares > 0) {
+					placement.append(emptySquares);
+					emptySquares = 0;
+				}
+				placement.append(piece);
+			}
+			if (emptySquares > 0) {
+				placement.append(emptySquares);
+			}
+			if (rank > 0) {
+				placement.append('/');
+			}
+		}
+		// a non zero halfmove clock, so that no position is irreversible
+		return (ChessBoard) fen.stringToBoard(String.join(" ", placement, isBlackMove ? "b" : "w", "-", "-", "1", "1"));
+	}
+}
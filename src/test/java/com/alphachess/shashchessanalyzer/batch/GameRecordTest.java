@@ -0,0 +1,108 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+
+import ictk.boardgame.AmbiguousMoveException;
+import ictk.boardgame.History;
+import ictk.boardgame.IllegalMoveException;
+import ictk.boardgame.Move;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.ChessGameInfo;
+import ictk.boardgame.chess.ChessPlayer;
+import ictk.boardgame.chess.ChessResult;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.PGNReader;
+import ictk.boardgame.chess.io.SAN;
+
+public class GameRecordTest {
+
+	/**
+	 * The self-play games of game.pgn and the lines of ecoAll.pgn keep their
+	 * header, moves and self-play comments through the binary file.
+	 */
+	@Test
+	public void shouldRoundTripSourcePgns() throws IOException, IllegalMoveException, AmbiguousMoveException {
+		for (String pgnFileName : new String[] { "game.pgn", "ecoAll.pgn" }) {
+			List<ChessGame> chessGames = readGames(pgnFileName);
+			File gameRecordFile = File.createTempFile("games", ".gmr");
+			try {
+				assertEquals(chessGames.size(), GameRecordConverter.toBinary(pgnFileName, gameRecordFile.getPath()));
+				try (GameRecordReader gameRecordReader = new GameRecordReader(gameRecordFile.getPath())) {
+					for (ChessGame chessGame : chessGames) {
+						assertSameGame(chessGame, gameRecordReader.readGame().toChessGame());
+					}
+					assertNull(gameRecordReader.readGame());
+				}
+			} finally {
+				gameRecordFile.delete();
+			}
+		}
+	}
+
+	private static List<ChessGame> readGames(String pgnFileName) throws IOException {
+		List<ChessGame> chessGames = new ArrayList<>();
+		try (BufferedReader pgnBufferedReader = CompressedStreams.getBufferedReader(pgnFileName)) {
+			PGNReader pgnReader = new PGNReader(pgnBufferedReader);
+			ChessGame chessGame = GenericUtil.readGame(pgnReader);
+			while (chessGame != null) {
+				chessGames.add(chessGame);
+				chessGame = GenericUtil.readGame(pgnReader);
+			}
+		}
+		assertTrue(chessGames.size() > 0);
+		return chessGames;
+	}
+
+	// a missing tag is stored empty
+	private static String getName(ChessPlayer chessPlayer) {
+		return (chessPlayer != null) ? getText(chessPlayer.getName()) : "";
+	}
+
+	private static String getText(String text) {
+		return (text != null) ? text : "";
+	}
+
+	private static void assertSameGame(ChessGame expectedGame, ChessGame actualGame) {
+		ChessGameInfo expectedInfo = (ChessGameInfo) expectedGame.getGameInfo();
+		ChessGameInfo actualInfo = (ChessGameInfo) actualGame.getGameInfo();
+		assertEquals(getName(expectedInfo.getWhite()), getName(actualInfo.getWhite()));
+		assertEquals(getName(expectedInfo.getBlack()), getName(actualInfo.getBlack()));
+		assertEquals(getText(expectedInfo.getECO()), getText(actualInfo.getECO()));
+		assertEquals(((ChessResult) expectedInfo.getResult()).getIndex(),
+				((ChessResult) actualInfo.getResult()).getIndex());
+		History expectedHistory = expectedGame.getHistory();
+		History actualHistory = actualGame.getHistory();
+		assertEquals(expectedHistory.size(), actualHistory.size());
+		expectedHistory.rewind();
+		actualHistory.rewind();
+		FEN fen = new FEN();
+		assertEquals(fen.boardToString(expectedGame.getBoard()), fen.boardToString(actualGame.getBoard()));
+		SAN san = new SAN();
+		while (expectedHistory.getNext() != null) {
+			Move expectedMove = expectedHistory.getNext();
+			Move actualMove = actualHistory.getNext();
+			assertEquals(san.moveToString(expectedMove), san.moveToString(actualMove));
+			String expectedComment = (expectedMove.getAnnotation() != null)
+					? expectedMove.getAnnotation().getComment()
+					: null;
+			if ((expectedComment != null) && expectedComment.trim().matches("-?\\d+;\\d+;\\d+;s-\\w*")) {
+				assertEquals(expectedComment.trim(), actualMove.getAnnotation().getComment());
+			}
+			expectedHistory.next();
+			actualHistory.next();
+		}
+		assertEquals(fen.boardToString(expectedGame.getBoard()), fen.boardToString(actualGame.getBoard()));
+	}
+}
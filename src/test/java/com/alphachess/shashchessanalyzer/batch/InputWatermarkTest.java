@@ -0,0 +1,49 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Test;
+
+public class InputWatermarkTest {
+	private static final String GAMES = "[Event \"first\"]\n[Result \"*\"]\n\n1. e4 e5 *\n\n"
+			+ "[Event \"second\"]\n[Result \"*\"]\n\n1. d4 d5 *\n\n";
+
+	@Test
+	public void shouldSkipOnlyInputsProcessedFromTheFirstGame() throws IOException {
+		File inputFile = File.createTempFile("input", ".pgn");
+		File watermarkFile = new File(String.join("", inputFile.getPath(), ".watermark"));
+		try {
+			Files.write(inputFile.toPath(), GAMES.getBytes(StandardCharsets.UTF_8));
+			// a run from the second game leaves the first one unprocessed
+			InputWatermark inputWatermark = new InputWatermark(inputFile.getPath());
+			assertEquals(0, inputWatermark.getProcessedOffset());
+			inputWatermark.addGame(2);
+			inputWatermark.close(false);
+			inputWatermark = new InputWatermark(inputFile.getPath());
+			assertEquals(0, inputWatermark.getProcessedOffset());
+			assertTrue(inputWatermark.isProcessed(2));
+			assertFalse(inputWatermark.isProcessed(1));
+			// a run from the first game processes the whole file
+			inputWatermark.addGame(1);
+			inputWatermark.close(true);
+			inputWatermark = new InputWatermark(inputFile.getPath());
+			assertEquals(inputFile.length(), inputWatermark.getProcessedOffset());
+			assertEquals(2, inputWatermark.getProcessedGamesNumber());
+			// appended games are left to the next run
+			Files.write(inputFile.toPath(), "[Event \"third\"]\n[Result \"*\"]\n\n1. c4 e5 *\n\n"
+					.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			assertEquals(GAMES.length(), new InputWatermark(inputFile.getPath()).getProcessedOffset());
+		} finally {
+			inputFile.delete();
+			watermarkFile.delete();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.PGNReader;
+
+public class PgnTokenizerTest {
+	private static final String FIRST_GAME = "[Event \"first\"]\n[Result \"*\"]\n\n1. e4 {open} e5 (1... c5 2. Nf3) 2. Nf3 Nc6 *\n\n";
+	private static final String MALFORMED_GAME = "[Event \"malformed\"]\n[Result \"*\"]\n\n1. d4 {never closed d5 *\n\n";
+	private static final String LAST_GAME = "[Event \"last\"]\n[FEN \"4k3/P7/8/8/8/8/8/4K3 w - - 0 1\"]\n[Result \"*\"]\n\n1. a8=Q+ Kd7 *\n";
+
+	@Test
+	public void shouldReachTheFinalPositionsOfIctk() throws IOException {
+		FEN fen = new FEN();
+		int gamesNumber = 0;
+		try (PgnTokenizer pgnTokenizer = new PgnTokenizer("ecoAll.pgn");
+				BufferedReader pgnBufferedReader = CompressedStreams.getBufferedReader("ecoAll.pgn")) {
+			PGNReader pgnReader = new PGNReader(pgnBufferedReader);
+			ChessGame chessGame = GenericUtil.readGame(pgnReader);
+			while (chessGame != null) {
+				assertTrue(pgnTokenizer.next());
+				chessGame.getHistory().goToEnd();
+				assertEquals(fen.boardToString(chessGame.getBoard()), pgnTokenizer.getFinalFen());
+				gamesNumber++;
+				chessGame = GenericUtil.readGame(pgnReader);
+			}
+			assertFalse(pgnTokenizer.next());
+			assertEquals(gamesNumber, pgnTokenizer.getGamesNumber());
+			assertEquals(0, pgnTokenizer.getIncorrectGamesNumber());
+		}
+		assertTrue(gamesNumber > 1000);
+	}
+
+	@Test
+	public void shouldSkipMalformedGames() throws IOException {
+		File pgnFile = File.createTempFile("games", ".pgn");
+		try {
+			Files.write(pgnFile.toPath(),
+					String.join("", FIRST_GAME, MALFORMED_GAME, LAST_GAME).getBytes(StandardCharsets.UTF_8));
+			try (PgnTokenizer pgnTokenizer = new PgnTokenizer(pgnFile.getPath())) {
+				assertTrue(pgnTokenizer.next());
+				assertEquals("first", pgnTokenizer.getTag("Event"));
+				assertEquals(getFinalFen(FIRST_GAME), pgnTokenizer.getFinalFen());
+				assertTrue(pgnTokenizer.next());
+				assertEquals("last", pgnTokenizer.getTag("Event"));
+				assertEquals(getFinalFen(LAST_GAME), pgnTokenizer.getFinalFen());
+				assertFalse(pgnTokenizer.next());
+				assertEquals(2, pgnTokenizer.getGamesNumber());
+				assertEquals(1, pgnTokenizer.getIncorrectGamesNumber());
+			}
+		} finally {
+			pgnFile.delete();
+		}
+	}
+
+	private static String getFinalFen(String pgn) {
+		ChessGame chessGame = GenericUtil.readGame(new PGNReader(new BufferedReader(new StringReader(pgn))));
+		chessGame.getHistory().goToEnd();
+		return new FEN().boardToString(chessGame.getBoard());
+	}
+}
@@ -0,0 +1,100 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.io.PGNReader;
+
+public class PlayJournalTest {
+	private static final String FIRST_GAME = "[Event \"first\"]\n[Result \"*\"]\n\n1. e4 e5 2. Nf3 *\n\n";
+	private static final String SECOND_GAME = "[Event \"second\"]\n[Result \"*\"]\n\n1. d4 d5 2. c4 e6 *\n\n";
+	private static final String TORN_RECORD_END = "B\n";
+
+	@Test
+	public void shouldResumeTheGameInProgressAfterACrash() throws IOException {
+		File journalFile = File.createTempFile("play", ".journal");
+		File pgnOutputFile = File.createTempFile("played", ".pgn");
+		File segmentsDirectory = new File(String.join("", pgnOutputFile.getPath(), ".segments"));
+		journalFile.delete();
+		try {
+			PlayJournal playJournal = new PlayJournal(journalFile.getPath(), pgnOutputFile.getPath());
+			assertTrue(playJournal.startGame(1).isEmpty());
+			playJournal.addMove(1, "g1f3", 0, -1, "s-B");
+			playJournal.commitGame(1, getGame(FIRST_GAME));
+			assertTrue(playJournal.startGame(2).isEmpty());
+			playJournal.addMove(2, "d2d4", 0, -1, "s-B");
+			playJournal.addMove(2, "d7d5", 25, 20, "s-B");
+			playJournal.addMove(2, "c2c4", 30, 21, "s-B");
+			// the crash tears the last record inside its last field
+			truncate(journalFile, TORN_RECORD_END.length());
+			// a segment not yet renamed is not a completed game
+			assertTrue(new File(segmentsDirectory, "00000003.pgn.tmp").createNewFile());
+
+			playJournal = new PlayJournal(journalFile.getPath(), pgnOutputFile.getPath());
+			assertTrue(playJournal.isDone(1));
+			assertFalse(playJournal.isDone(2));
+			assertFalse(playJournal.isDone(3));
+			List<String[]> resumedMoves = playJournal.startGame(2);
+			assertEquals(2, resumedMoves.size());
+			assertArrayEquals(new String[] { "d2d4", "0", "-1", "s-B" }, resumedMoves.get(0));
+			assertArrayEquals(new String[] { "d7d5", "25", "20", "s-B" }, resumedMoves.get(1));
+			playJournal.addMove(2, "c2c4", 30, 21, "s-B");
+
+			// the plies journaled after the torn record are resumed by the next restart
+			playJournal = new PlayJournal(journalFile.getPath(), pgnOutputFile.getPath());
+			resumedMoves = playJournal.startGame(2);
+			assertEquals(3, resumedMoves.size());
+			assertArrayEquals(new String[] { "c2c4", "30", "21", "s-B" }, resumedMoves.get(2));
+			playJournal.addMove(2, "e7e6", -15, 22, "s-B");
+			playJournal.commitGame(2, getGame(SECOND_GAME));
+
+			StringWriter pgnOutput = new StringWriter();
+			new PlayJournal(journalFile.getPath(), pgnOutputFile.getPath()).mergeSegments(new PrintWriter(pgnOutput));
+			PGNReader pgnReader = new PGNReader(new BufferedReader(new StringReader(pgnOutput.toString())));
+			assertEquals(getGame(FIRST_GAME).getHistory().toString(),
+					GenericUtil.readGame(pgnReader).getHistory().toString());
+			assertEquals(getGame(SECOND_GAME).getHistory().toString(),
+					GenericUtil.readGame(pgnReader).getHistory().toString());
+			assertNull(GenericUtil.readGame(pgnReader));
+			assertFalse(journalFile.exists());
+			assertFalse(segmentsDirectory.exists());
+		} finally {
+			File[] segmentFiles = segmentsDirectory.listFiles();
+			if (segmentFiles != null) {
+				for (File segmentFile : segmentFiles) {
+					segmentFile.delete();
+				}
+			}
+			segmentsDirectory.delete();
+			journalFile.delete();
+			pgnOutputFile.delete();
+		}
+	}
+
+	private static ChessGame getGame(String pgn) {
+		return GenericUtil.readGame(new PGNReader(new BufferedReader(new StringReader(pgn))));
+	}
+
+	private static void truncate(File file, int bytesNumber) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			randomAccessFile.setLength(randomAccessFile.length() - bytesNumber);
+		}
+	}
+}
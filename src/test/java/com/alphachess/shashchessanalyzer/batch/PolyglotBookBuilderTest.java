@@ -0,0 +1,61 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class PolyglotBookBuilderTest {
+
+	/**
+	 * With no memory the move table keeps its smallest size and is spilled to
+	 * many runs while counting ecoAll.pgn, which fits in one table of 64 MB.
+	 */
+	@Test
+	public void shouldBuildTheSameBookFromSpilledRuns() throws IOException, InterruptedException {
+		File temporaryDirectory = Files.createTempDirectory("polyglotbookbuilder").toFile();
+		try {
+			byte[] book = buildBook(temporaryDirectory, "64");
+			assertTrue(book.length > 0);
+			assertEquals(0, book.length % PolyglotBook.ENTRY_SIZE);
+			assertArrayEquals(book, buildBook(temporaryDirectory, "0"));
+			// the runs are deleted
+			assertEquals(0, temporaryDirectory.listFiles().length);
+		} finally {
+			for (File file : temporaryDirectory.listFiles()) {
+				file.delete();
+			}
+			temporaryDirectory.delete();
+		}
+	}
+
+	private static byte[] buildBook(File temporaryDirectory, String memoryMB) throws IOException, InterruptedException {
+		File bookFile = new File(temporaryDirectory, "book.bin");
+		File propertiesFile = new File(temporaryDirectory, "polyglotbookbuilder.properties");
+		Properties properties = new Properties();
+		properties.setProperty("pgnFiles", "ecoAll.pgn");
+		properties.setProperty("bookFile", bookFile.getPath());
+		properties.setProperty("maxPly", "30");
+		properties.setProperty("minGames", "1");
+		properties.setProperty("threadsNumber", "2");
+		properties.setProperty("memoryMB", memoryMB);
+		properties.setProperty("temporaryDirectory", temporaryDirectory.getPath());
+		try (FileOutputStream propertiesOutput = new FileOutputStream(propertiesFile)) {
+			properties.store(propertiesOutput, null);
+		}
+		try {
+			new PolyglotBookBuilder(new String[] { propertiesFile.getPath() }).build();
+			return Files.readAllBytes(bookFile.toPath());
+		} finally {
+			Files.delete(bookFile.toPath());
+			Files.delete(propertiesFile.toPath());
+		}
+	}
+}
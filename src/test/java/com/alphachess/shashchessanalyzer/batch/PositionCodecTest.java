@@ -0,0 +1,84 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.alphachess.shashchessanalyzer.GenericUtil;
+
+import ictk.boardgame.History;
+import ictk.boardgame.chess.ChessGame;
+import ictk.boardgame.chess.io.FEN;
+import ictk.boardgame.chess.io.PGNReader;
+
+public class PositionCodecTest {
+
+	@Test
+	public void shouldRoundTripEveryEcoAllPosition() throws IOException {
+		FEN fen = new FEN();
+		int positionsNumber = 0;
+		try (BufferedReader pgnBufferedReader = new BufferedReader(new FileReader("ecoAll.pgn"))) {
+			PGNReader pgnReader = new PGNReader(pgnBufferedReader);
+			ChessGame chessGame = GenericUtil.readGame(pgnReader);
+			while (chessGame != null) {
+				History history = chessGame.getHistory();
+				history.rewind();
+				positionsNumber += assertRoundTrip(fen.boardToString(chessGame.getBoard()));
+				while (history.getNext() != null) {
+					history.next();
+					positionsNumber += assertRoundTrip(fen.boardToString(chessGame.getBoard()));
+				}
+				chessGame = GenericUtil.readGame(pgnReader);
+			}
+		}
+		assertTrue(positionsNumber > 10000);
+	}
+
+	@Test
+	public void shouldKeepSideToMoveCastlingAndEnPassant() {
+		assertRoundTrip("rnbqkbnr/pppppppp/8/8/4P3/8/PPPP1PPP/RNBQKBNR b KQkq e3 0 1");
+		assertRoundTrip("rnbqkbnr/ppp1pppp/8/3pP3/8/8/PPPP1PPP/RNBQKBNR w Kq d6 0 3");
+		assertRoundTrip("r3k2r/8/8/8/8/8/8/R3K2R w Qk - 12 40");
+		assertRoundTrip("8/8/8/8/8/8/4K3/k7 b - - 99 1000");
+		assertTrue(PositionCodec.isBlackMove(PositionCodec.encode("8/8/8/8/8/8/4K3/k7 b - - 0 1"), 0));
+		assertFalse(PositionCodec.isBlackMove(PositionCodec.encode("8/8/8/8/8/8/4K3/k7 w - - 0 1"), 0));
+		assertEquals(32, PositionCodec.getPiecesNumber(
+				PositionCodec.encode("rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1"), 0));
+	}
+
+	@Test
+	public void shouldEncodeAtOffset() {
+		String fen = "r3k2r/8/8/8/8/8/8/R3K2R w Qk - 12 40";
+		byte[] positions = new byte[PositionCodec.POSITION_SIZE * 3];
+		PositionCodec.encode(fen, positions, PositionCodec.POSITION_SIZE);
+		assertEquals(fen, PositionCodec.decode(positions, PositionCodec.POSITION_SIZE));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectCastlingWithoutRook() {
+		PositionCodec.encode("4k3/8/8/8/8/8/8/4K3 w K - 0 1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectEnPassantWithoutPawn() {
+		PositionCodec.encode("4k3/8/8/8/8/8/8/4K3 b - e3 0 1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectWrongPlacement() {
+		PositionCodec.encode("4k3/8/8/8/8/8/8/4K4 w - - 0 1");
+	}
+
+	private static int assertRoundTrip(String fen) {
+		byte[] position = PositionCodec.encode(fen);
+		assertEquals(PositionCodec.POSITION_SIZE, position.length);
+		assertEquals(fen, PositionCodec.decode(position));
+		return 1;
+	}
+}
@@ -0,0 +1,64 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class SeedPositionDeduplicatorTest {
+	// played from the seed 1. e4 e5 with two book plies, then searched
+	private static final String BOOK_GAME = "[Event \"book\"]\n[Result \"*\"]\n\n"
+			+ "1. e4 e5 2. Nf3 {book} Nc6 {book} 3. Bb5 {35;20;55;s-B} a6 {-30;20;45;s-B} *\n\n";
+	// played from the seed 1. d4 d5 entirely from the book
+	private static final String ALL_BOOK_GAME = "[Event \"all book\"]\n[Result \"*\"]\n\n"
+			+ "1. d4 d5 2. c4 {book} e6 {book} *\n\n";
+
+	@Test
+	public void shouldRegisterTheSeedBeforeTheBookPlies() throws IOException {
+		File playedPgnFile = File.createTempFile("played", ".pgn");
+		File inputPgnFile = File.createTempFile("input", ".pgn");
+		try {
+			write(playedPgnFile, BOOK_GAME, ALL_BOOK_GAME);
+			// the position after the book plies is not a played seed
+			write(inputPgnFile, getInputGame("1. e4 e5"), getInputGame("1. Nf3 Nc6 2. e4 e5"),
+					getInputGame("1. d4 d5"), getInputGame("1. c4 e5"));
+			SeedPositionDeduplicator seedPositionDeduplicator = new SeedPositionDeduplicator();
+			seedPositionDeduplicator.addPlayedPgn(playedPgnFile.getPath());
+			assertEquals(new HashSet<>(Arrays.asList(1, 3)),
+					seedPositionDeduplicator.getDuplicateInputGames(inputPgnFile.getPath(), 1));
+		} finally {
+			playedPgnFile.delete();
+			inputPgnFile.delete();
+		}
+	}
+
+	@Test
+	public void shouldRegisterOnlyTheSeedsOfPlayedInputGames() throws IOException {
+		File inputPgnFile = File.createTempFile("input", ".pgn");
+		try {
+			write(inputPgnFile, getInputGame("1. e4 e5"), getInputGame("1. d4 d5"), getInputGame("1. e4 e5"),
+					getInputGame("1. c4 e5"), getInputGame("1. e4 e5"));
+			// the first two games come before firstInputGame
+			assertEquals(new HashSet<>(Arrays.asList(5)),
+					new SeedPositionDeduplicator().getDuplicateInputGames(inputPgnFile.getPath(), 3));
+			assertEquals(new HashSet<>(Arrays.asList(3, 5)),
+					new SeedPositionDeduplicator().getDuplicateInputGames(inputPgnFile.getPath(), 1));
+		} finally {
+			inputPgnFile.delete();
+		}
+	}
+
+	private static String getInputGame(String moves) {
+		return String.join("", "[Event \"input\"]\n[Result \"*\"]\n\n", moves, " *\n\n");
+	}
+
+	private static void write(File pgnFile, String... games) throws IOException {
+		Files.write(pgnFile.toPath(), String.join("", games).getBytes(StandardCharsets.UTF_8));
+	}
+}
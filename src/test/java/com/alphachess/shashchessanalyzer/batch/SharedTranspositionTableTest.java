@@ -0,0 +1,171 @@
+package com.alphachess.shashchessanalyzer.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.alphachess.shashchessanalyzer.batch.SharedTranspositionTable.TranspositionEntry;
+
+public class SharedTranspositionTableTest {
+	private static final String[] MOVES = { "e2e4", "g1f3", "e7e8q", "a7a8n", "h2h1r", "d2d4" };
+	private static final int KEYS_NUMBER = 100000;
+	private static final int PROCESSES_NUMBER = 4;
+	private static final int OPERATIONS_NUMBER = 2000000;
+
+	@Test
+	public void shouldProbeStoredEntries() throws IOException {
+		File tableFile = getTableFile();
+		try (SharedTranspositionTable table = new SharedTranspositionTable(tableFile.getPath(), 1)) {
+			assertNull(table.probe(0x123456789abcdefL));
+			assertTrue(table.store(0x123456789abcdefL, -250, 31, -4, "e7e8q"));
+			TranspositionEntry entry = table.probe(0x123456789abcdefL);
+			assertNotNull(entry);
+			assertEquals(-250, entry.getScore());
+			assertEquals(31, entry.getDepth());
+			assertEquals(-4, entry.getRange());
+			assertEquals("e7e8q", entry.getBestMove());
+			assertNull(table.probe(0x123456789abcdeeL));
+		}
+		try (SharedTranspositionTable table = new SharedTranspositionTable(tableFile.getPath(), 64)) {
+			assertEquals("e7e8q", table.probe(0x123456789abcdefL).getBestMove());
+		} finally {
+			tableFile.delete();
+		}
+	}
+
+	@Test
+	public void shouldPreferDeeperEntries() throws IOException {
+		File tableFile = getTableFile();
+		try (SharedTranspositionTable table = new SharedTranspositionTable(tableFile.getPath(), 1)) {
+			// keys with equal high and low halves all fall in the first bucket
+			for (long keyIndex = 1; keyIndex <= 4; keyIndex++) {
+				assertTrue(table.store((keyIndex << 32) | keyIndex, 10, (int) keyIndex * 10, 0, "e2e4"));
+			}
+			assertTrue(table.store((1L << 32) | 1L, 20, 5, 0, "d2d4") == false);
+			assertEquals(10, table.probe((1L << 32) | 1L).getDepth());
+			assertTrue(table.store((5L << 32) | 5L, 30, 15, 0, "g1f3"));
+			assertNull(table.probe((1L << 32) | 1L));
+			assertEquals(20, table.probe((2L << 32) | 2L).getDepth());
+			assertEquals("g1f3", table.probe((5L << 32) | 5L).getBestMove());
+			assertTrue(table.store((2L << 32) | 2L, 40, 25, 0, "d2d4"));
+			assertEquals(40, table.probe((2L << 32) | 2L).getScore());
+		} finally {
+			tableFile.delete();
+		}
+	}
+
+	@Test
+	public void shouldPreferDeeperEntriesOfOtherProcesses() throws IOException {
+		File tableFile = getTableFile();
+		try (SharedTranspositionTable firstTable = new SharedTranspositionTable(tableFile.getPath(), 1);
+				SharedTranspositionTable secondTable = new SharedTranspositionTable(tableFile.getPath(), 1)) {
+			assertEquals(firstTable.getGeneration(), secondTable.getGeneration());
+			for (long keyIndex = 1; keyIndex <= 4; keyIndex++) {
+				assertTrue(firstTable.store((keyIndex << 32) | keyIndex, 10, 30 + (int) keyIndex, 0, "e2e4"));
+			}
+			assertTrue(secondTable.store((1L << 32) | 1L, 20, 5, 0, "d2d4") == false);
+			assertTrue(secondTable.store((5L << 32) | 5L, 30, 5, 0, "g1f3"));
+			assertEquals(32, secondTable.probe((2L << 32) | 2L).getDepth());
+			assertNull(secondTable.probe((1L << 32) | 1L));
+			assertEquals(5, firstTable.probe((5L << 32) | 5L).getDepth());
+			// after a new session the older entries give way even to shallower ones
+			int generation = secondTable.newSession();
+			assertEquals(generation, firstTable.getGeneration());
+			assertTrue(firstTable.store((2L << 32) | 2L, 40, 6, 0, "d2d4"));
+			assertEquals(6, secondTable.probe((2L << 32) | 2L).getDepth());
+		} finally {
+			tableFile.delete();
+		}
+	}
+
+	/**
+	 * Processes store and probe the same keys with values derived from the
+	 * key, so that a torn entry is detected as a mismatch.
+	 */
+	@Test
+	public void shouldStayConsistentAcrossProcesses() throws IOException, InterruptedException {
+		File tableFile = getTableFile();
+		try (SharedTranspositionTable table = new SharedTranspositionTable(tableFile.getPath(), 1)) {
+			List<Process> processes = new ArrayList<>();
+			for (int processIndex = 0; processIndex < PROCESSES_NUMBER; processIndex++) {
+				processes.add(new ProcessBuilder(
+						String.join(File.separator, System.getProperty("java.home"), "bin", "java"), "-cp",
+						System.getProperty("java.class.path"), SharedTranspositionTableTest.class.getName(),
+						tableFile.getPath(), Integer.toString(processIndex)).inheritIO().start());
+			}
+			long mismatchesNumber = 0;
+			boolean isRunning = true;
+			while (isRunning) {
+				mismatchesNumber += stress(table, new Random(), 100000);
+				isRunning = false;
+				for (Process process : processes) {
+					isRunning |= process.isAlive();
+				}
+			}
+			for (Process process : processes) {
+				assertEquals(0, process.waitFor());
+			}
+			assertEquals(0, mismatchesNumber);
+			assertTrue(table.getHitsNumber() > 0);
+			assertTrue(table.getStoresNumber() > 0);
+		} finally {
+			tableFile.delete();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		try (SharedTranspositionTable table = new SharedTranspositionTable(args[0], 1)) {
+			long mismatchesNumber = stress(table, new Random(Integer.parseInt(args[1])), OPERATIONS_NUMBER);
+			System.exit((mismatchesNumber == 0) ? 0 : 1);
+		}
+	}
+
+	private static long stress(SharedTranspositionTable table, Random random, int operationsNumber) {
+		long mismatchesNumber = 0;
+		for (int operation = 0; operation < operationsNumber; operation++) {
+			long key = getKey(random.nextInt(KEYS_NUMBER));
+			if (random.nextBoolean()) {
+				table.store(key, getScore(key), random.nextInt(64), getRange(key), getMove(key));
+			} else {
+				TranspositionEntry entry = table.probe(key);
+				if ((entry != null) && ((entry.getScore() != getScore(key)) || (entry.getRange() != getRange(key))
+						|| !entry.getBestMove().equals(getMove(key)))) {
+					mismatchesNumber++;
+				}
+			}
+		}
+		return mismatchesNumber;
+	}
+
+	private static long getKey(int keyIndex) {
+		long key = (keyIndex + 1) * 0x9e3779b97f4a7c15L;
+		return key ^ (key >>> 29);
+	}
+
+	private static int getScore(long key) {
+		return (int) (key ^ (key >>> 32));
+	}
+
+	private static int getRange(long key) {
+		return (int) Long.remainderUnsigned(key, 14) - 6;
+	}
+
+	private static String getMove(long key) {
+		return MOVES[(int) Long.remainderUnsigned(key >>> 8, MOVES.length)];
+	}
+
+	private static File getTableFile() throws IOException {
+		File tableFile = File.createTempFile("transpositions", ".tt");
+		tableFile.delete();
+		return tableFile;
+	}
+}